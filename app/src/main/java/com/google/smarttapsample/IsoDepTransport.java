@@ -0,0 +1,73 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample;
+
+import android.nfc.tech.IsoDep;
+import com.google.smarttapsample.core.AdaptiveTimeouts;
+import com.google.smarttapsample.core.ApduTransport;
+import java.io.IOException;
+
+/**
+ * Class adapts an Android ISO-DEP tag to the Smart Tap protocol library
+ *
+ * Each command is sent with a timeout fitted to the latencies seen for it so far, instead of the
+ * tag's fixed default
+ */
+class IsoDepTransport implements ApduTransport {
+
+  private final IsoDep isoDep;
+  private final AdaptiveTimeouts timeouts;
+  private long firstResponseNanos;
+
+  /**
+   * Constructor for the class
+   *
+   * @param isoDep ISO-DEP (ISO 14443-4) tag methods
+   * @param timeouts Timeouts learned across taps
+   */
+  IsoDepTransport(IsoDep isoDep, AdaptiveTimeouts timeouts) {
+    this.isoDep = isoDep;
+    this.timeouts = timeouts;
+  }
+
+  /**
+   * @return When the first response arrived, from `System.nanoTime()`, 0 if none did
+   */
+  long getFirstResponseNanos() {
+    return firstResponseNanos;
+  }
+
+  @Override
+  public byte[] transceive(byte[] command) throws IOException {
+    isoDep.setTimeout(timeouts.timeoutMillis(command));
+    long start = System.nanoTime();
+
+    try {
+      byte[] response = isoDep.transceive(command);
+      long end = System.nanoTime();
+
+      timeouts.onResponse(command, end - start);
+      if (firstResponseNanos == 0) {
+        this.firstResponseNanos = end;
+      }
+      return response;
+    } catch (IOException e) {
+      // Timed out or the mobile device left the field, either way wait longer next time
+      timeouts.onTimeout(command);
+      throw e;
+    }
+  }
+}
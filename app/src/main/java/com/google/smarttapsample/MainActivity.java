@@ -15,30 +15,131 @@
  */
 package com.google.smarttapsample;
 
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
 import android.nfc.NfcAdapter;
 import android.nfc.Tag;
 import android.nfc.tech.IsoDep;
+import android.os.Build;
 import android.os.Bundle;
 import android.widget.ArrayAdapter;
 import android.widget.ListView;
 import androidx.appcompat.app.AppCompatActivity;
+import com.google.smarttapsample.core.AdaptiveTimeouts;
+import com.google.smarttapsample.core.CryptoProviders;
+import com.google.smarttapsample.core.DecryptionQueue;
+import com.google.smarttapsample.core.GetDataResponse;
+import com.google.smarttapsample.core.HttpRedemptionReceiver;
+import com.google.smarttapsample.core.Member;
+import com.google.smarttapsample.core.MemberStore;
+import com.google.smarttapsample.core.ReaderProfileSelector;
+import com.google.smarttapsample.core.RedemptionCoordinator;
+import com.google.smarttapsample.core.RedemptionEvent;
+import com.google.smarttapsample.core.RedemptionOutbox;
+import com.google.smarttapsample.core.RevocationFilter;
+import com.google.smarttapsample.core.SecureGetFlow;
+import com.google.smarttapsample.core.SessionRandom;
+import com.google.smarttapsample.core.SigningClient;
+import com.google.smarttapsample.core.TapAnalytics;
+import com.google.smarttapsample.core.TapDeadline;
+import com.google.smarttapsample.core.TapEventPublisher;
+import com.google.smarttapsample.core.TapRecovery;
+import com.google.smarttapsample.core.TerminalKeyManager;
+import com.google.smarttapsample.core.TranscriptRecorder;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import org.bouncycastle.util.encoders.Hex;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Activity encompassing entire Smart Tap sample
  */
 public class MainActivity extends AppCompatActivity implements NfcAdapter.ReaderCallback {
 
+  // Decrypt `get smart tap data` responses after the NFC session ends, so the mobile device only
+  // needs to stay in the field for the APDU exchange
+  private static final boolean DEFER_DECRYPTION = true;
+  private static final int PRESIGNATURE_POOL_SIZE = 8;
+
+  // Long-term key signatures come from the signing daemon on this local socket if set, and are
+  // made locally whenever it does not answer in time
+  private static final String SIGNING_DAEMON_SOCKET = "";
+  private static final long SIGNING_TIMEOUT_MILLIS = 40;
+  private static final int SIGNING_BATCH_SIZE = 16;
+
+  // Member profiles keyed by redemption value, kept up to date by the merchant's sync
+  private static final String MEMBER_STORE_FILE = "members.store";
+
+  // Revoked and fraud-flagged redemption values, replaced whole by the merchant's sync
+  private static final String DENYLIST_FILE = "revocations.filter";
+
+  // Redemptions wait in the outbox until the merchant endpoint acknowledges them, they are only
+  // journaled while no endpoint is set
+  private static final String OUTBOX_DIRECTORY = "outbox";
+  private static final String REDEMPTION_ENDPOINT = "";
+
+  // Passes are checked against the other lanes through the store's coordinator if set, one
+  // redeemed on any lane within the window is not redeemed again. Redeemed anyway when the
+  // coordinator does not answer in time
+  private static final String REDEMPTION_COORDINATOR_HOST = "";
+  private static final int REDEMPTION_COORDINATOR_PORT = 7410;
+  private static final String LANE = "lane-1";
+  private static final long DUPLICATE_WINDOW_MILLIS = 60 * 1000;
+  private static final long COORDINATOR_TIMEOUT_MILLIS = 20;
+
+  // Records every tap's APDUs for replaying field slowdowns, session keys let replays decrypt the
+  // passes too so they stay off unless needed
+  private static final boolean RECORD_TRANSCRIPTS = false;
+  private static final boolean RECORD_SESSION_KEYS = false;
+  private static final String TRANSCRIPT_FILE = "taps.transcript";
+
+  // Taps per hour, unique passes, latency and failures for the store manager, in fixed memory
+  private static final String ANALYTICS_FILE = "taps.analytics";
+  private static final long ANALYTICS_SAVE_INTERVAL_MILLIS = 60 * 1000;
+
+  // Typed tap events for point of sale integrations to subscribe to, Android 11 and up. A
+  // subscriber that falls behind loses its oldest events, the taps never wait for it
+  private static final int TAP_EVENT_BUFFER_SIZE = 64;
+
+  // Per-command timeouts start at the usual ISO-DEP default and adapt to the mobile devices seen.
+  // A flow that loses the field is resumed if the mobile device is back within the window
+  private static final int INITIAL_TIMEOUT_MILLIS = 618;
+  private static final int MIN_TIMEOUT_MILLIS = 100;
+  private static final int MAX_TIMEOUT_MILLIS = 5000;
+  private static final long RESUME_WINDOW_MILLIS = 3000;
+  private static final int MAX_RESUMES = 2;
+
+  // What a person will hold still for, past the hard limit a tap fails with the stage that overran
+  private static final long TAP_BUDGET_MILLIS = 500;
+  private static final long TAP_HARD_LIMIT_MILLIS = 1500;
+
+  // Reader profiles: fast lane from this many taps a minute, idle after this long without one
+  private static final int BUSY_TAPS_PER_MINUTE = 6;
+  private static final long IDLE_AFTER_MILLIS = 5 * 60 * 1000;
+  private static final long MIN_PROFILE_DWELL_MILLIS = 30 * 1000;
+
   private NfcAdapter nfcAdapter;
   private ArrayAdapter<?> arrayAdapter;
   private ArrayList<String> output;
-  private boolean inNfcSession;
-  private NegotiateCryptoResponse negotiateCryptoResponse;
-  private SelectOSEResponse selectOSEResponse;
-  private SelectSmartTapResponse selectSmartTapResponse;
-  private NegotiateCryptoCommand negotiateCryptoCommand;
+  private volatile boolean inNfcSession;
+  private DecryptionQueue decryptionQueue;
+  private AdaptiveTimeouts timeouts;
+  private TapRecovery tapRecovery;
+  private ReaderModeManager readerModeManager;
+  private SigningClient signingClient;
+  private RedemptionCoordinator redemptionCoordinator;
+  private ExecutorService tapEventExecutor;
+  private TapEventPublisher tapEventPublisher;
+  private volatile MemberStore memberStore;
+  private volatile RevocationFilter revocationFilter;
+  private volatile RedemptionOutbox redemptionOutbox;
+  private volatile TranscriptRecorder transcriptRecorder;
+  private volatile TapAnalytics tapAnalytics;
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
@@ -47,6 +148,37 @@ public class MainActivity extends AppCompatActivity implements NfcAdapter.Reader
     this.nfcAdapter = NfcAdapter.getDefaultAdapter(this);
     this.output = new ArrayList<>();
     this.arrayAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, output);
+    this.decryptionQueue = new DecryptionQueue();
+    this.timeouts = new AdaptiveTimeouts(
+        INITIAL_TIMEOUT_MILLIS, MIN_TIMEOUT_MILLIS, MAX_TIMEOUT_MILLIS);
+    this.tapRecovery = new TapRecovery(RESUME_WINDOW_MILLIS, MAX_RESUMES);
+    this.readerModeManager = new ReaderModeManager(this, nfcAdapter, this,
+        new ReaderProfileSelector(BUSY_TAPS_PER_MINUTE, IDLE_AFTER_MILLIS,
+            MIN_PROFILE_DWELL_MILLIS, System.nanoTime()));
+
+    // Pre-compute signature nonces so the negotiate stage only finishes a signature
+    TerminalKeyManager.getDefault().enablePresigning(PRESIGNATURE_POOL_SIZE);
+
+    if (!SIGNING_DAEMON_SOCKET.isEmpty()) {
+      this.signingClient = new SigningClient(
+          this::connectSigningDaemon, SIGNING_TIMEOUT_MILLIS, SIGNING_BATCH_SIZE);
+      TerminalKeyManager.getDefault().enableRemoteSigning(signingClient);
+    }
+
+    if (!REDEMPTION_COORDINATOR_HOST.isEmpty()) {
+      this.redemptionCoordinator = new RedemptionCoordinator(REDEMPTION_COORDINATOR_HOST,
+          REDEMPTION_COORDINATOR_PORT, LANE, DUPLICATE_WINDOW_MILLIS, COORDINATOR_TIMEOUT_MILLIS);
+    }
+
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+      this.tapEventExecutor = Executors.newCachedThreadPool();
+      this.tapEventPublisher = new TapEventPublisher(tapEventExecutor, TAP_EVENT_BUFFER_SIZE,
+          TapEventPublisher.OverflowPolicy.DROP_OLDEST);
+    }
+
+    // Pin the fastest crypto providers on this device, off the UI thread
+    new Thread(this::selectCryptoProviders, "smart-tap-provider-selection").start();
+    new Thread(this::openLocalStores, "smart-tap-local-stores").start();
 
     setContentView(R.layout.activity_main);
 
@@ -58,308 +190,343 @@ public class MainActivity extends AppCompatActivity implements NfcAdapter.Reader
   protected void onResume() {
     super.onResume();
 
-    int flags = NfcAdapter.FLAG_READER_NFC_A;
-    flags |= NfcAdapter.FLAG_READER_SKIP_NDEF_CHECK;
-
-    nfcAdapter.enableReaderMode(this, this, flags, null);
+    readerModeManager.enable();
   }
 
   @Override
   public void onPause() {
     super.onPause();
 
-    nfcAdapter.disableReaderMode(this);
+    readerModeManager.disable();
   }
 
   @Override
-  public void onTagDiscovered(Tag tag) {
-    try {
-      this.output.clear();
+  protected void onDestroy() {
+    super.onDestroy();
 
-      IsoDep isoDep = IsoDep.get(tag);
-      isoDep.connect();
+    decryptionQueue.shutdown();
+    tapRecovery.clear();
 
-      if (output.size() == 0 && !inNfcSession) {
-        this.performSecureGetFlow(isoDep);
-      }
+    // The key manager outlives the activity, a new one enables pre-signing again
+    TerminalKeyManager.getDefault().disablePresigning();
 
-      isoDep.close();
-    } catch (Exception e) {
-      stopCommand(new StringBuilder("Error: " + e));
+    // Taps still signing through the client sign locally once it is closed
+    if (signingClient != null) {
+      TerminalKeyManager.getDefault().disableRemoteSigning(signingClient);
+      signingClient.close();
     }
-  }
 
-  /**
-   * Runs the individual commands in the `get smart tap data` flow and parses responses
-   *
-   * @param isoDep ISO-DEP (ISO 14443-4) tag methods
-   */
-  private void performSecureGetFlow(IsoDep isoDep) {
-    this.inNfcSession = true;
+    if (redemptionCoordinator != null) {
+      redemptionCoordinator.close();
+    }
 
-    // Outputs to the sample app during the flow
-    StringBuilder descriptiveText = new StringBuilder("Performing secure get flow...");
+    // Subscribers are sent what is buffered, then completed
+    if (tapEventPublisher != null) {
+      tapEventPublisher.close();
+      tapEventExecutor.shutdown();
+    }
 
-    try {
-      // Command: `select ose`
-      performSelectOSECommand(isoDep, descriptiveText);
-
-      // Check for the Smart Tap AID
-      boolean smartTap = false;
-      for (byte[] aid : selectOSEResponse.aids) {
-        if (Arrays.equals(
-            aid,
-            new byte[]{
-                (byte) 0xa0,
-                (byte) 0x00,
-                (byte) 0x00,
-                (byte) 0x04,
-                (byte) 0x76,
-                (byte) 0xd0,
-                (byte) 0x00,
-                (byte) 0x01,
-                (byte) 0x11
-            })) {
-          smartTap = true;
-          break;
-        }
+    // Journals the redemptions still queued, they are delivered after the next open
+    RedemptionOutbox redemptionOutbox = this.redemptionOutbox;
+    if (redemptionOutbox != null) {
+      this.redemptionOutbox = null;
+
+      try {
+        redemptionOutbox.close();
+      } catch (IOException e) {
+        // Already journaled redemptions are kept
       }
+    }
 
-      if (!smartTap) {
-        // Smart TAP AID not present in `select ose` response
-        descriptiveText.append("\n* Smart Tap AID not detected!\n---");
+    TranscriptRecorder transcriptRecorder = this.transcriptRecorder;
+    if (transcriptRecorder != null) {
+      this.transcriptRecorder = null;
 
-        // Stop
-        this.stopCommand(descriptiveText);
-        return;
+      try {
+        transcriptRecorder.close();
+      } catch (IOException e) {
+        // Taps already appended are kept
+      }
+    }
+
+    TapAnalytics tapAnalytics = this.tapAnalytics;
+    if (tapAnalytics != null) {
+      this.tapAnalytics = null;
+
+      try {
+        tapAnalytics.close();
+      } catch (IOException e) {
+        // The last periodic save is kept
       }
+    }
+  }
 
-      // Command: `select smart tap 2`
-      performSelectSmartTap(isoDep, descriptiveText);
+  @Override
+  public void onTagDiscovered(Tag tag) {
+    long discoveredNanos = System.nanoTime();
+    SecureGetFlow secureGetFlow = null;
 
-      // Command: `negotiate smart tap secure sessions`
-      performNegotiateCrypto(isoDep, descriptiveText);
+    try {
+      // The adapter's list is only touched on the UI thread, ahead of this tap's output
+      runOnUiThread(() -> {
+        output.clear();
+        arrayAdapter.notifyDataSetChanged();
+      });
 
-      // Command: `get smart tap data`
-      performGetData(isoDep, descriptiveText);
+      IsoDep isoDep = IsoDep.get(tag);
+      isoDep.connect();
 
-      // Stop
-      this.stopCommand(descriptiveText);
+      if (!inNfcSession) {
+        secureGetFlow = this.performSecureGetFlow(isoDep, discoveredNanos);
+      }
+
+      isoDep.close();
     } catch (Exception e) {
-      // Something went wrong...
-      descriptiveText
-          .append("\n\nError: ")
-          .append(e);
+      stopCommand(new StringBuilder("Error: " + e));
+    }
+
+    // The mobile device is no longer needed, decrypt what was captured
+    if (secureGetFlow != null) {
+      long tapId = secureGetFlow.getTapId();
+
+      secureGetFlow.submitCapturedResponse(decryptionQueue, new DecryptionQueue.Callback() {
+        @Override
+        public void onDecrypted(GetDataResponse getDataResponse) {
+          MainActivity.this.onDecrypted(tapId, getDataResponse);
+        }
 
-      // Stop
-      this.stopCommand(descriptiveText);
+        @Override
+        public void onDecryptionFailed(Exception e) {
+          MainActivity.this.onDecryptionFailed(e);
+        }
+      });
     }
+
+    // Draw the next tap's random bytes while the reader is idle
+    SessionRandom.prefetch();
   }
 
   /**
-   * Performs `select ose` command and parses its response https://developers.google.com/wallet/smart-tap/reference/apdu-commands/select-other-system-environment
+   * Redeems a pass decrypted after the NFC session and surfaces it
    *
-   * @param isoDep ISO-DEP (ISO 14443-4) tag methods
-   * @param descriptiveText Smart Tap response data to be surfaced on the device
+   * @param tapId Id the tap's events are published under
+   * @param getDataResponse Parsed and decrypted `get smart tap data` response
    */
-  private void performSelectOSECommand(IsoDep isoDep, StringBuilder descriptiveText)
-      throws Exception {
-
-    byte[] response = isoDep.transceive(
-        new byte[]{
-            (byte) 0x00,
-            (byte) 0xA4,
-            (byte) 0x04,
-            (byte) 0x00,
-            (byte) 0x0A,
-            (byte) 0x4F,
-            (byte) 0x53,
-            (byte) 0x45,
-            (byte) 0x2E,
-            (byte) 0x56,
-            (byte) 0x41,
-            (byte) 0x53,
-            (byte) 0x2E,
-            (byte) 0x30,
-            (byte) 0x31,
-            (byte) 0x00
-        });
-
-    this.selectOSEResponse = new SelectOSEResponse(response);
+  private void onDecrypted(long tapId, GetDataResponse getDataResponse) {
+    StringBuilder descriptiveText = new StringBuilder();
 
+    // Decrypted smartTapRedemptionValue from the pass
     descriptiveText
-        .append("\n----\nSent `select ose` command...\n")
-        .append("\nResponse parsed:\n");
-
-    // Response status
-    descriptiveText
-        .append("\n* Status:\n  ")
-        .append(selectOSEResponse.status)
-        .append(" (ISO 7816-4)\n");
+        .append("\n----\nDecrypted `get smart tap data` response after the NFC session, contents:")
+        .append("\n  ")
+        .append(getDataResponse.decryptedSmartTapRedemptionValue);
+
+    // Another lane may have redeemed the same pass moments ago
+    RedemptionCoordinator.Claim claim = null;
+    if (redemptionCoordinator != null) {
+      claim = redemptionCoordinator.claim(getDataResponse.decryptedSmartTapRedemptionValue);
+
+      if (claim.isDuplicate()) {
+        descriptiveText.append("\n  Already redeemed on ")
+            .append(claim.getHolder())
+            .append(", not redeemed again\n----\n");
+        addDeferredOutput(descriptiveText);
+        return;
+      }
+    }
 
-    // Wallet application label
-    descriptiveText
-        .append("\n* Wallet application label:\n  ")
-        .append(selectOSEResponse.walletApplicationLabel)
-        .append("\n");
+    // Member profile from the on-device store
+    MemberStore memberStore = this.memberStore;
+    if (memberStore != null) {
+      Member member = memberStore.lookup(getDataResponse.decryptedSmartTapRedemptionValue);
+      descriptiveText.append("\n  ").append(member == null ? "Not a member" : member);
+    }
 
-    // Mobile device nonce
-    descriptiveText
-        .append("\n* Mobile device nonce:\n  ")
-        .append(Hex.toHexString(selectOSEResponse.mobileDeviceNonce))
-        .append("\n");
+    // Queue the redemption for the merchant
+    RedemptionOutbox redemptionOutbox = this.redemptionOutbox;
+    if (redemptionOutbox != null) {
+      redemptionOutbox.enqueue(
+          new RedemptionEvent(getDataResponse.decryptedSmartTapRedemptionValue));
+    }
+    if (claim != null) {
+      claim.commit();
+    }
 
-    // Mobile device ephemeral key
-    descriptiveText
-        .append("\n* Mobile device ephemeral key:\n  ")
-        .append(Hex.toHexString(selectOSEResponse.mobileDeviceEphemeralKey))
-        .append("\n");
-
-    // Application entries
-    for (String app : selectOSEResponse.applications) {
-      descriptiveText
-          .append("\n* Application entry:\n  ")
-          .append(app)
-          .append("\n");
+    // Accepted, tell the point of sale
+    if (tapEventPublisher != null) {
+      tapEventPublisher.redeemed(tapId, getDataResponse.decryptedSmartTapRedemptionValue);
     }
 
     // End
     descriptiveText.append("\n----\n");
+
+    addDeferredOutput(descriptiveText);
   }
 
   /**
-   * Performs `select smart tap 2` and parses its response https://developers.google.com/wallet/smart-tap/reference/apdu-commands/select-smart-tap-2
+   * Surfaces a response that could not be decrypted after the NFC session
    *
-   * @param isoDep ISO-DEP (ISO 14443-4) tag methods
-   * @param descriptiveText Smart Tap response data to be surfaced on the device
+   * @param e The problem encountered
    */
-  private void performSelectSmartTap(IsoDep isoDep, StringBuilder descriptiveText)
-      throws Exception {
-
-    byte[] response = isoDep.transceive(
-        new byte[]{
-            (byte) 0x00,
-            (byte) 0xA4,
-            (byte) 0x04,
-            (byte) 0x00,
-            (byte) 0x09,
-            (byte) 0xA0,
-            (byte) 0x00,
-            (byte) 0x00,
-            (byte) 0x04,
-            (byte) 0x76,
-            (byte) 0xD0,
-            (byte) 0x00,
-            (byte) 0x01,
-            (byte) 0x11,
-            (byte) 0x00
-        });
-
-    this.selectSmartTapResponse = new SelectSmartTapResponse(response);
+  private void onDecryptionFailed(Exception e) {
+    addDeferredOutput(new StringBuilder("Error decrypting `get smart tap data` response: " + e));
+  }
 
-    descriptiveText
-        .append("\n----\nSent `select smart tap 2` command...\n")
-        .append("\nResponse parsed:\n");
+  /**
+   * Connects to the signing daemon over its local socket
+   *
+   * @return Connection for the signing client
+   */
+  private SigningClient.Connection connectSigningDaemon() throws IOException {
+    LocalSocket socket = new LocalSocket();
+    socket.connect(new LocalSocketAddress(SIGNING_DAEMON_SOCKET));
+
+    return new SigningClient.Connection() {
+      @Override
+      public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+      }
 
-    // Status
-    descriptiveText
-        .append("\n* Status:\n  ")
-        .append(selectSmartTapResponse.status)
-        .append(" (ISO 7816-4)\n");
+      @Override
+      public OutputStream getOutputStream() throws IOException {
+        return socket.getOutputStream();
+      }
 
-    // Minimum version
-    descriptiveText
-        .append("\n* Minimum Version:\n  ")
-        .append(selectSmartTapResponse.minimumVersion)
-        .append("\n");
+      @Override
+      public void close() throws IOException {
+        socket.close();
+      }
+    };
+  }
 
-    // Maximum version
-    descriptiveText
-        .append("\n* Maximum Version:\n  ")
-        .append(selectSmartTapResponse.maximumVersion)
-        .append("\n");
-
-    if (selectSmartTapResponse.mobileDeviceNonce != null) {
-      // Mobile device nonce
-      descriptiveText
-          .append("\n* Mobile Device Nonce:\n  ")
-          .append(Hex.toHexString(selectSmartTapResponse.mobileDeviceNonce))
-          .append("\n");
+  /**
+   * Benchmarks the crypto providers and surfaces the chosen ones
+   */
+  private void selectCryptoProviders() {
+    try {
+      addDeferredOutput(new StringBuilder(CryptoProviders.select()));
+    } catch (GeneralSecurityException e) {
+      addDeferredOutput(new StringBuilder("Error selecting crypto providers: " + e));
     }
-
-    // End
-    descriptiveText.append("\n----\n");
   }
 
   /**
-   * Performs `negotiate smart tap secure sessions` and parses its response
-   * https://developers.google.com/wallet/smart-tap/reference/apdu-commands/negotiate-secure-sessions
-   *
-   * @param isoDep ISO-DEP (ISO 14443-4) tag methods
-   * @param descriptiveText Smart Tap response data to be surfaced on the device
+   * Maps the member store and the denylist and opens the redemption outbox and the transcript log,
+   * each is skipped until it is open
    */
-  private void performNegotiateCrypto(IsoDep isoDep, StringBuilder descriptiveText)
-      throws Exception {
+  private void openLocalStores() {
+    try {
+      this.memberStore = MemberStore.open(new File(getFilesDir(), MEMBER_STORE_FILE).toPath());
+    } catch (IOException e) {
+      addDeferredOutput(new StringBuilder("Error opening member store: " + e));
+    }
 
-    this.negotiateCryptoCommand = new NegotiateCryptoCommand(
-        this.selectSmartTapResponse.mobileDeviceNonce);
+    try {
+      this.revocationFilter =
+          RevocationFilter.open(new File(getFilesDir(), DENYLIST_FILE).toPath());
+    } catch (IOException e) {
+      addDeferredOutput(new StringBuilder("Error opening denylist: " + e));
+    }
 
-    byte[] response = isoDep.transceive(negotiateCryptoCommand.commandToByteArray());
-    this.negotiateCryptoResponse = new NegotiateCryptoResponse(response);
+    try {
+      RedemptionOutbox redemptionOutbox =
+          RedemptionOutbox.open(new File(getFilesDir(), OUTBOX_DIRECTORY).toPath());
 
-    descriptiveText
-        .append("\n----\nSent `negotiate smart tap secure sessions` command...")
-        .append("\nResponse parsed:\n");
+      if (!REDEMPTION_ENDPOINT.isEmpty()) {
+        redemptionOutbox.setReceiver(new HttpRedemptionReceiver(new URL(REDEMPTION_ENDPOINT)));
+      }
+      this.redemptionOutbox = redemptionOutbox;
+    } catch (IOException e) {
+      addDeferredOutput(new StringBuilder("Error opening redemption outbox: " + e));
+    }
 
-    // Status last 4
-    descriptiveText
-        .append("\n* Status:\n  ")
-        .append(this.negotiateCryptoResponse.status)
-        .append(" (ISO 7816-4)\n");
+    try {
+      this.tapAnalytics = TapAnalytics.open(
+          new File(getFilesDir(), ANALYTICS_FILE).toPath(), ANALYTICS_SAVE_INTERVAL_MILLIS);
+    } catch (IOException e) {
+      addDeferredOutput(new StringBuilder("Error opening tap analytics: " + e));
+    }
 
-    // Mobile device ephemeral public key
-    descriptiveText
-        .append("\n* Mobile device ephemeral public key (compressed):\n  ")
-        .append(Hex.toHexString(this.negotiateCryptoResponse.mobileDeviceEphemeralPublicKey))
-        .append('\n');
+    if (RECORD_TRANSCRIPTS) {
+      try {
+        this.transcriptRecorder = TranscriptRecorder.open(
+            new File(getFilesDir(), TRANSCRIPT_FILE).toPath(), RECORD_SESSION_KEYS);
+      } catch (IOException e) {
+        addDeferredOutput(new StringBuilder("Error opening transcript log: " + e));
+      }
+    }
+  }
 
-    // End
-    descriptiveText.append("\n----\n");
+  /**
+   * Surfaces the result of a deferred decryption
+   *
+   * @param descriptiveText Smart Tap response data to be surfaced on the device
+   */
+  private void addDeferredOutput(final StringBuilder descriptiveText) {
+    runOnUiThread(() -> {
+      output.add(descriptiveText.toString());
+      arrayAdapter.notifyDataSetChanged();
+    });
   }
 
   /**
-   * Performs `get smart tap data` and parses its response https://developers.google.com/wallet/smart-tap/reference/apdu-commands/get-data
+   * Runs the `get smart tap data` flow and surfaces its output
    *
    * @param isoDep ISO-DEP (ISO 14443-4) tag methods
-   * @param descriptiveText Smart Tap response data to be surfaced on the device
+   * @param discoveredNanos When the tag was discovered, from `System.nanoTime()`
+   * @return The flow that ran
    */
-  private void performGetData(IsoDep isoDep, StringBuilder descriptiveText) throws Exception {
+  private SecureGetFlow performSecureGetFlow(IsoDep isoDep, long discoveredNanos) {
+    this.inNfcSession = true;
 
-    GetDataCommand getDataCommand = new GetDataCommand(
-        this.negotiateCryptoCommand.sessionId,
-        this.negotiateCryptoCommand.collectorIdRecord,
-        this.negotiateCryptoResponse.sequenceNumber + 1);
+    // Outputs to the sample app during the flow
+    StringBuilder descriptiveText = new StringBuilder("Performing secure get flow...");
 
-    byte[] response = isoDep.transceive(getDataCommand.commandToByteArray());
+    // Resumes the flow that lost the field if this is its mobile device coming back
+    IsoDepTransport transport = new IsoDepTransport(isoDep, timeouts);
+    SecureGetFlow secureGetFlow = tapRecovery.perform(
+        transport,
+        link -> new SecureGetFlow(link, DEFER_DECRYPTION)
+            .setDeadline(new TapDeadline(TAP_BUDGET_MILLIS, TAP_HARD_LIMIT_MILLIS))
+            .setMemberStore(memberStore)
+            .setRevocationFilter(revocationFilter)
+            .setRedemptionOutbox(redemptionOutbox)
+            .setRedemptionCoordinator(redemptionCoordinator)
+            .setTranscriptRecorder(transcriptRecorder)
+            .setTapAnalytics(tapAnalytics)
+            .setTapEventPublisher(tapEventPublisher),
+        descriptiveText);
+
+    // Time to first APDU tells the reader profiles apart
+    if (transport.getFirstResponseNanos() != 0) {
+      readerModeManager.onTap(transport.getFirstResponseNanos() - discoveredNanos);
+    }
 
-    GetDataResponse getDataResponse = new GetDataResponse(
-        response,
-        negotiateCryptoResponse.mobileDeviceEphemeralPublicKey,
-        negotiateCryptoCommand.terminalEphemeralPrivateKey,
-        negotiateCryptoCommand.terminalNonce,
-        NegotiateCryptoCommand.COLLECTOR_ID,
-        negotiateCryptoCommand.terminalEphemeralPublicKeyCompressed,
-        negotiateCryptoCommand.signedData,
-        selectSmartTapResponse.mobileDeviceNonce);
+    descriptiveText
+        .append("\n").append(tapRecovery.stats())
+        .append("\n").append(readerModeManager.stats());
 
-    descriptiveText.append("\n----\nSent `get smart tap data` command...");
+    if (signingClient != null) {
+      descriptiveText.append("\n").append(signingClient.stats());
+    }
 
-    // Decrypted smartTapRedemptionValue from the pass
-    descriptiveText.append("\nResponse parsed and decrypted, contents:\n  ");
-    descriptiveText.append(getDataResponse.decryptedSmartTapRedemptionValue);
+    if (redemptionCoordinator != null) {
+      descriptiveText.append("\n").append(redemptionCoordinator.stats());
+    }
 
-    // End
-    descriptiveText.append("\n----\n");
+    if (tapEventPublisher != null) {
+      descriptiveText.append("\n").append(tapEventPublisher.stats());
+    }
+
+    TapAnalytics tapAnalytics = this.tapAnalytics;
+    if (tapAnalytics != null) {
+      descriptiveText.append("\n").append(tapAnalytics.stats());
+    }
+
+    // Stop
+    this.stopCommand(descriptiveText);
+
+    return secureGetFlow;
   }
 
   /**
@@ -369,17 +536,9 @@ public class MainActivity extends AppCompatActivity implements NfcAdapter.Reader
    */
   private void stopCommand(final StringBuilder descriptiveText) {
 
-    // Add output
-    this.output.add(descriptiveText.toString());
-
-    // Clear responses
-    this.negotiateCryptoResponse = null;
-    this.selectOSEResponse = null;
-    this.selectSmartTapResponse = null;
-    this.negotiateCryptoCommand = null;
-
-    // Update the UI
+    // Add output and update the UI
     runOnUiThread(() -> {
+      output.add(descriptiveText.toString());
       arrayAdapter.notifyDataSetChanged();
       inNfcSession = false;
     });
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample;
+
+import android.app.Activity;
+import android.nfc.NfcAdapter;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import com.google.smarttapsample.core.ReaderProfile;
+import com.google.smarttapsample.core.ReaderProfileSelector;
+
+/**
+ * Class keeps reader mode in the profile that suits the terminal's recent traffic
+ *
+ * Reader mode can only be changed from the main thread while the activity is resumed, so taps are
+ * reported from any thread and the profile is re-checked on the main thread every few seconds
+ */
+class ReaderModeManager {
+
+  private static final long CHECK_INTERVAL_MILLIS = 5000;
+
+  private final Activity activity;
+  private final NfcAdapter nfcAdapter;
+  private final NfcAdapter.ReaderCallback callback;
+  private final ReaderProfileSelector selector;
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  private final Runnable periodicCheck = this::periodicCheck;
+  private ReaderProfile enabledProfile;
+
+  /**
+   * Constructor for the class
+   *
+   * @param activity Activity reader mode is enabled for
+   * @param nfcAdapter NFC adapter of the device
+   * @param callback Gets the discovered tags
+   * @param selector Picks the profile
+   */
+  ReaderModeManager(
+      Activity activity,
+      NfcAdapter nfcAdapter,
+      NfcAdapter.ReaderCallback callback,
+      ReaderProfileSelector selector) {
+
+    this.activity = activity;
+    this.nfcAdapter = nfcAdapter;
+    this.callback = callback;
+    this.selector = selector;
+  }
+
+  /**
+   * Enables reader mode in the current profile, call from `onResume`
+   */
+  void enable() {
+    apply(selector.select(System.nanoTime()));
+    handler.postDelayed(periodicCheck, CHECK_INTERVAL_MILLIS);
+  }
+
+  /**
+   * Disables reader mode, call from `onPause`
+   */
+  void disable() {
+    handler.removeCallbacks(periodicCheck);
+    nfcAdapter.disableReaderMode(activity);
+    this.enabledProfile = null;
+  }
+
+  /**
+   * Records a tap, from the thread tags are discovered on
+   *
+   * @param timeToFirstApduNanos Time from discovering the tag to the first response
+   */
+  void onTap(long timeToFirstApduNanos) {
+    selector.onTap(System.nanoTime(), timeToFirstApduNanos);
+  }
+
+  String stats() {
+    return selector.stats();
+  }
+
+  private void periodicCheck() {
+    // Disabled in the meantime
+    if (enabledProfile == null) {
+      return;
+    }
+
+    ReaderProfile profile = selector.select(System.nanoTime());
+    if (profile != enabledProfile) {
+      apply(profile);
+    }
+
+    handler.postDelayed(periodicCheck, CHECK_INTERVAL_MILLIS);
+  }
+
+  /**
+   * Enables reader mode with a profile's flags and presence check delay
+   *
+   * @param profile Profile to enable
+   */
+  private void apply(ReaderProfile profile) {
+    int flags = NfcAdapter.FLAG_READER_NFC_A;
+    flags |= NfcAdapter.FLAG_READER_SKIP_NDEF_CHECK;
+    if (!profile.playsPlatformSounds()) {
+      flags |= NfcAdapter.FLAG_READER_NO_PLATFORM_SOUNDS;
+    }
+
+    Bundle extras = new Bundle();
+    extras.putInt(NfcAdapter.EXTRA_READER_PRESENCE_CHECK_DELAY,
+        profile.getPresenceCheckDelayMillis());
+
+    nfcAdapter.enableReaderMode(activity, callback, flags, extras);
+    this.enabledProfile = profile;
+  }
+}
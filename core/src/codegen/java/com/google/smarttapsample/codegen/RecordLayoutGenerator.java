@@ -0,0 +1,664 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.codegen;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates the NDEF record payload layouts from the record schema
+ *
+ * Each layout becomes a package-private `<Name>Layout` class with the field offsets as constants,
+ * a single bounds check, and readers and writers that index the payload directly. Nothing is
+ * looked up or allocated at run time beyond what the caller asks to be copied out
+ *
+ * Arguments: schema file, output source directory, package name
+ */
+public class RecordLayoutGenerator {
+
+  private static final String LICENSE_HEADER = ""
+      + "/*\n"
+      + " * Copyright 2022 Google LLC\n"
+      + " *\n"
+      + " * Licensed under the Apache License, Version 2.0 (the \"License\");\n"
+      + " * you may not use this file except in compliance with the License.\n"
+      + " * You may obtain a copy of the License at\n"
+      + " *\n"
+      + " * https://www.apache.org/licenses/LICENSE-2.0\n"
+      + " *\n"
+      + " * Unless required by applicable law or agreed to in writing, software\n"
+      + " * distributed under the License is distributed on an \"AS IS\" BASIS,\n"
+      + " * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.\n"
+      + " * See the License for the specific language governing permissions and\n"
+      + " * limitations under the License.\n"
+      + " */\n";
+
+  /**
+   * Enum of the field kinds in the schema
+   */
+  enum Kind {
+    U8(1),
+    U16(2),
+    BYTES(-1),
+    REST(-1),
+    RECORDS(-1);
+
+    final int length;
+
+    Kind(int length) {
+      this.length = length;
+    }
+
+    boolean isVariable() {
+      return this == REST || this == RECORDS;
+    }
+  }
+
+  /**
+   * Class encapsulates one field of a layout
+   */
+  static class Field {
+
+    final Kind kind;
+    final String name;
+    final int length;
+    final Integer constant;
+
+    // Offset from the start for fields before the variable one, from the end for those after
+    int offset;
+    boolean fromEnd;
+
+    Field(Kind kind, String name, int length, Integer constant) {
+      this.kind = kind;
+      this.name = name;
+      this.length = length;
+      this.constant = constant;
+    }
+  }
+
+  /**
+   * Class encapsulates one layout of the schema
+   */
+  static class Layout {
+
+    final String name;
+    final String recordType;
+    final List<Field> fields = new ArrayList<>();
+    Field variable;
+    int fixedLength;
+
+    Layout(String name, String recordType) {
+      this.name = name;
+      this.recordType = recordType;
+    }
+
+    String className() {
+      return name + "Layout";
+    }
+
+    /**
+     * Assigns the field offsets once all fields are read
+     */
+    void resolve() {
+      int offset = 0;
+      for (Field field : fields) {
+        if (field.kind.isVariable()) {
+          field.offset = offset;
+          break;
+        }
+        field.offset = offset;
+        offset += field.length;
+      }
+
+      int fromEnd = 0;
+      for (int i = fields.size() - 1; variable != null && fields.get(i) != variable; i--) {
+        Field field = fields.get(i);
+        fromEnd += field.length;
+        field.offset = fromEnd;
+        field.fromEnd = true;
+      }
+
+      fixedLength = offset + fromEnd;
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 3) {
+      throw new IllegalArgumentException("Usage: <schema> <output directory> <package>");
+    }
+
+    Path schema = Paths.get(args[0]);
+    Path outputDirectory = Paths.get(args[1]);
+    String packageName = args[2];
+
+    List<Layout> layouts = parse(Files.readAllLines(schema, StandardCharsets.UTF_8));
+
+    Path packageDirectory = outputDirectory.resolve(packageName.replace('.', '/'));
+    Files.createDirectories(packageDirectory);
+
+    for (Layout layout : layouts) {
+      Files.write(
+          packageDirectory.resolve(layout.className() + ".java"),
+          generate(layout, packageName, schema.getFileName().toString())
+              .getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * Parses the schema
+   *
+   * @param lines Lines of the schema file
+   * @return Layouts in schema order
+   */
+  static List<Layout> parse(List<String> lines) {
+    List<Layout> layouts = new ArrayList<>();
+    Layout layout = null;
+
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i);
+      int comment = line.indexOf('#');
+      String[] tokens = (comment < 0 ? line : line.substring(0, comment)).trim().split("\\s+");
+
+      if (tokens[0].isEmpty()) {
+        continue;
+      }
+
+      if (tokens[0].equals("layout")) {
+        if (tokens.length < 2 || tokens.length > 3) {
+          throw schemaError(i, "expected `layout <Name> [<record type>]`");
+        }
+        layout = new Layout(tokens[1], tokens.length == 3 ? tokens[2] : null);
+        layouts.add(layout);
+        continue;
+      }
+
+      if (layout == null) {
+        throw schemaError(i, "field outside of a layout");
+      }
+
+      Kind kind;
+      try {
+        kind = Kind.valueOf(tokens[0].toUpperCase());
+      } catch (IllegalArgumentException e) {
+        throw schemaError(i, "unknown field kind `" + tokens[0] + "`");
+      }
+
+      if (tokens.length < 2) {
+        throw schemaError(i, "missing field name");
+      }
+
+      int next = 2;
+      int length = kind.length;
+      if (kind == Kind.BYTES) {
+        if (tokens.length < 3) {
+          throw schemaError(i, "missing length");
+        }
+        length = Integer.parseInt(tokens[next++]);
+      }
+
+      Integer constant = null;
+      if (tokens.length > next) {
+        if (!tokens[next].equals("=") || tokens.length != next + 2 || kind.length < 0) {
+          throw schemaError(i, "only `u8` and `u16` fields take a constant");
+        }
+        constant = Integer.decode(tokens[next + 1]);
+      }
+
+      Field field = new Field(kind, tokens[1], length, constant);
+      if (kind.isVariable()) {
+        if (layout.variable != null) {
+          throw schemaError(i, "more than one `rest` or `records` field");
+        }
+        layout.variable = field;
+      }
+      layout.fields.add(field);
+    }
+
+    for (Layout each : layouts) {
+      each.resolve();
+    }
+
+    return layouts;
+  }
+
+  private static IllegalArgumentException schemaError(int line, String message) {
+    return new IllegalArgumentException("Schema line " + (line + 1) + ": " + message);
+  }
+
+  /**
+   * Generates the source of a layout class
+   *
+   * @param layout Layout to generate
+   * @param packageName Package of the generated class
+   * @param schemaName File name of the schema, for the class comment
+   * @return Java source
+   */
+  static String generate(Layout layout, String packageName, String schemaName) {
+    StringBuilder out = new StringBuilder();
+    String className = layout.className();
+    Field variable = layout.variable;
+    String lengthConstant = variable == null ? "LENGTH" : "MIN_LENGTH";
+
+    out.append(LICENSE_HEADER)
+        .append("package ").append(packageName).append(";\n\n")
+        .append("// Generated by RecordLayoutGenerator from ").append(schemaName)
+        .append(", do not edit\n\n")
+        .append("/**\n")
+        .append(" * Payload layout of the ")
+        .append(layout.recordType == null
+            ? layout.name + " payload"
+            : "`" + layout.recordType + "` NDEF record")
+        .append("\n *\n * ");
+
+    for (int i = 0; i < layout.fields.size(); i++) {
+      Field field = layout.fields.get(i);
+      out.append(i > 0 ? ", " : "").append(field.name).append(" (").append(describe(field))
+          .append(")");
+    }
+
+    out.append("\n */\n")
+        .append("final class ").append(className).append(" {\n\n");
+
+    // Offsets and lengths
+    for (Field field : layout.fields) {
+      constant(out, field, field.fromEnd ? "FROM_END" : "OFFSET", field.offset);
+      if (field.kind == Kind.BYTES) {
+        constant(out, field, "LENGTH", field.length);
+      }
+    }
+    out.append("  static final int ").append(lengthConstant).append(" = ")
+        .append(layout.fixedLength).append(";\n\n");
+
+    out.append("  private ").append(className).append("() {\n  }\n\n");
+
+    if (layout.recordType != null) {
+      generateType(out, layout);
+    }
+
+    generateCheck(out, layout, lengthConstant);
+
+    for (Field field : layout.fields) {
+      generateReader(out, layout, field);
+    }
+
+    generateLength(out, layout);
+    generateWriter(out, layout, lengthConstant);
+
+    // Drop the blank line after the last method
+    out.setLength(out.length() - 1);
+    return wrap(out.append("}\n").toString());
+  }
+
+  /**
+   * Wraps lines longer than 100 columns, comments at word boundaries and code after the first
+   * parenthesis at argument boundaries
+   *
+   * @param source Generated source
+   * @return Wrapped source
+   */
+  static String wrap(String source) {
+    StringBuilder out = new StringBuilder();
+
+    for (String line : source.split("\n", -1)) {
+      int indent = 0;
+      while (indent < line.length() && line.charAt(indent) == ' ') {
+        indent++;
+      }
+
+      String prefix;
+      String continuation;
+      String[] parts;
+      String separator;
+
+      int parenthesis = line.indexOf('(');
+      if (line.length() <= 100) {
+        out.append(line).append('\n');
+        continue;
+      } else if (line.startsWith("* ", indent)) {
+        prefix = line.substring(0, indent + 2);
+        continuation = prefix;
+        parts = line.substring(indent + 2).split(" ");
+        separator = " ";
+      } else if (parenthesis >= 0) {
+        prefix = line.substring(0, parenthesis + 1);
+        continuation = line.substring(0, indent) + "    ";
+        parts = line.substring(parenthesis + 1).split(", ");
+        separator = ", ";
+      } else {
+        out.append(line).append('\n');
+        continue;
+      }
+
+      StringBuilder current = new StringBuilder(prefix);
+      boolean first = true;
+      for (String part : parts) {
+        String joint = first ? "" : separator.trim();
+        if (!first && current.length() + separator.length() + part.length() > 100) {
+          out.append(current).append(joint).append('\n');
+          current = new StringBuilder(continuation).append(part);
+        } else if (first && prefix.endsWith("(")) {
+          out.append(current).append('\n');
+          current = new StringBuilder(continuation).append(part);
+        } else {
+          current.append(first ? "" : separator).append(part);
+        }
+        first = false;
+      }
+      out.append(current).append('\n');
+    }
+
+    // Splitting added one line break past the end
+    out.setLength(out.length() - 1);
+    return out.toString();
+  }
+
+  private static String describe(Field field) {
+    switch (field.kind) {
+      case BYTES:
+        return field.length + " bytes";
+      case REST:
+        return "remaining bytes";
+      case RECORDS:
+        return "NDEF message";
+      default:
+        String kind = field.kind.name().toLowerCase();
+        return field.constant == null ? kind : kind + " = " + field.constant;
+    }
+  }
+
+  private static void constant(StringBuilder out, Field field, String suffix, int value) {
+    out.append("  static final int ").append(constantName(field.name)).append('_').append(suffix)
+        .append(" = ").append(value).append(";\n");
+  }
+
+  private static void generateType(StringBuilder out, Layout layout) {
+    String type = layout.recordType;
+
+    out.append("  /**\n")
+        .append("   * Checks the record type\n")
+        .append("   *\n")
+        .append("   * @param type NDEF record type\n")
+        .append("   * @return Whether the type is `").append(type).append("`\n")
+        .append("   */\n")
+        .append("  static boolean isType(byte[] type) {\n")
+        .append("    return type.length == ").append(type.length());
+    for (int i = 0; i < type.length(); i++) {
+      out.append("\n        && type[").append(i).append("] == '").append(type.charAt(i))
+          .append("'");
+    }
+    out.append(";\n  }\n\n");
+
+    out.append("  /**\n")
+        .append("   * Gets the record type\n")
+        .append("   *\n")
+        .append("   * @return `").append(type).append("` in byte-array form\n")
+        .append("   */\n")
+        .append("  static byte[] type() {\n")
+        .append("    return new byte[]{");
+    for (int i = 0; i < type.length(); i++) {
+      out.append(i > 0 ? ", " : "").append("(byte) '").append(type.charAt(i)).append("'");
+    }
+    out.append("};\n  }\n\n");
+
+    out.append("  /**\n")
+        .append("   * Creates a `").append(type).append("` NDEF record\n")
+        .append("   *\n")
+        .append("   * @param payload Record payload, see {@link #write}\n")
+        .append("   * @return NDEF record\n")
+        .append("   */\n")
+        .append("  static NdefRecord record(byte[] payload) {\n")
+        .append("    return new NdefRecord(NdefRecord.TNF_EXTERNAL_TYPE, type(), null, payload);\n")
+        .append("  }\n\n");
+  }
+
+  private static void generateCheck(StringBuilder out, Layout layout, String lengthConstant) {
+    String what = layout.recordType == null
+        ? words(layout.name) + " payload"
+        : "`" + layout.recordType + "` payload";
+
+    out.append("  /**\n")
+        .append("   * Checks the payload is long enough for the layout\n")
+        .append("   *\n")
+        .append("   * @param payload Payload to check\n")
+        .append("   */\n")
+        .append("  static void check(byte[] payload) throws FormatException {\n")
+        .append("    if (payload.length ").append(layout.variable == null ? "!=" : "<")
+        .append(" ").append(lengthConstant).append(") {\n")
+        .append("      throw new FormatException(\"").append(what)
+        .append(" is \" + payload.length\n")
+        .append("          + \" bytes, expected ")
+        .append(layout.variable == null ? "" : "at least ")
+        .append("\" + ").append(lengthConstant).append(");\n")
+        .append("    }\n")
+        .append("  }\n\n");
+  }
+
+  private static void generateReader(StringBuilder out, Layout layout, Field field) {
+    String name = capitalize(field.name);
+    String constantName = constantName(field.name);
+    String offset = field.fromEnd
+        ? "payload.length - " + constantName + "_FROM_END"
+        : constantName + "_OFFSET";
+
+    switch (field.kind) {
+      case U8:
+        javadoc(out, "Reads the " + words(field.name), "payload Payload to read",
+            "Unsigned value");
+        out.append("  static int get").append(name)
+            .append("(byte[] payload) throws FormatException {\n")
+            .append("    check(payload);\n")
+            .append("    return payload[").append(offset).append("] & 0xFF;\n")
+            .append("  }\n\n");
+        break;
+      case U16:
+        javadoc(out, "Reads the " + words(field.name), "payload Payload to read",
+            "Unsigned value");
+        out.append("  static int get").append(name)
+            .append("(byte[] payload) throws FormatException {\n")
+            .append("    check(payload);\n");
+        out.append("    int offset = ").append(offset).append(";\n")
+            .append("    return (payload[offset] & 0xFF) << 8 | payload[offset + 1] & 0xFF;\n");
+        out.append("  }\n\n");
+        break;
+      case BYTES:
+        if (field.fromEnd) {
+          javadoc(out, "Gets the offset of the " + words(field.name),
+              "payload Payload to read", "Offset into the payload");
+          out.append("  static int get").append(name)
+              .append("Offset(byte[] payload) throws FormatException {\n")
+              .append("    check(payload);\n")
+              .append("    return ").append(offset).append(";\n")
+              .append("  }\n\n");
+        }
+        javadoc(out, "Copies out the " + words(field.name),
+            "payload Payload to read\n   * @param arena Arena of the session to copy into",
+            "Copy owned by the session");
+        out.append("  static byte[] get").append(name)
+            .append("(byte[] payload, SessionArena arena) throws FormatException {\n")
+            .append("    check(payload);\n");
+        out.append("    int offset = ").append(offset).append(";\n")
+            .append("    return arena.copyOfRange(payload, offset, offset + ")
+            .append(constantName).append("_LENGTH);\n");
+        out.append("  }\n\n");
+        break;
+      case REST:
+      case RECORDS:
+        javadoc(out, "Gets the length of the " + words(field.name),
+            "payload Payload to read", "Length in bytes");
+        out.append("  static int get").append(name)
+            .append("Length(byte[] payload) throws FormatException {\n")
+            .append("    check(payload);\n")
+            .append("    return payload.length - MIN_LENGTH;\n")
+            .append("  }\n\n");
+
+        if (field.kind == Kind.REST) {
+          javadoc(out, "Copies out the " + words(field.name),
+              "payload Payload to read\n   * @param arena Arena of the session to copy into",
+              "Copy owned by the session");
+          out.append("  static byte[] get").append(name)
+              .append("(byte[] payload, SessionArena arena) throws FormatException {\n")
+              .append("    int length = get").append(name).append("Length(payload);\n")
+              .append("    return arena.copyOfRange(payload, ").append(offset).append(", ")
+              .append(offset).append(" + length);\n")
+              .append("  }\n\n");
+        } else {
+          javadoc(out, "Parses the nested NDEF message in place", "payload Payload to read",
+              "Nested NDEF message");
+          out.append("  static NdefMessage get").append(name)
+              .append("(byte[] payload) throws FormatException {\n")
+              .append("    return new NdefMessage(payload, ").append(offset).append(", get")
+              .append(name).append("Length(payload));\n")
+              .append("  }\n\n");
+        }
+        break;
+      default:
+        throw new IllegalStateException(field.kind.name());
+    }
+  }
+
+  private static void generateLength(StringBuilder out, Layout layout) {
+    Field variable = layout.variable;
+    if (variable == null) {
+      return;
+    }
+
+    javadoc(out, "Gets the payload length",
+        variable.name + "Length Length of the " + words(variable.name), "Length in bytes");
+    out.append("  static int length(int ").append(variable.name).append("Length) {\n")
+        .append("    return MIN_LENGTH + ").append(variable.name).append("Length;\n")
+        .append("  }\n\n");
+  }
+
+  private static void generateWriter(StringBuilder out, Layout layout, String lengthConstant) {
+    StringBuilder params = new StringBuilder("   * @param out Buffer to write to\n")
+        .append("   * @param offset Offset to write at\n");
+    List<String> signature = new ArrayList<>();
+    signature.add("byte[] out");
+    signature.add("int offset");
+
+    for (Field field : layout.fields) {
+      if (field.constant != null) {
+        continue;
+      }
+      String type = field.kind == Kind.RECORDS ? "NdefMessage"
+          : field.kind.length > 0 ? "int" : "byte[]";
+      signature.add(type + " " + field.name);
+      params.append("   * @param ").append(field.name).append(' ')
+          .append(capitalize(words(field.name))).append('\n');
+    }
+
+    out.append("  /**\n")
+        .append("   * Writes a payload\n")
+        .append("   *\n")
+        .append(params)
+        .append("   * @return Offset after the payload\n")
+        .append("   */\n")
+        .append("  static int write(");
+
+    String parameters = String.join(", ", signature);
+    if (parameters.length() + "  static int write() {".length() > 100) {
+      // One parameter per line, as the hand-written constructors do
+      parameters = "\n      " + String.join(",\n      ", signature);
+    }
+    out.append(parameters).append(") {\n");
+
+    Field variable = layout.variable;
+    if (variable == null) {
+      out.append("    int length = LENGTH;\n");
+    } else {
+      out.append("    int length = length(").append(variable.name)
+          .append(variable.kind == Kind.RECORDS ? ".getByteArrayLength()" : ".length")
+          .append(");\n");
+    }
+    out.append("    if (offset < 0 || out.length - offset < length) {\n")
+        .append("      throw new IllegalArgumentException(")
+        .append("\"Buffer too small for \" + length + \" bytes\");\n")
+        .append("    }\n");
+
+    for (Field field : layout.fields) {
+      if (field.kind == Kind.BYTES) {
+        out.append("    if (").append(field.name).append(".length != ")
+            .append(constantName(field.name)).append("_LENGTH) {\n")
+            .append("      throw new IllegalArgumentException(\"")
+            .append(capitalize(words(field.name))).append(" must be ").append(field.length)
+            .append(" bytes\");\n")
+            .append("    }\n");
+      }
+    }
+
+    for (Field field : layout.fields) {
+      String at = field.fromEnd
+          ? "offset + length - " + constantName(field.name) + "_FROM_END"
+          : "offset + " + constantName(field.name) + "_OFFSET";
+      String value = field.constant != null ? String.valueOf(field.constant) : field.name;
+
+      switch (field.kind) {
+        case U8:
+          out.append("    out[").append(at).append("] = (byte) ").append(value).append(";\n");
+          break;
+        case U16:
+          out.append("    out[").append(at).append("] = (byte) (").append(value)
+              .append(" >> 8);\n")
+              .append("    out[").append(at).append(" + 1] = (byte) ").append(value)
+              .append(";\n");
+          break;
+        case BYTES:
+          out.append("    System.arraycopy(").append(field.name).append(", 0, out, ").append(at)
+              .append(", ").append(constantName(field.name)).append("_LENGTH);\n");
+          break;
+        case REST:
+          out.append("    System.arraycopy(").append(field.name).append(", 0, out, ").append(at)
+              .append(", ").append(field.name).append(".length);\n");
+          break;
+        case RECORDS:
+          out.append("    ").append(field.name).append(".writeTo(out, ").append(at)
+              .append(");\n");
+          break;
+        default:
+          throw new IllegalStateException(field.kind.name());
+      }
+    }
+
+    out.append("    return offset + length;\n")
+        .append("  }\n\n");
+  }
+
+  private static void javadoc(StringBuilder out, String summary, String param, String result) {
+    out.append("  /**\n")
+        .append("   * ").append(summary).append("\n")
+        .append("   *\n")
+        .append("   * @param ").append(param).append("\n")
+        .append("   * @return ").append(result).append("\n")
+        .append("   */\n");
+  }
+
+  private static String capitalize(String name) {
+    return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+  }
+
+  private static String constantName(String name) {
+    return name.replaceAll("([a-z0-9])([A-Z])", "$1_$2").toUpperCase();
+  }
+
+  private static String words(String name) {
+    return name.replaceAll("([a-z0-9])([A-Z])", "$1 $2").toLowerCase();
+  }
+}
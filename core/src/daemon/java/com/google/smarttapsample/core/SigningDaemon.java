@@ -0,0 +1,241 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stands in for a signing daemon holding the long-term key, listening on a Unix domain socket
+ *
+ * Speaks the batch protocol described in {@link SigningClient}: each request batch is signed in
+ * order and answered with one response batch. The extra latency is added once per batch, as the
+ * hop to a daemon on a nearby host would be.
+ *
+ * Arguments when run on its own: socket path (/tmp/smart-tap-signing.sock), extra latency in ms (0)
+ */
+public class SigningDaemon implements Closeable {
+
+  private final Path socketPath;
+  private final PrivateKey privateKey;
+  private final ServerSocketChannel server;
+  private final ExecutorService connections = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "smart-tap-signing-daemon");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final AtomicLong signed = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private volatile long extraLatencyMillis;
+
+  public static void main(String[] args) throws Exception {
+    Path socketPath = Path.of(args.length > 0 ? args[0] : "/tmp/smart-tap-signing.sock");
+    long extraLatencyMillis = args.length > 1 ? Long.parseLong(args[1]) : 0;
+
+    try (SigningDaemon daemon = new SigningDaemon(
+        socketPath, TerminalKeyManager.getDefault().getLongTermPrivateKey(), extraLatencyMillis)) {
+      System.out.println("Signing on " + socketPath + ", enter to stop");
+      System.in.read();
+      System.out.println(daemon.stats());
+    }
+  }
+
+  /**
+   * Constructor for the class, starts accepting connections
+   *
+   * @param socketPath Path of the socket, replaced if it exists
+   * @param privateKey Long-term key to sign with
+   * @param extraLatencyMillis Latency added to every batch
+   */
+  SigningDaemon(Path socketPath, PrivateKey privateKey, long extraLatencyMillis)
+      throws IOException {
+
+    this.socketPath = socketPath;
+    this.privateKey = privateKey;
+    this.extraLatencyMillis = extraLatencyMillis;
+
+    Files.deleteIfExists(socketPath);
+    this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+    server.bind(UnixDomainSocketAddress.of(socketPath));
+
+    connections.execute(this::acceptLoop);
+  }
+
+  /**
+   * Gets a connector for the client of a daemon listening on the given path
+   *
+   * @param socketPath Path of the daemon's socket
+   * @return Connector opening a new socket per connection
+   */
+  static SigningClient.Connector connector(Path socketPath) {
+    return () -> new ChannelConnection(SocketChannel.open(UnixDomainSocketAddress.of(socketPath)));
+  }
+
+  void setExtraLatencyMillis(long extraLatencyMillis) {
+    this.extraLatencyMillis = extraLatencyMillis;
+  }
+
+  String stats() {
+    long batchCount = batches.get();
+
+    return String.format("Daemon: %d signed in %d batches of %.1f", signed.get(), batchCount,
+        batchCount == 0 ? 0.0 : (double) signed.get() / batchCount);
+  }
+
+  @Override
+  public void close() throws IOException {
+    connections.shutdownNow();
+    server.close();
+    Files.deleteIfExists(socketPath);
+  }
+
+  private void acceptLoop() {
+    try {
+      while (true) {
+        SocketChannel channel = server.accept();
+        connections.execute(() -> serve(new ChannelConnection(channel)));
+      }
+    } catch (IOException e) {
+      // Closed
+    }
+  }
+
+  /**
+   * Answers the request batches of one client until it disconnects
+   *
+   * @param connection Connection to the client
+   */
+  private void serve(ChannelConnection connection) {
+    try (connection) {
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(connection.getInputStream()));
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(connection.getOutputStream(), 8192));
+      Signature signature = CryptoProviders.signature();
+
+      while (true) {
+        int count = in.readUnsignedShort();
+        int[] ids = new int[count];
+        byte[][] signatures = new byte[count][];
+
+        for (int i = 0; i < count; i++) {
+          ids[i] = in.readInt();
+          byte[] message = new byte[in.readUnsignedShort()];
+          in.readFully(message);
+
+          try {
+            signature.initSign(privateKey);
+            signature.update(message);
+            signatures[i] = signature.sign();
+          } catch (Exception e) {
+            signatures[i] = new byte[0];
+          }
+        }
+
+        if (extraLatencyMillis > 0) {
+          Thread.sleep(extraLatencyMillis);
+        }
+
+        out.writeShort(count);
+        for (int i = 0; i < count; i++) {
+          out.writeInt(ids[i]);
+          out.writeShort(signatures[i].length);
+          out.write(signatures[i]);
+        }
+        out.flush();
+
+        signed.addAndGet(count);
+        batches.incrementAndGet();
+      }
+    } catch (IOException | InterruptedException e) {
+      // Client gone or daemon closed
+    } catch (Exception e) {
+      System.err.println("Signing daemon failed: " + e);
+    }
+  }
+
+  /**
+   * Class adapts a socket channel to a signing client connection
+   *
+   * The streams from `Channels` serialize reads and writes on the channel, so a blocked read would
+   * hold up the writer. These read and write the channel directly.
+   */
+  private static final class ChannelConnection implements SigningClient.Connection {
+
+    private final SocketChannel channel;
+
+    ChannelConnection(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return new InputStream() {
+        @Override
+        public int read() throws IOException {
+          byte[] one = new byte[1];
+          return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+          return channel.read(ByteBuffer.wrap(bytes, offset, length));
+        }
+      };
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      return new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+          ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+          while (buffer.hasRemaining()) {
+            channel.write(buffer);
+          }
+        }
+      };
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+}
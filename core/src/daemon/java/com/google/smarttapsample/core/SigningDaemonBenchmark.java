@@ -0,0 +1,182 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.interfaces.ECPrivateKey;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bouncycastle.crypto.ec.CustomNamedCurves;
+
+/**
+ * Compares signing `negotiate smart tap secure sessions` commands locally and through the signing
+ * daemon, with the daemon healthy, too slow for the timeout and down
+ *
+ * Several readers build commands at once. Reports the time and the CPU time per command on the
+ * reader threads, and checks every signature against the long-term public key.
+ *
+ * Arguments: readers (4), commands per reader (250), timeout in ms (50), batch size (32)
+ */
+public class SigningDaemonBenchmark {
+
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+  public static void main(String[] args) throws Exception {
+    int readers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    int commands = args.length > 1 ? Integer.parseInt(args[1]) : 250;
+    long timeoutMillis = args.length > 2 ? Long.parseLong(args[2]) : 50;
+    int batchSize = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+
+    TerminalKeyManager localKey = TerminalKeyManager.getDefault();
+    PublicKey publicKey = publicKey((ECPrivateKey) localKey.getLongTermPrivateKey());
+    Path socketPath = Files.createTempDirectory("smart-tap-signing").resolve("daemon.sock");
+
+    // Warm up the local path
+    run("Warm-up", localKey, readers, commands, null);
+    run("Local signing", localKey, readers, commands, null);
+
+    try (SigningDaemon daemon =
+        new SigningDaemon(socketPath, localKey.getLongTermPrivateKey(), 0)) {
+
+      // Keyless terminal, every signature comes from the daemon
+      SigningClient client =
+          new SigningClient(SigningDaemon.connector(socketPath), timeoutMillis, batchSize);
+      TerminalKeyManager keyless = new TerminalKeyManager(localKey.getLongTermPrivateKeyVersion())
+          .enableRemoteSigning(client);
+
+      run("Warm-up", keyless, readers, commands, publicKey);
+      run("Signing daemon", keyless, readers, commands, publicKey);
+      System.out.println("  " + client.stats() + "\n  " + daemon.stats());
+      client.close();
+
+      // Daemon too slow for the timeout, signed locally after waiting it out
+      daemon.setExtraLatencyMillis(timeoutMillis * 2);
+      SigningClient slowClient =
+          new SigningClient(SigningDaemon.connector(socketPath), timeoutMillis, batchSize);
+      run("Slow daemon, local fallback", localKey.enableRemoteSigning(slowClient),
+          readers, commands / 10, publicKey);
+      System.out.println("  " + slowClient.stats());
+      slowClient.close();
+    }
+
+    // Daemon gone, signed locally right away
+    SigningClient downClient =
+        new SigningClient(SigningDaemon.connector(socketPath), timeoutMillis, batchSize);
+    run("Daemon down, local fallback", localKey.enableRemoteSigning(downClient),
+        readers, commands, publicKey);
+    System.out.println("  " + downClient.stats());
+    downClient.close();
+  }
+
+  /**
+   * Builds commands on several reader threads at once
+   */
+  private static void run(String name, TerminalKeyManager keyManager, int readers, int commands,
+      PublicKey publicKey) throws Exception {
+
+    AtomicLong cpuNanos = new AtomicLong();
+    AtomicLong invalid = new AtomicLong();
+    LatencyRecorder latencies = new LatencyRecorder();
+    List<Thread> threads = new ArrayList<>();
+    long start = System.nanoTime();
+
+    for (int r = 0; r < readers; r++) {
+      Thread thread = new Thread(() -> {
+        SecureRandom random = new SecureRandom();
+        byte[] mobileDeviceNonce = new byte[32];
+
+        try {
+          for (int i = 0; i < commands; i++) {
+            random.nextBytes(mobileDeviceNonce);
+
+            long commandStart = System.nanoTime();
+            long cpuStart = THREADS.getCurrentThreadCpuTime();
+            try (SessionArena arena = SessionArena.acquire()) {
+              NegotiateCryptoCommand command =
+                  new NegotiateCryptoCommand(mobileDeviceNonce, keyManager, arena);
+              cpuNanos.addAndGet(THREADS.getCurrentThreadCpuTime() - cpuStart);
+              latencies.record(System.nanoTime() - commandStart);
+
+              if (publicKey != null && !verify(publicKey, command, mobileDeviceNonce)) {
+                invalid.incrementAndGet();
+              }
+            }
+          }
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    if (name.equals("Warm-up")) {
+      return;
+    }
+
+    int total = readers * commands;
+    System.out.printf("%s: %d commands in %d ms, %.0f per second%n"
+            + "  Command: %s%n  Reader CPU per command: %.3f ms%s%n",
+        name, total, (System.nanoTime() - start) / 1_000_000,
+        total * 1e9 / (System.nanoTime() - start), latencies.summary(),
+        cpuNanos.get() / 1e6 / total,
+        publicKey == null ? "" : ", invalid signatures: " + invalid.get());
+  }
+
+  private static boolean verify(
+      PublicKey publicKey, NegotiateCryptoCommand command, byte[] mobileDeviceNonce)
+      throws Exception {
+
+    Signature signature = Signature.getInstance("SHA256withECDSA");
+    signature.initVerify(publicKey);
+    signature.update(command.terminalNonce);
+    signature.update(mobileDeviceNonce);
+    signature.update(NegotiateCryptoCommand.COLLECTOR_ID);
+    signature.update(command.terminalEphemeralPublicKeyCompressed);
+
+    return signature.verify(command.signedData);
+  }
+
+  /**
+   * Derives the long-term public key, d*G
+   */
+  private static PublicKey publicKey(ECPrivateKey privateKey) throws Exception {
+    org.bouncycastle.math.ec.ECPoint point = CustomNamedCurves.getByName("secp256r1").getG()
+        .multiply(privateKey.getS())
+        .normalize();
+
+    ECPoint w = new ECPoint(
+        new BigInteger(1, point.getAffineXCoord().getEncoded()),
+        new BigInteger(1, point.getAffineYCoord().getEncoded()));
+
+    return KeyFactory.getInstance("EC")
+        .generatePublic(new ECPublicKeySpec(w, privateKey.getParams()));
+  }
+}
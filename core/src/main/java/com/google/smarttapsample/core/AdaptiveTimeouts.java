@@ -0,0 +1,129 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+/**
+ * Class picks the transceive timeout for each command from the latencies observed so far
+ *
+ * Kept per instruction byte, since `negotiate smart tap secure sessions` and `get smart tap data`
+ * make the mobile device do cryptography and take far longer than a `select`. Follows the TCP
+ * retransmission timeout (RFC 6298): a smoothed latency plus four times its mean deviation, doubled
+ * after each timeout until a response comes back. A stalled mobile device is given up on after a
+ * few typical round trips instead of the link's fixed default
+ */
+public final class AdaptiveTimeouts {
+
+  // RFC 6298 gains, 1/8 and 1/4
+  private static final double SMOOTHING_GAIN = 0.125;
+  private static final double DEVIATION_GAIN = 0.25;
+
+  private final int initialMillis;
+  private final int minMillis;
+  private final int maxMillis;
+  private final double[] smoothedMillis = new double[256];
+  private final double[] deviationMillis = new double[256];
+  private final int[] backoff = new int[256];
+  private final long[] samples = new long[256];
+  private long totalSamples;
+  private long timeouts;
+
+  /**
+   * Constructor for the class
+   *
+   * @param initialMillis Timeout before a command has been seen
+   * @param minMillis Shortest timeout handed out
+   * @param maxMillis Longest timeout handed out, also with back-off
+   */
+  public AdaptiveTimeouts(int initialMillis, int minMillis, int maxMillis) {
+    this.initialMillis = initialMillis;
+    this.minMillis = minMillis;
+    this.maxMillis = maxMillis;
+  }
+
+  /**
+   * Gets the timeout to send a command with
+   *
+   * @param command Command APDU
+   * @return Timeout in milliseconds
+   */
+  public synchronized int timeoutMillis(byte[] command) {
+    int instruction = command[1] & 0xFF;
+
+    double timeout = samples[instruction] == 0 ? initialMillis
+        : smoothedMillis[instruction] + 4 * deviationMillis[instruction];
+    timeout = Math.max(minMillis, timeout) * (1 << backoff[instruction]);
+
+    return (int) Math.min(maxMillis, Math.ceil(timeout));
+  }
+
+  /**
+   * Records the latency of a command that got its response
+   *
+   * @param command Command APDU
+   * @param nanos Time from sending the command to receiving the response
+   */
+  public synchronized void onResponse(byte[] command, long nanos) {
+    int instruction = command[1] & 0xFF;
+    double millis = nanos / 1e6;
+
+    if (samples[instruction] == 0) {
+      smoothedMillis[instruction] = millis;
+      deviationMillis[instruction] = millis / 2;
+    } else {
+      deviationMillis[instruction] += DEVIATION_GAIN
+          * (Math.abs(smoothedMillis[instruction] - millis) - deviationMillis[instruction]);
+      smoothedMillis[instruction] += SMOOTHING_GAIN * (millis - smoothedMillis[instruction]);
+    }
+
+    backoff[instruction] = 0;
+    samples[instruction]++;
+    totalSamples++;
+  }
+
+  /**
+   * Backs off a command that timed out or lost the field
+   *
+   * @param command Command APDU
+   */
+  public synchronized void onTimeout(byte[] command) {
+    int instruction = command[1] & 0xFF;
+
+    // Doubling stops at the maximum anyway
+    backoff[instruction] = Math.min(backoff[instruction] + 1, 6);
+    timeouts++;
+  }
+
+  /**
+   * Summarizes the timeouts in use, e.g. for the logs
+   *
+   * @return One line per instruction seen
+   */
+  public synchronized String stats() {
+    StringBuilder stats = new StringBuilder(String.format(
+        "Transceive latencies recorded: %d, timeouts: %d", totalSamples, timeouts));
+
+    for (int instruction = 0; instruction < 256; instruction++) {
+      if (samples[instruction] != 0) {
+        stats.append(String.format(
+            "%n  INS %02X: smoothed %.1f ms, deviation %.1f ms, timeout %d ms",
+            instruction, smoothedMillis[instruction], deviationMillis[instruction],
+            timeoutMillis(new byte[]{0x00, (byte) instruction})));
+      }
+    }
+
+    return stats.toString();
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Class maps AIDs and AID prefixes from the `select ose` directory to handlers
+ *
+ * Registrations are compiled into a byte trie, so every directory entry is matched in one pass
+ * over its AID while the response is parsed. An exact registration wins over a prefix, and a longer
+ * prefix over a shorter one. Matched entries are dispatched by {@link SecureGetFlow} in priority
+ * order (`87`), all from the single `select ose` response.
+ */
+public final class AidRouter {
+
+  /**
+   * Continues the tap for a matched application
+   */
+  public interface Handler {
+
+    /**
+     * Called while the mobile device is still in the field, in priority order
+     *
+     * @param entry Matched directory entry
+     * @param transport Link to the mobile device, e.g. to select the application
+     * @param descriptiveText Output to be surfaced on the device
+     * @return Whether the application was served, lower-priority entries routed to this handler
+     * are then skipped
+     */
+    boolean onApplication(ApplicationEntry entry, ApduTransport transport,
+        StringBuilder descriptiveText) throws Exception;
+  }
+
+  /**
+   * Runs the Smart Tap stages of the {@link SecureGetFlow} the entry was found in
+   */
+  static final Handler SMART_TAP = (entry, transport, descriptiveText) -> {
+    throw new IllegalStateException("Smart Tap is dispatched by SecureGetFlow");
+  };
+
+  static final byte[] SMART_TAP_AID = new byte[]{(byte) 0xA0, (byte) 0x00, (byte) 0x00,
+      (byte) 0x04, (byte) 0x76, (byte) 0xD0, (byte) 0x00, (byte) 0x01, (byte) 0x11};
+
+  private static final int NO_NODE = 0;
+
+  private final List<Registration> registrations = new ArrayList<>();
+  private volatile Trie trie = new Trie(registrations);
+
+  /**
+   * Creates a router that handles Smart Tap only, like the flow always did
+   *
+   * @return New router
+   */
+  public static AidRouter withSmartTap() {
+    AidRouter router = new AidRouter();
+    router.register(SMART_TAP_AID, false, SMART_TAP);
+    return router;
+  }
+
+  /**
+   * Routes an AID, or every AID starting with the given bytes, to a handler
+   *
+   * Replaces an earlier registration of the same AID or prefix
+   *
+   * @param aid AID or AID prefix
+   * @param prefix Whether to match every AID starting with these bytes
+   * @param handler Handler to dispatch to
+   * @return This router
+   */
+  public synchronized AidRouter register(byte[] aid, boolean prefix, Handler handler) {
+    registrations.removeIf(r -> r.prefix == prefix && Arrays.equals(r.aid, aid));
+    registrations.add(new Registration(aid.clone(), prefix, handler));
+
+    // Recompile, lookups keep using the previous trie until this one is published
+    this.trie = new Trie(registrations);
+    return this;
+  }
+
+  /**
+   * Finds the handler for an AID
+   *
+   * @param aid AID from a directory entry
+   * @return Handler, or null if the AID is not routed
+   */
+  Handler match(byte[] aid) {
+    return trie.match(aid);
+  }
+
+  /**
+   * A registered AID or prefix
+   */
+  private static final class Registration {
+
+    final byte[] aid;
+    final boolean prefix;
+    final Handler handler;
+
+    Registration(byte[] aid, boolean prefix, Handler handler) {
+      this.aid = aid;
+      this.prefix = prefix;
+      this.handler = handler;
+    }
+  }
+
+  /**
+   * Immutable byte trie with one 256-entry transition row per node
+   */
+  private static final class Trie {
+
+    // Node n's transition on byte b is transitions[n * 256 + b], node 0 is the root
+    private final int[] transitions;
+    private final Handler[] exact;
+    private final Handler[] prefix;
+
+    Trie(List<Registration> registrations) {
+      int nodes = 1;
+      for (Registration registration : registrations) {
+        nodes += registration.aid.length;
+      }
+
+      int[] transitions = new int[nodes * 256];
+      Handler[] exact = new Handler[nodes];
+      Handler[] prefix = new Handler[nodes];
+      int used = 1;
+
+      for (Registration registration : registrations) {
+        int node = 0;
+
+        for (byte b : registration.aid) {
+          int index = node * 256 + (b & 0xFF);
+
+          if (transitions[index] == NO_NODE) {
+            transitions[index] = used++;
+          }
+          node = transitions[index];
+        }
+
+        if (registration.prefix) {
+          prefix[node] = registration.handler;
+        } else {
+          exact[node] = registration.handler;
+        }
+      }
+
+      this.transitions = Arrays.copyOf(transitions, used * 256);
+      this.exact = Arrays.copyOf(exact, used);
+      this.prefix = Arrays.copyOf(prefix, used);
+    }
+
+    Handler match(byte[] aid) {
+      int node = 0;
+      Handler longestPrefix = prefix[0];
+
+      for (byte b : aid) {
+        node = transitions[node * 256 + (b & 0xFF)];
+
+        if (node == NO_NODE) {
+          return longestPrefix;
+        }
+        if (prefix[node] != null) {
+          longestPrefix = prefix[node];
+        }
+      }
+
+      return exact[node] != null ? exact[node] : longestPrefix;
+    }
+  }
+}
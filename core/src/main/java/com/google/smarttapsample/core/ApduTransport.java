@@ -0,0 +1,34 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.io.IOException;
+
+/**
+ * Interface for the link to the mobile device, e.g. Android `IsoDep` or a PC/SC reader
+ */
+public interface ApduTransport {
+
+  /**
+   * Sends a command APDU and waits for the response APDU
+   *
+   * Both arrays belong to the session and are wiped when it ends, so neither may be kept or shared
+   *
+   * @param command Command APDU
+   * @return Response APDU, including the trailing status word, in a new array
+   */
+  byte[] transceive(byte[] command) throws IOException;
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * Class encapsulates an application entry (`61`) from the `select ose` directory
+ */
+public class ApplicationEntry {
+
+  // Application priority indicator (`87`) values 1 to 15, 0 or absent means no priority
+  static final int NO_PRIORITY = 0;
+
+  // Transaction details bitmap (`C1`) flags
+  private static final int PAYMENT_ENABLED = 0x80;
+  private static final int PAYMENT_REQUESTED = 0x40;
+
+  private final byte[] aid;
+  private final String label;
+  private final int priority;
+  private final int position;
+  private final int transactionDetails;
+  final AidRouter.Handler handler;
+
+  /**
+   * Constructor for the class
+   *
+   * @param aid ADF name (`4F`)
+   * @param label Application label (`50`), may be null
+   * @param priority Application priority indicator (`87`) low nibble, {@link #NO_PRIORITY} if
+   *     absent
+   * @param position Position of the entry in the directory
+   * @param transactionDetails Transaction details bitmap (`C1`) of the directory
+   * @param handler Handler the AID is routed to, null if not routed
+   */
+  ApplicationEntry(
+      byte[] aid,
+      String label,
+      int priority,
+      int position,
+      int transactionDetails,
+      AidRouter.Handler handler) {
+    this.aid = aid;
+    this.label = label;
+    this.priority = priority;
+    this.position = position;
+    this.transactionDetails = transactionDetails;
+    this.handler = handler;
+  }
+
+  public byte[] getAid() {
+    return aid.clone();
+  }
+
+  public String getLabel() {
+    return label;
+  }
+
+  public int getPriority() {
+    return priority;
+  }
+
+  /**
+   * Checks whether the mobile device asked for a payment in this tap, e.g. "Payment and Pass
+   * enabled and requested"
+   *
+   * @return Whether payment is enabled and requested
+   */
+  public boolean isPaymentRequested() {
+    int flags = PAYMENT_ENABLED | PAYMENT_REQUESTED;
+    return (transactionDetails & flags) == flags;
+  }
+
+  /**
+   * Orders entries by priority, 1 first, with entries without priority last in directory order
+   *
+   * @param other Entry to compare with
+   * @return Negative if this entry goes first
+   */
+  int compareByPriority(ApplicationEntry other) {
+    int rank = priority == NO_PRIORITY ? Integer.MAX_VALUE : priority;
+    int otherRank = other.priority == NO_PRIORITY ? Integer.MAX_VALUE : other.priority;
+
+    return rank != otherRank ? Integer.compare(rank, otherRank)
+        : Integer.compare(position, other.position);
+  }
+
+  @Override
+  public String toString() {
+    return "Application Name: " + Hex.toHexString(aid) + ", Label: " + label
+        + ", Priority: " + priority;
+  }
+}
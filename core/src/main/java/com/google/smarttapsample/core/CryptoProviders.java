@@ -0,0 +1,544 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.Security;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.math.ec.ECPoint;
+import org.bouncycastle.openssl.PEMException;
+import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
+
+/**
+ * Class pins the fastest JCA provider for each primitive used by the secure session
+ *
+ * Until {@link #select()} runs, every primitive comes from the default JCA provider order, as
+ * before. {@link #select()} micro-benchmarks each installed provider that offers a primitive,
+ * rejects those whose results differ from the default provider's, and pins the fastest of the
+ * rest. On Android this usually moves AES-CTR, HMAC-SHA256, ECDH and ECDSA to Conscrypt.
+ */
+public final class CryptoProviders {
+
+  private static final long MEASURE_NANOS = 20_000_000L;
+  private static final int WARMUP_ITERATIONS = 10;
+  private static final int MIN_ITERATIONS = 5;
+  private static final int PAYLOAD_LENGTH = 1024;
+  private static final int SIGNED_LENGTH = 128;
+
+  static {
+    // Register once so BouncyCastle is always a candidate
+    if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+  }
+
+  // Indexed by primitive, null entries keep the JCA default. Replaced whole, never written to
+  private static volatile Provider[] pinned = new Provider[Primitive.values().length];
+  private static volatile String report = "Crypto providers: JCA defaults (not benchmarked)";
+
+  private CryptoProviders() {
+  }
+
+  /**
+   * Benchmarks the installed providers and pins the fastest correct one for each primitive
+   *
+   * Takes a few hundred milliseconds, so call it off the UI thread. Sessions already in flight
+   * keep the instances they have.
+   *
+   * @return Diagnostics report, also available from {@link #report()}
+   */
+  public static synchronized String select() throws GeneralSecurityException {
+    Fixtures fixtures = new Fixtures();
+    StringBuilder builder = new StringBuilder("Crypto providers:");
+
+    Provider[] chosen = new Provider[Primitive.values().length];
+    for (Primitive primitive : Primitive.values()) {
+      chosen[primitive.ordinal()] = selectProvider(primitive, fixtures, builder);
+    }
+
+    // Providers were checked one primitive at a time, check they also work together before any
+    // session sees them
+    try {
+      checkCombination(chosen, fixtures);
+      pinned = chosen;
+    } catch (GeneralSecurityException | RuntimeException e) {
+      pinned = new Provider[Primitive.values().length];
+      builder.append("\n* Pinned providers do not interoperate (")
+          .append(e)
+          .append("), using JCA defaults");
+    }
+
+    report = builder.toString();
+    return report;
+  }
+
+  /**
+   * Gets the chosen providers and timings
+   *
+   * @return Diagnostics report
+   */
+  public static String report() {
+    return report;
+  }
+
+  /**
+   * Goes back to the default JCA provider order
+   */
+  public static synchronized void reset() {
+    pinned = new Provider[Primitive.values().length];
+    report = "Crypto providers: JCA defaults (not benchmarked)";
+  }
+
+  /**
+   * Gets an ECDH key agreement from the pinned provider
+   *
+   * @return New instance
+   */
+  static KeyAgreement keyAgreement() throws NoSuchAlgorithmException {
+    Provider provider = pinned[Primitive.ECDH.ordinal()];
+    return provider == null ? KeyAgreement.getInstance(Primitive.ECDH.algorithm)
+        : KeyAgreement.getInstance(Primitive.ECDH.algorithm, provider);
+  }
+
+  /**
+   * Gets an HMAC-SHA256 instance from the pinned provider
+   *
+   * @return New instance
+   */
+  static Mac mac() throws NoSuchAlgorithmException {
+    Provider provider = pinned[Primitive.HMAC_SHA256.ordinal()];
+    return provider == null ? Mac.getInstance(Primitive.HMAC_SHA256.algorithm)
+        : Mac.getInstance(Primitive.HMAC_SHA256.algorithm, provider);
+  }
+
+  /**
+   * Gets an AES-CTR cipher from the pinned provider
+   *
+   * @return New instance
+   */
+  static Cipher cipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+    Provider provider = pinned[Primitive.AES_CTR.ordinal()];
+    return provider == null ? Cipher.getInstance(Primitive.AES_CTR.algorithm)
+        : Cipher.getInstance(Primitive.AES_CTR.algorithm, provider);
+  }
+
+  /**
+   * Gets a SHA256withECDSA signature from the pinned provider
+   *
+   * @return New instance
+   */
+  static Signature signature() throws NoSuchAlgorithmException {
+    Provider provider = pinned[Primitive.ECDSA.ordinal()];
+    return provider == null ? Signature.getInstance(Primitive.ECDSA.algorithm)
+        : Signature.getInstance(Primitive.ECDSA.algorithm, provider);
+  }
+
+  /**
+   * Gets an EC key pair generator from the pinned provider
+   *
+   * @return New instance
+   */
+  static KeyPairGenerator keyPairGenerator() throws NoSuchAlgorithmException {
+    return keyPairGenerator(pinned[Primitive.EC_KEY_PAIR_GENERATOR.ordinal()]);
+  }
+
+  /**
+   * Gets an EC key pair generator from a provider
+   *
+   * @param provider Provider, or null for the JCA default
+   * @return New instance
+   */
+  private static KeyPairGenerator keyPairGenerator(Provider provider)
+      throws NoSuchAlgorithmException {
+
+    String algorithm = Primitive.EC_KEY_PAIR_GENERATOR.algorithm;
+    return provider == null ? KeyPairGenerator.getInstance(algorithm)
+        : KeyPairGenerator.getInstance(algorithm, provider);
+  }
+
+  /**
+   * Gets an EC key factory from the pinned provider
+   *
+   * @return New instance
+   */
+  static KeyFactory keyFactory() throws NoSuchAlgorithmException {
+    return keyFactory(pinned[Primitive.EC_KEY_FACTORY.ordinal()]);
+  }
+
+  /**
+   * Gets an EC key factory from a provider
+   *
+   * @param provider Provider, or null for the JCA default
+   * @return New instance
+   */
+  private static KeyFactory keyFactory(Provider provider) throws NoSuchAlgorithmException {
+    return provider == null ? KeyFactory.getInstance(Primitive.EC_KEY_FACTORY.algorithm)
+        : KeyFactory.getInstance(Primitive.EC_KEY_FACTORY.algorithm, provider);
+  }
+
+  /**
+   * Benchmarks the providers offering a primitive and picks the fastest correct one
+   *
+   * @param primitive Primitive to select a provider for
+   * @param fixtures Keys and payloads to run the primitive on
+   * @param builder Report to append the timings to
+   * @return Fastest correct provider, or null to keep the JCA default
+   */
+  private static Provider selectProvider(
+      Primitive primitive,
+      Fixtures fixtures,
+      StringBuilder builder) {
+
+    builder.append("\n* ").append(primitive.label).append(": ");
+
+    byte[] expected;
+    try {
+      expected = primitive.check(null, fixtures);
+    } catch (GeneralSecurityException | RuntimeException e) {
+      builder.append("JCA default (unavailable for comparison: ").append(e).append(')');
+      return null;
+    }
+
+    Provider fastest = null;
+    double fastestNanos = Double.MAX_VALUE;
+    List<String> timings = new ArrayList<>();
+
+    for (Provider provider : Security.getProviders()) {
+      try {
+        if (!Arrays.equals(expected, primitive.check(provider, fixtures))) {
+          timings.add(provider.getName() + " rejected (result differs)");
+          continue;
+        }
+
+        double nanos = measure(primitive, provider, fixtures);
+        timings.add(String.format(Locale.US, "%s %.1f us", provider.getName(), nanos / 1000));
+
+        if (nanos < fastestNanos) {
+          fastest = provider;
+          fastestNanos = nanos;
+        }
+      } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+        // Provider does not offer this primitive
+      } catch (GeneralSecurityException | RuntimeException e) {
+        timings.add(provider.getName() + " rejected (" + e + ")");
+      }
+    }
+
+    builder.append(fastest == null ? "JCA default" : fastest.getName())
+        .append(' ')
+        .append(timings);
+
+    return fastest;
+  }
+
+  /**
+   * Measures the average time of a primitive after a short warm-up
+   *
+   * @param primitive Primitive to measure
+   * @param provider Provider to measure
+   * @param fixtures Keys and payloads to run the primitive on
+   * @return Average nanoseconds per operation
+   */
+  private static double measure(Primitive primitive, Provider provider, Fixtures fixtures)
+      throws GeneralSecurityException {
+
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      primitive.exercise(provider, fixtures);
+    }
+
+    int iterations = 0;
+    long start = System.nanoTime();
+    long elapsed;
+
+    do {
+      primitive.exercise(provider, fixtures);
+      iterations++;
+      elapsed = System.nanoTime() - start;
+    } while (elapsed < MEASURE_NANOS || iterations < MIN_ITERATIONS);
+
+    return (double) elapsed / iterations;
+  }
+
+  /**
+   * Runs ECDH between a key pair from the chosen generator and a key from the chosen factory
+   *
+   * @param chosen Providers indexed by primitive, not pinned yet
+   * @param fixtures Keys to agree with
+   */
+  private static void checkCombination(Provider[] chosen, Fixtures fixtures)
+      throws GeneralSecurityException {
+
+    KeyPairGenerator keyPairGenerator =
+        keyPairGenerator(chosen[Primitive.EC_KEY_PAIR_GENERATOR.ordinal()]);
+    keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+    KeyPair keyPair = keyPairGenerator.generateKeyPair();
+
+    PublicKey peer = keyFactory(chosen[Primitive.EC_KEY_FACTORY.ordinal()])
+        .generatePublic(fixtures.publicKeySpec);
+    byte[] secret = agree(chosen[Primitive.ECDH.ordinal()], keyPair.getPrivate(), peer);
+
+    byte[] expected = agree(null, fixtures.peerKeyPair.getPrivate(), keyPair.getPublic());
+    if (!Arrays.equals(expected, secret)) {
+      throw new GeneralSecurityException("ECDH result differs");
+    }
+  }
+
+  /**
+   * Runs ECDH with the given provider
+   *
+   * @param provider Provider, or null for the JCA default
+   * @param privateKey Own private key
+   * @param publicKey Peer public key
+   * @return Shared secret
+   */
+  private static byte[] agree(Provider provider, PrivateKey privateKey, PublicKey publicKey)
+      throws GeneralSecurityException {
+
+    KeyAgreement keyAgreement = provider == null
+        ? KeyAgreement.getInstance(Primitive.ECDH.algorithm)
+        : KeyAgreement.getInstance(Primitive.ECDH.algorithm, provider);
+    keyAgreement.init(privateKey);
+    keyAgreement.doPhase(publicKey, true);
+
+    return keyAgreement.generateSecret();
+  }
+
+  /**
+   * Primitives used by the secure session, each with a correctness check and a benchmark body
+   */
+  private enum Primitive {
+    ECDH("ECDH", "ECDH") {
+      @Override
+      byte[] check(Provider provider, Fixtures fixtures) throws GeneralSecurityException {
+        return exercise(provider, fixtures);
+      }
+
+      @Override
+      byte[] exercise(Provider provider, Fixtures fixtures) throws GeneralSecurityException {
+        return agree(provider, fixtures.keyPair.getPrivate(), fixtures.peerKeyPair.getPublic());
+      }
+    },
+
+    HMAC_SHA256("HmacSHA256", "HMAC-SHA256") {
+      @Override
+      byte[] check(Provider provider, Fixtures fixtures) throws GeneralSecurityException {
+        return exercise(provider, fixtures);
+      }
+
+      @Override
+      byte[] exercise(Provider provider, Fixtures fixtures) throws GeneralSecurityException {
+        Mac mac = provider == null ? Mac.getInstance(algorithm)
+            : Mac.getInstance(algorithm, provider);
+        mac.init(new SecretKeySpec(fixtures.macKey, algorithm));
+
+        return mac.doFinal(fixtures.payload);
+      }
+    },
+
+    AES_CTR("AES/CTR/NoPadding", "AES-CTR") {
+      @Override
+      byte[] check(Provider provider, Fixtures fixtures) throws GeneralSecurityException {
+        return exercise(provider, fixtures);
+      }
+
+      @Override
+      byte[] exercise(Provider provider, Fixtures fixtures) throws GeneralSecurityException {
+        Cipher cipher = provider == null ? Cipher.getInstance(algorithm)
+            : Cipher.getInstance(algorithm, provider);
+        cipher.init(
+            Cipher.DECRYPT_MODE,
+            new SecretKeySpec(fixtures.aesKey, "AES"),
+            new IvParameterSpec(fixtures.counterBlock));
+
+        return cipher.doFinal(fixtures.payload);
+      }
+    },
+
+    ECDSA("SHA256withECDSA", "ECDSA") {
+      @Override
+      byte[] check(Provider provider, Fixtures fixtures) throws GeneralSecurityException {
+        // Signatures are randomized, so check both directions against the default provider
+        Signature reference = Signature.getInstance(algorithm);
+        reference.initVerify(fixtures.keyPair.getPublic());
+        reference.update(fixtures.payload, 0, SIGNED_LENGTH);
+        boolean verifiedByDefault = reference.verify(exercise(provider, fixtures));
+
+        // A fresh instance, the default provider is fixed by the first init
+        Signature referenceSigner = Signature.getInstance(algorithm);
+        referenceSigner.initSign(fixtures.signingKey);
+        referenceSigner.update(fixtures.payload, 0, SIGNED_LENGTH);
+        byte[] referenceSignature = referenceSigner.sign();
+
+        Signature signature = provider == null ? Signature.getInstance(algorithm)
+            : Signature.getInstance(algorithm, provider);
+        signature.initVerify(fixtures.keyPair.getPublic());
+        signature.update(fixtures.payload, 0, SIGNED_LENGTH);
+        boolean verifiedByProvider = signature.verify(referenceSignature);
+
+        if (!verifiedByDefault || !verifiedByProvider) {
+          throw new SignatureException("Signatures do not verify across providers");
+        }
+
+        return new byte[]{1};
+      }
+
+      @Override
+      byte[] exercise(Provider provider, Fixtures fixtures) throws GeneralSecurityException {
+        Signature signature = provider == null ? Signature.getInstance(algorithm)
+            : Signature.getInstance(algorithm, provider);
+        signature.initSign(fixtures.signingKey);
+        signature.update(fixtures.payload, 0, SIGNED_LENGTH);
+
+        return signature.sign();
+      }
+    },
+
+    EC_KEY_PAIR_GENERATOR("EC", "EC key generation") {
+      @Override
+      byte[] check(Provider provider, Fixtures fixtures) throws GeneralSecurityException {
+        // Key pairs are random, so check that both halves agree with a known key pair
+        KeyPairGenerator keyPairGenerator = provider == null
+            ? KeyPairGenerator.getInstance(algorithm)
+            : KeyPairGenerator.getInstance(algorithm, provider);
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+
+        byte[] forward = agree(null, keyPair.getPrivate(), fixtures.keyPair.getPublic());
+        byte[] backward = agree(null, fixtures.keyPair.getPrivate(), keyPair.getPublic());
+
+        if (!Arrays.equals(forward, backward)) {
+          throw new InvalidKeyException("Generated key pair does not agree with a known key");
+        }
+
+        return new byte[]{1};
+      }
+
+      @Override
+      byte[] exercise(Provider provider, Fixtures fixtures) throws GeneralSecurityException {
+        KeyPairGenerator keyPairGenerator = provider == null
+            ? KeyPairGenerator.getInstance(algorithm)
+            : KeyPairGenerator.getInstance(algorithm, provider);
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+
+        return keyPairGenerator.generateKeyPair().getPublic().getEncoded();
+      }
+    },
+
+    EC_KEY_FACTORY("EC", "EC key decoding") {
+      @Override
+      byte[] check(Provider provider, Fixtures fixtures) throws GeneralSecurityException {
+        return exercise(provider, fixtures);
+      }
+
+      @Override
+      byte[] exercise(Provider provider, Fixtures fixtures) throws GeneralSecurityException {
+        KeyFactory keyFactory = provider == null ? KeyFactory.getInstance(algorithm)
+            : KeyFactory.getInstance(algorithm, provider);
+
+        return keyFactory.generatePublic(fixtures.publicKeySpec).getEncoded();
+      }
+    };
+
+    final String algorithm;
+    final String label;
+
+    Primitive(String algorithm, String label) {
+      this.algorithm = algorithm;
+      this.label = label;
+    }
+
+    /**
+     * Runs the primitive and returns a value that must match the default provider's
+     *
+     * @param provider Provider, or null for the JCA default
+     * @param fixtures Keys and payloads to run the primitive on
+     * @return Value to compare
+     */
+    abstract byte[] check(Provider provider, Fixtures fixtures) throws GeneralSecurityException;
+
+    /**
+     * Runs the primitive the way a tap does
+     *
+     * @param provider Provider, or null for the JCA default
+     * @param fixtures Keys and payloads to run the primitive on
+     * @return Output of the primitive
+     */
+    abstract byte[] exercise(Provider provider, Fixtures fixtures)
+        throws GeneralSecurityException;
+  }
+
+  /**
+   * Keys and payloads shared by the checks and benchmarks
+   */
+  private static final class Fixtures {
+
+    final KeyPair keyPair;
+    final KeyPair peerKeyPair;
+    final PrivateKey signingKey;
+    final ECPublicKeySpec publicKeySpec;
+    final byte[] macKey = SessionRandom.nextBytes(32);
+    final byte[] aesKey = SessionRandom.nextBytes(16);
+    final byte[] counterBlock = Arrays.copyOf(SessionRandom.nextBytes(12), 16);
+    final byte[] payload = SessionRandom.nextBytes(PAYLOAD_LENGTH);
+
+    Fixtures() throws GeneralSecurityException {
+      KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+      keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+
+      this.keyPair = keyPairGenerator.generateKeyPair();
+      this.peerKeyPair = keyPairGenerator.generateKeyPair();
+
+      // Converted like the long-term key in TerminalKeyManager, providers must accept that type
+      try {
+        this.signingKey = new JcaPEMKeyConverter().getPrivateKey(
+            PrivateKeyInfo.getInstance(keyPair.getPrivate().getEncoded()));
+      } catch (PEMException e) {
+        throw new GeneralSecurityException(e);
+      }
+
+      // Same key spec as a mobile device ephemeral public key decoded at tap time
+      java.security.spec.ECPoint w = ((ECPublicKey) peerKeyPair.getPublic()).getW();
+      ECPoint point = ECNamedCurveTable.getParameterSpec("secp256r1").getCurve()
+          .createPoint(w.getAffineX(), w.getAffineY());
+      this.publicKeySpec = Utils.getPublicKeySpecFromBytes(point.getEncoded(true));
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Class decrypts captured `get smart tap data` responses on a worker thread
+ *
+ * Only the APDU exchange needs the mobile device in the field. ECDH, HKDF, the HMAC check,
+ * AES-CTR decryption and NDEF parsing all happen here once the NFC session has ended
+ */
+public class DecryptionQueue {
+
+  /**
+   * Receives the outcome of a deferred decryption
+   */
+  public interface Callback {
+
+    /**
+     * Called when the response was decrypted
+     *
+     * @param getDataResponse Parsed and decrypted `get smart tap data` response
+     */
+    void onDecrypted(GetDataResponse getDataResponse);
+
+    /**
+     * Called when the response could not be decrypted
+     *
+     * @param e The problem encountered
+     */
+    void onDecryptionFailed(Exception e);
+  }
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "smart-tap-decryption");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * Queues a captured response for decryption
+   *
+   * Responses are decrypted in the order they were submitted
+   *
+   * @param response Byte array response from the `get smart tap data` command
+   * @param sessionSecrets Session material captured during the NFC session, its arena is closed
+   * once the response is decrypted
+   * @param callback Receives the result on the worker thread
+   */
+  public void submit(byte[] response, SessionSecrets sessionSecrets, Callback callback) {
+    executor.execute(() -> {
+      GetDataResponse getDataResponse;
+
+      try {
+        getDataResponse = new GetDataResponse(response, sessionSecrets);
+      } catch (Exception e) {
+        callback.onDecryptionFailed(e);
+        return;
+      } finally {
+        sessionSecrets.arena.close();
+      }
+
+      callback.onDecrypted(getDataResponse);
+    });
+  }
+
+  /**
+   * Stops the worker thread once already queued responses are decrypted
+   */
+  public void shutdown() {
+    executor.shutdown();
+  }
+}
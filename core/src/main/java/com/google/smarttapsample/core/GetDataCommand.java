@@ -13,11 +13,7 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package com.google.smarttapsample;
-
-import android.nfc.NdefMessage;
-import android.nfc.NdefRecord;
-import java.io.IOException;
+package com.google.smarttapsample.core;
 
 /**
  * Class encapsulates the creation of the `get smart tap data` command
@@ -36,6 +32,7 @@ class GetDataCommand {
   // https://developers.google.com/wallet/smart-tap/reference/apdu-commands/get-data#service_type_byte
   private static final byte SERVICE_TYPE = 0x03;
 
+  private final SessionArena arena;
   private NdefRecord serviceRequestRecord;
 
   /**
@@ -44,9 +41,15 @@ class GetDataCommand {
    * @param sessionId Session ID from context of Smart Tap
    * @param collectorIdRecord Collector ID NDEF record
    * @param sequenceNumber The sequence number to use
+   * @param arena Arena of the session, the session record and command are wiped with it
    */
-  GetDataCommand(byte[] sessionId, NdefRecord collectorIdRecord, int sequenceNumber)
-      throws Exception {
+  GetDataCommand(
+      byte[] sessionId,
+      NdefRecord collectorIdRecord,
+      int sequenceNumber,
+      SessionArena arena) throws Exception {
+
+    this.arena = arena;
 
     try {
       NdefRecord sessionRecord = createSessionRecord(sessionId, sequenceNumber);
@@ -67,20 +70,17 @@ class GetDataCommand {
    * @param serviceListRecord Service list NDEF record
    */
   private void createServiceRequestRecord(
-      NdefRecord sessionRecord, NdefRecord merchantRecord, NdefRecord serviceListRecord)
-      throws IOException {
+      NdefRecord sessionRecord, NdefRecord merchantRecord, NdefRecord serviceListRecord) {
 
     // Service request NDEF record encapsulates all
     NdefMessage serviceRequestNdefMessagePayload = new NdefMessage(sessionRecord, merchantRecord,
         serviceListRecord);
 
-    serviceRequestRecord = new NdefRecord(
-        NdefRecord.TNF_EXTERNAL_TYPE,
-        new byte[]{(byte) 0x73, (byte) 0x72, (byte) 0x71}, // `srq` in byte-array form
-        null,
-        Utils.concatenateByteArrays(
-            new byte[]{(byte) 0x00, (byte) 0x01}, // Service request ndef
-            serviceRequestNdefMessagePayload.toByteArray()));
+    byte[] payload = arena.allocate(ServiceRequestLayout.length(
+        serviceRequestNdefMessagePayload.getByteArrayLength()));
+    ServiceRequestLayout.write(payload, 0, serviceRequestNdefMessagePayload);
+
+    serviceRequestRecord = ServiceRequestLayout.record(payload);
   }
 
   /**
@@ -91,19 +91,12 @@ class GetDataCommand {
   private static NdefRecord createServiceListRecord() {
     // Create a service type NDEF record that will go into the service list NDEF
     // record
-    NdefRecord serviceTypeRecord = new NdefRecord(
-        NdefRecord.TNF_EXTERNAL_TYPE,
-        new byte[]{(byte) 0x73, (byte) 0x74, (byte) 0x72}, // `str` in byte-array form
-        null,
-        new byte[]{SERVICE_TYPE});
-    NdefMessage serviceListRecordPayload = new NdefMessage(serviceTypeRecord);
+    byte[] serviceType = new byte[ServiceTypeLayout.LENGTH];
+    ServiceTypeLayout.write(serviceType, 0, SERVICE_TYPE);
+    NdefMessage serviceListRecordPayload = new NdefMessage(ServiceTypeLayout.record(serviceType));
 
     // Return the service list NDEF record
-    return new NdefRecord(
-        NdefRecord.TNF_EXTERNAL_TYPE,
-        new byte[]{(byte) 0x73, (byte) 0x6C, (byte) 0x72}, // `slr` in byte array form
-        null,
-        serviceListRecordPayload.toByteArray());
+    return ServiceListLayout.record(serviceListRecordPayload.toByteArray());
   }
 
   /**
@@ -113,11 +106,7 @@ class GetDataCommand {
    * @return Merchant NDEF record
    */
   private static NdefRecord createMerchantRecord(NdefRecord collectorIdRecord) {
-    return new NdefRecord(
-        NdefRecord.TNF_EXTERNAL_TYPE,
-        new byte[]{(byte) 0x6D, (byte) 0x65, (byte) 0x72}, // `mer` in byte-array form
-        null,
-        (new NdefMessage(collectorIdRecord).toByteArray()));
+    return MerchantLayout.record(new NdefMessage(collectorIdRecord).toByteArray());
   }
 
   /**
@@ -127,34 +116,31 @@ class GetDataCommand {
    * @param sequenceNumber The sequence number to use
    * @return Session NDEF record
    */
-  private static NdefRecord createSessionRecord(byte[] sessionId, int sequenceNumber)
-      throws IOException {
-    return new NdefRecord(
-        NdefRecord.TNF_EXTERNAL_TYPE,
-        new byte[]{(byte) 0x73, (byte) 0x65, (byte) 0x73}, // `ses` in byte-array form
-        null,
-        Utils.concatenateByteArrays(
-            sessionId,
-            new byte[]{(byte) sequenceNumber},
-            new byte[]{(byte) 0x01} // Status byte
-        ));
+  private NdefRecord createSessionRecord(byte[] sessionId, int sequenceNumber) {
+    // Status byte 1
+    byte[] payload = arena.allocate(SessionLayout.LENGTH);
+    SessionLayout.write(payload, 0, sessionId, sequenceNumber, 1);
+
+    return SessionLayout.record(payload);
   }
 
   /**
    * Converts an instance of this class into a byte-array `get smart tap data` command
    *
-   * @return A byte array representing the command to send
+   * @return A byte array representing the command to send, owned by the session
    */
   byte[] commandToByteArray() throws Exception {
     try {
       NdefMessage ndefMsg = new NdefMessage(serviceRequestRecord);
       int length = ndefMsg.getByteArrayLength();
 
-      return Utils.concatenateByteArrays(
-          COMMAND_PREFIX,
-          new byte[]{(byte) length},
-          ndefMsg.toByteArray(),
-          new byte[]{(byte) 0x00});
+      // Prefix, length byte, message, and the trailing zero `Le` byte of a lent array
+      byte[] command = arena.allocate(COMMAND_PREFIX.length + 1 + length + 1);
+      System.arraycopy(COMMAND_PREFIX, 0, command, 0, COMMAND_PREFIX.length);
+      command[COMMAND_PREFIX.length] = (byte) length;
+      ndefMsg.writeTo(command, COMMAND_PREFIX.length + 1);
+
+      return command;
     } catch (Exception e) {
       throw new SmartTapException(
           "Problem turning `get smart tap data` command to byte array: " + e);
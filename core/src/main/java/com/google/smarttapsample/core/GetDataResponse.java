@@ -0,0 +1,415 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.List;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Class encapsulates the response from the `get smart tap data` command
+ * https://developers.google.com/wallet/smart-tap/reference/apdu-commands/get-data#response_get_smart_tap_data
+ *
+ * Derived keys are handed to providers as {@link SessionKey}s over arena arrays, so every copy of
+ * the key bytes is wiped when the session ends. Key state kept inside the `Cipher` and `Mac`
+ * instances is not, it goes when they are collected.
+ */
+public class GetDataResponse {
+
+  // HMAC-SHA256 output, the record bundle layout is in RecordBundleLayout
+  private static final int HMAC_LENGTH = 32;
+  private static final int SHARED_SECRET_LENGTH = 32;
+
+  public String decryptedSmartTapRedemptionValue;
+  public List<ServiceObject> serviceObjects;
+
+  /**
+   * Constructor for the class
+   *
+   * @param response Byte array response
+   * @param sessionSecrets Session material captured during the NFC session
+   */
+  GetDataResponse(byte[] response, SessionSecrets sessionSecrets) throws Exception {
+    this(
+        response,
+        sessionSecrets.mobileDeviceEphemeralPublicKey,
+        sessionSecrets.terminalEphemeralPrivateKey,
+        sessionSecrets.terminalNonce,
+        sessionSecrets.collectorId,
+        sessionSecrets.terminalEphemeralPublicKeyCompressed,
+        sessionSecrets.signedData,
+        sessionSecrets.mobileDeviceNonce,
+        sessionSecrets.arena,
+        sessionSecrets.serviceObjectDecoder,
+        sessionSecrets.revocationFilter);
+  }
+
+  /**
+   * Constructor for the class
+   *
+   * @param response Byte array response
+   * @param mobileDeviceEphemeralPublicKey Mobile device ephemeral public key
+   * @param terminalEphemeralPrivateKey Terminal ephemeral private key
+   * @param terminalNonce Terminal nonce
+   * @param collectorId Collector ID
+   * @param terminalEphemeralPublicKeyCompressed Terminal ephemeral public key
+   * @param signedData Signed data
+   * @param mobileDeviceNonce Mobile device nonce
+   * @param arena Arena of the session, buffers holding key material and plaintext come from here
+   * @param serviceObjectDecoder Decodes the service objects, keeping the registered fields
+   * @param revocationFilter Denylist to check the redemption value against, null to skip the check
+   */
+  GetDataResponse(
+      byte[] response,
+      byte[] mobileDeviceEphemeralPublicKey,
+      PrivateKey terminalEphemeralPrivateKey,
+      byte[] terminalNonce,
+      byte[] collectorId,
+      byte[] terminalEphemeralPublicKeyCompressed,
+      byte[] signedData,
+      byte[] mobileDeviceNonce,
+      SessionArena arena,
+      ServiceObjectDecoder serviceObjectDecoder,
+      RevocationFilter revocationFilter)
+      throws Exception {
+
+    try {
+      // Check status
+      checkStatus(response);
+
+      // Extract the service request NDEF record
+      NdefRecord serviceRequestRecord = getServiceRequestRecord(
+          Utils.extractPayload(response, arena));
+      arena.track(serviceRequestRecord.getPayload());
+
+      // Extract the record bundle NDEF record
+      NdefRecord recordBundleRecord = getRecordBundleNdefRecord(serviceRequestRecord);
+
+      // Get the record bundle payload (status byte, IV, ciphertext and HMAC)
+      byte[] recordBundle = arena.track(recordBundleRecord.getPayload());
+
+      // Decrypt the record bundle into a scratch buffer from the session arena
+      byte[] plaintext = arena.allocateScratch(recordBundle.length);
+      int plaintextLength = decrypt(
+          mobileDeviceEphemeralPublicKey,
+          terminalEphemeralPrivateKey,
+          terminalNonce,
+          mobileDeviceNonce,
+          collectorId,
+          terminalEphemeralPublicKeyCompressed,
+          signedData,
+          recordBundle,
+          plaintext,
+          arena);
+
+      // Decode every service object, keeping the registered fields before the arena is wiped
+      this.serviceObjects = serviceObjectDecoder.decode(
+          arena.trackPayloads(new NdefMessage(plaintext, 0, plaintextLength)),
+          arena);
+
+      for (ServiceObject serviceObject : serviceObjects) {
+        serviceObject.detach();
+      }
+
+      // Get the `smartTapRedemptionValue` property of the loyalty card
+      this.decryptedSmartTapRedemptionValue = getSmartTapRedemptionValue(serviceObjects);
+
+      if (decryptedSmartTapRedemptionValue == null || decryptedSmartTapRedemptionValue.isEmpty()) {
+        throw new SmartTapException("Blank Smart Tap redemption value!");
+      }
+    } catch (Exception e) {
+      throw new SmartTapException("Problem parsing `get smart tap data` response: " + e);
+    }
+
+    // Reject revoked passes before anything acts on them
+    if (revocationFilter != null && revocationFilter.isRevoked(decryptedSmartTapRedemptionValue)) {
+      throw new SmartTapException("Revoked Smart Tap redemption value!");
+    }
+  }
+
+  /**
+   * Checks the response status https://developers.google.com/wallet/smart-tap/reference/apdu-commands/status-words
+   *
+   * Cheap enough to run while the mobile device is still in the field
+   *
+   * @param response Byte array response
+   */
+  static void checkStatus(byte[] response) throws SmartTapException {
+    // Extract status
+    String status = Utils.getStatus(response);
+
+    if (!status.startsWith("9")) {
+      // Invalid status code
+      throw new SmartTapException("Invalid status: " + status);
+    }
+  }
+
+  /**
+   * Get and decrypt the record bundle.
+   *
+   * The MAC and cipher are fed over offsets into the record bundle payload, so no intermediate
+   * copies are made regardless of the bundle size
+   *
+   * @param mobileDeviceEphemeralPublicKey Mobile device ephemeral public key
+   * @param terminalEphemeralPrivateKey Terminal ephemeral private key
+   * @param terminalNonce Terminal nonce
+   * @param mobileDeviceNonce Mobile device nonce
+   * @param collectorId Collector ID
+   * @param terminalEphemeralPublicKeyCompressed Terminal ephemeral public key
+   * @param signedData Signed data
+   * @param recordBundle Record bundle NDEF record payload
+   * @param plaintext Buffer to write the decrypted record bundle into
+   * @param arena Arena to borrow buffers for the shared secret and keys from
+   * @return Length of the decrypted record bundle
+   */
+  private static int decrypt(
+      byte[] mobileDeviceEphemeralPublicKey,
+      PrivateKey terminalEphemeralPrivateKey,
+      byte[] terminalNonce,
+      byte[] mobileDeviceNonce,
+      byte[] collectorId,
+      byte[] terminalEphemeralPublicKeyCompressed,
+      byte[] signedData,
+      byte[] recordBundle,
+      byte[] plaintext,
+      SessionArena arena)
+      throws NoSuchAlgorithmException, InvalidKeyException, InvalidKeySpecException,
+      NoSuchPaddingException, InvalidAlgorithmParameterException, BadPaddingException,
+      IllegalBlockSizeException, ShortBufferException, FormatException, SmartTapException {
+
+    // Check the payload status (expecting uncompressed)
+    int status = RecordBundleLayout.getStatus(recordBundle);
+    if (status == 2 || status == 3) {
+      throw new SmartTapException("Expecting uncompressed payload!");
+    }
+
+    int hmacOffset = RecordBundleLayout.getHmacOffset(recordBundle);
+    int ciphertextLength = RecordBundleLayout.getCiphertextLength(recordBundle);
+
+    // Generate the shared secret
+    KeyAgreement keyAgreement = CryptoProviders.keyAgreement();
+    keyAgreement.init(terminalEphemeralPrivateKey);
+    keyAgreement.doPhase(Utils.getPublicKeyFromBytes(mobileDeviceEphemeralPublicKey), true);
+    byte[] sharedSecret = arena.allocate(SHARED_SECRET_LENGTH);
+    keyAgreement.generateSecret(sharedSecret, 0);
+
+    // Generate the shared key (AES key followed by the HMAC key)
+    Mac hmacSha256 = CryptoProviders.mac();
+    byte[] sharedKey = extractSharedKey(
+        hmacSha256,
+        mobileDeviceEphemeralPublicKey,
+        terminalNonce,
+        mobileDeviceNonce,
+        collectorId,
+        terminalEphemeralPublicKeyCompressed,
+        signedData,
+        sharedSecret,
+        arena);
+
+    // Check HMAC
+    checkHmac(hmacSha256, sharedKey, recordBundle, hmacOffset, arena);
+
+    // AES-CTR starts with the IV followed by a 4-byte 0 counter
+    byte[] counterBlock = arena.allocate(16);
+    System.arraycopy(
+        recordBundle, RecordBundleLayout.IV_OFFSET, counterBlock, 0, RecordBundleLayout.IV_LENGTH);
+
+    // Decrypt the payload
+    Cipher cipher = CryptoProviders.cipher();
+    SessionKey aesKey = new SessionKey(arena, sharedKey, 0, 16, "AES");
+    cipher.init(Cipher.DECRYPT_MODE, aesKey, new IvParameterSpec(counterBlock));
+
+    int length = cipher.update(
+        recordBundle, RecordBundleLayout.CIPHERTEXT_OFFSET, ciphertextLength, plaintext, 0);
+    length += cipher.doFinal(plaintext, length);
+    aesKey.destroy();
+
+    return length;
+  }
+
+  /**
+   * Gets the shared key from the shared secret and mobile device ephemeral public key
+   *
+   * HKDF-SHA256 (RFC 5869) with the info fields streamed into the MAC rather than concatenated
+   *
+   * @param hmacSha256 HMAC-SHA256 instance to use
+   * @param mobileDeviceEphemeralPublicKey Mobile device ephemeral public key
+   * @param terminalNonce Terminal nonce
+   * @param mobileDeviceNonce Mobile devices nonce
+   * @param collectorId Collector ID
+   * @param terminalEphemeralPublicKeyCompressed Terminal ephemeral public key
+   * @param signedData Signed data
+   * @param sharedSecret Shared secret
+   * @param arena Arena to borrow the key buffers from
+   * @return Shared key in byte-array form (first 48 bytes are used)
+   */
+  private static byte[] extractSharedKey(
+      Mac hmacSha256,
+      byte[] mobileDeviceEphemeralPublicKey,
+      byte[] terminalNonce,
+      byte[] mobileDeviceNonce,
+      byte[] collectorId,
+      byte[] terminalEphemeralPublicKeyCompressed,
+      byte[] signedData,
+      byte[] sharedSecret,
+      SessionArena arena)
+      throws InvalidKeyException, ShortBufferException {
+
+    // Extract: mobile device ephemeral public key is the salt, not secret
+    hmacSha256.init(new SecretKeySpec(mobileDeviceEphemeralPublicKey, "HmacSHA256"));
+    hmacSha256.update(sharedSecret);
+    byte[] pseudoRandomKey = arena.allocate(HMAC_LENGTH);
+    hmacSha256.doFinal(pseudoRandomKey, 0);
+
+    // Expand: two HMAC blocks cover the 48 bytes needed
+    byte[] sharedKey = arena.allocate(2 * HMAC_LENGTH);
+    SessionKey pseudoRandomKeySpec =
+        new SessionKey(arena, pseudoRandomKey, 0, HMAC_LENGTH, "HmacSHA256");
+    hmacSha256.init(pseudoRandomKeySpec);
+
+    for (int block = 0; block < 2; block++) {
+      if (block > 0) {
+        hmacSha256.update(sharedKey, 0, HMAC_LENGTH);
+      }
+      hmacSha256.update(terminalNonce);
+      hmacSha256.update(mobileDeviceNonce);
+      hmacSha256.update(collectorId);
+      hmacSha256.update(terminalEphemeralPublicKeyCompressed);
+      hmacSha256.update(signedData);
+      hmacSha256.update((byte) (block + 1));
+      hmacSha256.doFinal(sharedKey, block * HMAC_LENGTH);
+    }
+    pseudoRandomKeySpec.destroy();
+
+    return sharedKey;
+  }
+
+  /**
+   * Checks the hash in the `get smart tap data` command response to ensure it was not tampered
+   * with
+   *
+   * @param hmacSha256 HMAC-SHA256 instance to use
+   * @param sharedKey Shared key (HMAC key starts at byte 16)
+   * @param recordBundle Record bundle NDEF record payload
+   * @param hmacOffset Offset of the received HMAC in the record bundle
+   * @param arena Arena to borrow the derived HMAC buffer from
+   */
+  private static void checkHmac(
+      Mac hmacSha256, byte[] sharedKey, byte[] recordBundle, int hmacOffset, SessionArena arena)
+      throws InvalidKeyException, ShortBufferException, SmartTapException {
+
+    SessionKey hmacKey = new SessionKey(arena, sharedKey, 16, HMAC_LENGTH, "HmacSHA256");
+    hmacSha256.init(hmacKey);
+
+    // Hash covers the IV and ciphertext
+    hmacSha256.update(
+        recordBundle, RecordBundleLayout.IV_OFFSET, hmacOffset - RecordBundleLayout.IV_OFFSET);
+    byte[] derivedHmac = arena.allocate(HMAC_LENGTH);
+    hmacSha256.doFinal(derivedHmac, 0);
+    hmacKey.destroy();
+
+    if (!Utils.constantTimeEquals(recordBundle, hmacOffset, derivedHmac, 0, HMAC_LENGTH)) {
+      // Message may have been tampered with
+      throw new SmartTapException("Hash is incorrect!");
+    }
+  }
+
+  /**
+   * Gets the Smart Tap redemption value from the decoded service objects
+   *
+   * Looks for loyalty (`ly`) and a record id of (`n`). Other service objects never supply it, they
+   * are only available through {@link #serviceObjects}, as the decoder kept them
+   *
+   * @param serviceObjects Decoded service objects
+   * @return Smart Tap redemption value, or null if no loyalty object carries one
+   */
+  private static String getSmartTapRedemptionValue(List<ServiceObject> serviceObjects) {
+    for (ServiceObject serviceObject : serviceObjects) {
+      String value = serviceObject.getRedemptionValue();
+
+      if (value != null && serviceObject.getType() == ServiceObjectType.LOYALTY) {
+        return value;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Gets the record bundle NDEF record
+   *
+   * @param serviceRequestRecord Service request NDEF record
+   * @return Record bundle ndef record
+   */
+  private static NdefRecord getRecordBundleNdefRecord(NdefRecord serviceRequestRecord)
+      throws Exception {
+
+    // Convert payload to service request payload NDEF message
+    NdefMessage serviceRequestPayloadNdefMessage = ServiceResponseLayout.getRecords(
+        serviceRequestRecord.getPayload());
+
+    // Iterate over records in service request payload NDEF message
+    for (NdefRecord rec : serviceRequestPayloadNdefMessage.getRecords()) {
+      // Looking for `reb` type
+      if (RecordBundleLayout.isType(rec.getType())) {
+        // Found record bundle NDEF record
+        return rec;
+      }
+    }
+
+    throw new SmartTapException("No record bundle found!");
+  }
+
+  /**
+   * Get the service request NDEF record from `get smart tap data` response
+   *
+   * @param payload Response from `get smart tap data`
+   * @return Service request NDEF record
+   */
+  private static NdefRecord getServiceRequestRecord(byte[] payload) throws Exception {
+    NdefRecord serviceRequestRecord = null;
+
+    // Get the payload records
+    NdefRecord[] records = (new NdefMessage(payload)).getRecords();
+
+    // Iterate over the payload records
+    for (NdefRecord rec : records) {
+      // Looking for `srs` type
+      if (ServiceResponseLayout.isType(rec.getType())) {
+        serviceRequestRecord = rec;
+      }
+    }
+
+    // No `srs` record found
+    if (serviceRequestRecord == null) {
+      throw new SmartTapException("No service request record found!");
+    }
+
+    return serviceRequestRecord;
+  }
+}
\ No newline at end of file
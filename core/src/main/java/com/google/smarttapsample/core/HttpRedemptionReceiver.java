@@ -0,0 +1,70 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Class delivers redemption batches to a merchant endpoint over HTTP
+ *
+ * Each batch is a `POST` of the GZIP-compressed batch with the batch ID in the `Idempotency-Key`
+ * header. Any 2xx status acknowledges the batch
+ */
+public final class HttpRedemptionReceiver implements RedemptionReceiver {
+
+  private static final int TIMEOUT_MILLIS = 10_000;
+
+  private final URL endpoint;
+
+  /**
+   * Constructor for the class
+   *
+   * @param endpoint Merchant endpoint accepting batches
+   */
+  public HttpRedemptionReceiver(URL endpoint) {
+    this.endpoint = endpoint;
+  }
+
+  @Override
+  public void receive(String batchId, byte[] body) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+
+    try {
+      connection.setRequestMethod("POST");
+      connection.setConnectTimeout(TIMEOUT_MILLIS);
+      connection.setReadTimeout(TIMEOUT_MILLIS);
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(body.length);
+      connection.setRequestProperty("Content-Type", "application/octet-stream");
+      connection.setRequestProperty("Content-Encoding", "gzip");
+      connection.setRequestProperty("Idempotency-Key", batchId);
+
+      try (OutputStream output = connection.getOutputStream()) {
+        output.write(body);
+      }
+
+      int status = connection.getResponseCode();
+      if (status / 100 != 2) {
+        throw new IOException("Batch " + batchId + " rejected with HTTP " + status);
+      }
+    } finally {
+      connection.disconnect();
+    }
+  }
+}
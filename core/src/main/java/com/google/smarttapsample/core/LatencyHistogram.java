@@ -0,0 +1,149 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Class keeps a latency distribution in fixed buckets, for percentiles within about 3%
+ *
+ * Latencies are counted in microseconds. Below 64 us every value has its own bucket, above it each
+ * power of two is split into 32 buckets, as HDR histograms do, up to about 70 minutes. Histograms
+ * from several terminals merge by adding the counts
+ */
+final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int LINEAR_BUCKETS = 2 * SUB_BUCKETS;
+  private static final int MAX_EXPONENT = 32;
+  private static final int BUCKETS =
+      LINEAR_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+  private final long[] counts = new long[BUCKETS];
+  private long count;
+  private long maxMicros;
+
+  /**
+   * Records a latency
+   *
+   * @param nanos Latency in nanoseconds
+   */
+  void record(long nanos) {
+    long micros = Math.max(0, nanos / 1000);
+
+    counts[bucket(micros)]++;
+    count++;
+    maxMicros = Math.max(maxMicros, micros);
+  }
+
+  /**
+   * Gets a percentile, as the middle of the bucket it falls in
+   *
+   * @param percentile Percentile between 0 and 100
+   * @return Latency in milliseconds, 0 if nothing was recorded
+   */
+  double percentileMillis(double percentile) {
+    if (count == 0) {
+      return 0;
+    }
+
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min((lowerBound(i) + lowerBound(i + 1) - 1) / 2.0, maxMicros) / 1000;
+      }
+    }
+
+    return maxMicros / 1000.0;
+  }
+
+  /**
+   * Adds the latencies of another histogram
+   *
+   * @param other Histogram to merge in
+   */
+  void merge(LatencyHistogram other) {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] += other.counts[i];
+    }
+    count += other.count;
+    maxMicros = Math.max(maxMicros, other.maxMicros);
+  }
+
+  void write(DataOutput out) throws IOException {
+    out.writeLong(count);
+    out.writeLong(maxMicros);
+
+    // Mostly empty, so only the non-empty buckets are written
+    int used = 0;
+    for (long bucketCount : counts) {
+      used += bucketCount == 0 ? 0 : 1;
+    }
+
+    out.writeShort(used);
+    for (int i = 0; i < BUCKETS; i++) {
+      if (counts[i] != 0) {
+        out.writeShort(i);
+        out.writeLong(counts[i]);
+      }
+    }
+  }
+
+  void read(DataInput in) throws IOException {
+    this.count = in.readLong();
+    this.maxMicros = in.readLong();
+
+    int used = in.readUnsignedShort();
+    for (int i = 0; i < used; i++) {
+      int bucket = in.readUnsignedShort();
+      if (bucket >= BUCKETS) {
+        throw new IOException("Latency bucket out of range: " + bucket);
+      }
+      counts[bucket] = in.readLong();
+    }
+  }
+
+  private static int bucket(long micros) {
+    if (micros < LINEAR_BUCKETS) {
+      return (int) micros;
+    }
+
+    int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    if (exponent >= MAX_EXPONENT) {
+      return BUCKETS - 1;
+    }
+
+    // Top bits below the leading one pick the sub-bucket
+    int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+    return LINEAR_BUCKETS + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long lowerBound(int bucket) {
+    if (bucket < LINEAR_BUCKETS) {
+      return bucket;
+    }
+
+    int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+    int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+    return (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.util.Arrays;
+
+/**
+ * Class keeps the most recent 1024 latencies, for percentiles in diagnostic summaries
+ */
+final class LatencyWindow {
+
+  private static final int SIZE = 1024;
+
+  private final long[] nanos = new long[SIZE];
+  private long count;
+
+  synchronized void record(long latencyNanos) {
+    nanos[(int) (count++ % SIZE)] = latencyNanos;
+  }
+
+  synchronized String summary() {
+    int size = (int) Math.min(count, SIZE);
+    if (size == 0) {
+      return "no samples";
+    }
+
+    long[] sorted = Arrays.copyOf(nanos, size);
+    Arrays.sort(sorted);
+
+    return String.format("p50 %.2f ms, p99 %.2f ms",
+        sorted[(size - 1) / 2] / 1e6, sorted[(int) Math.ceil(0.99 * size) - 1] / 1e6);
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+/**
+ * Class encapsulates a member profile keyed by Smart Tap redemption value
+ */
+public final class Member {
+
+  private final String redemptionValue;
+  private final int tier;
+  private final long balance;
+  private final int flags;
+
+  /**
+   * Constructor for the class
+   *
+   * @param redemptionValue Smart Tap redemption value of the member's pass
+   * @param tier Membership tier, 0 to 255
+   * @param balance Points or stored value balance
+   * @param flags Merchant-defined flags
+   */
+  public Member(String redemptionValue, int tier, long balance, int flags) {
+    if (tier < 0 || tier > 0xFF) {
+      throw new IllegalArgumentException("Tier must be 0 to 255");
+    }
+
+    this.redemptionValue = redemptionValue;
+    this.tier = tier;
+    this.balance = balance;
+    this.flags = flags;
+  }
+
+  public String getRedemptionValue() {
+    return redemptionValue;
+  }
+
+  public int getTier() {
+    return tier;
+  }
+
+  public long getBalance() {
+    return balance;
+  }
+
+  public int getFlags() {
+    return flags;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "Member %s, tier: %d, balance: %d, flags: 0x%08x", redemptionValue, tier, balance, flags);
+  }
+}
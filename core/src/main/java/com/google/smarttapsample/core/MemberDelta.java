@@ -0,0 +1,70 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Class encapsulates the changes between two member store generations
+ *
+ * See {@link MemberStore#applyDelta}
+ */
+public final class MemberDelta {
+
+  final long baseGeneration;
+  final long generation;
+
+  // Null values are removals
+  final Map<String, Member> changes = new HashMap<>();
+
+  /**
+   * Constructor for the class
+   *
+   * @param baseGeneration Generation the changes apply to
+   * @param generation Generation of the store once the changes are applied
+   */
+  public MemberDelta(long baseGeneration, long generation) {
+    if (generation <= baseGeneration) {
+      throw new IllegalArgumentException("Delta must move the generation forward");
+    }
+
+    this.baseGeneration = baseGeneration;
+    this.generation = generation;
+  }
+
+  /**
+   * Adds or replaces a member
+   *
+   * @param member Member profile
+   * @return This delta
+   */
+  public MemberDelta upsert(Member member) {
+    changes.put(member.getRedemptionValue(), member);
+    return this;
+  }
+
+  /**
+   * Removes a member, if present
+   *
+   * @param redemptionValue Smart Tap redemption value of the member
+   * @return This delta
+   */
+  public MemberDelta remove(String redemptionValue) {
+    changes.put(redemptionValue, null);
+    return this;
+  }
+}
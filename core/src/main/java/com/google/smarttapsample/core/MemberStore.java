@@ -0,0 +1,517 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class resolves Smart Tap redemption values to member profiles from a memory-mapped file
+ *
+ * The file is a header, an index of (key hash, record offset) entries sorted by hash and key,
+ * then the member records. Lookups binary search the mapped index and decode one record, so they
+ * take microseconds and the members never live on the Java heap. Snapshots are replaced whole:
+ * a delta is merged with the current file into a new one, which is renamed over the old file and
+ * mapped in its place. Lookups that already started finish on the previous mapping
+ *
+ * File layout, big-endian:
+ *   header: magic `STMS`, version (u32), generation (u64), member count (u32),
+ *     records length (u32), reserved (8 bytes)
+ *   index entry: hash of the key, see {@link Utils#hash} (u64), record offset from the first
+ *     record (u32)
+ *   record: key length (u16), key (UTF-8), tier (u8), flags (u32), balance (u64)
+ */
+public final class MemberStore {
+
+  private static final int MAGIC = 0x53544D53; // `STMS`
+  private static final int VERSION = 1;
+  private static final int HEADER_LENGTH = 32;
+  private static final int INDEX_ENTRY_LENGTH = 12;
+  private static final int RECORD_FIXED_LENGTH = 2 + 1 + 4 + 8;
+  private static final int MAX_KEY_LENGTH = 0xFFFF;
+
+  private final Path path;
+  private volatile Snapshot snapshot;
+
+  /**
+   * Constructor for the class
+   *
+   * @param path Store file
+   * @param snapshot Mapping of the store file
+   */
+  private MemberStore(Path path, Snapshot snapshot) {
+    this.path = path;
+    this.snapshot = snapshot;
+  }
+
+  /**
+   * Opens a member store, creating an empty one at generation 0 if the file does not exist
+   *
+   * @param path Store file
+   * @return Member store
+   */
+  public static MemberStore open(Path path) throws IOException {
+    if (!Files.exists(path)) {
+      writeSnapshot(path, 0, Collections.emptyList());
+    }
+
+    return new MemberStore(path, Snapshot.map(path));
+  }
+
+  /**
+   * Writes a full snapshot, atomically replacing the file
+   *
+   * @param path Store file
+   * @param generation Generation of the snapshot
+   * @param members Members of the snapshot
+   */
+  public static void writeSnapshot(Path path, long generation, Collection<Member> members)
+      throws IOException {
+    List<Change> changes = new ArrayList<>(members.size());
+
+    for (Member member : members) {
+      changes.add(new Change(member.getRedemptionValue(), member));
+    }
+
+    write(path, generation, Snapshot.EMPTY, changes);
+  }
+
+  /**
+   * Looks up a member
+   *
+   * @param redemptionValue Smart Tap redemption value from the pass
+   * @return Member profile, or null if not a member
+   */
+  public Member lookup(String redemptionValue) {
+    Snapshot snapshot = this.snapshot;
+    byte[] key = redemptionValue.getBytes(StandardCharsets.UTF_8);
+    long hash = Utils.hash(key);
+
+    int low = 0;
+    int high = snapshot.count - 1;
+
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int comparison = snapshot.compare(middle, hash, key);
+
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        return snapshot.memberAt(middle, redemptionValue);
+      }
+    }
+
+    return null;
+  }
+
+  public long getGeneration() {
+    return snapshot.generation;
+  }
+
+  public int getMemberCount() {
+    return snapshot.count;
+  }
+
+  /**
+   * Merges a delta into a new snapshot and swaps it in
+   *
+   * @param delta Changes from the current generation
+   */
+  public synchronized void applyDelta(MemberDelta delta) throws IOException {
+    Snapshot current = this.snapshot;
+
+    if (delta.baseGeneration != current.generation) {
+      throw new IOException(String.format(
+          "Delta applies to generation %d, store is at %d",
+          delta.baseGeneration,
+          current.generation));
+    }
+
+    List<Change> changes = new ArrayList<>(delta.changes.size());
+    for (Map.Entry<String, Member> change : delta.changes.entrySet()) {
+      changes.add(new Change(change.getKey(), change.getValue()));
+    }
+
+    write(path, delta.generation, current, changes);
+    this.snapshot = Snapshot.map(path);
+  }
+
+  /**
+   * Installs a full snapshot, e.g. one downloaded next to the store file
+   *
+   * @param downloaded Snapshot file on the same file system, moved into place
+   */
+  public synchronized void replace(Path downloaded) throws IOException {
+    Snapshot replacement = Snapshot.map(downloaded);
+
+    if (replacement.generation < snapshot.generation) {
+      throw new IOException(String.format(
+          "Snapshot generation %d is older than the store's %d",
+          replacement.generation,
+          snapshot.generation));
+    }
+
+    Files.move(
+        downloaded, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    this.snapshot = Snapshot.map(path);
+  }
+
+  /**
+   * Writes the merge of a snapshot and changes to a temporary file and renames it into place
+   *
+   * @param path Store file
+   * @param generation Generation of the new snapshot
+   * @param base Snapshot to start from
+   * @param changes Upserts and removals
+   */
+  private static void write(Path path, long generation, Snapshot base, List<Change> changes)
+      throws IOException {
+
+    // Changes in index order, so the merge is a single pass over both
+    Collections.sort(changes);
+    for (int i = 1; i < changes.size(); i++) {
+      if (changes.get(i - 1).compareTo(changes.get(i)) == 0) {
+        throw new IllegalArgumentException("Duplicate member " + changes.get(i).redemptionValue);
+      }
+    }
+
+    // First pass sizes the file, the second fills it
+    SizingSink sizing = new SizingSink();
+    merge(base, changes, sizing);
+
+    long length = HEADER_LENGTH + (long) sizing.count * INDEX_ENTRY_LENGTH + sizing.recordsLength;
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("Member store would exceed 2 GB");
+    }
+
+    Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+
+    try (FileChannel channel = FileChannel.open(
+        temporary,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+
+      buffer.putInt(0, MAGIC);
+      buffer.putInt(4, VERSION);
+      buffer.putLong(8, generation);
+      buffer.putInt(16, sizing.count);
+      buffer.putInt(20, (int) sizing.recordsLength);
+
+      merge(base, changes, new WritingSink(buffer, sizing.count));
+      buffer.force();
+    }
+
+    Files.move(
+        temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Merges the snapshot's entries with the changes, both in index order
+   *
+   * @param base Snapshot to start from
+   * @param changes Sorted upserts and removals
+   * @param sink Receives the entries of the new snapshot in index order
+   */
+  private static void merge(Snapshot base, List<Change> changes, Sink sink) {
+    int i = 0;
+    int j = 0;
+
+    while (i < base.count || j < changes.size()) {
+      if (j == changes.size()) {
+        sink.copy(base, i++);
+        continue;
+      }
+
+      Change change = changes.get(j);
+      int comparison = i == base.count ? 1 : base.compare(i, change.hash, change.key);
+
+      if (comparison < 0) {
+        // Unchanged member
+        sink.copy(base, i++);
+        continue;
+      }
+
+      if (comparison == 0) {
+        // Replaced or removed member
+        i++;
+      }
+
+      if (change.member != null) {
+        sink.add(change);
+      }
+      j++;
+    }
+  }
+
+  /**
+   * Class encapsulates one upsert or removal, ordered as in the index
+   */
+  private static final class Change implements Comparable<Change> {
+
+    final String redemptionValue;
+    final byte[] key;
+    final long hash;
+    final Member member;
+
+    Change(String redemptionValue, Member member) {
+      this.redemptionValue = redemptionValue;
+      this.key = redemptionValue.getBytes(StandardCharsets.UTF_8);
+      this.hash = Utils.hash(key);
+      this.member = member;
+
+      if (key.length > MAX_KEY_LENGTH) {
+        throw new IllegalArgumentException("Redemption value too long");
+      }
+    }
+
+    @Override
+    public int compareTo(Change other) {
+      int comparison = Long.compare(hash, other.hash);
+      if (comparison != 0) {
+        return comparison;
+      }
+
+      for (int i = 0; i < Math.min(key.length, other.key.length); i++) {
+        comparison = Integer.compare(key[i] & 0xFF, other.key[i] & 0xFF);
+        if (comparison != 0) {
+          return comparison;
+        }
+      }
+
+      return Integer.compare(key.length, other.key.length);
+    }
+  }
+
+  /**
+   * Interface for receivers of merged entries
+   */
+  private interface Sink {
+
+    void copy(Snapshot base, int index);
+
+    void add(Change change);
+  }
+
+  /**
+   * Class counts the merged entries and their record bytes
+   */
+  private static final class SizingSink implements Sink {
+
+    int count;
+    long recordsLength;
+
+    @Override
+    public void copy(Snapshot base, int index) {
+      count++;
+      recordsLength += base.recordLength(base.recordOffset(index));
+    }
+
+    @Override
+    public void add(Change change) {
+      count++;
+      recordsLength += RECORD_FIXED_LENGTH + change.key.length;
+    }
+  }
+
+  /**
+   * Class writes the merged entries into the new file's mapping
+   */
+  private static final class WritingSink implements Sink {
+
+    private final ByteBuffer buffer;
+    private final int recordsStart;
+    private int index;
+    private int recordOffset;
+
+    WritingSink(ByteBuffer buffer, int count) {
+      this.buffer = buffer;
+      this.recordsStart = HEADER_LENGTH + count * INDEX_ENTRY_LENGTH;
+    }
+
+    @Override
+    public void copy(Snapshot base, int index) {
+      int offset = base.recordOffset(index);
+      int length = base.recordLength(offset);
+
+      buffer.position(recordsStart + recordOffset);
+      addIndexEntry(base.hashAt(index), length);
+
+      // Unchanged records are copied as they are
+      ByteBuffer record = base.buffer.duplicate();
+      record.limit(base.recordsStart + offset + length).position(base.recordsStart + offset);
+      buffer.put(record);
+    }
+
+    @Override
+    public void add(Change change) {
+      buffer.position(recordsStart + recordOffset);
+      addIndexEntry(change.hash, RECORD_FIXED_LENGTH + change.key.length);
+
+      buffer.putShort((short) change.key.length);
+      buffer.put(change.key);
+      buffer.put((byte) change.member.getTier());
+      buffer.putInt(change.member.getFlags());
+      buffer.putLong(change.member.getBalance());
+    }
+
+    private void addIndexEntry(long hash, int length) {
+      int entry = HEADER_LENGTH + index * INDEX_ENTRY_LENGTH;
+      buffer.putLong(entry, hash);
+      buffer.putInt(entry + 8, recordOffset);
+
+      index++;
+      recordOffset += length;
+    }
+  }
+
+  /**
+   * Class encapsulates one mapped generation of the store
+   */
+  private static final class Snapshot {
+
+    static final Snapshot EMPTY = new Snapshot(ByteBuffer.allocate(HEADER_LENGTH), 0, 0, 0);
+
+    final ByteBuffer buffer;
+    final long generation;
+    final int count;
+    final int recordsStart;
+    final int recordsLength;
+
+    Snapshot(ByteBuffer buffer, long generation, int count, int recordsLength) {
+      this.buffer = buffer;
+      this.generation = generation;
+      this.count = count;
+      this.recordsStart = HEADER_LENGTH + count * INDEX_ENTRY_LENGTH;
+      this.recordsLength = recordsLength;
+    }
+
+    /**
+     * Maps a store file read-only and checks its header
+     *
+     * @param path Store file
+     * @return Snapshot
+     */
+    static Snapshot map(Path path) throws IOException {
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        long size = channel.size();
+
+        if (size < HEADER_LENGTH || size > Integer.MAX_VALUE) {
+          throw new IOException("Not a member store: " + path);
+        }
+
+        // The mapping stays valid once the channel is closed
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+          throw new IOException("Not a member store: " + path);
+        }
+
+        int count = buffer.getInt(16);
+        int recordsLength = buffer.getInt(20);
+
+        if (count < 0 || recordsLength < 0
+            || HEADER_LENGTH + (long) count * INDEX_ENTRY_LENGTH + recordsLength != size) {
+          throw new IOException("Truncated member store: " + path);
+        }
+
+        return new Snapshot(buffer, buffer.getLong(8), count, recordsLength);
+      }
+    }
+
+    long hashAt(int index) {
+      return buffer.getLong(HEADER_LENGTH + index * INDEX_ENTRY_LENGTH);
+    }
+
+    int recordOffset(int index) {
+      int offset = buffer.getInt(HEADER_LENGTH + index * INDEX_ENTRY_LENGTH + 8);
+
+      if (offset < 0 || offset > recordsLength - RECORD_FIXED_LENGTH) {
+        throw new IllegalStateException("Corrupt member store index entry " + index);
+      }
+
+      return offset;
+    }
+
+    int recordLength(int offset) {
+      return RECORD_FIXED_LENGTH + (buffer.getShort(recordsStart + offset) & 0xFFFF);
+    }
+
+    /**
+     * Compares an index entry with a key, in index order
+     *
+     * @param index Index entry
+     * @param hash Hash of the key
+     * @param key Key in byte-array form
+     * @return Negative, zero or positive as the entry sorts before, with or after the key
+     */
+    int compare(int index, long hash, byte[] key) {
+      int comparison = Long.compare(hashAt(index), hash);
+      if (comparison != 0) {
+        return comparison;
+      }
+
+      // Only read the record on a hash match
+      int position = recordsStart + recordOffset(index);
+      int length = buffer.getShort(position) & 0xFFFF;
+      position += 2;
+
+      for (int i = 0; i < Math.min(length, key.length); i++) {
+        comparison = Integer.compare(buffer.get(position + i) & 0xFF, key[i] & 0xFF);
+        if (comparison != 0) {
+          return comparison;
+        }
+      }
+
+      return Integer.compare(length, key.length);
+    }
+
+    /**
+     * Decodes the member of an index entry
+     *
+     * @param index Index entry
+     * @param redemptionValue Key of the entry, already known to the caller
+     * @return Member profile
+     */
+    Member memberAt(int index, String redemptionValue) {
+      int position = recordsStart + recordOffset(index);
+      position += 2 + (buffer.getShort(position) & 0xFFFF);
+
+      return new Member(
+          redemptionValue,
+          buffer.get(position) & 0xFF,
+          buffer.getLong(position + 5),
+          buffer.getInt(position + 1));
+    }
+  }
+}
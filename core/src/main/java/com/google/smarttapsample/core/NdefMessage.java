@@ -0,0 +1,111 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Class encapsulates an NDEF message, an ordered list of NDEF records
+ *
+ * Mirrors the parts of `android.nfc.NdefMessage` used by Smart Tap so the protocol code runs on
+ * any JVM
+ */
+public final class NdefMessage {
+
+  private final NdefRecord[] records;
+
+  /**
+   * Constructor for the class
+   *
+   * @param data Encoded NDEF message
+   */
+  public NdefMessage(byte[] data) throws FormatException {
+    this(data, 0, data.length);
+  }
+
+  /**
+   * Constructor for the class
+   *
+   * @param data Buffer holding an encoded NDEF message
+   * @param offset Offset of the message in the buffer
+   * @param length Length of the message
+   */
+  public NdefMessage(byte[] data, int offset, int length) throws FormatException {
+    ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+    this.records = NdefRecord.parse(buffer);
+
+    if (buffer.hasRemaining()) {
+      throw new FormatException("Trailing data after NDEF message");
+    }
+  }
+
+  /**
+   * Constructor for the class
+   *
+   * @param record First record
+   * @param records Remaining records
+   */
+  public NdefMessage(NdefRecord record, NdefRecord... records) {
+    this.records = new NdefRecord[records.length + 1];
+    this.records[0] = record;
+    System.arraycopy(records, 0, this.records, 1, records.length);
+  }
+
+  public NdefRecord[] getRecords() {
+    return records;
+  }
+
+  /**
+   * Gets the length of this message once encoded
+   *
+   * @return Length in bytes
+   */
+  public int getByteArrayLength() {
+    int length = 0;
+
+    for (NdefRecord record : records) {
+      length += record.getByteLength();
+    }
+
+    return length;
+  }
+
+  /**
+   * Encodes this message
+   *
+   * @return Encoded NDEF message
+   */
+  public byte[] toByteArray() {
+    byte[] data = new byte[getByteArrayLength()];
+    writeTo(data, 0);
+
+    return data;
+  }
+
+  /**
+   * Encodes this message into a buffer
+   *
+   * @param buffer Buffer to write to, needs {@link #getByteArrayLength()} bytes from the offset
+   * @param offset Offset to write at
+   */
+  void writeTo(byte[] buffer, int offset) {
+    ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, buffer.length - offset);
+
+    for (int i = 0; i < records.length; i++) {
+      records[i].writeToByteBuffer(byteBuffer, i == 0, i == records.length - 1);
+    }
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Class encapsulates an NDEF record as per the NFC Forum NDEF specification
+ *
+ * Mirrors the parts of `android.nfc.NdefRecord` used by Smart Tap so the protocol code runs on
+ * any JVM. Unlike the Android class, the type, ID and payload arrays are shared rather than copied
+ * and must not be modified
+ */
+public final class NdefRecord {
+
+  public static final short TNF_EMPTY = 0x00;
+  public static final short TNF_WELL_KNOWN = 0x01;
+  public static final short TNF_MIME_MEDIA = 0x02;
+  public static final short TNF_ABSOLUTE_URI = 0x03;
+  public static final short TNF_EXTERNAL_TYPE = 0x04;
+  public static final short TNF_UNKNOWN = 0x05;
+  public static final short TNF_UNCHANGED = 0x06;
+
+  private static final byte FLAG_MB = (byte) 0x80;
+  private static final byte FLAG_ME = (byte) 0x40;
+  private static final byte FLAG_CF = (byte) 0x20;
+  private static final byte FLAG_SR = (byte) 0x10;
+  private static final byte FLAG_IL = (byte) 0x08;
+
+  private static final byte[] EMPTY = new byte[0];
+
+  private final short tnf;
+  private final byte[] type;
+  private final byte[] id;
+  private final byte[] payload;
+
+  /**
+   * Constructor for the class
+   *
+   * @param tnf Type name format (3 bits)
+   * @param type Record type, may be null
+   * @param id Record ID, may be null
+   * @param payload Record payload, may be null
+   */
+  public NdefRecord(short tnf, byte[] type, byte[] id, byte[] payload) {
+    if (tnf < TNF_EMPTY || tnf > TNF_UNCHANGED) {
+      throw new IllegalArgumentException("Invalid TNF: " + tnf);
+    }
+
+    this.tnf = tnf;
+    this.type = type == null ? EMPTY : type;
+    this.id = id == null ? EMPTY : id;
+    this.payload = payload == null ? EMPTY : payload;
+
+    if (this.type.length > 255 || this.id.length > 255) {
+      throw new IllegalArgumentException("Type and ID must be at most 255 bytes");
+    }
+  }
+
+  public short getTnf() {
+    return tnf;
+  }
+
+  public byte[] getType() {
+    return type;
+  }
+
+  public byte[] getId() {
+    return id;
+  }
+
+  public byte[] getPayload() {
+    return payload;
+  }
+
+  /**
+   * Gets the length of this record once encoded
+   *
+   * @return Length in bytes
+   */
+  int getByteLength() {
+    return 2
+        + (isShortRecord() ? 1 : 4)
+        + (id.length > 0 ? 1 : 0)
+        + type.length
+        + id.length
+        + payload.length;
+  }
+
+  /**
+   * Encodes this record
+   *
+   * @param buffer Buffer to write to
+   * @param messageBegin Whether this is the first record of the message
+   * @param messageEnd Whether this is the last record of the message
+   */
+  void writeToByteBuffer(ByteBuffer buffer, boolean messageBegin, boolean messageEnd) {
+    byte flags = (byte) tnf;
+
+    if (messageBegin) {
+      flags |= FLAG_MB;
+    }
+    if (messageEnd) {
+      flags |= FLAG_ME;
+    }
+    if (isShortRecord()) {
+      flags |= FLAG_SR;
+    }
+    if (id.length > 0) {
+      flags |= FLAG_IL;
+    }
+
+    buffer.put(flags);
+    buffer.put((byte) type.length);
+
+    if (isShortRecord()) {
+      buffer.put((byte) payload.length);
+    } else {
+      buffer.putInt(payload.length);
+    }
+
+    if (id.length > 0) {
+      buffer.put((byte) id.length);
+    }
+
+    buffer.put(type);
+    buffer.put(id);
+    buffer.put(payload);
+  }
+
+  /**
+   * Parses records until the one with the message end flag
+   *
+   * @param buffer Buffer positioned at the first record
+   * @return Records in the order they were encoded
+   */
+  static NdefRecord[] parse(ByteBuffer buffer) throws FormatException {
+    ArrayList<NdefRecord> records = new ArrayList<>();
+
+    try {
+      boolean messageEnd = false;
+
+      while (!messageEnd) {
+        byte flags = buffer.get();
+        messageEnd = (flags & FLAG_ME) != 0;
+
+        if (records.isEmpty() && (flags & FLAG_MB) == 0) {
+          throw new FormatException("Expected message begin flag");
+        }
+        if ((flags & FLAG_CF) != 0) {
+          throw new FormatException("Chunked records are not supported");
+        }
+
+        int typeLength = buffer.get() & 0xFF;
+        long payloadLength = (flags & FLAG_SR) != 0
+            ? buffer.get() & 0xFF
+            : buffer.getInt() & 0xFFFFFFFFL;
+        int idLength = (flags & FLAG_IL) != 0 ? buffer.get() & 0xFF : 0;
+
+        if (payloadLength > buffer.remaining()) {
+          throw new FormatException("Payload length exceeds the data: " + payloadLength);
+        }
+
+        byte[] type = new byte[typeLength];
+        byte[] id = new byte[idLength];
+        byte[] payload = new byte[(int) payloadLength];
+        buffer.get(type);
+        buffer.get(id);
+        buffer.get(payload);
+
+        records.add(new NdefRecord((short) (flags & 0x07), type, id, payload));
+      }
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      throw new FormatException("Malformed NDEF record: " + e);
+    }
+
+    return records.toArray(new NdefRecord[0]);
+  }
+
+  private boolean isShortRecord() {
+    return payload.length < 256;
+  }
+}
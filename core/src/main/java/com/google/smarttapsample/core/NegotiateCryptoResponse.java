@@ -13,11 +13,7 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package com.google.smarttapsample;
-
-import android.nfc.NdefMessage;
-import android.nfc.NdefRecord;
-import java.util.Arrays;
+package com.google.smarttapsample.core;
 
 /**
  * Class encapsulates the response from the `negotiate secure smart tap sessions` command
@@ -33,26 +29,32 @@ class NegotiateCryptoResponse {
    * Constructor for the class
    *
    * @param response Response from the `negotiate secure smart tap sessions` command
+   * @param arena Arena of the session the response belongs to
    */
-  NegotiateCryptoResponse(byte[] response) throws Exception {
+  NegotiateCryptoResponse(byte[] response, SessionArena arena) throws Exception {
     try {
       // Extract status
       this.status = Utils.getStatus(response);
       checkStatus();
 
       // Extract the negotiate request NDEF record
-      NdefRecord negotiateRequestRecord = getNegotiateRequestRecord(Utils.extractPayload(response));
+      NdefRecord negotiateRequestRecord = getNegotiateRequestRecord(
+          Utils.extractPayload(response, arena));
+      arena.track(negotiateRequestRecord.getPayload());
 
       // Iterate over inner request NDEF records
-      for (NdefRecord rec : (new NdefMessage(negotiateRequestRecord.getPayload()).getRecords())) {
+      NdefMessage negotiateRequest = arena.trackPayloads(
+          NegotiateResponseLayout.getRecords(negotiateRequestRecord.getPayload()));
+      for (NdefRecord rec : negotiateRequest.getRecords()) {
         // Looking for `ses`
-        if (Arrays.equals(rec.getType(), new byte[]{(byte) 0x73, (byte) 0x65, (byte) 0x73})) {
+        if (SessionLayout.isType(rec.getType())) {
           // Get the sequence number
-          sequenceNumber = rec.getPayload()[8];
+          sequenceNumber = SessionLayout.getSequenceNumber(rec.getPayload());
         }
         // Looking for `dpk`
-        if (Arrays.equals(rec.getType(), new byte[]{(byte) 0x64, (byte) 0x70, (byte) 0x6B})) {
+        if (MobileDeviceEphemeralKeyLayout.isType(rec.getType())) {
           // Get the mobile device ephemeral public key
+          MobileDeviceEphemeralKeyLayout.check(rec.getPayload());
           mobileDeviceEphemeralPublicKey = rec.getPayload();
         }
       }
@@ -87,8 +89,8 @@ class NegotiateCryptoResponse {
     NdefRecord[] records = (new NdefMessage(payload)).getRecords();
 
     for (NdefRecord rec : records) {
-      // Looking for `ngr`
-      if (Arrays.equals(rec.getType(), new byte[]{(byte) 0x6E, (byte) 0x72, (byte) 0x73})) {
+      // Looking for `nrs`
+      if (NegotiateResponseLayout.isType(rec.getType())) {
         return rec;
       }
     }
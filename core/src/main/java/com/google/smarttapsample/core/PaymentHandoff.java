@@ -0,0 +1,80 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+/**
+ * Class continues a tap with payment once Smart Tap is done, in the same field session
+ *
+ * Register it for the payment AIDs or RIDs accepted by the terminal. The `select ose` directory
+ * usually lists Smart Tap with a higher priority than payment, so the pass is read first and the
+ * mobile device is handed to the payment kernel without a second tap. Nothing happens unless the
+ * mobile device requested payment in the transaction details (`C1`)
+ */
+public class PaymentHandoff implements AidRouter.Handler {
+
+  private final PaymentKernel paymentKernel;
+
+  /**
+   * Constructor for the class
+   *
+   * @param paymentKernel Kernel that runs the payment transaction
+   */
+  public PaymentHandoff(PaymentKernel paymentKernel) {
+    this.paymentKernel = paymentKernel;
+  }
+
+  @Override
+  public boolean onApplication(
+      ApplicationEntry entry,
+      ApduTransport transport,
+      StringBuilder descriptiveText) throws Exception {
+
+    if (!entry.isPaymentRequested()) {
+      return false;
+    }
+
+    // Select the payment application by its AID
+    byte[] aid = entry.getAid();
+    byte[] response = transport.transceive(Utils.concatenateByteArrays(
+        new byte[]{(byte) 0x00, (byte) 0xA4, (byte) 0x04, (byte) 0x00, (byte) aid.length},
+        aid,
+        new byte[]{(byte) 0x00}));
+
+    descriptiveText
+        .append("\n----\nSent payment application `select` command...\n")
+        .append("\n* ")
+        .append(entry)
+        .append("\n");
+
+    String status = Utils.getStatus(response);
+    if (!status.equals("9000")) {
+      // Try the next payment application in priority order
+      descriptiveText
+          .append("\n* Status:\n  ")
+          .append(status)
+          .append(" (ISO 7816-4)\n----\n");
+      return false;
+    }
+
+    // Hand over to the payment kernel
+    descriptiveText
+        .append("\n* Payment outcome:\n  ")
+        .append(paymentKernel.process(entry, response, transport))
+        .append("\n----\n");
+
+    return true;
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+/**
+ * Interface for a contactless payment kernel continuing a tap after Smart Tap
+ *
+ * The payment application has already been selected by {@link PaymentHandoff}, the kernel picks
+ * up from there (e.g. `get processing options`, `read record`, `generate AC`)
+ */
+public interface PaymentKernel {
+
+  /**
+   * Runs the payment transaction while the mobile device is still in the field
+   *
+   * @param entry Directory entry of the selected payment application
+   * @param selectResponse Response to the payment application selection, including the status word
+   * @param transport Link to the mobile device
+   * @return Outcome to be surfaced on the device, e.g. "Approved"
+   */
+  String process(ApplicationEntry entry, byte[] selectResponse, ApduTransport transport)
+      throws Exception;
+}
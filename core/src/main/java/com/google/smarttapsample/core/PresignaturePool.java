@@ -0,0 +1,240 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.ECPrivateKey;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.ec.CustomNamedCurves;
+import org.bouncycastle.crypto.signers.HMacDSAKCalculator;
+import org.bouncycastle.math.ec.ECPoint;
+import org.bouncycastle.math.ec.FixedPointCombMultiplier;
+
+/**
+ * Class signs with the long-term key using ECDSA pre-signatures computed in the background
+ *
+ * The expensive part of an ECDSA signature, the scalar multiplication k*G, does not depend on the
+ * message. This pool computes (k^-1, r) pairs ahead of time so that signing at tap time is a few
+ * modular operations: s = k^-1(e + d*r) mod n.
+ *
+ * Nonces use the RFC 6979 HMAC-DRBG keyed with the private key. The message cannot be known yet,
+ * so its hash is replaced with SHA-256 over fresh random bytes, a process-wide counter and the
+ * clock. No two nonce derivations share an input, even if the random source fails. Each pair is
+ * removed from the queue atomically before use and never returned, so a pair is used at most once.
+ */
+public final class PresignaturePool {
+
+  private static final X9ECParameters CURVE = CustomNamedCurves.getByName("secp256r1");
+  private static final AtomicLong NONCE_COUNTER = new AtomicLong();
+
+  private final BigInteger privateKey;
+  private final int capacity;
+  private final ConcurrentLinkedQueue<Presignature> presignatures = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicBoolean refilling = new AtomicBoolean();
+  private final ExecutorService refillExecutor = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "smart-tap-presigning");
+    thread.setDaemon(true);
+    thread.setPriority(Thread.MIN_PRIORITY);
+    return thread;
+  });
+  private final AtomicLong pooledSignatures = new AtomicLong();
+  private final AtomicLong inlineSignatures = new AtomicLong();
+
+  /**
+   * Constructor for the class, starts filling the pool in the background
+   *
+   * @param privateKey Long-term P-256 private key
+   * @param capacity Number of pre-signatures to keep ready
+   */
+  PresignaturePool(ECPrivateKey privateKey, int capacity) {
+    this.privateKey = privateKey.getS();
+    this.capacity = capacity;
+
+    scheduleRefill();
+  }
+
+  /**
+   * Signs the concatenation of the given parts with SHA256withECDSA
+   *
+   * @param parts Message parts, in order
+   * @return DER-encoded signature, as produced by the JCA `SHA256withECDSA` signature
+   */
+  byte[] sign(byte[]... parts) throws NoSuchAlgorithmException, IOException {
+    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+    for (byte[] part : parts) {
+      digest.update(part);
+    }
+    BigInteger e = new BigInteger(1, digest.digest());
+    BigInteger n = CURVE.getN();
+
+    BigInteger s;
+    Presignature presignature;
+
+    do {
+      presignature = take();
+      s = presignature.kInverse.multiply(e.add(privateKey.multiply(presignature.r))).mod(n);
+    } while (s.signum() == 0);
+
+    return new DERSequence(new ASN1Integer[]{
+        new ASN1Integer(presignature.r),
+        new ASN1Integer(s)
+    }).getEncoded();
+  }
+
+  /**
+   * Gets a summary of how signatures were produced, for diagnostics
+   *
+   * @return Summary line
+   */
+  public String stats() {
+    return "Pre-signatures ready: " + size.get() + "/" + capacity
+        + ", signed from pool: " + pooledSignatures.get()
+        + ", signed inline: " + inlineSignatures.get();
+  }
+
+  /**
+   * Stops the background refill, pre-signatures still ready can be used and then signing is inline
+   */
+  void shutdown() {
+    refillExecutor.shutdownNow();
+  }
+
+  /**
+   * Removes a pre-signature from the pool, computing one inline if the pool is empty
+   *
+   * @return Pre-signature owned exclusively by the caller
+   */
+  private Presignature take() throws NoSuchAlgorithmException {
+    Presignature presignature = presignatures.poll();
+
+    if (presignature != null) {
+      size.decrementAndGet();
+      pooledSignatures.incrementAndGet();
+    } else {
+      presignature = compute();
+      inlineSignatures.incrementAndGet();
+    }
+
+    scheduleRefill();
+    return presignature;
+  }
+
+  /**
+   * Tops the pool up on the background thread unless a refill is already running
+   */
+  private void scheduleRefill() {
+    if (size.get() >= capacity || !refilling.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      refillExecutor.execute(this::refill);
+    } catch (RejectedExecutionException e) {
+      // Shut down, signing computes pre-signatures inline
+      refilling.set(false);
+    }
+  }
+
+  /**
+   * Computes pre-signatures until the pool is full, on the background thread
+   */
+  private void refill() {
+    try {
+      while (size.get() < capacity && !Thread.currentThread().isInterrupted()) {
+        presignatures.add(compute());
+        size.incrementAndGet();
+      }
+    } catch (NoSuchAlgorithmException e) {
+      // Signing falls back to computing pre-signatures inline
+      refilling.set(false);
+      return;
+    }
+
+    refilling.set(false);
+
+    // A pre-signature taken after the last check saw this refill running and scheduled none
+    scheduleRefill();
+  }
+
+  /**
+   * Computes a fresh (k^-1, r) pair
+   *
+   * @return New pre-signature
+   */
+  private Presignature compute() throws NoSuchAlgorithmException {
+    BigInteger n = CURVE.getN();
+    HMacDSAKCalculator kCalculator = new HMacDSAKCalculator(new SHA256Digest());
+
+    while (true) {
+      kCalculator.init(n, privateKey, nonceSeed());
+
+      BigInteger k = kCalculator.nextK();
+      ECPoint point = new FixedPointCombMultiplier().multiply(CURVE.getG(), k).normalize();
+      BigInteger r = point.getAffineXCoord().toBigInteger().mod(n);
+
+      if (r.signum() != 0) {
+        return new Presignature(k.modInverse(n), r);
+      }
+    }
+  }
+
+  /**
+   * Stands in for the message hash in RFC 6979, unique per derivation
+   *
+   * @return 32-byte seed
+   */
+  private static byte[] nonceSeed() throws NoSuchAlgorithmException {
+    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+    digest.update(SessionRandom.nextBytes(32));
+
+    long counter = NONCE_COUNTER.getAndIncrement();
+    long time = System.nanoTime();
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      digest.update((byte) (counter >>> shift));
+      digest.update((byte) (time >>> shift));
+    }
+
+    return digest.digest();
+  }
+
+  /**
+   * A single-use ECDSA pre-signature
+   */
+  private static final class Presignature {
+
+    final BigInteger kInverse;
+    final BigInteger r;
+
+    Presignature(BigInteger kInverse, BigInteger r) {
+      this.kInverse = kInverse;
+      this.r = r;
+    }
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class encapsulates the creation of the `push smart tap data` commands
+ * https://developers.google.com/wallet/smart-tap/reference/apdu-commands/push-service-data
+ *
+ * A push service request holds any number of service status records, so the updates are packed
+ * into as few APDUs as the short APDU data limit allows. Usually that is one. Each APDU carries
+ * the session ID and the next sequence number
+ */
+class PushServiceCommand {
+
+  private static final byte[] COMMAND_PREFIX = new byte[]{
+      (byte) 0x90,
+      (byte) 0x52,
+      (byte) 0x00,
+      (byte) 0x00
+  };
+
+  // Short APDU command data
+  private static final int MAX_DATA_LENGTH = 0xFF;
+
+  final List<NdefMessage> requests = new ArrayList<>();
+
+  /**
+   * Constructor for the class
+   *
+   * @param sessionId Session ID from context of Smart Tap
+   * @param sequenceNumber The sequence number of the first command
+   * @param updates Service updates to push, in order
+   */
+  PushServiceCommand(byte[] sessionId, int sequenceNumber, List<ServiceUpdate> updates)
+      throws Exception {
+
+    try {
+      List<NdefRecord> statuses = new ArrayList<>(updates.size());
+      for (ServiceUpdate update : updates) {
+        statuses.add(update.toRecord());
+      }
+
+      // Fill each request with as many service statuses as fit
+      int first = 0;
+      while (first < statuses.size()) {
+        int last = first + 1;
+        NdefMessage request = createRequest(sessionId, sequenceNumber, statuses, first, last);
+
+        if (request.getByteArrayLength() > MAX_DATA_LENGTH) {
+          throw new SmartTapException("Service update too large for one APDU");
+        }
+
+        while (last < statuses.size()) {
+          NdefMessage larger =
+              createRequest(sessionId, sequenceNumber, statuses, first, last + 1);
+
+          if (larger.getByteArrayLength() > MAX_DATA_LENGTH) {
+            break;
+          }
+
+          request = larger;
+          last++;
+        }
+
+        requests.add(request);
+        sequenceNumber++;
+        first = last;
+      }
+    } catch (SmartTapException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new SmartTapException("Problem creating `push smart tap data` command: " + e);
+    }
+  }
+
+  /**
+   * Creates a push service request with a range of the service statuses
+   *
+   * @param sessionId Smart Tap session ID
+   * @param sequenceNumber The sequence number to use
+   * @param statuses Service status NDEF records
+   * @param from First service status to include
+   * @param to Service status to stop before
+   * @return NDEF message holding the push service request NDEF record
+   */
+  private static NdefMessage createRequest(
+      byte[] sessionId, int sequenceNumber, List<NdefRecord> statuses, int from, int to) {
+
+    // Session first, then the service statuses
+    NdefRecord[] records = new NdefRecord[to - from];
+    for (int i = from; i < to; i++) {
+      records[i - from] = statuses.get(i);
+    }
+    NdefMessage requestPayload =
+        new NdefMessage(createSessionRecord(sessionId, sequenceNumber), records);
+
+    byte[] payload = new byte[PushServiceRequestLayout.length(
+        requestPayload.getByteArrayLength())];
+    PushServiceRequestLayout.write(payload, 0, requestPayload);
+
+    return new NdefMessage(PushServiceRequestLayout.record(payload));
+  }
+
+  /**
+   * Creates a session NDEF record using session ID
+   *
+   * @param sessionId Smart Tap session ID
+   * @param sequenceNumber The sequence number to use
+   * @return Session NDEF record
+   */
+  private static NdefRecord createSessionRecord(byte[] sessionId, int sequenceNumber) {
+    // Status byte 1
+    byte[] payload = new byte[SessionLayout.LENGTH];
+    SessionLayout.write(payload, 0, sessionId, sequenceNumber, 1);
+
+    return SessionLayout.record(payload);
+  }
+
+  /**
+   * Converts one request into a byte-array `push smart tap data` command
+   *
+   * @param request Push service request, from {@link #requests}
+   * @return A byte array representing the command to send
+   */
+  static byte[] commandToByteArray(NdefMessage request) throws Exception {
+    try {
+      int length = request.getByteArrayLength();
+
+      byte[] command = new byte[COMMAND_PREFIX.length + 1 + length + 1];
+      System.arraycopy(COMMAND_PREFIX, 0, command, 0, COMMAND_PREFIX.length);
+      command[COMMAND_PREFIX.length] = (byte) length;
+      request.writeTo(command, COMMAND_PREFIX.length + 1);
+
+      // Le 0x00 is already in place
+      return command;
+    } catch (Exception e) {
+      throw new SmartTapException(
+          "Problem turning `push smart tap data` command to byte array: " + e);
+    }
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+/**
+ * Class encapsulates the response from the `push smart tap data` command
+ * https://developers.google.com/wallet/smart-tap/reference/apdu-commands/push-service-data
+ */
+class PushServiceResponse {
+
+  String status;
+  int sequenceNumber = -1;
+
+  /**
+   * Constructor for the class
+   *
+   * @param response Response from the `push smart tap data` command
+   * @param sessionId Session ID the command was sent with
+   * @param arena Arena of the session the response belongs to
+   */
+  PushServiceResponse(byte[] response, byte[] sessionId, SessionArena arena) throws Exception {
+    try {
+      // Extract status
+      this.status = Utils.getStatus(response);
+
+      if (!status.equals("9000")) {
+        throw new SmartTapException("Invalid status: " + status);
+      }
+
+      // A bare status word acknowledges the updates too
+      if (response.length == 2) {
+        return;
+      }
+
+      // Extract the push service response NDEF record
+      NdefRecord pushResponseRecord = new NdefMessage(
+          Utils.extractPayload(response, arena)).getRecords()[0];
+      arena.track(pushResponseRecord.getPayload());
+
+      if (!PushServiceResponseLayout.isType(pushResponseRecord.getType())) {
+        throw new SmartTapException("No push service response NDEF record");
+      }
+
+      // Looking for `ses`
+      NdefMessage pushResponse = arena.trackPayloads(
+          PushServiceResponseLayout.getRecords(pushResponseRecord.getPayload()));
+      for (NdefRecord rec : pushResponse.getRecords()) {
+        if (SessionLayout.isType(rec.getType())) {
+          byte[] payload = rec.getPayload();
+          SessionLayout.check(payload);
+
+          if (!Utils.constantTimeEquals(payload, SessionLayout.SESSION_ID_OFFSET, sessionId, 0,
+              SessionLayout.SESSION_ID_LENGTH)) {
+            throw new SmartTapException("Session ID mismatch");
+          }
+
+          this.sequenceNumber = SessionLayout.getSequenceNumber(payload);
+        }
+      }
+    } catch (Exception e) {
+      throw new SmartTapException("Problem parsing `push smart tap data` response: " + e);
+    }
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+/**
+ * Enum of the reader polling profiles a terminal switches between
+ *
+ * The platform runs the polling loop itself. What a profile sets is the presence check delay, how
+ * often a tag in the field is checked for, and whether discovery plays a sound. A short delay
+ * notices sooner that a mobile device has left, so polling for the next one resumes sooner. A
+ * long one saves the checks of something left lying on the reader
+ */
+public enum ReaderProfile {
+  // Queues at a checkout: detect the next mobile device as soon as possible, the terminal gives
+  // its own feedback
+  FAST_LANE(50, false),
+  // Walk-up use, the platform defaults
+  KIOSK(125, true),
+  // Nobody around: check as rarely as possible, a tap wakes the terminal up
+  IDLE_LOW_POWER(1000, true);
+
+  private final int presenceCheckDelayMillis;
+  private final boolean platformSounds;
+
+  /**
+   * Constructor for the enum
+   *
+   * @param presenceCheckDelayMillis Delay between checks that a tag is still in the field
+   * @param platformSounds Whether the platform plays a sound when a tag is discovered
+   */
+  ReaderProfile(int presenceCheckDelayMillis, boolean platformSounds) {
+    this.presenceCheckDelayMillis = presenceCheckDelayMillis;
+    this.platformSounds = platformSounds;
+  }
+
+  public int getPresenceCheckDelayMillis() {
+    return presenceCheckDelayMillis;
+  }
+
+  public boolean playsPlatformSounds() {
+    return platformSounds;
+  }
+}
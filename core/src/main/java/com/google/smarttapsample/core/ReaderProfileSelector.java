@@ -0,0 +1,160 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Class picks the reader profile from the recent tap rate and the measured time to first APDU
+ *
+ * No tap for a while means idle, a busy minute means fast lane and anything in between is kiosk.
+ * When busy, fast lane only stays the pick while its time from tag discovery to the first
+ * response is no worse than kiosk's on this terminal, as short presence checks can get in the way
+ * on some controllers.
+ *
+ * Switching re-enables reader mode, which would rediscover a mobile device still in the field, so
+ * nothing switches until the field has been quiet for a moment. Switches are also spaced out, so
+ * the reader does not flap around a threshold. The caller passes the time in, from
+ * `System.nanoTime()`
+ */
+public final class ReaderProfileSelector {
+
+  private static final long MINUTE_NANOS = 60_000_000_000L;
+  private static final long QUIET_NANOS = 2_000_000_000L;
+  private static final int MIN_SAMPLES = 5;
+  private static final double SMOOTHING_GAIN = 0.2;
+  // Fast lane must not be more than this much slower to the first APDU than kiosk
+  private static final double FAST_LANE_TOLERANCE = 1.2;
+
+  private final int busyTapsPerMinute;
+  private final long idleAfterNanos;
+  private final long minDwellNanos;
+  private final ArrayDeque<Long> recentTaps = new ArrayDeque<>();
+  private final Map<ReaderProfile, double[]> timeToFirstApdu = new EnumMap<>(ReaderProfile.class);
+  private final Map<ReaderProfile, Long> samples = new EnumMap<>(ReaderProfile.class);
+  private final Map<ReaderProfile, Long> switchesTo = new EnumMap<>(ReaderProfile.class);
+  private ReaderProfile current = ReaderProfile.KIOSK;
+  private long switchedAtNanos;
+  private long lastTapNanos;
+
+  /**
+   * Constructor for the class
+   *
+   * @param busyTapsPerMinute Taps in the last minute from which the terminal counts as busy
+   * @param idleAfterMillis Time without taps after which the terminal counts as idle
+   * @param minDwellMillis Shortest time between two switches
+   * @param nowNanos Current time
+   */
+  public ReaderProfileSelector(
+      int busyTapsPerMinute, long idleAfterMillis, long minDwellMillis, long nowNanos) {
+
+    this.busyTapsPerMinute = busyTapsPerMinute;
+    this.idleAfterNanos = idleAfterMillis * 1_000_000;
+    this.minDwellNanos = minDwellMillis * 1_000_000;
+    this.switchedAtNanos = nowNanos;
+    this.lastTapNanos = nowNanos;
+  }
+
+  /**
+   * Records a tap under the current profile
+   *
+   * @param nowNanos Current time
+   * @param timeToFirstApduNanos Time from discovering the tag to the first response
+   */
+  public synchronized void onTap(long nowNanos, long timeToFirstApduNanos) {
+    recentTaps.addLast(nowNanos);
+    this.lastTapNanos = nowNanos;
+
+    double millis = timeToFirstApduNanos / 1e6;
+    double[] smoothed = timeToFirstApdu.computeIfAbsent(current, k -> new double[]{millis});
+    smoothed[0] += SMOOTHING_GAIN * (millis - smoothed[0]);
+    samples.merge(current, 1L, Long::sum);
+  }
+
+  /**
+   * Gets the profile the reader should be in now, switching if it is time to
+   *
+   * @param nowNanos Current time
+   * @return Profile to enable, the current one if nothing changed
+   */
+  public synchronized ReaderProfile select(long nowNanos) {
+    while (!recentTaps.isEmpty() && nowNanos - recentTaps.peekFirst() > MINUTE_NANOS) {
+      recentTaps.removeFirst();
+    }
+
+    ReaderProfile wanted;
+    if (nowNanos - lastTapNanos > idleAfterNanos) {
+      wanted = ReaderProfile.IDLE_LOW_POWER;
+    } else if (recentTaps.size() >= busyTapsPerMinute && fastLaneKeepsUp()) {
+      wanted = ReaderProfile.FAST_LANE;
+    } else {
+      wanted = ReaderProfile.KIOSK;
+    }
+
+    // Waking up from idle is not held back by the dwell time, only by the quiet time
+    boolean quiet = nowNanos - lastTapNanos > QUIET_NANOS;
+    boolean dwelled = nowNanos - switchedAtNanos > minDwellNanos
+        || current == ReaderProfile.IDLE_LOW_POWER;
+
+    if (wanted != current && quiet && dwelled) {
+      this.current = wanted;
+      this.switchedAtNanos = nowNanos;
+      switchesTo.merge(wanted, 1L, Long::sum);
+    }
+
+    return current;
+  }
+
+  public synchronized ReaderProfile getCurrent() {
+    return current;
+  }
+
+  /**
+   * Summarizes the profiles used, e.g. for the logs
+   *
+   * @return Summary line
+   */
+  public synchronized String stats() {
+    StringBuilder stats = new StringBuilder("Reader profile: ").append(current);
+
+    for (ReaderProfile profile : ReaderProfile.values()) {
+      double[] smoothed = timeToFirstApdu.get(profile);
+      stats.append(String.format(", %s: %d switches, %d taps",
+          profile, switchesTo.getOrDefault(profile, 0L), samples.getOrDefault(profile, 0L)));
+
+      if (smoothed != null) {
+        stats.append(String.format(", first APDU %.1f ms", smoothed[0]));
+      }
+    }
+
+    return stats.toString();
+  }
+
+  /**
+   * Whether fast lane gets to the first APDU about as fast as kiosk, true until both are known
+   */
+  private boolean fastLaneKeepsUp() {
+    if (samples.getOrDefault(ReaderProfile.FAST_LANE, 0L) < MIN_SAMPLES
+        || samples.getOrDefault(ReaderProfile.KIOSK, 0L) < MIN_SAMPLES) {
+      return true;
+    }
+
+    return timeToFirstApdu.get(ReaderProfile.FAST_LANE)[0]
+        <= FAST_LANE_TOLERANCE * timeToFirstApdu.get(ReaderProfile.KIOSK)[0];
+  }
+}
@@ -0,0 +1,458 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class keeps lanes in the same store from redeeming a pass twice, through an in-store coordinator
+ *
+ * Before redeeming, a lane claims the redemption value. The first claim within the window is
+ * granted a short lease, and the lane commits once the redemption is queued, which holds the value
+ * for the rest of the window. Claims from other lanes meanwhile, and repeat claims from the same
+ * lane once committed, are duplicates. A lane that dies mid-tap holds the value only until its
+ * lease runs out.
+ *
+ * Every lane keeps one TCP connection open, introduced by the lane name (modified UTF-8 as in
+ * {@link DataOutputStream#writeUTF}). Requests are a u8 operation (1 claim, 2 commit, 3 release), a
+ * u32 id, the redemption value, the u32 lease and the u32 window in milliseconds. Only claims are
+ * answered: the u32 id, a u8 answer (0 granted, 1 redeemed, 2 held by a lane that has not committed
+ * yet), the lane holding the value and the u32 milliseconds it stays held.
+ *
+ * Values redeemed here or reported redeemed elsewhere are cached until their window ends, so
+ * repeat taps are answered without a round trip. A claim the coordinator does not answer in time
+ * fails open: the pass is redeemed, and the commit still records it if the link is up
+ */
+public final class RedemptionCoordinator implements Closeable {
+
+  /**
+   * Enum of the answers to a claim
+   */
+  public enum Decision {
+    // First claim within the window, the lane holds the lease
+    GRANTED,
+    // Redeemed, or being redeemed, on a lane within the window
+    DUPLICATE,
+    // Coordinator did not answer in time, redeemed without a lease
+    UNAVAILABLE
+  }
+
+  static final int CLAIM = 1;
+  static final int COMMIT = 2;
+  static final int RELEASE = 3;
+
+  static final int ANSWER_GRANTED = 0;
+  static final int ANSWER_REDEEMED = 1;
+  static final int ANSWER_HELD = 2;
+
+  // Covers the rest of a tap after the claim, from the outbox to the screen
+  private static final long LEASE_MILLIS = 5000;
+  private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+  private static final long RECONNECT_DELAY_MILLIS = 1000;
+  private static final int CACHE_SIZE = 4096;
+
+  private final String host;
+  private final int port;
+  private final String lane;
+  private final long windowMillis;
+  private final long timeoutNanos;
+  private final long leaseMillis;
+  private final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+  private final AtomicInteger nextId = new AtomicInteger();
+  private final Map<String, Hold> recent = new LinkedHashMap<String, Hold>() {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Hold> eldest) {
+      return size() > CACHE_SIZE;
+    }
+  };
+  private final LatencyWindow claimLatency = new LatencyWindow();
+  private final AtomicLong granted = new AtomicLong();
+  private final AtomicLong duplicates = new AtomicLong();
+  private final AtomicLong cached = new AtomicLong();
+  private final AtomicLong unavailable = new AtomicLong();
+  private final AtomicLong linkFailures = new AtomicLong();
+  private final Thread link;
+  private Socket socket;
+  private DataOutputStream out;
+  private volatile boolean closed;
+
+  /**
+   * Constructor for the class, connects in the background right away
+   *
+   * @param host Host of the coordinator, resolved on the connecting thread
+   * @param port Port of the coordinator
+   * @param lane Name of this lane, unique in the store
+   * @param windowMillis How long a redeemed pass cannot be redeemed again on any lane
+   * @param timeoutMillis Time to wait for an answer before redeeming anyway
+   */
+  public RedemptionCoordinator(
+      String host, int port, String lane, long windowMillis, long timeoutMillis) {
+
+    this(host, port, lane, windowMillis, timeoutMillis, LEASE_MILLIS);
+  }
+
+  /**
+   * Constructor for the class with a lease of its own, e.g. a short one in tests
+   *
+   * @param leaseMillis How long a granted claim holds the value until it is committed
+   */
+  RedemptionCoordinator(String host, int port, String lane, long windowMillis,
+      long timeoutMillis, long leaseMillis) {
+
+    this.host = host;
+    this.port = port;
+    this.lane = lane;
+    this.windowMillis = windowMillis;
+    this.timeoutNanos = timeoutMillis * 1_000_000;
+    this.leaseMillis = leaseMillis;
+
+    this.link = new Thread(this::linkLoop, "smart-tap-coordinator");
+    link.setDaemon(true);
+    link.start();
+  }
+
+  /**
+   * Claims a redemption value before redeeming it
+   *
+   * Unless the claim is a duplicate, {@link Claim#commit} it once the redemption is queued, or
+   * {@link Claim#release} it if the redemption is given up
+   *
+   * @param redemptionValue Smart Tap redemption value from the pass
+   * @return The claim
+   */
+  public Claim claim(String redemptionValue) {
+    long start = System.nanoTime();
+
+    Hold hold = cachedHold(redemptionValue, start);
+    if (hold != null) {
+      cached.incrementAndGet();
+      duplicates.incrementAndGet();
+      claimLatency.record(System.nanoTime() - start);
+      return new Claim(this, redemptionValue, Decision.DUPLICATE, hold.lane);
+    }
+
+    Pending request = new Pending(nextId.getAndIncrement());
+    pending.put(request.id, request);
+
+    try {
+      if (!send(CLAIM, request.id, redemptionValue, leaseMillis)
+          || !request.done.await(timeoutNanos, TimeUnit.NANOSECONDS)
+          || request.holder == null) {
+        pending.remove(request.id);
+        unavailable.incrementAndGet();
+        return new Claim(this, redemptionValue, Decision.UNAVAILABLE, null);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      pending.remove(request.id);
+      unavailable.incrementAndGet();
+      return new Claim(this, redemptionValue, Decision.UNAVAILABLE, null);
+    }
+
+    claimLatency.record(System.nanoTime() - start);
+
+    if (request.answer == ANSWER_GRANTED) {
+      granted.incrementAndGet();
+      return new Claim(this, redemptionValue, Decision.GRANTED, null);
+    }
+
+    // A lane still mid-tap may yet release the value, so only redemptions are cached
+    if (request.answer == ANSWER_REDEEMED) {
+      cacheHold(redemptionValue, request.holder, request.remainingMillis);
+    }
+    duplicates.incrementAndGet();
+    return new Claim(this, redemptionValue, Decision.DUPLICATE, request.holder);
+  }
+
+  /**
+   * Gets a summary of the claims and their latencies, for diagnostics
+   *
+   * @return Summary line
+   */
+  public String stats() {
+    return "Redemption coordinator: " + granted.get() + " granted, "
+        + duplicates.get() + " duplicates (" + cached.get() + " cached), "
+        + unavailable.get() + " unavailable, "
+        + linkFailures.get() + " link failures"
+        + ", claim " + claimLatency.summary();
+  }
+
+  /**
+   * Closes the connection, later claims are redeemed without a lease
+   */
+  @Override
+  public void close() {
+    this.closed = true;
+    link.interrupt();
+
+    synchronized (this) {
+      if (socket != null) {
+        closeQuietly(socket);
+      }
+    }
+  }
+
+  /**
+   * Commits a granted claim, or records a redemption made without one
+   *
+   * @param redemptionValue Smart Tap redemption value from the pass
+   */
+  private void commit(String redemptionValue) {
+    cacheHold(redemptionValue, lane, windowMillis);
+    send(COMMIT, 0, redemptionValue, 0);
+  }
+
+  private void release(String redemptionValue) {
+    send(RELEASE, 0, redemptionValue, 0);
+  }
+
+  /**
+   * Writes a request if connected
+   *
+   * @return Whether it was written
+   */
+  private synchronized boolean send(int operation, int id, String redemptionValue,
+      long leaseMillis) {
+
+    if (out == null) {
+      return false;
+    }
+
+    try {
+      out.writeByte(operation);
+      out.writeInt(id);
+      out.writeUTF(redemptionValue);
+      out.writeInt((int) leaseMillis);
+      out.writeInt((int) windowMillis);
+      out.flush();
+      return true;
+    } catch (IOException e) {
+      // The link thread sees the socket fail and reconnects
+      closeQuietly(socket);
+      this.out = null;
+      return false;
+    }
+  }
+
+  /**
+   * Keeps a connection open and hands its answers to the waiting claims, until closed
+   */
+  private void linkLoop() {
+    while (!closed) {
+      Socket connection = new Socket();
+
+      try {
+        synchronized (this) {
+          if (closed) {
+            return;
+          }
+          this.socket = connection;
+        }
+
+        connection.setTcpNoDelay(true);
+        connection.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+
+        DataOutputStream output = new DataOutputStream(
+            new BufferedOutputStream(connection.getOutputStream(), 512));
+        output.writeUTF(lane);
+        output.flush();
+
+        synchronized (this) {
+          this.out = output;
+        }
+        readLoop(new DataInputStream(new BufferedInputStream(connection.getInputStream())));
+      } catch (IOException e) {
+        if (!closed) {
+          linkFailures.incrementAndGet();
+        }
+      } finally {
+        synchronized (this) {
+          this.out = null;
+          this.socket = null;
+        }
+        closeQuietly(connection);
+
+        for (Integer id : new ArrayList<>(pending.keySet())) {
+          Pending request = pending.remove(id);
+          if (request != null) {
+            request.done.countDown();
+          }
+        }
+      }
+
+      try {
+        Thread.sleep(RECONNECT_DELAY_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  private void readLoop(DataInputStream in) throws IOException {
+    while (true) {
+      int id = in.readInt();
+      int answer = in.readUnsignedByte();
+      String holder = in.readUTF();
+      long remainingMillis = in.readInt() & 0xFFFFFFFFL;
+
+      Pending request = pending.remove(id);
+      if (request != null) {
+        request.answer = answer;
+        request.remainingMillis = remainingMillis;
+        request.holder = holder;
+        request.done.countDown();
+      }
+    }
+  }
+
+  private Hold cachedHold(String redemptionValue, long nowNanos) {
+    synchronized (recent) {
+      Hold hold = recent.get(redemptionValue);
+      if (hold != null && nowNanos - hold.untilNanos >= 0) {
+        recent.remove(redemptionValue);
+        return null;
+      }
+      return hold;
+    }
+  }
+
+  private void cacheHold(String redemptionValue, String holder, long remainingMillis) {
+    Hold hold = new Hold(holder, System.nanoTime() + remainingMillis * 1_000_000);
+
+    synchronized (recent) {
+      // Re-inserted, so the eldest entry is the one cached longest ago
+      recent.remove(redemptionValue);
+      recent.put(redemptionValue, hold);
+    }
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Already broken
+    }
+  }
+
+  /**
+   * Class encapsulates the outcome of claiming a redemption value
+   */
+  public static final class Claim {
+
+    private final RedemptionCoordinator coordinator;
+    private final String redemptionValue;
+    private final Decision decision;
+    private final String holder;
+    private boolean settled;
+
+    Claim(RedemptionCoordinator coordinator, String redemptionValue, Decision decision,
+        String holder) {
+
+      this.coordinator = coordinator;
+      this.redemptionValue = redemptionValue;
+      this.decision = decision;
+      this.holder = holder;
+    }
+
+    public Decision getDecision() {
+      return decision;
+    }
+
+    /**
+     * Whether the pass was redeemed, or is being redeemed, on a lane within the window
+     *
+     * @return Whether to skip the redemption
+     */
+    public boolean isDuplicate() {
+      return decision == Decision.DUPLICATE;
+    }
+
+    /**
+     * Gets the lane holding the value, this lane's own name for a repeat tap
+     *
+     * @return Lane name, null unless a duplicate
+     */
+    public String getHolder() {
+      return holder;
+    }
+
+    /**
+     * Holds the value for the rest of the window, once the redemption is queued
+     */
+    public synchronized void commit() {
+      if (!settled && decision != Decision.DUPLICATE) {
+        this.settled = true;
+        coordinator.commit(redemptionValue);
+      }
+    }
+
+    /**
+     * Gives the value back, e.g. when the redemption could not be queued
+     */
+    public synchronized void release() {
+      if (!settled && decision == Decision.GRANTED) {
+        this.settled = true;
+        coordinator.release(redemptionValue);
+      }
+    }
+  }
+
+  /**
+   * Class encapsulates a claim waiting for its answer
+   */
+  private static final class Pending {
+
+    final int id;
+    final CountDownLatch done = new CountDownLatch(1);
+    volatile int answer;
+    volatile long remainingMillis;
+    // Set last, null if the link failed before the answer came
+    volatile String holder;
+
+    Pending(int id) {
+      this.id = id;
+    }
+  }
+
+  /**
+   * Class encapsulates a value known to be held by a lane until a given time
+   */
+  private static final class Hold {
+
+    final String lane;
+    final long untilNanos;
+
+    Hold(String lane, long untilNanos) {
+      this.lane = lane;
+      this.untilNanos = untilNanos;
+    }
+  }
+}
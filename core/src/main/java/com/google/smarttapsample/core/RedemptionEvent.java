@@ -0,0 +1,137 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Class encapsulates one redemption of a pass, as queued by {@link RedemptionOutbox}
+ *
+ * Each event carries an idempotency key minted when the pass was read. Retried batches resend the
+ * same keys, so receivers drop duplicates by key.
+ *
+ * Event encoding: idempotency key, redemption value (both modified UTF-8 as in
+ * {@link DataOutputStream#writeUTF}), timestamp (u64, milliseconds since the epoch)
+ *
+ * Batch encoding, GZIP compressed: event count (u32), then the events
+ */
+public final class RedemptionEvent {
+
+  private final String idempotencyKey;
+  private final String redemptionValue;
+  private final long timestamp;
+
+  /**
+   * Constructor for the class, minting a fresh idempotency key
+   *
+   * @param redemptionValue Smart Tap redemption value from the pass
+   */
+  public RedemptionEvent(String redemptionValue) {
+    this(UUID.randomUUID().toString(), redemptionValue, System.currentTimeMillis());
+  }
+
+  /**
+   * Constructor for the class
+   *
+   * @param idempotencyKey Key identifying the redemption across retries
+   * @param redemptionValue Smart Tap redemption value from the pass
+   * @param timestamp When the pass was read, milliseconds since the epoch
+   */
+  RedemptionEvent(String idempotencyKey, String redemptionValue, long timestamp) {
+    this.idempotencyKey = idempotencyKey;
+    this.redemptionValue = redemptionValue;
+    this.timestamp = timestamp;
+  }
+
+  public String getIdempotencyKey() {
+    return idempotencyKey;
+  }
+
+  public String getRedemptionValue() {
+    return redemptionValue;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * Decodes a batch as sent to a {@link RedemptionReceiver}
+   *
+   * @param body GZIP-compressed batch
+   * @return Events of the batch, in the order they were queued
+   */
+  public static List<RedemptionEvent> decodeBatch(byte[] body) throws IOException {
+    try (DataInputStream input = new DataInputStream(
+        new GZIPInputStream(new ByteArrayInputStream(body)))) {
+
+      int count = input.readInt();
+      if (count < 0) {
+        throw new IOException("Invalid event count: " + count);
+      }
+
+      List<RedemptionEvent> events = new ArrayList<>(Math.min(count, 1024));
+      for (int i = 0; i < count; i++) {
+        events.add(decode(input));
+      }
+
+      return events;
+    }
+  }
+
+  /**
+   * Encodes the event
+   *
+   * @return Event in byte-array form
+   */
+  byte[] encode() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+
+    try (DataOutputStream output = new DataOutputStream(bytes)) {
+      output.writeUTF(idempotencyKey);
+      output.writeUTF(redemptionValue);
+      output.writeLong(timestamp);
+    } catch (IOException e) {
+      // Not thrown by in-memory streams
+      throw new IllegalStateException(e);
+    }
+
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Decodes an event
+   *
+   * @param input Stream positioned at the event
+   * @return Event
+   */
+  static RedemptionEvent decode(DataInputStream input) throws IOException {
+    return new RedemptionEvent(input.readUTF(), input.readUTF(), input.readLong());
+  }
+
+  @Override
+  public String toString() {
+    return "Redemption " + redemptionValue + ", key: " + idempotencyKey + ", at: " + timestamp;
+  }
+}
@@ -0,0 +1,681 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Class queues redemption events from the tap path and delivers them in batches
+ *
+ * {@link #enqueue} only adds to a lock-free queue, so it is safe to call while the mobile device
+ * is in the field. A single background thread does everything else:
+ *   1. Appends queued events to a journal file and syncs it, one sync per drain of the queue
+ *   2. Once a batch is full (events or bytes) or its oldest event has waited long enough, sends
+ *      it GZIP-compressed to the {@link RedemptionReceiver}
+ *   3. Records the acknowledged journal offset in a checkpoint file, retrying a failed batch as
+ *      is, under the same batch id, with exponential backoff and jitter
+ *
+ * Events in the journal past the checkpoint are sent again after a restart. Events still in the
+ * queue when the process dies are lost, which is a window of one journal sync. The journal is
+ * truncated whenever everything in it has been acknowledged, starting a new generation.
+ *
+ * The checkpoint is written before the journal is truncated, and only counts for the generation
+ * it names, so no crash makes it skip events that were not acknowledged. The worst a crash does is
+ * send acknowledged events again, which the receiver drops by idempotency key. A checkpoint that
+ * cannot be written holds up delivery, retried with the same backoff as a failed batch.
+ *
+ * Journal: generation (u64), then records. Record: payload length (u32), CRC-32 of the payload
+ * (u32), encoded event. A record with a bad length or CRC ends the journal, e.g. one torn by a
+ * crash mid-write. Checkpoint: generation (u64), acknowledged journal offset (u64)
+ */
+public final class RedemptionOutbox implements AutoCloseable {
+
+  private static final String JOURNAL_FILE = "outbox.journal";
+  private static final String CHECKPOINT_FILE = "outbox.checkpoint";
+  private static final int JOURNAL_HEADER_LENGTH = 8;
+  private static final int RECORD_HEADER_LENGTH = 8;
+  private static final int CHECKPOINT_LENGTH = 16;
+  private static final int MAX_EVENT_LENGTH = 0x20000;
+
+  // Checked again at least this often, e.g. for a receiver set after the events were queued
+  private static final long IDLE_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final Path journalPath;
+  private final Path checkpointPath;
+  private final FileChannel journal;
+  private final Thread thread;
+
+  private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger queued = new AtomicInteger();
+  private volatile boolean running = true;
+
+  private volatile RedemptionReceiver receiver;
+  private volatile int maxBatchEvents = 500;
+  private volatile int maxBatchBytes = 256 * 1024;
+  private volatile long maxBatchDelayNanos = TimeUnit.SECONDS.toNanos(2);
+  private volatile long initialBackoffNanos = TimeUnit.MILLISECONDS.toNanos(500);
+  private volatile long maxBackoffNanos = TimeUnit.MINUTES.toNanos(1);
+
+  // Owned by the outbox thread
+  private final ArrayDeque<Entry> pending = new ArrayDeque<>();
+  private long pendingBytes;
+  private long generation;
+  private long acknowledgedOffset;
+  private long journalLength;
+  private boolean checkpointStale;
+  private int failedAttempts;
+  private long nextAttemptNanos;
+
+  // Batch sent and not yet acknowledged, retried as is so the receiver sees one batch id for it
+  private int batchEvents;
+  private int batchRawLength;
+  private long batchJournalBytes;
+  private String batchId;
+  private byte[] batchBody;
+
+  private final AtomicLong enqueued = new AtomicLong();
+  private final AtomicLong delivered = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+  private final AtomicLong checkpointFailures = new AtomicLong();
+  private final AtomicLong rawBytes = new AtomicLong();
+  private final AtomicLong compressedBytes = new AtomicLong();
+  private final AtomicLong flushNanos = new AtomicLong();
+  private final AtomicLong maxFlushNanos = new AtomicLong();
+  private volatile IOException lastError;
+
+  /**
+   * Constructor for the class
+   *
+   * @param directory Directory holding the journal and checkpoint files
+   * @param journal Open journal
+   */
+  private RedemptionOutbox(Path directory, FileChannel journal) {
+    this.journalPath = directory.resolve(JOURNAL_FILE);
+    this.checkpointPath = directory.resolve(CHECKPOINT_FILE);
+    this.journal = journal;
+    this.thread = new Thread(this::run, "smart-tap-outbox");
+    this.thread.setDaemon(true);
+  }
+
+  /**
+   * Opens the outbox in a directory, picking up events not yet acknowledged
+   *
+   * Nothing is delivered until a receiver is set, events are only journaled
+   *
+   * @param directory Directory holding the journal and checkpoint files, created if missing
+   * @return Outbox, running
+   */
+  public static RedemptionOutbox open(Path directory) throws IOException {
+    Files.createDirectories(directory);
+
+    FileChannel journal = FileChannel.open(
+        directory.resolve(JOURNAL_FILE),
+        StandardOpenOption.CREATE,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+
+    RedemptionOutbox outbox = new RedemptionOutbox(directory, journal);
+
+    try {
+      outbox.recover();
+    } catch (IOException e) {
+      journal.close();
+      throw e;
+    }
+
+    outbox.thread.start();
+    return outbox;
+  }
+
+  /**
+   * Sets where batches are delivered
+   *
+   * @param receiver Merchant endpoint, null to only journal events
+   * @return This outbox
+   */
+  public RedemptionOutbox setReceiver(RedemptionReceiver receiver) {
+    this.receiver = receiver;
+    LockSupport.unpark(thread);
+    return this;
+  }
+
+  /**
+   * Sets when a batch is sent
+   *
+   * @param maxEvents Events that fill a batch
+   * @param maxBytes Encoded bytes that fill a batch, before compression
+   * @param maxDelayMillis How long the oldest event waits for the batch to fill
+   * @return This outbox
+   */
+  public RedemptionOutbox setBatchLimits(int maxEvents, int maxBytes, long maxDelayMillis) {
+    if (maxEvents < 1 || maxBytes < 1 || maxDelayMillis < 0) {
+      throw new IllegalArgumentException("Batch limits must be positive");
+    }
+
+    this.maxBatchEvents = maxEvents;
+    this.maxBatchBytes = maxBytes;
+    this.maxBatchDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+    return this;
+  }
+
+  /**
+   * Sets how failed batches are retried, the wait doubles after each failure up to the maximum
+   *
+   * @param initialMillis Wait after the first failure
+   * @param maxMillis Longest wait
+   * @return This outbox
+   */
+  public RedemptionOutbox setRetryBackoff(long initialMillis, long maxMillis) {
+    if (initialMillis < 1 || maxMillis < initialMillis) {
+      throw new IllegalArgumentException("Backoff must be positive and at most the maximum");
+    }
+
+    this.initialBackoffNanos = TimeUnit.MILLISECONDS.toNanos(initialMillis);
+    this.maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(maxMillis);
+    return this;
+  }
+
+  /**
+   * Queues a redemption, lock-free
+   *
+   * @param event Redemption event
+   */
+  public void enqueue(RedemptionEvent event) {
+    if (!running) {
+      throw new IllegalStateException("Outbox closed");
+    }
+
+    queue.add(new Entry(event, event.encode(), System.nanoTime()));
+    enqueued.incrementAndGet();
+
+    // Wake the outbox thread for the first event and for each full batch
+    int size = queued.incrementAndGet();
+    if (size == 1 || size % maxBatchEvents == 0) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  /**
+   * Waits until every event queued so far has been delivered
+   *
+   * @param timeoutMillis How long to wait
+   * @return Whether everything was delivered in time
+   */
+  public boolean awaitDelivered(long timeoutMillis) throws InterruptedException {
+    long target = enqueued.get();
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+    while (delivered.get() < target) {
+      if (System.nanoTime() > deadline) {
+        return false;
+      }
+
+      LockSupport.unpark(thread);
+      Thread.sleep(1);
+    }
+
+    return true;
+  }
+
+  /**
+   * Journals what is still queued and stops, undelivered events are sent after the next open
+   */
+  @Override
+  public void close() throws IOException {
+    running = false;
+    LockSupport.unpark(thread);
+
+    try {
+      thread.join();
+
+      // Events that raced with closing
+      journalQueued();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      journal.close();
+    }
+  }
+
+  public long getDeliveredCount() {
+    return delivered.get();
+  }
+
+  /**
+   * Gets a summary of deliveries so far, for diagnostics
+   *
+   * @return Summary line
+   */
+  public String stats() {
+    long batches = this.batches.get();
+    IOException lastError = this.lastError;
+
+    return String.format(
+        "Redemptions queued: %d, delivered: %d in %d batches, retries: %d, "
+            + "checkpoint failures: %d, compressed to %.1f%%, mean flush: %.1f ms, max: %.1f ms%s",
+        enqueued.get(),
+        delivered.get(),
+        batches,
+        retries.get(),
+        checkpointFailures.get(),
+        rawBytes.get() == 0 ? 0 : 100.0 * compressedBytes.get() / rawBytes.get(),
+        batches == 0 ? 0 : flushNanos.get() / 1e6 / batches,
+        maxFlushNanos.get() / 1e6,
+        lastError == null ? "" : ", last error: " + lastError.getMessage());
+  }
+
+  /**
+   * Loads the events past the checkpoint and cuts off a torn journal tail
+   */
+  private void recover() throws IOException {
+    long checkpointGeneration = 0;
+    long checkpoint = JOURNAL_HEADER_LENGTH;
+    if (Files.exists(checkpointPath)) {
+      byte[] bytes = Files.readAllBytes(checkpointPath);
+      if (bytes.length == CHECKPOINT_LENGTH) {
+        checkpointGeneration = ByteBuffer.wrap(bytes).getLong(0);
+        checkpoint = ByteBuffer.wrap(bytes).getLong(8);
+      }
+    }
+
+    long size = journal.size();
+    if (size < JOURNAL_HEADER_LENGTH) {
+      // New, or torn before its header was written, a generation no checkpoint names
+      journal.truncate(0);
+      writeJournalHeader(checkpointGeneration + 1);
+      size = JOURNAL_HEADER_LENGTH;
+    }
+
+    ByteBuffer generation = ByteBuffer.allocate(JOURNAL_HEADER_LENGTH);
+    readFully(generation, 0);
+    this.generation = generation.getLong(0);
+
+    if (checkpointGeneration != this.generation) {
+      // Taken before the journal was truncated, nothing in this generation is acknowledged
+      checkpoint = JOURNAL_HEADER_LENGTH;
+    }
+    checkpoint = Math.max(JOURNAL_HEADER_LENGTH, Math.min(checkpoint, size));
+
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+    long offset = checkpoint;
+    CRC32 crc = new CRC32();
+
+    while (offset + RECORD_HEADER_LENGTH <= size) {
+      header.clear();
+      readFully(header, offset);
+
+      int length = header.getInt(0);
+      if (length < 1 || length > MAX_EVENT_LENGTH
+          || offset + RECORD_HEADER_LENGTH + length > size) {
+        break;
+      }
+
+      ByteBuffer payload = ByteBuffer.allocate(length);
+      readFully(payload, offset + RECORD_HEADER_LENGTH);
+
+      crc.reset();
+      crc.update(payload.array());
+      if ((int) crc.getValue() != header.getInt(4)) {
+        break;
+      }
+
+      RedemptionEvent event = RedemptionEvent.decode(
+          new DataInputStream(new ByteArrayInputStream(payload.array())));
+
+      Entry entry = new Entry(event, payload.array(), System.nanoTime());
+      pending.add(entry);
+      pendingBytes += length;
+
+      offset += RECORD_HEADER_LENGTH + length;
+    }
+
+    if (offset < size) {
+      journal.truncate(offset);
+    }
+
+    this.acknowledgedOffset = checkpoint;
+    this.journalLength = offset;
+    enqueued.addAndGet(pending.size());
+  }
+
+  /**
+   * Runs the outbox thread until closed
+   */
+  private void run() {
+    while (true) {
+      boolean stopping = !running;
+
+      try {
+        journalQueued();
+      } catch (IOException e) {
+        // Leave the events queued, the next drain tries again
+        lastError = e;
+      }
+
+      if (stopping) {
+        return;
+      }
+
+      long wait = deliverDue(System.nanoTime());
+      if (wait > 0) {
+        LockSupport.parkNanos(this, Math.min(wait, IDLE_WAIT_NANOS));
+      }
+    }
+  }
+
+  /**
+   * Appends the queued events to the journal and syncs it
+   */
+  private void journalQueued() throws IOException {
+    Entry entry = queue.peek();
+    if (entry == null) {
+      return;
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    int count = 0;
+    CRC32 crc = new CRC32();
+
+    // Write first, only take the events off the queue once they are synced
+    for (Entry next : queue) {
+      if (buffer.remaining() < RECORD_HEADER_LENGTH + next.encoded.length) {
+        if (count > 0) {
+          break;
+        }
+        buffer = ByteBuffer.allocate(RECORD_HEADER_LENGTH + next.encoded.length);
+      }
+
+      crc.reset();
+      crc.update(next.encoded);
+      buffer.putInt(next.encoded.length);
+      buffer.putInt((int) crc.getValue());
+      buffer.put(next.encoded);
+      count++;
+    }
+
+    buffer.flip();
+    long offset = journalLength;
+    while (buffer.hasRemaining()) {
+      offset += journal.write(buffer, offset);
+    }
+    journal.force(false);
+    journalLength = offset;
+
+    for (int i = 0; i < count; i++) {
+      entry = queue.poll();
+      pending.add(entry);
+      pendingBytes += entry.encoded.length;
+    }
+    queued.addAndGet(-count);
+  }
+
+  /**
+   * Sends the oldest batch if it is due
+   *
+   * @param now Current time, from {@link System#nanoTime}
+   * @return How long until the next batch may be due, zero to check again right away
+   */
+  private long deliverDue(long now) {
+    if (now < nextAttemptNanos) {
+      return nextAttemptNanos - now;
+    }
+
+    // Acknowledged events are not recorded yet, nothing more is sent until they are
+    if (checkpointStale) {
+      try {
+        checkpoint();
+      } catch (IOException e) {
+        checkpointFailures.incrementAndGet();
+        return backOff(e, now);
+      }
+    }
+
+    RedemptionReceiver receiver = this.receiver;
+
+    if (receiver == null || pending.isEmpty()) {
+      return queue.isEmpty() ? Long.MAX_VALUE : 0;
+    }
+
+    if (batchEvents == 0) {
+      long due = pending.peek().enqueuedNanos + maxBatchDelayNanos;
+      boolean full = pending.size() >= maxBatchEvents || pendingBytes >= maxBatchBytes;
+
+      if (!full && now < due) {
+        return queue.isEmpty() ? due - now : 0;
+      }
+
+      takeBatch();
+    }
+
+    Entry first = pending.peek();
+    int count = batchEvents;
+
+    try {
+      if (batchBody == null) {
+        batchBody = compress(count, batchRawLength);
+      }
+      receiver.receive(batchId, batchBody);
+
+      rawBytes.addAndGet(batchRawLength);
+      compressedBytes.addAndGet(batchBody.length);
+    } catch (IOException | RuntimeException e) {
+      retries.incrementAndGet();
+      return backOff(e instanceof IOException ? (IOException) e : new IOException(e), now);
+    }
+
+    // Acknowledged
+    long flush = System.nanoTime() - first.enqueuedNanos;
+    long journalBytes = batchJournalBytes;
+    for (int i = 0; i < count; i++) {
+      pendingBytes -= pending.poll().encoded.length;
+    }
+
+    this.batchEvents = 0;
+    this.batchId = null;
+    this.batchBody = null;
+
+    failedAttempts = 0;
+    nextAttemptNanos = 0;
+    batches.incrementAndGet();
+    flushNanos.addAndGet(flush);
+    maxFlushNanos.accumulateAndGet(flush, Math::max);
+    delivered.addAndGet(count);
+
+    this.acknowledgedOffset += journalBytes;
+    this.checkpointStale = true;
+    try {
+      checkpoint();
+    } catch (IOException e) {
+      // Retried before the next batch, the journal keeps growing until it is written
+      checkpointFailures.incrementAndGet();
+      return backOff(e, now);
+    }
+
+    return 0;
+  }
+
+  /**
+   * Schedules the next attempt after a failure
+   *
+   * @param e The problem encountered
+   * @param now Current time, from {@link System#nanoTime}
+   * @return How long until the next attempt
+   */
+  private long backOff(IOException e, long now) {
+    lastError = e;
+
+    // Exponential backoff with +/- 20% jitter
+    long backoff = Math.min(maxBackoffNanos, initialBackoffNanos << Math.min(failedAttempts, 20));
+    backoff = (long) (backoff * ThreadLocalRandom.current().nextDouble(0.8, 1.2));
+    failedAttempts++;
+    nextAttemptNanos = now + backoff;
+    return backoff;
+  }
+
+  /**
+   * Takes the oldest pending events up to the batch limits, at least one, as the next batch
+   *
+   * The batch keeps its events and id until it is acknowledged, even if more events arrive or the
+   * limits change while it is retried
+   */
+  private void takeBatch() {
+    int count = 0;
+    int rawLength = 0;
+    long journalBytes = 0;
+    for (Entry entry : pending) {
+      boolean batchFull =
+          count == maxBatchEvents || rawLength + entry.encoded.length > maxBatchBytes;
+      if (count > 0 && batchFull) {
+        break;
+      }
+
+      count++;
+      rawLength += entry.encoded.length;
+      journalBytes += RECORD_HEADER_LENGTH + entry.encoded.length;
+    }
+
+    this.batchEvents = count;
+    this.batchRawLength = rawLength;
+    this.batchJournalBytes = journalBytes;
+    this.batchId = pending.peek().event.getIdempotencyKey() + "+" + count;
+  }
+
+  /**
+   * Compresses the oldest pending events into a batch
+   *
+   * @param count Events in the batch
+   * @param rawLength Their encoded length
+   * @return GZIP-compressed batch
+   */
+  private byte[] compress(int count, int rawLength) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(rawLength / 4 + 64);
+
+    try (DataOutputStream output = new DataOutputStream(new GZIPOutputStream(bytes))) {
+      output.writeInt(count);
+
+      int i = 0;
+      for (Entry entry : pending) {
+        if (i++ == count) {
+          break;
+        }
+        output.write(entry.encoded);
+      }
+    }
+
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Records the acknowledged journal offset, truncating the journal once it is all acknowledged
+   *
+   * The checkpoint is durable before the journal is touched. The new generation is written before
+   * the records are cut, so the old checkpoint no longer counts for any record left behind
+   */
+  private void checkpoint() throws IOException {
+    Path temporary = checkpointPath.resolveSibling(CHECKPOINT_FILE + ".tmp");
+    try (FileChannel channel = FileChannel.open(temporary,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+
+      ByteBuffer buffer = ByteBuffer.allocate(CHECKPOINT_LENGTH)
+          .putLong(0, generation)
+          .putLong(8, acknowledgedOffset);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(false);
+    }
+    Files.move(temporary, checkpointPath,
+        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    this.checkpointStale = false;
+
+    if (acknowledgedOffset == journalLength && journalLength > JOURNAL_HEADER_LENGTH) {
+      // From here the checkpoint names an older generation until it is written again
+      writeJournalHeader(generation + 1);
+      this.generation++;
+      this.checkpointStale = true;
+
+      journal.truncate(JOURNAL_HEADER_LENGTH);
+      journal.force(false);
+      this.journalLength = JOURNAL_HEADER_LENGTH;
+      this.acknowledgedOffset = JOURNAL_HEADER_LENGTH;
+
+      // Nothing in the new generation is acknowledged, which is what the old checkpoint reads as
+      this.checkpointStale = false;
+    }
+  }
+
+  /**
+   * Writes the generation at the start of the journal and syncs it
+   *
+   * @param generation Journal generation
+   */
+  private void writeJournalHeader(long generation) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER_LENGTH).putLong(0, generation);
+    long offset = 0;
+    while (header.hasRemaining()) {
+      offset += journal.write(header, offset);
+    }
+    journal.force(false);
+  }
+
+  private void readFully(ByteBuffer buffer, long offset) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = journal.read(buffer, offset);
+      if (read < 0) {
+        throw new IOException("Journal ended early: " + journalPath);
+      }
+      offset += read;
+    }
+  }
+
+  /**
+   * Class encapsulates a queued event with its encoding
+   */
+  private static final class Entry {
+
+    final RedemptionEvent event;
+    final byte[] encoded;
+    final long enqueuedNanos;
+
+    Entry(RedemptionEvent event, byte[] encoded, long enqueuedNanos) {
+      this.event = event;
+      this.encoded = encoded;
+      this.enqueuedNanos = enqueuedNanos;
+    }
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.io.IOException;
+
+/**
+ * Interface for the merchant endpoint {@link RedemptionOutbox} delivers batches to
+ */
+public interface RedemptionReceiver {
+
+  /**
+   * Delivers a batch, returning only once the receiver has stored it
+   *
+   * The same batch may be delivered more than once, e.g. when an acknowledgement is lost.
+   * Receivers drop events whose idempotency key they have already stored
+   *
+   * @param batchId Identifies the batch across retries
+   * @param body GZIP-compressed batch, see {@link RedemptionEvent#decodeBatch}
+   * @throws IOException If the batch was not stored and should be retried
+   */
+  void receive(String batchId, byte[] body) throws IOException;
+}
@@ -0,0 +1,473 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class checks Smart Tap redemption values against a denylist of revoked or fraud-flagged passes
+ *
+ * The denylist is a memory-mapped file holding a blocked Bloom filter and the exact keys. Every key
+ * sets its bits in a single 64-byte block, so a lookup reads one cache line of the filter, and the
+ * pages of the file are only read in as lookups touch them. Filter hits are confirmed by a binary
+ * search of the exact keys, so a false positive never rejects a pass. Most taps are not revoked
+ * and never leave the filter.
+ *
+ * A new denylist is written next to the old one and swapped in with {@link #replace}. Lookups that
+ * already started finish on the previous mapping
+ *
+ * File layout, big-endian:
+ *   header: magic `STRF`, version (u32), generation (u64), bits set per key (u32),
+ *     filter block count (u32), key count (u32), keys length (u32)
+ *   filter: 64-byte blocks
+ *   index entry: offset of a key from the first key (u32), sorted by key
+ *   key: length (u16), key (UTF-8)
+ */
+public final class RevocationFilter {
+
+  private static final int MAGIC = 0x53545246; // `STRF`
+  private static final int VERSION = 1;
+  private static final int HEADER_LENGTH = 32;
+  private static final int BLOCK_LENGTH = 64;
+  private static final int BLOCK_BITS = BLOCK_LENGTH * 8;
+  private static final int INDEX_ENTRY_LENGTH = 4;
+  private static final int MAX_KEY_LENGTH = 0xFFFF;
+
+  // Ten bits per key and seven bits set keep false positives near 1%
+  private static final int DEFAULT_BITS_PER_KEY = 10;
+
+  private final Path path;
+  private volatile Snapshot snapshot;
+
+  private final AtomicLong lookups = new AtomicLong();
+  private final AtomicLong filterHits = new AtomicLong();
+  private final AtomicLong revoked = new AtomicLong();
+  private final AtomicLong lookupNanos = new AtomicLong();
+  private final AtomicLong maxLookupNanos = new AtomicLong();
+
+  /**
+   * Constructor for the class
+   *
+   * @param path Denylist file
+   * @param snapshot Mapping of the denylist file
+   */
+  private RevocationFilter(Path path, Snapshot snapshot) {
+    this.path = path;
+    this.snapshot = snapshot;
+  }
+
+  /**
+   * Opens a denylist, creating an empty one at generation 0 if the file does not exist
+   *
+   * @param path Denylist file
+   * @return Revocation filter
+   */
+  public static RevocationFilter open(Path path) throws IOException {
+    if (!Files.exists(path)) {
+      write(path, 0, Collections.emptyList());
+    }
+
+    return new RevocationFilter(path, Snapshot.map(path));
+  }
+
+  /**
+   * Writes a denylist, atomically replacing the file
+   *
+   * @param path Denylist file
+   * @param generation Generation of the denylist
+   * @param redemptionValues Revoked Smart Tap redemption values
+   */
+  public static void write(Path path, long generation, Collection<String> redemptionValues)
+      throws IOException {
+    write(path, generation, redemptionValues, DEFAULT_BITS_PER_KEY);
+  }
+
+  /**
+   * Writes a denylist, atomically replacing the file
+   *
+   * @param path Denylist file
+   * @param generation Generation of the denylist
+   * @param redemptionValues Revoked Smart Tap redemption values
+   * @param bitsPerKey Filter size, more bits per key means fewer false positives
+   */
+  public static void write(
+      Path path, long generation, Collection<String> redemptionValues, int bitsPerKey)
+      throws IOException {
+
+    if (bitsPerKey < 1 || bitsPerKey > 64) {
+      throw new IllegalArgumentException("Bits per key must be 1 to 64");
+    }
+
+    // Keys in index order, duplicates dropped
+    List<byte[]> keys = new ArrayList<>(redemptionValues.size());
+    for (String redemptionValue : redemptionValues) {
+      byte[] key = redemptionValue.getBytes(StandardCharsets.UTF_8);
+
+      if (key.length > MAX_KEY_LENGTH) {
+        throw new IllegalArgumentException("Redemption value too long");
+      }
+      keys.add(key);
+    }
+    keys.sort(RevocationFilter::compare);
+
+    long keysLength = 0;
+    int count = 0;
+    for (int i = 0; i < keys.size(); i++) {
+      if (i == 0 || compare(keys.get(i - 1), keys.get(i)) != 0) {
+        keys.set(count++, keys.get(i));
+        keysLength += 2 + keys.get(i).length;
+      }
+    }
+    keys = keys.subList(0, count);
+
+    // k = ln 2 * bits per key minimizes false positives
+    int bitsSet = Math.max(1, (int) Math.round(Math.log(2) * bitsPerKey));
+    int blocks = (int) Math.max(1, ((long) count * bitsPerKey + BLOCK_BITS - 1) / BLOCK_BITS);
+
+    long filterStart = HEADER_LENGTH;
+    long indexStart = filterStart + (long) blocks * BLOCK_LENGTH;
+    long keysStart = indexStart + (long) count * INDEX_ENTRY_LENGTH;
+    long length = keysStart + keysLength;
+
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("Denylist would exceed 2 GB");
+    }
+
+    Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+
+    try (FileChannel channel = FileChannel.open(
+        temporary,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+
+      buffer.putInt(0, MAGIC);
+      buffer.putInt(4, VERSION);
+      buffer.putLong(8, generation);
+      buffer.putInt(16, bitsSet);
+      buffer.putInt(20, blocks);
+      buffer.putInt(24, count);
+      buffer.putInt(28, (int) keysLength);
+
+      int keyOffset = 0;
+      for (int i = 0; i < count; i++) {
+        byte[] key = keys.get(i);
+
+        // Set the key's bits in its block
+        long hash = Utils.hash(key);
+        int block = (int) filterStart + block(hash, blocks) * BLOCK_LENGTH;
+        for (int j = 0; j < bitsSet; j++) {
+          int bit = bit(hash, j);
+          int word = block + (bit >>> 6) * 8;
+          buffer.putLong(word, buffer.getLong(word) | 1L << (bit & 63));
+        }
+
+        // Index entry and key
+        buffer.putInt((int) indexStart + i * INDEX_ENTRY_LENGTH, keyOffset);
+        buffer.position((int) keysStart + keyOffset);
+        buffer.putShort((short) key.length);
+        buffer.put(key);
+        keyOffset += 2 + key.length;
+      }
+
+      buffer.force();
+    }
+
+    Files.move(
+        temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Checks whether a pass has been revoked
+   *
+   * @param redemptionValue Smart Tap redemption value from the pass
+   * @return Whether the redemption value is on the denylist
+   */
+  public boolean isRevoked(String redemptionValue) {
+    long start = System.nanoTime();
+    Snapshot snapshot = this.snapshot;
+    byte[] key = redemptionValue.getBytes(StandardCharsets.UTF_8);
+
+    boolean result = false;
+    if (snapshot.mightContain(Utils.hash(key))) {
+      filterHits.incrementAndGet();
+
+      // Confirm with the exact keys
+      result = snapshot.contains(key);
+      if (result) {
+        revoked.incrementAndGet();
+      }
+    }
+
+    long elapsed = System.nanoTime() - start;
+    lookups.incrementAndGet();
+    lookupNanos.addAndGet(elapsed);
+    maxLookupNanos.accumulateAndGet(elapsed, Math::max);
+
+    return result;
+  }
+
+  /**
+   * Installs a denylist written next to the current one, e.g. a downloaded one
+   *
+   * @param downloaded Denylist file on the same file system, moved into place
+   */
+  public synchronized void replace(Path downloaded) throws IOException {
+    Snapshot replacement = Snapshot.map(downloaded);
+
+    if (replacement.generation < snapshot.generation) {
+      throw new IOException(String.format(
+          "Denylist generation %d is older than the current %d",
+          replacement.generation,
+          snapshot.generation));
+    }
+
+    Files.move(
+        downloaded, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    this.snapshot = Snapshot.map(path);
+  }
+
+  public long getGeneration() {
+    return snapshot.generation;
+  }
+
+  public int getRevokedCount() {
+    return snapshot.count;
+  }
+
+  /**
+   * Gets the false positive rate the filter was sized for
+   *
+   * Uses the classic Bloom filter estimate, keeping every key in one block adds a little to it
+   *
+   * @return Expected share of passes that are not revoked yet hit the filter
+   */
+  public double getExpectedFalsePositiveRate() {
+    Snapshot snapshot = this.snapshot;
+    double bits = (double) snapshot.blocks * BLOCK_BITS;
+
+    return Math.pow(1 - Math.exp(-snapshot.bitsSet * snapshot.count / bits), snapshot.bitsSet);
+  }
+
+  /**
+   * Gets the measured false positive rate
+   *
+   * @return Share of looked up passes that were not revoked yet hit the filter
+   */
+  public double getFalsePositiveRate() {
+    long revoked = this.revoked.get();
+    long negatives = lookups.get() - revoked;
+
+    return negatives == 0 ? 0 : (double) (filterHits.get() - revoked) / negatives;
+  }
+
+  /**
+   * Gets a summary of the lookups so far, for diagnostics
+   *
+   * @return Summary line
+   */
+  public String stats() {
+    long lookups = this.lookups.get();
+
+    return String.format(
+        "Denylist generation %d, %d revoked, lookups: %d, revoked found: %d, "
+            + "false positives: %.3f%% (expected %.3f%%), mean lookup: %.2f us, max: %.2f us",
+        getGeneration(),
+        getRevokedCount(),
+        lookups,
+        revoked.get(),
+        getFalsePositiveRate() * 100,
+        getExpectedFalsePositiveRate() * 100,
+        lookups == 0 ? 0 : lookupNanos.get() / 1e3 / lookups,
+        maxLookupNanos.get() / 1e3);
+  }
+
+  /**
+   * Picks a key's block from the high half of its hash
+   */
+  private static int block(long hash, int blocks) {
+    return (int) (((hash >>> 32) * blocks) >>> 32);
+  }
+
+  /**
+   * Picks a key's n-th bit within its block from the low half of its hash, double hashing
+   */
+  private static int bit(long hash, int n) {
+    int low = (int) hash;
+    int step = (low >>> 16) | 1;
+
+    return (low + n * step) & (BLOCK_BITS - 1);
+  }
+
+  /**
+   * Compares keys by their unsigned bytes
+   */
+  private static int compare(byte[] a, byte[] b) {
+    for (int i = 0; i < Math.min(a.length, b.length); i++) {
+      int comparison = Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+      if (comparison != 0) {
+        return comparison;
+      }
+    }
+
+    return Integer.compare(a.length, b.length);
+  }
+
+  /**
+   * Class encapsulates one mapped generation of the denylist
+   */
+  private static final class Snapshot {
+
+    final ByteBuffer buffer;
+    final long generation;
+    final int bitsSet;
+    final int blocks;
+    final int count;
+    final int indexStart;
+    final int keysStart;
+    final int keysLength;
+
+    Snapshot(ByteBuffer buffer) {
+      this.buffer = buffer;
+      this.generation = buffer.getLong(8);
+      this.bitsSet = buffer.getInt(16);
+      this.blocks = buffer.getInt(20);
+      this.count = buffer.getInt(24);
+      this.keysLength = buffer.getInt(28);
+      this.indexStart = HEADER_LENGTH + blocks * BLOCK_LENGTH;
+      this.keysStart = indexStart + count * INDEX_ENTRY_LENGTH;
+    }
+
+    /**
+     * Maps a denylist file read-only and checks its header
+     *
+     * @param path Denylist file
+     * @return Snapshot
+     */
+    static Snapshot map(Path path) throws IOException {
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        long size = channel.size();
+
+        if (size < HEADER_LENGTH || size > Integer.MAX_VALUE) {
+          throw new IOException("Not a denylist: " + path);
+        }
+
+        // The mapping stays valid once the channel is closed, pages are read in on first use
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+          throw new IOException("Not a denylist: " + path);
+        }
+
+        int bitsSet = buffer.getInt(16);
+        int blocks = buffer.getInt(20);
+        int count = buffer.getInt(24);
+        int keysLength = buffer.getInt(28);
+
+        if (bitsSet < 1 || bitsSet > BLOCK_BITS || blocks < 1 || count < 0 || keysLength < 0
+            || HEADER_LENGTH + (long) blocks * BLOCK_LENGTH + (long) count * INDEX_ENTRY_LENGTH
+            + keysLength != size) {
+          throw new IOException("Truncated denylist: " + path);
+        }
+
+        return new Snapshot(buffer);
+      }
+    }
+
+    /**
+     * Checks the filter
+     *
+     * @param hash Hash of the key
+     * @return False if the key is certainly not on the denylist
+     */
+    boolean mightContain(long hash) {
+      int block = HEADER_LENGTH + block(hash, blocks) * BLOCK_LENGTH;
+
+      for (int i = 0; i < bitsSet; i++) {
+        int bit = bit(hash, i);
+
+        if ((buffer.getLong(block + (bit >>> 6) * 8) & 1L << (bit & 63)) == 0) {
+          return false;
+        }
+      }
+
+      return true;
+    }
+
+    /**
+     * Binary searches the exact keys
+     *
+     * @param key Key in byte-array form
+     * @return Whether the key is on the denylist
+     */
+    boolean contains(byte[] key) {
+      int low = 0;
+      int high = count - 1;
+
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        int comparison = compareKey(middle, key);
+
+        if (comparison < 0) {
+          low = middle + 1;
+        } else if (comparison > 0) {
+          high = middle - 1;
+        } else {
+          return true;
+        }
+      }
+
+      return false;
+    }
+
+    private int compareKey(int index, byte[] key) {
+      int offset = buffer.getInt(indexStart + index * INDEX_ENTRY_LENGTH);
+
+      if (offset < 0 || offset > keysLength - 2) {
+        throw new IllegalStateException("Corrupt denylist index entry " + index);
+      }
+
+      int position = keysStart + offset;
+      int length = buffer.getShort(position) & 0xFFFF;
+      position += 2;
+
+      for (int i = 0; i < Math.min(length, key.length); i++) {
+        int comparison = Integer.compare(buffer.get(position + i) & 0xFF, key[i] & 0xFF);
+        if (comparison != 0) {
+          return comparison;
+        }
+      }
+
+      return Integer.compare(length, key.length);
+    }
+  }
+}
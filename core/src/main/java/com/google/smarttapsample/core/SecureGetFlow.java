@@ -0,0 +1,997 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.smarttapsample.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * Class runs the `get smart tap data` flow against a single mobile device
+ *
+ * One instance covers one tap. Surfacing results and managing the link to the device is left to
+ * the caller, e.g. an Android activity adapting `IsoDep` to {@link ApduTransport}
+ */
+public class SecureGetFlow {
+
+  // Smart Tap only, shared by flows that don't bring their own router
+  private static final AidRouter SMART_TAP_ROUTER = AidRouter.withSmartTap();
+
+  // `select ose`, `OSE.VAS.01`
+  private static final byte[] SELECT_OSE_COMMAND = new byte[]{
+      (byte) 0x00,
+      (byte) 0xA4,
+      (byte) 0x04,
+      (byte) 0x00,
+      (byte) 0x0A,
+      (byte) 0x4F,
+      (byte) 0x53,
+      (byte) 0x45,
+      (byte) 0x2E,
+      (byte) 0x56,
+      (byte) 0x41,
+      (byte) 0x53,
+      (byte) 0x2E,
+      (byte) 0x30,
+      (byte) 0x31,
+      (byte) 0x00
+  };
+
+  // `select smart tap 2`
+  private static final byte[] SELECT_SMART_TAP_COMMAND = new byte[]{
+      (byte) 0x00,
+      (byte) 0xA4,
+      (byte) 0x04,
+      (byte) 0x00,
+      (byte) 0x09,
+      (byte) 0xA0,
+      (byte) 0x00,
+      (byte) 0x00,
+      (byte) 0x04,
+      (byte) 0x76,
+      (byte) 0xD0,
+      (byte) 0x00,
+      (byte) 0x01,
+      (byte) 0x11,
+      (byte) 0x00
+  };
+
+  private ApduTransport transport;
+  private final boolean deferDecryption;
+  private final TerminalKeyManager keyManager;
+  private final Semaphore cryptoPermits;
+  private final AidRouter router;
+  private ServiceObjectDecoder serviceObjectDecoder = ServiceObjectDecoder.withRedemptionValues();
+  private MemberStore memberStore;
+  private RevocationFilter revocationFilter;
+  private RedemptionOutbox redemptionOutbox;
+  private RedemptionCoordinator redemptionCoordinator;
+  private ServiceUpdater serviceUpdater;
+  private TranscriptRecorder.Tap transcriptTap;
+  private TapDeadline deadline = TapDeadline.unlimited();
+  private TapAnalytics tapAnalytics;
+  private TapEventPublisher tapEventPublisher;
+  private long tapId;
+  private int nextSequenceNumber;
+  private boolean passRead;
+  private boolean resumable;
+  private SessionArena arena;
+  private SelectOSEResponse selectOSEResponse;
+  private SelectSmartTapResponse selectSmartTapResponse;
+  private NegotiateCryptoCommand negotiateCryptoCommand;
+  private NegotiateCryptoResponse negotiateCryptoResponse;
+  private byte[] capturedGetDataResponse;
+  private SessionSecrets sessionSecrets;
+
+  /**
+   * Constructor for the class
+   *
+   * @param transport Link to the mobile device
+   * @param deferDecryption Whether to capture the `get smart tap data` response for decryption
+   * after the NFC session ends, see {@link #submitCapturedResponse}
+   */
+  public SecureGetFlow(ApduTransport transport, boolean deferDecryption) {
+    this(transport, deferDecryption, TerminalKeyManager.getDefault(), null);
+  }
+
+  /**
+   * Constructor for the class
+   *
+   * @param transport Link to the mobile device
+   * @param deferDecryption Whether to capture the `get smart tap data` response for decryption
+   * after the NFC session ends
+   * @param keyManager Holds the long-term key to sign with
+   * @param cryptoPermits Bounds how many flows run their cryptography at once, null for no bound
+   */
+  public SecureGetFlow(
+      ApduTransport transport,
+      boolean deferDecryption,
+      TerminalKeyManager keyManager,
+      Semaphore cryptoPermits) {
+
+    this(transport, deferDecryption, keyManager, cryptoPermits, SMART_TAP_ROUTER);
+  }
+
+  /**
+   * Constructor for the class
+   *
+   * @param transport Link to the mobile device
+   * @param deferDecryption Whether to capture the `get smart tap data` response for decryption
+   * after the NFC session ends
+   * @param keyManager Holds the long-term key to sign with
+   * @param cryptoPermits Bounds how many flows run their cryptography at once, null for no bound
+   * @param router Routes the `select ose` directory entries, e.g. {@link AidRouter#withSmartTap()}
+   * plus other value-added services or a payment kernel
+   */
+  public SecureGetFlow(
+      ApduTransport transport,
+      boolean deferDecryption,
+      TerminalKeyManager keyManager,
+      Semaphore cryptoPermits,
+      AidRouter router) {
+
+    this.transport = transport;
+    this.deferDecryption = deferDecryption;
+    this.keyManager = keyManager;
+    this.cryptoPermits = cryptoPermits;
+    this.router = router;
+  }
+
+  /**
+   * Sets the decoder for the service objects in the `get smart tap data` response
+   *
+   * @param serviceObjectDecoder Decoder with the fields of interest registered
+   * @return This flow
+   */
+  public SecureGetFlow setServiceObjectDecoder(ServiceObjectDecoder serviceObjectDecoder) {
+    this.serviceObjectDecoder = serviceObjectDecoder;
+    return this;
+  }
+
+  /**
+   * Sets the store to resolve the redemption value to a member profile with
+   *
+   * @param memberStore Member store, null to skip the lookup
+   * @return This flow
+   */
+  public SecureGetFlow setMemberStore(MemberStore memberStore) {
+    this.memberStore = memberStore;
+    return this;
+  }
+
+  /**
+   * Sets the denylist to reject revoked passes with once the response is decrypted
+   *
+   * @param revocationFilter Revocation filter, null to skip the check
+   * @return This flow
+   */
+  public SecureGetFlow setRevocationFilter(RevocationFilter revocationFilter) {
+    this.revocationFilter = revocationFilter;
+    return this;
+  }
+
+  /**
+   * Sets the outbox to queue the redemption in once the response is decrypted
+   *
+   * @param redemptionOutbox Redemption outbox, null to not queue redemptions
+   * @return This flow
+   */
+  public SecureGetFlow setRedemptionOutbox(RedemptionOutbox redemptionOutbox) {
+    this.redemptionOutbox = redemptionOutbox;
+    return this;
+  }
+
+  /**
+   * Sets the coordinator to check with the other lanes before redeeming
+   *
+   * A pass redeemed on any lane within the coordinator's window is shown as a duplicate, and is
+   * neither queued nor sent service updates. Only covers passes decrypted while the mobile device
+   * is in the field, callers decrypting later claim the redemption value themselves
+   *
+   * @param redemptionCoordinator Redemption coordinator, null to redeem every pass read
+   * @return This flow
+   */
+  public SecureGetFlow setRedemptionCoordinator(RedemptionCoordinator redemptionCoordinator) {
+    this.redemptionCoordinator = redemptionCoordinator;
+    return this;
+  }
+
+  /**
+   * Sets what to push back to the mobile device once the pass has been read
+   *
+   * Needs the response decrypted while the mobile device is in the field, so updates are skipped
+   * when decryption is deferred
+   *
+   * @param serviceUpdater Decides the updates, null to push nothing
+   * @return This flow
+   */
+  public SecureGetFlow setServiceUpdater(ServiceUpdater serviceUpdater) {
+    this.serviceUpdater = serviceUpdater;
+    return this;
+  }
+
+  /**
+   * Holds the flow to a time budget
+   *
+   * Once a stage no longer fits, decryption is deferred and service updates are skipped. A
+   * response captured that way has to be handed to {@link #submitCapturedResponse} or
+   * {@link #decryptCapturedResponse} even by callers that decrypt inline
+   *
+   * @param deadline Budget for this flow's tap, not shared between flows
+   * @return This flow
+   */
+  public SecureGetFlow setDeadline(TapDeadline deadline) {
+    this.deadline = deadline;
+    return this;
+  }
+
+  /**
+   * Feeds the outcome of every run and resume, and the redemption values read, to tap analytics
+   *
+   * @param tapAnalytics Analytics of the terminal, null to not count
+   * @return This flow
+   */
+  public SecureGetFlow setTapAnalytics(TapAnalytics tapAnalytics) {
+    this.tapAnalytics = tapAnalytics;
+    return this;
+  }
+
+  /**
+   * Publishes the events of this flow's tap: its start, stages, redemption value and end
+   *
+   * The redemption value is published once the pass is accepted, after the check with the
+   * {@link #setRedemptionCoordinator redemption coordinator}. When decryption is deferred, the
+   * caller accepts the pass and publishes it with {@link TapEventPublisher#redeemed} under
+   * {@link #getTapId()}
+   *
+   * @param tapEventPublisher Publisher shared by the flows, null to not publish
+   * @return This flow
+   */
+  public SecureGetFlow setTapEventPublisher(TapEventPublisher tapEventPublisher) {
+    this.tapEventPublisher = tapEventPublisher;
+    return this;
+  }
+
+  /**
+   * Gets the id this flow's tap is published under
+   *
+   * @return Tap id, 0 without a tap event publisher or before {@link #run}
+   */
+  public long getTapId() {
+    return tapId;
+  }
+
+  /**
+   * Records this flow's APDUs to a transcript log
+   *
+   * @param transcriptRecorder Transcript log, null to not record
+   * @return This flow
+   */
+  public SecureGetFlow setTranscriptRecorder(TranscriptRecorder transcriptRecorder) {
+    if (transcriptRecorder != null) {
+      this.transcriptTap = transcriptRecorder.begin(transport);
+      this.transport = transcriptTap;
+    }
+    return this;
+  }
+
+  /**
+   * Runs the individual commands in the `get smart tap data` flow and parses responses
+   *
+   * @param descriptiveText Smart Tap response data to be surfaced on the device
+   */
+  public void run(StringBuilder descriptiveText) throws Exception {
+    this.arena = SessionArena.acquire();
+    deadline.start();
+    if (tapEventPublisher != null) {
+      this.tapId = tapEventPublisher.nextTapId();
+      tapEventPublisher.started(tapId);
+    }
+    long startNanos = System.nanoTime();
+    Exception failure = null;
+    boolean failed = true;
+
+    try {
+      performCommands(descriptiveText);
+      appendTapTime(descriptiveText);
+      failed = false;
+    } catch (IOException e) {
+      // Field lost, the negotiated session is worth keeping until the mobile device is back
+      this.resumable = negotiateCryptoResponse != null && !passRead;
+      failure = e;
+      throw e;
+    } catch (Exception e) {
+      failure = e;
+      throw e;
+    } finally {
+      if (!resumable) {
+        endSession(failed);
+      }
+      reportTap(startNanos, failed, failure);
+    }
+  }
+
+  /**
+   * Whether the last {@link #run} or {@link #resume} lost the field after negotiating the secure
+   * session and before reading the pass
+   *
+   * The session stays open until the flow is resumed or {@link #abandon abandoned}
+   *
+   * @return Whether {@link #resume} can pick up where the flow stopped
+   */
+  public boolean canResume() {
+    return resumable;
+  }
+
+  /**
+   * Picks the flow up at `get smart tap data` once the mobile device is back in the field
+   *
+   * The new link starts with nothing selected, so both selects are repeated. They are cheap, the
+   * ECDH and ECDSA work of the negotiated session is not. The command is re-sent with the next
+   * sequence number. If the mobile device answers the select with a new nonce it has dropped the
+   * session, and the whole flow runs again on the new link
+   *
+   * @param transport New link to the mobile device
+   * @param descriptiveText Smart Tap response data to be surfaced on the device
+   * @return Whether the negotiated session was picked up, false if the flow started over
+   */
+  public boolean resume(ApduTransport transport, StringBuilder descriptiveText) throws Exception {
+    if (!resumable) {
+      throw new IllegalStateException("Flow has no session to resume");
+    }
+    this.resumable = false;
+
+    if (transcriptTap != null) {
+      transcriptTap.relink(transport);
+    } else {
+      this.transport = transport;
+    }
+
+    deadline.start();
+    if (tapEventPublisher != null) {
+      tapEventPublisher.started(tapId);
+    }
+    long startNanos = System.nanoTime();
+    Exception failure = null;
+    boolean failed = true;
+
+    try {
+      descriptiveText.append("\n----\nMobile device back in the field, resuming...\n----\n");
+
+      deadline.begin(TapDeadline.Stage.SELECT_OSE);
+      boolean kept = reselect();
+      endStage(TapDeadline.Stage.SELECT_OSE);
+
+      if (kept) {
+        performGetData(descriptiveText);
+      } else {
+        descriptiveText.append("\nSession dropped by the mobile device, starting over\n");
+
+        // Everything of the old session goes, the new one starts from scratch
+        closeArena();
+        this.arena = SessionArena.acquire();
+        this.negotiateCryptoResponse = null;
+        performCommands(descriptiveText);
+      }
+      appendTapTime(descriptiveText);
+      failed = false;
+      return kept;
+    } catch (IOException e) {
+      this.resumable = negotiateCryptoResponse != null && !passRead;
+      failure = e;
+      throw e;
+    } catch (Exception e) {
+      failure = e;
+      throw e;
+    } finally {
+      if (!resumable) {
+        endSession(failed);
+      }
+      reportTap(startNanos, failed, failure);
+    }
+  }
+
+  /**
+   * Gives up on resuming, wiping the retained session
+   */
+  public void abandon() {
+    if (resumable) {
+      this.resumable = false;
+      endSession(true);
+    }
+  }
+
+  /**
+   * Surfaces the time the tap took against its budget, if it has one
+   *
+   * @param descriptiveText Smart Tap response data to be surfaced on the device
+   */
+  private void appendTapTime(StringBuilder descriptiveText) {
+    if (deadline.isBounded()) {
+      descriptiveText.append("\n* Tap time:\n  ").append(deadline.summary()).append("\n");
+    }
+  }
+
+  /**
+   * Selects Smart Tap again on a new link
+   *
+   * @return Whether the mobile device kept the session, judged by its nonce
+   */
+  private boolean reselect() throws Exception {
+    // Only the status matters, the directory is already known
+    byte[] response = transport.transceive(SELECT_OSE_COMMAND.clone());
+    arena.track(response);
+    String status = Utils.getStatus(response);
+    if (!status.equals("9000")) {
+      throw new SmartTapException("Invalid status: " + status);
+    }
+
+    SelectSmartTapResponse reselected = new SelectSmartTapResponse(
+        arena.track(transport.transceive(SELECT_SMART_TAP_COMMAND.clone())), arena);
+
+    return reselected.mobileDeviceNonce != null
+        && Arrays.equals(reselected.mobileDeviceNonce, selectSmartTapResponse.mobileDeviceNonce);
+  }
+
+  /**
+   * Counts a run or resume in the tap analytics and publishes how it ended
+   *
+   * @param startNanos When the run or resume started
+   * @param failed Whether it ended with an error
+   * @param failure The error, null if it was not an exception
+   */
+  private void reportTap(long startNanos, boolean failed, Exception failure) {
+    if (tapAnalytics != null && (!failed || failure != null)) {
+      tapAnalytics.onTap(System.nanoTime() - startNanos, failure);
+    }
+
+    if (tapEventPublisher != null) {
+      if (!failed) {
+        tapEventPublisher.finished(tapId);
+      } else if (failure != null) {
+        tapEventPublisher.failed(tapId, failure);
+      }
+    }
+  }
+
+  /**
+   * Ends a stage on the deadline and publishes the time it took
+   *
+   * @param stage Stage that ran
+   */
+  private void endStage(TapDeadline.Stage stage) {
+    long stageNanos = deadline.end(stage);
+
+    if (tapEventPublisher != null) {
+      tapEventPublisher.stageCompleted(tapId, stage, stageNanos);
+    }
+  }
+
+  /**
+   * Ends the tap: closes the session unless a captured response still needs it and finishes the
+   * transcript
+   *
+   * @param failed Whether the flow ended with an error
+   */
+  private void endSession(boolean failed) {
+    // A captured response keeps the session open until it is decrypted
+    if (capturedGetDataResponse == null) {
+      closeArena();
+    }
+
+    if (transcriptTap != null) {
+      try {
+        transcriptTap.end(failed);
+      } catch (IOException e) {
+        // Recording is best effort, the tap itself went through
+      }
+    }
+  }
+
+  /**
+   * Runs the individual commands in the `get smart tap data` flow
+   *
+   * @param descriptiveText Smart Tap response data to be surfaced on the device
+   */
+  private void performCommands(StringBuilder descriptiveText) throws Exception {
+    // Command: `select ose`
+    deadline.begin(TapDeadline.Stage.SELECT_OSE);
+    performSelectOSECommand(descriptiveText);
+    endStage(TapDeadline.Stage.SELECT_OSE);
+
+    // Dispatch the routed applications in priority order, matched while parsing, all within the
+    // same field session
+    List<AidRouter.Handler> served = new ArrayList<>();
+    for (ApplicationEntry entry : selectOSEResponse.routedEntries) {
+      if (served.contains(entry.handler)) {
+        continue;
+      }
+
+      if (entry.handler == AidRouter.SMART_TAP) {
+        performSmartTap(descriptiveText);
+        served.add(entry.handler);
+      } else if (entry.handler.onApplication(entry, transport, descriptiveText)) {
+        served.add(entry.handler);
+      }
+    }
+
+    if (!served.contains(AidRouter.SMART_TAP)) {
+      // Smart TAP AID not present in `select ose` response
+      descriptiveText.append("\n* Smart Tap AID not detected!\n---");
+    }
+  }
+
+  /**
+   * Runs the Smart Tap commands after `select ose`
+   *
+   * @param descriptiveText Smart Tap response data to be surfaced on the device
+   */
+  private void performSmartTap(StringBuilder descriptiveText) throws Exception {
+    // Command: `select smart tap 2`
+    deadline.begin(TapDeadline.Stage.SELECT_SMART_TAP);
+    performSelectSmartTap(descriptiveText);
+    endStage(TapDeadline.Stage.SELECT_SMART_TAP);
+
+    // Command: `negotiate smart tap secure sessions`
+    deadline.begin(TapDeadline.Stage.NEGOTIATE);
+    performNegotiateCrypto(descriptiveText);
+    endStage(TapDeadline.Stage.NEGOTIATE);
+
+    // Command: `get smart tap data`
+    performGetData(descriptiveText);
+  }
+
+  /**
+   * Hands the `get smart tap data` response captured by {@link #run} to the decryption queue
+   *
+   * Call once the NFC session has ended. Does nothing unless decryption was deferred and the flow
+   * got as far as reading the pass
+   *
+   * @param decryptionQueue Queue to decrypt on
+   * @param callback Receives the result on the decryption thread
+   */
+  public void submitCapturedResponse(
+      DecryptionQueue decryptionQueue, DecryptionQueue.Callback callback) {
+
+    if (capturedGetDataResponse == null) {
+      return;
+    }
+
+    // Redemption values decrypted by the queue are reported on their way to the caller
+    if (tapAnalytics != null || tapEventPublisher != null) {
+      callback = new ReportingCallback(tapAnalytics, tapEventPublisher, tapId, callback);
+    }
+
+    // The queue closes the session arena once the response is decrypted
+    decryptionQueue.submit(capturedGetDataResponse, sessionSecrets, callback);
+
+    this.capturedGetDataResponse = null;
+    this.sessionSecrets = null;
+    this.arena = null;
+  }
+
+  /**
+   * Decrypts the `get smart tap data` response captured by {@link #run} on the calling thread
+   *
+   * Call once the NFC session has ended
+   *
+   * @return The decrypted response, or null unless decryption was deferred and the flow got as far
+   * as reading the pass
+   */
+  public GetDataResponse decryptCapturedResponse() throws Exception {
+    if (capturedGetDataResponse == null) {
+      return null;
+    }
+
+    acquireCryptoPermit();
+    try {
+      GetDataResponse getDataResponse =
+          new GetDataResponse(capturedGetDataResponse, sessionSecrets);
+
+      if (tapAnalytics != null) {
+        tapAnalytics.onRedemption(getDataResponse.decryptedSmartTapRedemptionValue);
+      }
+      return getDataResponse;
+    } catch (Exception e) {
+      if (tapAnalytics != null) {
+        tapAnalytics.onLateFailure(e);
+      }
+      if (tapEventPublisher != null) {
+        tapEventPublisher.failed(tapId, e);
+      }
+      throw e;
+    } finally {
+      releaseCryptoPermit();
+
+      this.capturedGetDataResponse = null;
+      this.sessionSecrets = null;
+      closeArena();
+    }
+  }
+
+  /**
+   * Performs `select ose` command and parses its response https://developers.google.com/wallet/smart-tap/reference/apdu-commands/select-other-system-environment
+   *
+   * @param descriptiveText Smart Tap response data to be surfaced on the device
+   */
+  private void performSelectOSECommand(StringBuilder descriptiveText)
+      throws Exception {
+
+    byte[] response = transport.transceive(SELECT_OSE_COMMAND.clone());
+
+    this.selectOSEResponse = new SelectOSEResponse(arena.track(response), arena, router);
+
+    descriptiveText
+        .append("\n----\nSent `select ose` command...\n")
+        .append("\nResponse parsed:\n");
+
+    // Response status
+    descriptiveText
+        .append("\n* Status:\n  ")
+        .append(selectOSEResponse.status)
+        .append(" (ISO 7816-4)\n");
+
+    // Wallet application label
+    descriptiveText
+        .append("\n* Wallet application label:\n  ")
+        .append(selectOSEResponse.walletApplicationLabel)
+        .append("\n");
+
+    // Mobile device nonce
+    descriptiveText
+        .append("\n* Mobile device nonce:\n  ")
+        .append(Hex.toHexString(selectOSEResponse.mobileDeviceNonce))
+        .append("\n");
+
+    // Mobile device ephemeral key
+    descriptiveText
+        .append("\n* Mobile device ephemeral key:\n  ")
+        .append(Hex.toHexString(selectOSEResponse.mobileDeviceEphemeralKey))
+        .append("\n");
+
+    // Application entries
+    for (String app : selectOSEResponse.applications) {
+      descriptiveText
+          .append("\n* Application entry:\n  ")
+          .append(app)
+          .append("\n");
+    }
+
+    // End
+    descriptiveText.append("\n----\n");
+  }
+
+  /**
+   * Performs `select smart tap 2` and parses its response https://developers.google.com/wallet/smart-tap/reference/apdu-commands/select-smart-tap-2
+   *
+   * @param descriptiveText Smart Tap response data to be surfaced on the device
+   */
+  private void performSelectSmartTap(StringBuilder descriptiveText)
+      throws Exception {
+
+    byte[] response = transport.transceive(SELECT_SMART_TAP_COMMAND.clone());
+
+    this.selectSmartTapResponse = new SelectSmartTapResponse(arena.track(response), arena);
+
+    descriptiveText
+        .append("\n----\nSent `select smart tap 2` command...\n")
+        .append("\nResponse parsed:\n");
+
+    // Status
+    descriptiveText
+        .append("\n* Status:\n  ")
+        .append(selectSmartTapResponse.status)
+        .append(" (ISO 7816-4)\n");
+
+    // Minimum version
+    descriptiveText
+        .append("\n* Minimum Version:\n  ")
+        .append(selectSmartTapResponse.minimumVersion)
+        .append("\n");
+
+    // Maximum version
+    descriptiveText
+        .append("\n* Maximum Version:\n  ")
+        .append(selectSmartTapResponse.maximumVersion)
+        .append("\n");
+
+    if (selectSmartTapResponse.mobileDeviceNonce != null) {
+      // Mobile device nonce
+      descriptiveText
+          .append("\n* Mobile Device Nonce:\n  ")
+          .append(Hex.toHexString(selectSmartTapResponse.mobileDeviceNonce))
+          .append("\n");
+    }
+
+    // End
+    descriptiveText.append("\n----\n");
+  }
+
+  /**
+   * Performs `negotiate smart tap secure sessions` and parses its response
+   * https://developers.google.com/wallet/smart-tap/reference/apdu-commands/negotiate-secure-sessions
+   *
+   * @param descriptiveText Smart Tap response data to be surfaced on the device
+   */
+  private void performNegotiateCrypto(StringBuilder descriptiveText)
+      throws Exception {
+
+    acquireCryptoPermit();
+    try {
+      this.negotiateCryptoCommand = new NegotiateCryptoCommand(
+          this.selectSmartTapResponse.mobileDeviceNonce, keyManager, arena);
+    } finally {
+      releaseCryptoPermit();
+    }
+
+    byte[] response = transport.transceive(
+        arena.track(negotiateCryptoCommand.commandToByteArray()));
+    this.negotiateCryptoResponse = new NegotiateCryptoResponse(arena.track(response), arena);
+    this.nextSequenceNumber = negotiateCryptoResponse.sequenceNumber + 1;
+
+    descriptiveText
+        .append("\n----\nSent `negotiate smart tap secure sessions` command...")
+        .append("\nResponse parsed:\n");
+
+    // Status last 4
+    descriptiveText
+        .append("\n* Status:\n  ")
+        .append(this.negotiateCryptoResponse.status)
+        .append(" (ISO 7816-4)\n");
+
+    // Mobile device ephemeral public key
+    descriptiveText
+        .append("\n* Mobile device ephemeral public key (compressed):\n  ")
+        .append(Hex.toHexString(this.negotiateCryptoResponse.mobileDeviceEphemeralPublicKey))
+        .append('\n');
+
+    // End
+    descriptiveText.append("\n----\n");
+  }
+
+  /**
+   * Performs `get smart tap data` and parses its response https://developers.google.com/wallet/smart-tap/reference/apdu-commands/get-data
+   *
+   * @param descriptiveText Smart Tap response data to be surfaced on the device
+   */
+  private void performGetData(StringBuilder descriptiveText) throws Exception {
+    deadline.begin(TapDeadline.Stage.GET_DATA);
+
+    // Not reused, even when the response was lost on the way
+    int sequenceNumber = nextSequenceNumber++;
+    GetDataCommand getDataCommand = new GetDataCommand(
+        this.negotiateCryptoCommand.sessionId,
+        this.negotiateCryptoCommand.collectorIdRecord,
+        sequenceNumber,
+        arena);
+
+    byte[] response = arena.track(transport.transceive(getDataCommand.commandToByteArray()));
+    this.passRead = true;
+    endStage(TapDeadline.Stage.GET_DATA);
+
+    SessionSecrets sessionSecrets = new SessionSecrets(
+        negotiateCryptoCommand,
+        negotiateCryptoResponse,
+        selectSmartTapResponse,
+        arena,
+        serviceObjectDecoder,
+        revocationFilter);
+
+    if (transcriptTap != null) {
+      transcriptTap.setSessionSecrets(sessionSecrets);
+    }
+
+    descriptiveText.append("\n----\nSent `get smart tap data` command...");
+
+    // Decryption can wait until the mobile device has left when the tap runs out of time
+    boolean overBudget = !deferDecryption && !deadline.fits(TapDeadline.Stage.DECRYPT);
+
+    if (deferDecryption || overBudget) {
+      // Surface a bad status right away, everything else waits until the NFC session ends
+      GetDataResponse.checkStatus(response);
+
+      this.capturedGetDataResponse = response;
+      this.sessionSecrets = sessionSecrets;
+
+      if (overBudget) {
+        descriptiveText.append("\nOver the tap budget");
+      }
+      descriptiveText.append("\nResponse captured, decrypting after the NFC session ends\n----\n");
+      return;
+    }
+
+    GetDataResponse getDataResponse;
+
+    deadline.begin(TapDeadline.Stage.DECRYPT);
+    acquireCryptoPermit();
+    try {
+      getDataResponse = new GetDataResponse(response, sessionSecrets);
+    } finally {
+      releaseCryptoPermit();
+    }
+    endStage(TapDeadline.Stage.DECRYPT);
+
+    // Decrypted smartTapRedemptionValue from the pass
+    descriptiveText.append("\nResponse parsed and decrypted, contents:\n  ");
+    descriptiveText.append(getDataResponse.decryptedSmartTapRedemptionValue);
+
+    if (tapAnalytics != null) {
+      tapAnalytics.onRedemption(getDataResponse.decryptedSmartTapRedemptionValue);
+    }
+
+    // Another lane may have redeemed the same pass moments ago
+    RedemptionCoordinator.Claim claim = null;
+    if (redemptionCoordinator != null) {
+      claim = redemptionCoordinator.claim(getDataResponse.decryptedSmartTapRedemptionValue);
+
+      if (claim.isDuplicate()) {
+        descriptiveText.append("\n  Already redeemed on ")
+            .append(claim.getHolder())
+            .append(", not redeemed again\n----\n");
+        return;
+      }
+    }
+
+    // Queue the redemption for the merchant
+    if (redemptionOutbox != null) {
+      redemptionOutbox.enqueue(
+          new RedemptionEvent(getDataResponse.decryptedSmartTapRedemptionValue));
+    }
+    if (claim != null) {
+      claim.commit();
+    }
+    if (tapEventPublisher != null) {
+      tapEventPublisher.redeemed(tapId, getDataResponse.decryptedSmartTapRedemptionValue);
+    }
+
+    // Member profile from the on-device store
+    if (memberStore != null) {
+      Member member = memberStore.lookup(getDataResponse.decryptedSmartTapRedemptionValue);
+      descriptiveText.append("\n  ").append(member == null ? "Not a member" : member);
+    }
+
+    // Other service objects in the bundle
+    if (getDataResponse.serviceObjects.size() > 1) {
+      for (ServiceObject serviceObject : getDataResponse.serviceObjects) {
+        descriptiveText.append("\n  `")
+            .append(serviceObject.getRecordType())
+            .append("`: ")
+            .append(serviceObject.isMalformed()
+                ? "malformed, skipped" : serviceObject.getRedemptionValue());
+      }
+    }
+
+    // End
+    descriptiveText.append("\n----\n");
+
+    // Command: `push smart tap data`
+    if (serviceUpdater != null) {
+      List<ServiceUpdate> updates = serviceUpdater.onServiceObjects(getDataResponse.serviceObjects);
+
+      // Updates are optional, the pass has been read
+      if (!updates.isEmpty() && deadline.fits(TapDeadline.Stage.PUSH_SERVICE)) {
+        deadline.begin(TapDeadline.Stage.PUSH_SERVICE);
+        performPushService(updates, nextSequenceNumber, descriptiveText);
+        endStage(TapDeadline.Stage.PUSH_SERVICE);
+      } else if (!updates.isEmpty()) {
+        descriptiveText.append("\n* Over the tap budget, service updates skipped: ")
+            .append(updates.size())
+            .append("\n");
+      }
+    }
+  }
+
+  /**
+   * Performs `push smart tap data` with every update, packed into as few commands as fit
+   * https://developers.google.com/wallet/smart-tap/reference/apdu-commands/push-service-data
+   *
+   * @param updates Service updates to push
+   * @param sequenceNumber The sequence number of the first command
+   * @param descriptiveText Smart Tap response data to be surfaced on the device
+   */
+  private void performPushService(
+      List<ServiceUpdate> updates, int sequenceNumber, StringBuilder descriptiveText)
+      throws Exception {
+
+    PushServiceCommand pushServiceCommand = new PushServiceCommand(
+        this.negotiateCryptoCommand.sessionId, sequenceNumber, updates);
+
+    for (NdefMessage request : pushServiceCommand.requests) {
+      byte[] response = arena.track(transport.transceive(
+          arena.track(PushServiceCommand.commandToByteArray(request))));
+
+      new PushServiceResponse(response, this.negotiateCryptoCommand.sessionId, arena);
+    }
+
+    descriptiveText.append("\n----\nSent `push smart tap data` command...")
+        .append("\n* Service updates: ")
+        .append(updates.size())
+        .append(" in ")
+        .append(pushServiceCommand.requests.size())
+        .append(pushServiceCommand.requests.size() == 1 ? " command" : " commands")
+        .append("\n----\n");
+  }
+
+  /**
+   * Ends the session, wiping the buffers it used
+   */
+  private void closeArena() {
+    if (arena != null) {
+      arena.close();
+      this.arena = null;
+    }
+  }
+
+  /**
+   * Waits for a turn to run cryptography when permits are shared between flows
+   */
+  private void acquireCryptoPermit() throws InterruptedException {
+    if (cryptoPermits != null) {
+      cryptoPermits.acquire();
+    }
+  }
+
+  private void releaseCryptoPermit() {
+    if (cryptoPermits != null) {
+      cryptoPermits.release();
+    }
+  }
+
+  /**
+   * Class counts the redemption values and failures of deferred decryption and publishes the
+   * failures, then passes them on
+   */
+  private static final class ReportingCallback implements DecryptionQueue.Callback {
+
+    private final TapAnalytics tapAnalytics;
+    private final TapEventPublisher tapEventPublisher;
+    private final long tapId;
+    private final DecryptionQueue.Callback callback;
+
+    ReportingCallback(TapAnalytics tapAnalytics, TapEventPublisher tapEventPublisher, long tapId,
+        DecryptionQueue.Callback callback) {
+
+      this.tapAnalytics = tapAnalytics;
+      this.tapEventPublisher = tapEventPublisher;
+      this.tapId = tapId;
+      this.callback = callback;
+    }
+
+    @Override
+    public void onDecrypted(GetDataResponse getDataResponse) {
+      // Published as redeemed by the caller, once it accepts the pass
+      if (tapAnalytics != null) {
+        tapAnalytics.onRedemption(getDataResponse.decryptedSmartTapRedemptionValue);
+      }
+      callback.onDecrypted(getDataResponse);
+    }
+
+    @Override
+    public void onDecryptionFailed(Exception e) {
+      if (tapAnalytics != null) {
+        tapAnalytics.onLateFailure(e);
+      }
+      if (tapEventPublisher != null) {
+        tapEventPublisher.failed(tapId, e);
+      }
+      callback.onDecryptionFailed(e);
+    }
+  }
+}
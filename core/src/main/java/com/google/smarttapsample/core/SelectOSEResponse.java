@@ -13,7 +13,7 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package com.google.smarttapsample;
+package com.google.smarttapsample.core;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -26,10 +26,11 @@ import org.bouncycastle.util.encoders.Hex;
  */
 class SelectOSEResponse {
 
-  ArrayList<byte[]> aids = new ArrayList<>();
+  ArrayList<ApplicationEntry> routedEntries = new ArrayList<>();
   String status;
   String walletApplicationLabel;
   String transactionMode;
+  int transactionDetails;
   byte[] mobileDeviceNonce;
   byte[] mobileDeviceEphemeralKey;
   ArrayList<String> applications = new ArrayList<>();
@@ -38,8 +39,10 @@ class SelectOSEResponse {
    * Constructor for the class
    *
    * @param response Response from the `select ose` command
+   * @param arena Arena of the session the response belongs to
+   * @param router Routes directory entries to handlers while they are parsed
    */
-  SelectOSEResponse(byte[] response) throws Exception {
+  SelectOSEResponse(byte[] response, SessionArena arena, AidRouter router) throws Exception {
     // Extract status
     this.status = Utils.getStatus(response);
 
@@ -51,7 +54,8 @@ class SelectOSEResponse {
 
     // Extract the data from the response
     try {
-      HashMap<String, ArrayList<byte[]>> baseTLV = Utils.parseTLV(Utils.extractPayload(response));
+      HashMap<String, ArrayList<byte[]>> baseTLV = Utils.parseTLV(
+          Utils.extractPayload(response, arena));
       HashMap<String, ArrayList<byte[]>> fciPPSEdata = checkBaseTemplateAndExtractProperties(
           baseTLV);
 
@@ -60,10 +64,11 @@ class SelectOSEResponse {
       }
 
       for (byte[] entry : Objects.requireNonNull(fciPPSEdata.get("61"))) {
-        if (getDirectoryEntry(entry)) {
-          return;
-        }
+        getDirectoryEntry(entry, router);
       }
+
+      // Dispatch order follows the application priority indicators
+      routedEntries.sort(ApplicationEntry::compareByPriority);
     } catch (Exception e) {
       throw new SmartTapException("Problem parsing `select ose` response: " + e);
     }
@@ -107,6 +112,7 @@ class SelectOSEResponse {
 
     // Get the transaction mode
     this.transactionMode = getTransactionMode(transactionDetailBitmap[0]);
+    this.transactionDetails = transactionDetailBitmap[0] & 0xFF;
 
     if (fciTemplateContentTLV.containsKey("C2")) {
       // Get the mobile device nonce
@@ -147,9 +153,9 @@ class SelectOSEResponse {
    * Gets the application details from a directory entry
    *
    * @param entry Byte-array representation of a directory entry
-   * @return Directory entry was successfully extracted
+   * @param router Routes the entry to a handler
    */
-  private boolean getDirectoryEntry(byte[] entry) throws Exception {
+  private void getDirectoryEntry(byte[] entry, AidRouter router) throws Exception {
     // Parse the entry
     HashMap<String, ArrayList<byte[]>> directoryEntryContentTLV = Utils.parseTLV(entry);
 
@@ -159,15 +165,15 @@ class SelectOSEResponse {
 
     // Get the ADF name
     byte[] aid = Objects.requireNonNull(directoryEntryContentTLV.get("4F")).get(0);
-    aids.add(aid);
     String adfName = Hex.toHexString(aid);
 
     // Entry data to output
     StringBuilder directoryEntry = new StringBuilder("\nApplication Name: " + adfName);
 
     // Get label
+    String label = null;
     if (directoryEntryContentTLV.containsKey("50")) {
-      String label = new String(Objects.requireNonNull(directoryEntryContentTLV.get("50")).get(0));
+      label = new String(Objects.requireNonNull(directoryEntryContentTLV.get("50")).get(0));
 
       directoryEntry
           .append(", Label: ")
@@ -175,11 +181,15 @@ class SelectOSEResponse {
     }
 
     // Get priority
+    int routingPriority = ApplicationEntry.NO_PRIORITY;
     if (directoryEntryContentTLV.containsKey("87")) {
       byte[] bytesNum = Objects.requireNonNull(directoryEntryContentTLV.get("87")).get(0);
       byte[] fourByteNum = new byte[]{0x00, 0x00, 0x00, bytesNum[0]};
       int priority = (int) Utils.unsignedIntToLong(fourByteNum);
 
+      // Order is in the low nibble, the high bit asks for cardholder confirmation
+      routingPriority = priority & 0x0F;
+
       directoryEntry
           .append(", Priority: ")
           .append(priority);
@@ -192,7 +202,13 @@ class SelectOSEResponse {
 
     applications.add(directoryEntry.toString());
 
-    return false;
+    // Route the entry while its AID is at hand
+    AidRouter.Handler handler = router.match(aid);
+    if (handler != null) {
+      routedEntries.add(
+          new ApplicationEntry(aid, label, routingPriority, applications.size(),
+              transactionDetails, handler));
+    }
   }
 
   /**
@@ -245,19 +261,7 @@ class SelectOSEResponse {
           discretionaryTemplateContentTLV.get("DF6B")).get(0);
     }
 
-    if (Arrays.equals(
-        aid,
-        new byte[]{
-            (byte) 0xa0,
-            (byte) 0x00,
-            (byte) 0x00,
-            (byte) 0x04,
-            (byte) 0x76,
-            (byte) 0xd0,
-            (byte) 0x00,
-            (byte) 0x01,
-            (byte) 0x11
-        })) {
+    if (Arrays.equals(aid, AidRouter.SMART_TAP_AID)) {
 
       // Get the Smart Tap capabilities
       getSmartTapCapabilities(directoryEntry, discretionaryTemplateContentTLV);
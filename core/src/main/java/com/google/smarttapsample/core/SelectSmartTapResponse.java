@@ -13,10 +13,7 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package com.google.smarttapsample;
-
-import android.nfc.NdefMessage;
-import java.util.Arrays;
+package com.google.smarttapsample.core;
 
 /**
  * Class encapsulates the response from the `select ose` command https://developers.google.com/wallet/smart-tap/reference/apdu-commands/select-smart-tap-2
@@ -32,8 +29,9 @@ class SelectSmartTapResponse {
    * Constructor for the class
    *
    * @param response Response from the `select smart tap 2` command
+   * @param arena Arena of the session the response belongs to
    */
-  SelectSmartTapResponse(byte[] response) throws Exception {
+  SelectSmartTapResponse(byte[] response, SessionArena arena) throws Exception {
     // Extract status
     this.status = Utils.getStatus(response);
 
@@ -43,23 +41,16 @@ class SelectSmartTapResponse {
 
     try {
       // Extract minimum and maximum versions
-      byte[] payload = Utils.extractPayload(response);
-      byte[] fourBytePayload = new byte[]{0x00, 0x00, payload[0], payload[1]};
-
-      minimumVersion = Integer.toString((int) Utils.unsignedIntToLong(fourBytePayload));
-
-      byte[] byteNum = Arrays.copyOfRange(response, 2, 4);
-      byte[] fourByteNum = new byte[]{0x00, 0x00, byteNum[0], byteNum[1]};
+      byte[] payload = Utils.extractPayload(response, arena);
 
-      maximumVersion = Integer.toString((int) Utils.unsignedIntToLong(fourByteNum));
+      minimumVersion = Integer.toString(SelectSmartTapLayout.getMinimumVersion(payload));
+      maximumVersion = Integer.toString(SelectSmartTapLayout.getMaximumVersion(payload));
 
       // Extract mobile device nonce
-      NdefMessage mdnNdefMessage = new NdefMessage(
-          Arrays.copyOfRange(response, 4, response.length - 2));
-      this.mobileDeviceNonce = Arrays.copyOfRange(
+      NdefMessage mdnNdefMessage = arena.trackPayloads(SelectSmartTapLayout.getRecords(payload));
+      this.mobileDeviceNonce = MobileDeviceNonceLayout.getNonce(
           mdnNdefMessage.getRecords()[0].getPayload(),
-          1,
-          mdnNdefMessage.getRecords()[0].getPayload().length);
+          arena);
     } catch (Exception e) {
       throw new SmartTapException("Problem parsing `select smart tap 2` response: " + e);
     }
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Class encapsulates one service object (pass) from a decrypted record bundle
+ *
+ * Fields are the records inside the service object, keyed by record ID, or by record type for
+ * records without an ID (e.g. `n` for the Smart Tap redemption value, `oid` for the object ID).
+ * The service object is parsed on the first field lookup, not before. Once the session ends only
+ * the fields registered with the {@link ServiceObjectDecoder} are kept. A service object that does
+ * not parse is flagged as malformed and has no fields, the rest of the bundle is still read
+ */
+public final class ServiceObject {
+
+  // Record ID of the `smartTapRedemptionValue`
+  static final String REDEMPTION_VALUE = "n";
+
+  // Record type of the object ID, which `push smart tap data` addresses the object by
+  static final String OBJECT_ID = "oid";
+
+  private final ServiceObjectType type;
+  private final String recordType;
+  private final String[] registeredFields;
+  private final HashMap<String, byte[]> fields = new HashMap<>();
+  private byte[] payload;
+  private NdefRecord[] records;
+  private boolean malformed;
+
+  /**
+   * Constructor for the class
+   *
+   * @param type Service object type
+   * @param recordType NDEF record type of the service object
+   * @param payload NDEF record payload, owned by the session
+   * @param registeredFields Fields to keep once the session ends
+   */
+  ServiceObject(
+      ServiceObjectType type,
+      String recordType,
+      byte[] payload,
+      String[] registeredFields) {
+
+    this.type = type;
+    this.recordType = recordType;
+    this.payload = payload;
+    this.registeredFields = registeredFields;
+  }
+
+  public ServiceObjectType getType() {
+    return type;
+  }
+
+  public String getRecordType() {
+    return recordType;
+  }
+
+  /**
+   * Gets whether the service object failed to parse, known once a field was looked up
+   *
+   * @return Whether the service object is malformed, its fields are then all absent
+   */
+  public boolean isMalformed() {
+    return malformed;
+  }
+
+  /**
+   * Gets a field's record payload
+   *
+   * @param fieldId Record ID, or record type for records without an ID
+   * @return Copy of the record payload, or null if absent or not registered once the session ended
+   */
+  public byte[] getField(String fieldId) {
+    if (fields.containsKey(fieldId)) {
+      byte[] value = fields.get(fieldId);
+      return value == null ? null : value.clone();
+    }
+
+    if (payload == null) {
+      return null;
+    }
+
+    byte[] value = findField(fieldId);
+    fields.put(fieldId, value);
+
+    return value == null ? null : value.clone();
+  }
+
+  /**
+   * Gets a text field, skipping the leading format byte
+   *
+   * @param fieldId Record ID, or record type for records without an ID
+   * @return Text, or null if absent or not registered once the session ended
+   */
+  public String getText(String fieldId) {
+    byte[] value = getField(fieldId);
+
+    if (value == null || value.length == 0) {
+      return null;
+    }
+
+    return new String(value, 1, value.length - 1, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Gets the Smart Tap redemption value, the record with ID `n`
+   *
+   * @return Redemption value, or null if absent
+   */
+  public String getRedemptionValue() {
+    return getText(REDEMPTION_VALUE);
+  }
+
+  /**
+   * Gets the object ID, the record of type `oid`
+   *
+   * @return Copy of the object ID, or null if absent
+   */
+  public byte[] getObjectId() {
+    return getField(OBJECT_ID);
+  }
+
+  /**
+   * Calls the visitor method for this service object's type
+   *
+   * @param visitor Visitor to call
+   */
+  public void accept(ServiceObjectVisitor visitor) {
+    type.accept(visitor, this);
+  }
+
+  /**
+   * Resolves the registered fields and drops the session-owned payload
+   *
+   * Called before the session arena is closed
+   */
+  void detach() {
+    for (String fieldId : registeredFields) {
+      getField(fieldId);
+    }
+
+    this.payload = null;
+    this.records = null;
+  }
+
+  /**
+   * Looks up a field in the service object, parsing it on first use
+   *
+   * @param fieldId Record ID, or record type for records without an ID
+   * @return Copy of the record payload, or null if absent
+   */
+  private byte[] findField(String fieldId) {
+    if (records == null) {
+      try {
+        this.records = new NdefMessage(payload).getRecords();
+      } catch (FormatException e) {
+        this.malformed = true;
+        this.records = new NdefRecord[0];
+      }
+    }
+
+    byte[] key = fieldId.getBytes(StandardCharsets.US_ASCII);
+    for (NdefRecord record : records) {
+      byte[] id = record.getId();
+
+      if (Arrays.equals(id.length > 0 ? id : record.getType(), key)) {
+        return record.getPayload().clone();
+      }
+    }
+
+    return null;
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Class decodes every service object in a decrypted record bundle
+ * https://developers.google.com/wallet/smart-tap/reference/ndef-records/service-object-records
+ *
+ * Each service object's type is resolved through {@link ServiceObjectType}'s lookup table and its
+ * contents are left unparsed until a field is asked for. Consumers register the fields they need
+ * per type; those are kept once the session's buffers are wiped, everything else is dropped
+ */
+public final class ServiceObjectDecoder {
+
+  private static final String[] NO_FIELDS = new String[0];
+
+  private final String[][] registeredFields = new String[ServiceObjectType.values().length][];
+
+  /**
+   * Constructor for the class, no fields are registered
+   */
+  public ServiceObjectDecoder() {
+    Arrays.fill(registeredFields, NO_FIELDS);
+  }
+
+  /**
+   * Creates a decoder that keeps the Smart Tap redemption value and object ID of every type
+   *
+   * The object ID is what {@link ServiceUpdate} addresses the object by
+   *
+   * @return New decoder
+   */
+  public static ServiceObjectDecoder withRedemptionValues() {
+    ServiceObjectDecoder decoder = new ServiceObjectDecoder();
+
+    for (ServiceObjectType type : ServiceObjectType.values()) {
+      decoder.register(type, ServiceObject.REDEMPTION_VALUE, ServiceObject.OBJECT_ID);
+    }
+
+    return decoder;
+  }
+
+  /**
+   * Registers fields to keep for a service object type
+   *
+   * @param type Service object type
+   * @param fieldIds Record IDs, or record types for records without an ID
+   * @return This decoder
+   */
+  public synchronized ServiceObjectDecoder register(ServiceObjectType type, String... fieldIds) {
+    LinkedHashSet<String> fields = new LinkedHashSet<>(
+        Arrays.asList(registeredFields[type.ordinal()]));
+    fields.addAll(Arrays.asList(fieldIds));
+
+    registeredFields[type.ordinal()] = fields.toArray(NO_FIELDS);
+    return this;
+  }
+
+  /**
+   * Decodes the service objects in a decrypted record bundle
+   *
+   * @param bundle Decrypted record bundle
+   * @param arena Arena of the session, parsed service value records are wiped with it
+   * @return Every service object, in bundle order, still attached to the session's buffers
+   */
+  List<ServiceObject> decode(NdefMessage bundle, SessionArena arena) throws FormatException {
+    List<ServiceObject> serviceObjects = new ArrayList<>();
+
+    for (NdefRecord serviceValue : bundle.getRecords()) {
+      if (!ServiceValueLayout.isType(serviceValue.getType())) {
+        continue;
+      }
+
+      NdefMessage services = arena.trackPayloads(
+          ServiceValueLayout.getRecords(serviceValue.getPayload()));
+
+      for (NdefRecord service : services.getRecords()) {
+        ServiceObjectType type = ServiceObjectType.fromRecordType(service.getType());
+
+        serviceObjects.add(new ServiceObject(
+            type,
+            new String(service.getType(), StandardCharsets.US_ASCII),
+            service.getPayload(),
+            registeredFields[type.ordinal()]));
+      }
+    }
+
+    return serviceObjects;
+  }
+}
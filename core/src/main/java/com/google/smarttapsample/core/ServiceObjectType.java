@@ -0,0 +1,151 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+/**
+ * Enum of the Smart Tap service object types found in a decrypted record bundle
+ * https://developers.google.com/wallet/smart-tap/reference/ndef-records/service-object-records
+ */
+public enum ServiceObjectType {
+  LOYALTY("ly", 0x03) {
+    @Override
+    void accept(ServiceObjectVisitor visitor, ServiceObject serviceObject) {
+      visitor.visitLoyalty(serviceObject);
+    }
+  },
+  OFFER("of", 0x05) {
+    @Override
+    void accept(ServiceObjectVisitor visitor, ServiceObject serviceObject) {
+      visitor.visitOffer(serviceObject);
+    }
+  },
+  GIFT_CARD("gc", 0x04) {
+    @Override
+    void accept(ServiceObjectVisitor visitor, ServiceObject serviceObject) {
+      visitor.visitGiftCard(serviceObject);
+    }
+  },
+  PRIVATE_LABEL_CARD("pl", 0x06) {
+    @Override
+    void accept(ServiceObjectVisitor visitor, ServiceObject serviceObject) {
+      visitor.visitPrivateLabelCard(serviceObject);
+    }
+  },
+  EVENT_TICKET("et", 0x07) {
+    @Override
+    void accept(ServiceObjectVisitor visitor, ServiceObject serviceObject) {
+      visitor.visitEventTicket(serviceObject);
+    }
+  },
+  FLIGHT("fl", 0x08) {
+    @Override
+    void accept(ServiceObjectVisitor visitor, ServiceObject serviceObject) {
+      visitor.visitFlight(serviceObject);
+    }
+  },
+  TRANSIT("tr", 0x09) {
+    @Override
+    void accept(ServiceObjectVisitor visitor, ServiceObject serviceObject) {
+      visitor.visitTransit(serviceObject);
+    }
+  },
+  GENERIC("gr", 0x10) {
+    @Override
+    void accept(ServiceObjectVisitor visitor, ServiceObject serviceObject) {
+      visitor.visitGeneric(serviceObject);
+    }
+  },
+  UNKNOWN("", 0x00) {
+    @Override
+    void accept(ServiceObjectVisitor visitor, ServiceObject serviceObject) {
+      visitor.visitUnknown(serviceObject);
+    }
+  };
+
+  // Types are two lowercase letters, so a 26 x 26 table resolves them without hashing
+  private static final ServiceObjectType[] TABLE = new ServiceObjectType[26 * 26];
+
+  static {
+    for (ServiceObjectType type : values()) {
+      if (type != UNKNOWN) {
+        TABLE[index(type.recordType.charAt(0), type.recordType.charAt(1))] = type;
+      }
+    }
+  }
+
+  private final String recordType;
+  private final int serviceType;
+
+  ServiceObjectType(String recordType, int serviceType) {
+    this.recordType = recordType;
+    this.serviceType = serviceType;
+  }
+
+  /**
+   * Gets the NDEF record type of the service object
+   *
+   * @return Record type, e.g. `ly`, empty for {@link #UNKNOWN}
+   */
+  public String getRecordType() {
+    return recordType;
+  }
+
+  /**
+   * Gets the service type byte, as used to address the service in `get smart tap data` and
+   * `push smart tap data`
+   * https://developers.google.com/wallet/smart-tap/reference/apdu-commands/get-data#service_type_byte
+   *
+   * @return Service type, 0 for {@link #UNKNOWN}
+   */
+  public int getServiceType() {
+    return serviceType;
+  }
+
+  /**
+   * Calls the visitor method for this type
+   *
+   * @param visitor Visitor to call
+   * @param serviceObject Service object of this type
+   */
+  abstract void accept(ServiceObjectVisitor visitor, ServiceObject serviceObject);
+
+  /**
+   * Looks up the service object type of an NDEF record type
+   *
+   * @param recordType NDEF record type
+   * @return Service object type, {@link #UNKNOWN} if not a known type
+   */
+  static ServiceObjectType fromRecordType(byte[] recordType) {
+    if (recordType.length != 2) {
+      return UNKNOWN;
+    }
+
+    int index = index(recordType[0], recordType[1]);
+    if (index < 0) {
+      return UNKNOWN;
+    }
+
+    ServiceObjectType type = TABLE[index];
+    return type == null ? UNKNOWN : type;
+  }
+
+  private static int index(int first, int second) {
+    int a = first - 'a';
+    int b = second - 'a';
+
+    return a >= 0 && a < 26 && b >= 0 && b < 26 ? a * 26 + b : -1;
+  }
+}
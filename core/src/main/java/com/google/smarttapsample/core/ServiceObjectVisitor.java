@@ -0,0 +1,56 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+/**
+ * Interface for consumers of the service objects in a `get smart tap data` response
+ *
+ * Override the methods for the pass types of interest, the others do nothing
+ */
+public interface ServiceObjectVisitor {
+
+  default void visitLoyalty(ServiceObject loyalty) {
+  }
+
+  default void visitOffer(ServiceObject offer) {
+  }
+
+  default void visitGiftCard(ServiceObject giftCard) {
+  }
+
+  default void visitPrivateLabelCard(ServiceObject privateLabelCard) {
+  }
+
+  default void visitEventTicket(ServiceObject eventTicket) {
+  }
+
+  default void visitFlight(ServiceObject flight) {
+  }
+
+  default void visitTransit(ServiceObject transit) {
+  }
+
+  default void visitGeneric(ServiceObject generic) {
+  }
+
+  /**
+   * Called for service object types this version does not know
+   *
+   * @param serviceObject Service object, see {@link ServiceObject#getRecordType()}
+   */
+  default void visitUnknown(ServiceObject serviceObject) {
+  }
+}
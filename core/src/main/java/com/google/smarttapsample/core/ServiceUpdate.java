@@ -0,0 +1,155 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Class encapsulates a status update for one service object, pushed to the mobile device with
+ * `push smart tap data` https://developers.google.com/wallet/smart-tap/reference/apdu-commands/push-service-data
+ *
+ * Becomes a service status NDEF record holding the service ID (service type and object ID), the
+ * usage status with an optional description, and optionally a balance update or the removal of the
+ * pass
+ */
+public final class ServiceUpdate {
+
+  /**
+   * Enum of the usage statuses reported for a service object
+   */
+  public enum Usage {
+    UNSPECIFIED(0x00),
+    SUCCESS(0x01),
+    INVALID_FORMAT(0x02),
+    INVALID_VALUE(0x03);
+
+    final int value;
+
+    Usage(int value) {
+      this.value = value;
+    }
+  }
+
+  // Service update operations
+  private static final int OPERATION_SET_BALANCE = 0x01;
+  private static final int OPERATION_REMOVE = 0x02;
+
+  private final int serviceType;
+  private final byte[] objectId;
+  private final Usage usage;
+  private byte[] description = new byte[0];
+  private int operation;
+  private byte[] operationValue;
+
+  /**
+   * Constructor for the class
+   *
+   * @param serviceObject Service object read from the pass, with its object ID
+   * @param usage How the service object was used
+   */
+  public ServiceUpdate(ServiceObject serviceObject, Usage usage) {
+    if (serviceObject.getType() == ServiceObjectType.UNKNOWN) {
+      throw new IllegalArgumentException("Unknown service object type");
+    }
+
+    byte[] objectId = serviceObject.getObjectId();
+    if (objectId == null) {
+      throw new IllegalArgumentException("Service object has no object ID, register `oid`");
+    }
+
+    this.serviceType = serviceObject.getType().getServiceType();
+    this.objectId = objectId;
+    this.usage = usage;
+  }
+
+  /**
+   * Creates an update marking a service object redeemed
+   *
+   * @param serviceObject Service object read from the pass
+   * @return New update
+   */
+  public static ServiceUpdate redeemed(ServiceObject serviceObject) {
+    return new ServiceUpdate(serviceObject, Usage.SUCCESS);
+  }
+
+  /**
+   * Sets the text shown with the usage, e.g. `Offer redeemed`
+   *
+   * @param description Description
+   * @return This update
+   */
+  public ServiceUpdate setDescription(String description) {
+    this.description = description.getBytes(StandardCharsets.UTF_8);
+    return this;
+  }
+
+  /**
+   * Sets a new balance for the service object, e.g. loyalty points or gift card value
+   *
+   * @param balance New balance
+   * @return This update
+   */
+  public ServiceUpdate setBalance(long balance) {
+    this.operation = OPERATION_SET_BALANCE;
+    this.operationValue = ByteBuffer.allocate(Long.BYTES).putLong(balance).array();
+    return this;
+  }
+
+  /**
+   * Asks the mobile device to remove the pass, e.g. a single-use offer
+   *
+   * @return This update
+   */
+  public ServiceUpdate removePass() {
+    this.operation = OPERATION_REMOVE;
+    this.operationValue = new byte[0];
+    return this;
+  }
+
+  /**
+   * Creates the service status NDEF record
+   *
+   * @return Service status NDEF record
+   */
+  NdefRecord toRecord() {
+    // Service ID
+    byte[] serviceId = new byte[ServiceIdLayout.length(objectId.length)];
+    ServiceIdLayout.write(serviceId, 0, serviceType, objectId);
+
+    // Usage
+    byte[] serviceUsage = new byte[ServiceUsageLayout.length(description.length)];
+    ServiceUsageLayout.write(serviceUsage, 0, usage.value, description);
+
+    NdefMessage serviceStatus;
+    if (operationValue == null) {
+      serviceStatus = new NdefMessage(
+          ServiceIdLayout.record(serviceId),
+          ServiceUsageLayout.record(serviceUsage));
+    } else {
+      // Balance update or removal
+      byte[] serviceUpdate = new byte[ServiceUpdateLayout.length(operationValue.length)];
+      ServiceUpdateLayout.write(serviceUpdate, 0, operation, operationValue);
+
+      serviceStatus = new NdefMessage(
+          ServiceIdLayout.record(serviceId),
+          ServiceUsageLayout.record(serviceUsage),
+          ServiceUpdateLayout.record(serviceUpdate));
+    }
+
+    return ServiceStatusLayout.record(serviceStatus.toByteArray());
+  }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.util.List;
+
+/**
+ * Interface for deciding the updates to push back once the pass has been read
+ *
+ * Called on the tap path while the mobile device is still in the field, so it should only look at
+ * local state
+ */
+public interface ServiceUpdater {
+
+  /**
+   * Decides the updates for the service objects read from the pass
+   *
+   * @param serviceObjects Service objects from the decrypted `get smart tap data` response
+   * @return Updates to push in one `push smart tap data` exchange, empty for none
+   */
+  List<ServiceUpdate> onServiceObjects(List<ServiceObject> serviceObjects);
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class lends the byte arrays used during one tap and wipes them all when the session ends
+ *
+ * Command builders, response parsers and decryption borrow their buffers here, and arrays created
+ * elsewhere (APDU responses, signatures, decrypted NDEF payloads) are tracked. Closing the arena
+ * zeroizes every borrowed or tracked array and keeps it for the next session, so key material does
+ * not linger on the heap until GC and steady-state taps allocate little.
+ *
+ * An arena belongs to one session at a time and is not thread-safe. It may be handed to another
+ * thread, e.g. for deferred decryption, as long as the hand-off is synchronized. Arrays from the
+ * arena must not be used after {@link #close()}.
+ */
+public final class SessionArena implements AutoCloseable {
+
+  // Bounds on what is kept for reuse, anything beyond is wiped and left to GC
+  private static final int MAX_POOLED_ARENAS = 64;
+  private static final int MAX_BUFFERS_PER_LENGTH = 4;
+  private static final int MAX_POOLED_LENGTH = 16 * 1024;
+  private static final int MIN_SCRATCH_LENGTH = 64;
+
+  private static final ConcurrentLinkedQueue<SessionArena> POOL = new ConcurrentLinkedQueue<>();
+  private static final AtomicInteger POOLED = new AtomicInteger();
+
+  private final HashMap<Integer, ArrayDeque<byte[]>> free = new HashMap<>();
+  private final IdentityHashMap<byte[], Boolean> lent = new IdentityHashMap<>();
+  private final ArrayList<byte[]> lentInOrder = new ArrayList<>();
+
+  private SessionArena() {
+  }
+
+  /**
+   * Takes an arena for a new session, reusing one from an earlier session if available
+   *
+   * @return Arena owned by the caller until {@link #close()}
+   */
+  static SessionArena acquire() {
+    SessionArena arena = POOL.poll();
+
+    if (arena == null) {
+      return new SessionArena();
+    }
+
+    POOLED.decrementAndGet();
+    return arena;
+  }
+
+  /**
+   * Lends an array of exactly the given length, for arrays whose length is meaningful
+   *
+   * Contents are zero
+   *
+   * @param length Length of the array
+   * @return Array owned by the session
+   */
+  byte[] allocate(int length) {
+    ArrayDeque<byte[]> buffers = free.get(length);
+    byte[] buffer = buffers == null ? null : buffers.poll();
+
+    if (buffer == null) {
+      buffer = new byte[length];
+    }
+
+    return track(buffer);
+  }
+
+  /**
+   * Lends a scratch array of at least the given length, rounded up so sizes repeat across taps
+   *
+   * Contents are zero
+   *
+   * @param length Minimum length of the array
+   * @return Array owned by the session
+   */
+  byte[] allocateScratch(int length) {
+    int rounded = MIN_SCRATCH_LENGTH;
+    while (rounded < length) {
+      rounded <<= 1;
+    }
+
+    return allocate(rounded);
+  }
+
+  /**
+   * Copies a range into an array lent by the arena, like {@link Arrays#copyOfRange}
+   *
+   * @param source Array to copy from
+   * @param from Start of the range, inclusive
+   * @param to End of the range, exclusive
+   * @return Array owned by the session
+   */
+  byte[] copyOfRange(byte[] source, int from, int to) {
+    byte[] copy = allocate(to - from);
+    System.arraycopy(source, from, copy, 0, copy.length);
+    return copy;
+  }
+
+  /**
+   * Makes the arena wipe an array created elsewhere when the session ends
+   *
+   * @param buffer Array no longer needed after the session, may be null
+   * @return The same array
+   */
+  byte[] track(byte[] buffer) {
+    if (buffer != null && lent.put(buffer, Boolean.TRUE) == null) {
+      lentInOrder.add(buffer);
+    }
+
+    return buffer;
+  }
+
+  /**
+   * Tracks the payloads of all records in a parsed message
+   *
+   * @param message Message holding session data
+   * @return The same message
+   */
+  NdefMessage trackPayloads(NdefMessage message) {
+    for (NdefRecord record : message.getRecords()) {
+      track(record.getPayload());
+    }
+
+    return message;
+  }
+
+  /**
+   * Ends the session: wipes every lent or tracked array and keeps the arena for reuse
+   */
+  @Override
+  public void close() {
+    for (byte[] buffer : lentInOrder) {
+      Arrays.fill(buffer, (byte) 0);
+
+      if (buffer.length == 0 || buffer.length > MAX_POOLED_LENGTH) {
+        continue;
+      }
+
+      ArrayDeque<byte[]> buffers = free.computeIfAbsent(buffer.length, k -> new ArrayDeque<>());
+      if (buffers.size() < MAX_BUFFERS_PER_LENGTH) {
+        buffers.add(buffer);
+      }
+    }
+
+    lentInOrder.clear();
+    lent.clear();
+
+    if (POOLED.incrementAndGet() <= MAX_POOLED_ARENAS) {
+      POOL.add(this);
+    } else {
+      POOLED.decrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Class encapsulates a secret key over a range of an array lent by a {@link SessionArena}
+ *
+ * Unlike `SecretKeySpec`, which keeps a copy of the key bytes that nothing wipes, the key is read
+ * from the arena's array, and the copies handed to providers by {@link #getEncoded()} are lent by
+ * the arena too. All of them are wiped when the session ends. What a provider derives from the key
+ * inside a `Cipher` or `Mac` (AES round keys, HMAC pads) is out of reach and lives until GC.
+ *
+ * Not serializable in practice: the arena and its array are not written out
+ */
+final class SessionKey implements SecretKey {
+
+  private static final long serialVersionUID = 1L;
+
+  private final transient SessionArena arena;
+  private final transient byte[] source;
+  private final transient int offset;
+  private final transient int length;
+  private final String algorithm;
+  private transient boolean destroyed;
+
+  /**
+   * Constructor for the class
+   *
+   * @param arena Arena of the session, lends the copies handed out
+   * @param source Array lent by the arena holding the key
+   * @param offset Offset of the key in the array
+   * @param length Length of the key
+   * @param algorithm Key algorithm, e.g. `AES` or `HmacSHA256`
+   */
+  SessionKey(SessionArena arena, byte[] source, int offset, int length, String algorithm) {
+    this.arena = arena;
+    this.source = source;
+    this.offset = offset;
+    this.length = length;
+    this.algorithm = algorithm;
+  }
+
+  @Override
+  public String getAlgorithm() {
+    return algorithm;
+  }
+
+  @Override
+  public String getFormat() {
+    return "RAW";
+  }
+
+  /**
+   * Gets a copy of the key, as the `Key` contract requires
+   *
+   * @return Copy lent by the arena, wiped when the session ends
+   */
+  @Override
+  public byte[] getEncoded() {
+    if (destroyed) {
+      throw new IllegalStateException("Key destroyed");
+    }
+
+    return arena.copyOfRange(source, offset, offset + length);
+  }
+
+  /**
+   * Stops handing out the key, the arena wipes the bytes when the session ends
+   */
+  @Override
+  public void destroy() {
+    this.destroyed = true;
+  }
+
+  @Override
+  public boolean isDestroyed() {
+    return destroyed;
+  }
+}
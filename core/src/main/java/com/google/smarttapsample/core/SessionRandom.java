@@ -0,0 +1,215 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.SecureRandomSpi;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class provides the random bytes used on the tap path: session IDs, terminal nonces and terminal
+ * ephemeral keys
+ *
+ * Each thread gets its own DRBG (NIST SP 800-90A `DRBG` where available, the platform default
+ * `SecureRandom` otherwise, e.g. on Android). Each one is seeded independently from the platform
+ * entropy source the first time the thread uses it. There is no shared state to contend on apart
+ * from the session ID counter. Output is drawn ahead of time into a per-thread buffer.
+ * {@link #prefetch} refills it between taps so the hot path normally only copies bytes out, and
+ * bytes are wiped from the buffer as they are handed out.
+ *
+ * Session IDs are 8 bytes: 4 fresh random bytes followed by a bijective mix of a process-wide
+ * counter. Because the mix is a bijection, no two session IDs issued by one process share their
+ * last 4 bytes until 2^32 IDs have been issued, so IDs never repeat within a process. Across
+ * processes and terminals, two IDs collide with probability 2^-64.
+ */
+public final class SessionRandom {
+
+  private static final int BUFFER_SIZE = 256;
+
+  private static final ThreadLocal<SessionRandom> CURRENT =
+      ThreadLocal.withInitial(SessionRandom::new);
+
+  private static final AtomicInteger SESSION_COUNTER = new AtomicInteger();
+  private static final int SESSION_KEY = new SecureRandom().nextInt();
+
+  private final SecureRandom drbg;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private final SecureRandom bufferedSecureRandom;
+  private int position = BUFFER_SIZE;
+
+  private SessionRandom() {
+    this.drbg = newDrbg();
+    this.bufferedSecureRandom = new BufferedSecureRandom(new BufferedSpi(this));
+  }
+
+  /**
+   * Tops up this thread's buffer, call when the thread is otherwise idle, e.g. between taps
+   */
+  public static void prefetch() {
+    SessionRandom current = CURRENT.get();
+
+    if (current.position > BUFFER_SIZE / 2) {
+      current.refill();
+    }
+  }
+
+  /**
+   * Fills an array with random bytes
+   *
+   * @param length Number of bytes
+   * @return Random bytes
+   */
+  static byte[] nextBytes(int length) {
+    return nextBytes(new byte[length]);
+  }
+
+  /**
+   * Fills an existing array with random bytes, e.g. one lent by a {@link SessionArena}
+   *
+   * @param bytes Array to fill
+   * @return The same array
+   */
+  static byte[] nextBytes(byte[] bytes) {
+    CURRENT.get().fill(bytes, 0, bytes.length);
+    return bytes;
+  }
+
+  /**
+   * Generates a session ID that does not repeat, see the class documentation
+   *
+   * @return 8-byte session ID
+   */
+  static byte[] nextSessionId() {
+    byte[] sessionId = new byte[8];
+    CURRENT.get().fill(sessionId, 0, 4);
+
+    int mixed = mix(SESSION_COUNTER.getAndIncrement() ^ SESSION_KEY);
+    sessionId[4] = (byte) (mixed >>> 24);
+    sessionId[5] = (byte) (mixed >>> 16);
+    sessionId[6] = (byte) (mixed >>> 8);
+    sessionId[7] = (byte) mixed;
+
+    return sessionId;
+  }
+
+  /**
+   * Gets this thread's random source as a `SecureRandom`, e.g. for key generation
+   *
+   * @return `SecureRandom` drawing from this thread's buffer
+   */
+  static SecureRandom secureRandom() {
+    return CURRENT.get().bufferedSecureRandom;
+  }
+
+  /**
+   * Copies buffered random bytes out, refilling the buffer if it runs short
+   *
+   * @param bytes Destination
+   * @param offset Offset in the destination
+   * @param length Number of bytes
+   */
+  private void fill(byte[] bytes, int offset, int length) {
+    while (length > 0) {
+      if (position == BUFFER_SIZE) {
+        refill();
+      }
+
+      int count = Math.min(length, BUFFER_SIZE - position);
+      System.arraycopy(buffer, position, bytes, offset, count);
+      Arrays.fill(buffer, position, position + count, (byte) 0);
+
+      position += count;
+      offset += count;
+      length -= count;
+    }
+  }
+
+  private void refill() {
+    drbg.nextBytes(buffer);
+    this.position = 0;
+  }
+
+  /**
+   * Creates a DRBG seeded from the platform entropy source
+   *
+   * @return New DRBG instance
+   */
+  private static SecureRandom newDrbg() {
+    try {
+      return SecureRandom.getInstance("DRBG");
+    } catch (NoSuchAlgorithmException e) {
+      return new SecureRandom();
+    }
+  }
+
+  /**
+   * 32-bit bijective mix (MurmurHash3 finalizer), every step is invertible
+   *
+   * @param value Value to mix
+   * @return Mixed value
+   */
+  private static int mix(int value) {
+    value ^= value >>> 16;
+    value *= 0x85EBCA6B;
+    value ^= value >>> 13;
+    value *= 0xC2B2AE35;
+    value ^= value >>> 16;
+    return value;
+  }
+
+  /**
+   * `SecureRandom` facade over a {@link SessionRandom} buffer
+   */
+  private static final class BufferedSecureRandom extends SecureRandom {
+
+    private static final long serialVersionUID = 1L;
+
+    BufferedSecureRandom(SecureRandomSpi spi) {
+      super(spi, null);
+    }
+  }
+
+  /**
+   * Serves `SecureRandom` requests from a {@link SessionRandom} buffer
+   */
+  private static final class BufferedSpi extends SecureRandomSpi {
+
+    private static final long serialVersionUID = 1L;
+
+    private final SessionRandom sessionRandom;
+
+    BufferedSpi(SessionRandom sessionRandom) {
+      this.sessionRandom = sessionRandom;
+    }
+
+    @Override
+    protected void engineSetSeed(byte[] seed) {
+      sessionRandom.drbg.setSeed(seed);
+    }
+
+    @Override
+    protected void engineNextBytes(byte[] bytes) {
+      sessionRandom.fill(bytes, 0, bytes.length);
+    }
+
+    @Override
+    protected byte[] engineGenerateSeed(int numBytes) {
+      return sessionRandom.drbg.generateSeed(numBytes);
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.security.PrivateKey;
+
+/**
+ * Class captures the session material needed to decrypt a `get smart tap data` response
+ *
+ * Everything here is known once `negotiate smart tap secure sessions` completes, so the response
+ * can be decrypted after the mobile device has left the field
+ */
+public class SessionSecrets {
+
+  final byte[] mobileDeviceEphemeralPublicKey;
+  final PrivateKey terminalEphemeralPrivateKey;
+  final byte[] terminalNonce;
+  final byte[] collectorId;
+  final byte[] terminalEphemeralPublicKeyCompressed;
+  final byte[] signedData;
+  final byte[] mobileDeviceNonce;
+  final SessionArena arena;
+  final ServiceObjectDecoder serviceObjectDecoder;
+  final RevocationFilter revocationFilter;
+
+  /**
+   * Constructor for the class
+   *
+   * @param negotiateCryptoCommand The `negotiate smart tap secure sessions` command sent
+   * @param negotiateCryptoResponse The `negotiate smart tap secure sessions` response received
+   * @param selectSmartTapResponse The `select smart tap 2` response received
+   * @param arena Arena of the session, closed once the response is decrypted
+   * @param serviceObjectDecoder Decodes the service objects in the decrypted response
+   * @param revocationFilter Denylist to check the redemption value against, null to skip the check
+   */
+  SessionSecrets(
+      NegotiateCryptoCommand negotiateCryptoCommand,
+      NegotiateCryptoResponse negotiateCryptoResponse,
+      SelectSmartTapResponse selectSmartTapResponse,
+      SessionArena arena,
+      ServiceObjectDecoder serviceObjectDecoder,
+      RevocationFilter revocationFilter) {
+
+    this.mobileDeviceEphemeralPublicKey = negotiateCryptoResponse.mobileDeviceEphemeralPublicKey;
+    this.terminalEphemeralPrivateKey = negotiateCryptoCommand.terminalEphemeralPrivateKey;
+    this.terminalNonce = negotiateCryptoCommand.terminalNonce;
+    this.collectorId = NegotiateCryptoCommand.COLLECTOR_ID;
+    this.terminalEphemeralPublicKeyCompressed =
+        negotiateCryptoCommand.terminalEphemeralPublicKeyCompressed;
+    this.signedData = negotiateCryptoCommand.signedData;
+    this.mobileDeviceNonce = selectSmartTapResponse.mobileDeviceNonce;
+    this.arena = arena;
+    this.serviceObjectDecoder = serviceObjectDecoder;
+    this.revocationFilter = revocationFilter;
+  }
+
+  /**
+   * Constructor for the class, from session material recorded earlier
+   *
+   * @param mobileDeviceEphemeralPublicKey Mobile device ephemeral public key
+   * @param terminalEphemeralPrivateKey Terminal ephemeral private key
+   * @param terminalNonce Terminal nonce
+   * @param collectorId Collector ID
+   * @param terminalEphemeralPublicKeyCompressed Compressed terminal ephemeral public key
+   * @param signedData Signed data of the `negotiate smart tap secure sessions` command
+   * @param mobileDeviceNonce Mobile device nonce
+   * @param arena Arena to decrypt in
+   * @param serviceObjectDecoder Decodes the service objects in the decrypted response
+   * @param revocationFilter Denylist to check the redemption value against, null to skip the check
+   */
+  SessionSecrets(
+      byte[] mobileDeviceEphemeralPublicKey,
+      PrivateKey terminalEphemeralPrivateKey,
+      byte[] terminalNonce,
+      byte[] collectorId,
+      byte[] terminalEphemeralPublicKeyCompressed,
+      byte[] signedData,
+      byte[] mobileDeviceNonce,
+      SessionArena arena,
+      ServiceObjectDecoder serviceObjectDecoder,
+      RevocationFilter revocationFilter) {
+
+    this.mobileDeviceEphemeralPublicKey = mobileDeviceEphemeralPublicKey;
+    this.terminalEphemeralPrivateKey = terminalEphemeralPrivateKey;
+    this.terminalNonce = terminalNonce;
+    this.collectorId = collectorId;
+    this.terminalEphemeralPublicKeyCompressed = terminalEphemeralPublicKeyCompressed;
+    this.signedData = signedData;
+    this.mobileDeviceNonce = mobileDeviceNonce;
+    this.arena = arena;
+    this.serviceObjectDecoder = serviceObjectDecoder;
+    this.revocationFilter = revocationFilter;
+  }
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class has the long-term key signatures made by a signing daemon, e.g. over a Unix domain socket
+ *
+ * The long-term key then stays with the daemon, on the terminal or a nearby host, instead of in
+ * every app. Sign requests from all readers are pipelined over one connection: a writer thread
+ * sends whatever is queued as one batch, without waiting for earlier batches to be answered.
+ *
+ * A request batch is a u16 count followed by, per request, a u32 id, a u16 length and the message
+ * to sign with SHA256withECDSA. The daemon answers each batch, in order, with a u16 count followed
+ * by, per request, the u32 id, a u16 length and the DER signature, of length 0 if it could not
+ * sign.
+ *
+ * A request not answered within the timeout is given up on and the caller signs locally. So are
+ * requests while the daemon cannot be reached, which is retried at most once a second
+ */
+public final class SigningClient implements Closeable {
+
+  /**
+   * Interface for a connection to the signing daemon, e.g. a socket
+   */
+  public interface Connection extends Closeable {
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+  }
+
+  /**
+   * Interface for connecting to the signing daemon
+   */
+  public interface Connector {
+
+    /**
+     * Opens a new connection to the daemon
+     *
+     * @return Connected connection
+     */
+    Connection connect() throws IOException;
+  }
+
+  private static final long RECONNECT_DELAY_NANOS = 1_000_000_000L;
+
+  private final Connector connector;
+  private final long timeoutNanos;
+  private final int maxBatchSize;
+  private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+  private final Map<Integer, Request> inFlight = new ConcurrentHashMap<>();
+  // Send times of the batches not answered yet, answers come back in order
+  private final ConcurrentLinkedQueue<Long> batchesInFlight = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger nextId = new AtomicInteger();
+  private final LatencyWindow requestLatency = new LatencyWindow();
+  private final LatencyWindow batchLatency = new LatencyWindow();
+  private final AtomicLong signed = new AtomicLong();
+  private final AtomicLong timedOut = new AtomicLong();
+  private final AtomicLong unavailable = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong batchedRequests = new AtomicLong();
+  private final AtomicLong linkFailures = new AtomicLong();
+  private Thread writer;
+  private Connection connection;
+  private long retryAfterNanos;
+  private volatile boolean closed;
+
+  /**
+   * Constructor for the class, connects on the first request
+   *
+   * @param connector Connects to the daemon
+   * @param timeoutMillis Time to wait for a signature before signing locally
+   * @param maxBatchSize Most requests sent in one batch
+   */
+  public SigningClient(Connector connector, long timeoutMillis, int maxBatchSize) {
+    this.connector = connector;
+    this.timeoutNanos = timeoutMillis * 1_000_000;
+    this.maxBatchSize = Math.min(maxBatchSize, 0xFFFF);
+  }
+
+  /**
+   * Has the daemon sign the concatenation of the given parts with SHA256withECDSA
+   *
+   * @param parts Message parts, in order
+   * @return DER-encoded signature, or null if the daemon did not sign in time
+   */
+  byte[] sign(byte[]... parts) {
+    if (closed) {
+      return null;
+    }
+    startWriter();
+
+    Request request = new Request(nextId.getAndIncrement(), concat(parts));
+    queue.add(request);
+
+    try {
+      if (!request.done.await(timeoutNanos, TimeUnit.NANOSECONDS)) {
+        // The writer skips it if not sent yet, a late answer finds nobody waiting
+        request.abandoned = true;
+        inFlight.remove(request.id);
+        timedOut.incrementAndGet();
+        return null;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      request.abandoned = true;
+      inFlight.remove(request.id);
+      return null;
+    }
+
+    if (request.signature == null) {
+      unavailable.incrementAndGet();
+      return null;
+    }
+
+    requestLatency.record(System.nanoTime() - request.queuedNanos);
+    signed.incrementAndGet();
+    return request.signature;
+  }
+
+  /**
+   * Gets a summary of the signatures and their latencies, for diagnostics
+   *
+   * @return Summary line
+   */
+  public String stats() {
+    long batchCount = batches.get();
+
+    return "Signing daemon: " + signed.get() + " signed, "
+        + timedOut.get() + " timed out, "
+        + unavailable.get() + " unavailable, "
+        + linkFailures.get() + " link failures"
+        + String.format(", %d batches of %.1f requests", batchCount,
+            batchCount == 0 ? 0.0 : (double) batchedRequests.get() / batchCount)
+        + ", request " + requestLatency.summary()
+        + ", batch " + batchLatency.summary();
+  }
+
+  /**
+   * Stops the writer and closes the connection, later requests are signed locally
+   */
+  @Override
+  public void close() {
+    this.closed = true;
+
+    synchronized (this) {
+      if (writer != null) {
+        writer.interrupt();
+      }
+      if (connection != null) {
+        disconnect(connection);
+      }
+    }
+
+    List<Request> queued = new ArrayList<>();
+    queue.drainTo(queued);
+    queued.forEach(request -> request.complete(null));
+  }
+
+  private synchronized void startWriter() {
+    if (writer == null) {
+      this.writer = new Thread(this::writeLoop, "smart-tap-signing-writer");
+      writer.setDaemon(true);
+      writer.start();
+    }
+  }
+
+  /**
+   * Sends whatever is queued as one batch, until closed
+   */
+  private void writeLoop() {
+    List<Request> batch = new ArrayList<>(maxBatchSize);
+
+    while (!closed) {
+      batch.clear();
+      try {
+        batch.add(queue.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      queue.drainTo(batch, maxBatchSize - 1);
+
+      // Callers that gave up are not worth a round trip
+      batch.removeIf(request -> request.abandoned);
+      if (batch.isEmpty()) {
+        continue;
+      }
+
+      Connection link = null;
+      try {
+        link = connect();
+
+        // Registered first, the answer can come back before the write returns
+        for (Request request : batch) {
+          inFlight.put(request.id, request);
+        }
+        batchesInFlight.add(System.nanoTime());
+
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(link.getOutputStream(), 4096));
+        out.writeShort(batch.size());
+        for (Request request : batch) {
+          out.writeInt(request.id);
+          out.writeShort(request.message.length);
+          out.write(request.message);
+        }
+        out.flush();
+
+        batches.incrementAndGet();
+        batchedRequests.addAndGet(batch.size());
+      } catch (IOException e) {
+        if (link != null) {
+          disconnect(link);
+        }
+        for (Request request : batch) {
+          inFlight.remove(request.id);
+          request.complete(null);
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the connection, connecting and starting its reader if needed
+   *
+   * @return Connection to the daemon
+   */
+  private synchronized Connection connect() throws IOException {
+    if (connection != null) {
+      return connection;
+    }
+
+    if (System.nanoTime() - retryAfterNanos < 0) {
+      throw new IOException("Signing daemon unavailable");
+    }
+
+    Connection link;
+    try {
+      link = connector.connect();
+    } catch (IOException e) {
+      this.retryAfterNanos = System.nanoTime() + RECONNECT_DELAY_NANOS;
+      linkFailures.incrementAndGet();
+      throw e;
+    }
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(link.getInputStream()));
+    Thread reader = new Thread(() -> readLoop(link, in), "smart-tap-signing-reader");
+    reader.setDaemon(true);
+    reader.start();
+
+    this.connection = link;
+    return link;
+  }
+
+  /**
+   * Hands the answers from one connection to the waiting callers, until it fails
+   *
+   * @param link Connection to read from
+   * @param in Its input stream
+   */
+  private void readLoop(Connection link, DataInputStream in) {
+    try {
+      while (true) {
+        int count = in.readUnsignedShort();
+
+        Long sentNanos = batchesInFlight.poll();
+        if (sentNanos != null) {
+          batchLatency.record(System.nanoTime() - sentNanos);
+        }
+
+        for (int i = 0; i < count; i++) {
+          int id = in.readInt();
+          byte[] signature = new byte[in.readUnsignedShort()];
+          in.readFully(signature);
+
+          Request request = inFlight.remove(id);
+          if (request != null) {
+            request.complete(signature.length == 0 ? null : signature);
+          }
+        }
+      }
+    } catch (IOException e) {
+      disconnect(link);
+    }
+  }
+
+  /**
+   * Closes a failed connection and fails the requests waiting on it, once
+   *
+   * @param link Connection that failed
+   */
+  private synchronized void disconnect(Connection link) {
+    if (connection != link && connection != null) {
+      return;
+    }
+
+    if (connection == link) {
+      this.connection = null;
+      this.retryAfterNanos = System.nanoTime() + RECONNECT_DELAY_NANOS;
+      if (!closed) {
+        linkFailures.incrementAndGet();
+      }
+    }
+
+    try {
+      link.close();
+    } catch (IOException e) {
+      // Already broken
+    }
+
+    batchesInFlight.clear();
+    for (Integer id : new ArrayList<>(inFlight.keySet())) {
+      Request request = inFlight.remove(id);
+      if (request != null) {
+        request.complete(null);
+      }
+    }
+  }
+
+  private static byte[] concat(byte[]... parts) {
+    int length = 0;
+    for (byte[] part : parts) {
+      length += part.length;
+    }
+
+    byte[] message = new byte[length];
+    int offset = 0;
+    for (byte[] part : parts) {
+      System.arraycopy(part, 0, message, offset, part.length);
+      offset += part.length;
+    }
+
+    return message;
+  }
+
+  /**
+   * Class encapsulates one sign request and its answer
+   */
+  private static final class Request {
+
+    final int id;
+    final byte[] message;
+    final long queuedNanos = System.nanoTime();
+    final CountDownLatch done = new CountDownLatch(1);
+    volatile byte[] signature;
+    volatile boolean abandoned;
+
+    Request(int id, byte[] message) {
+      this.id = id;
+      this.message = message;
+    }
+
+    void complete(byte[] signature) {
+      this.signature = signature;
+      done.countDown();
+    }
+  }
+}
@@ -13,12 +13,14 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package com.google.smarttapsample;
+package com.google.smarttapsample.core;
 
 /**
  * Class encapsulates Exceptions from this program
  */
-class SmartTapException extends Exception {
+public class SmartTapException extends Exception {
+
+  private static final long serialVersionUID = 1L;
 
   SmartTapException(String s) {
     super(s);
@@ -0,0 +1,502 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Class aggregates tap analytics for store managers in fixed memory, about 12 KB
+ *
+ * Keeps taps per hour for the last day, a {@link HyperLogLog} of the redemption values read, a
+ * {@link LatencyHistogram} of the time taps took and failure counters by reason: the status word
+ * when a response carried one, otherwise the exception. No event is stored.
+ *
+ * Analytics from several terminals merge into one, e.g. on a store server collecting their files.
+ * When opened on a file, changes are saved to it in the background at most once per interval,
+ * replacing it atomically
+ */
+public final class TapAnalytics implements Closeable {
+
+  private static final int MAGIC = 0x53545441;
+  private static final int VERSION = 1;
+  private static final int HOURS = 24;
+  private static final long HOUR_MILLIS = 3_600_000L;
+  private static final int MAX_REASONS = 32;
+  private static final int MAX_REASON_LENGTH = 64;
+  private static final String OTHER_REASON = "Other";
+  private static final Pattern STATUS = Pattern.compile("(?i)status: ([0-9a-f]{4})");
+
+  private final HyperLogLog uniqueRedemptionValues = new HyperLogLog();
+  private final LatencyHistogram tapLatency = new LatencyHistogram();
+  // Taps in each of the last hours, by hour since the epoch
+  private final long[] hourTaps = new long[HOURS];
+  private final long[] hours = new long[HOURS];
+  private final Map<String, Long> failures = new LinkedHashMap<>();
+  private final Path path;
+  private final long saveIntervalMillis;
+  private final ExecutorService saver;
+  // Held while encoding and writing, so an older snapshot never replaces a newer one
+  private final Object saveLock = new Object();
+  private long sinceMillis;
+  private long taps;
+  private long redemptions;
+  private long lastSavedMillis;
+  private boolean dirty;
+
+  /**
+   * Constructor for the class
+   *
+   * @param path File the analytics are saved to, null to keep them in memory only
+   * @param saveIntervalMillis Shortest time between two saves
+   */
+  private TapAnalytics(Path path, long saveIntervalMillis) {
+    this.path = path;
+    this.saveIntervalMillis = saveIntervalMillis;
+    this.sinceMillis = System.currentTimeMillis();
+    this.lastSavedMillis = sinceMillis;
+
+    this.saver = path == null ? null : Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "smart-tap-analytics");
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    });
+  }
+
+  /**
+   * Creates empty analytics kept in memory only, e.g. to merge other terminals' into
+   *
+   * @return New analytics
+   */
+  public static TapAnalytics create() {
+    return new TapAnalytics(null, 0);
+  }
+
+  /**
+   * Opens the analytics saved in a file, saving changes back to it periodically
+   *
+   * @param path File holding the analytics, created on the first save if missing
+   * @param saveIntervalMillis Shortest time between two saves
+   * @return Analytics, empty if the file does not exist yet
+   */
+  public static TapAnalytics open(Path path, long saveIntervalMillis) throws IOException {
+    TapAnalytics analytics = new TapAnalytics(path, saveIntervalMillis);
+    analytics.readFrom(path);
+    return analytics;
+  }
+
+  /**
+   * Loads analytics saved by another terminal, to be merged
+   *
+   * @param path File holding the analytics
+   * @return Analytics, not saved back
+   */
+  public static TapAnalytics load(Path path) throws IOException {
+    TapAnalytics analytics = create();
+    if (!analytics.readFrom(path)) {
+      throw new NoSuchFileException(path.toString());
+    }
+    return analytics;
+  }
+
+  /**
+   * Records a tap that got as far as it could
+   *
+   * @param nanos Time the tap took
+   * @param failure Why the tap failed, null if it succeeded
+   */
+  public void onTap(long nanos, Exception failure) {
+    long now = System.currentTimeMillis();
+
+    synchronized (this) {
+      taps++;
+      tapLatency.record(nanos);
+      countHour(now / HOUR_MILLIS, 1);
+
+      if (failure != null) {
+        countFailure(reason(failure), 1);
+      }
+
+      this.dirty = true;
+    }
+
+    saveIfDue(now);
+  }
+
+  /**
+   * Records a redemption value read from a pass
+   *
+   * @param redemptionValue The pass's `smartTapRedemptionValue`
+   */
+  public void onRedemption(String redemptionValue) {
+    long hash = Utils.hash(redemptionValue.getBytes(StandardCharsets.UTF_8));
+
+    synchronized (this) {
+      redemptions++;
+      uniqueRedemptionValues.add(hash);
+      this.dirty = true;
+    }
+  }
+
+  /**
+   * Records a tap that failed after the mobile device left, e.g. when decrypting the captured
+   * response, the tap itself was already recorded
+   *
+   * @param failure Why the tap failed
+   */
+  public synchronized void onLateFailure(Exception failure) {
+    countFailure(reason(failure), 1);
+    this.dirty = true;
+  }
+
+  /**
+   * Adds the analytics of another terminal
+   *
+   * @param other Analytics to merge in
+   * @return These analytics
+   */
+  public TapAnalytics merge(TapAnalytics other) {
+    // Copied first so two analytics merging into each other cannot deadlock
+    TapAnalytics copy = create();
+    synchronized (other) {
+      copy.mergeLocked(other);
+    }
+
+    synchronized (this) {
+      mergeLocked(copy);
+      this.dirty = true;
+    }
+    return this;
+  }
+
+  /**
+   * Saves the analytics now, if opened on a file
+   */
+  public void save() throws IOException {
+    if (path == null) {
+      return;
+    }
+
+    synchronized (saveLock) {
+      byte[] encoded;
+      synchronized (this) {
+        encoded = encode();
+        this.dirty = false;
+        this.lastSavedMillis = System.currentTimeMillis();
+      }
+
+      try {
+        write(encoded);
+      } catch (IOException e) {
+        synchronized (this) {
+          this.dirty = true;
+        }
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Saves the analytics and stops the background saves
+   */
+  @Override
+  public void close() throws IOException {
+    if (saver != null) {
+      saver.shutdown();
+      try {
+        saver.awaitTermination(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    save();
+  }
+
+  /**
+   * Summarizes the analytics for store managers
+   *
+   * @return Summary line
+   */
+  public synchronized String stats() {
+    long currentHour = System.currentTimeMillis() / HOUR_MILLIS;
+    long lastHour = hours[(int) (currentHour % HOURS)] == currentHour
+        ? hourTaps[(int) (currentHour % HOURS)] : 0;
+
+    long failed = 0;
+    for (long count : failures.values()) {
+      failed += count;
+    }
+
+    StringBuilder stats = new StringBuilder(String.format(
+        "Tap analytics: %d taps, %d this hour, %d over 24 h, %d passes read, ~%d unique"
+            + ", p50 %.0f ms, p90 %.0f ms, p99 %.0f ms, %.1f%% failed",
+        taps, lastHour, tapsOverDay(currentHour), redemptions, uniqueRedemptionValues.estimate(),
+        tapLatency.percentileMillis(50), tapLatency.percentileMillis(90),
+        tapLatency.percentileMillis(99), taps == 0 ? 0.0 : 100.0 * failed / taps));
+
+    for (Map.Entry<String, Long> entry : failures.entrySet()) {
+      stats.append(String.format(", %s: %d", entry.getKey(), entry.getValue()));
+    }
+
+    return stats.toString();
+  }
+
+  /**
+   * Gets when counting started, the earliest of merged analytics
+   *
+   * @return Time in milliseconds since the epoch
+   */
+  public synchronized long getSinceMillis() {
+    return sinceMillis;
+  }
+
+  public synchronized long getTapCount() {
+    return taps;
+  }
+
+  public synchronized long getUniqueRedemptionValueEstimate() {
+    return uniqueRedemptionValues.estimate();
+  }
+
+  /**
+   * Gets a tap latency percentile
+   *
+   * @param percentile Percentile between 0 and 100
+   * @return Latency in milliseconds
+   */
+  public synchronized double getLatencyPercentileMillis(double percentile) {
+    return tapLatency.percentileMillis(percentile);
+  }
+
+  /**
+   * Gets the failures by reason
+   *
+   * @return Copy of the counters, most frequent first
+   */
+  public synchronized List<Map.Entry<String, Long>> getFailures() {
+    List<Map.Entry<String, Long>> copy = new ArrayList<>();
+    for (Map.Entry<String, Long> entry : failures.entrySet()) {
+      copy.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+    }
+    copy.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+    return copy;
+  }
+
+  /**
+   * Gets the reason a tap failed: the status word if a response carried one, otherwise the message
+   * up to its details, or the exception type when it is not a Smart Tap error
+   *
+   * @param failure Why the tap failed
+   * @return Reason to count the failure under
+   */
+  static String reason(Exception failure) {
+    String message = failure.getMessage() == null ? "" : failure.getMessage();
+
+    Matcher status = STATUS.matcher(message);
+    if (status.find()) {
+      return status.group(1).toUpperCase();
+    }
+
+    if (!(failure instanceof SmartTapException) || message.isEmpty()) {
+      return failure.getClass().getSimpleName();
+    }
+
+    int colon = message.indexOf(':');
+    String reason = colon < 0 ? message : message.substring(0, colon);
+    return reason.length() > MAX_REASON_LENGTH ? reason.substring(0, MAX_REASON_LENGTH) : reason;
+  }
+
+  private void saveIfDue(long now) {
+    if (saver == null) {
+      return;
+    }
+
+    synchronized (this) {
+      if (!dirty || now - lastSavedMillis < saveIntervalMillis) {
+        return;
+      }
+      this.lastSavedMillis = now;
+    }
+
+    // Off the tap path, a failed save is retried with the next one
+    try {
+      saver.execute(() -> {
+        try {
+          save();
+        } catch (IOException e) {
+          // Still dirty
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // Closed, which saved
+    }
+  }
+
+  private void countHour(long hour, long count) {
+    int slot = (int) (hour % HOURS);
+
+    if (hours[slot] == hour) {
+      hourTaps[slot] += count;
+    } else if (hours[slot] < hour) {
+      // A new hour replaces the one a day older
+      hours[slot] = hour;
+      hourTaps[slot] = count;
+    }
+  }
+
+  private void countFailure(String reason, long count) {
+    if (!failures.containsKey(reason) && failures.size() >= MAX_REASONS - 1) {
+      reason = OTHER_REASON;
+    }
+    failures.merge(reason, count, Long::sum);
+  }
+
+  private long tapsOverDay(long currentHour) {
+    long sum = 0;
+    for (int i = 0; i < HOURS; i++) {
+      if (currentHour - hours[i] < HOURS) {
+        sum += hourTaps[i];
+      }
+    }
+    return sum;
+  }
+
+  private void mergeLocked(TapAnalytics other) {
+    uniqueRedemptionValues.merge(other.uniqueRedemptionValues);
+    tapLatency.merge(other.tapLatency);
+
+    for (int i = 0; i < HOURS; i++) {
+      if (other.hours[i] != 0) {
+        countHour(other.hours[i], other.hourTaps[i]);
+      }
+    }
+    for (Map.Entry<String, Long> entry : other.failures.entrySet()) {
+      countFailure(entry.getKey(), entry.getValue());
+    }
+
+    this.sinceMillis = Math.min(sinceMillis, other.sinceMillis);
+    this.taps += other.taps;
+    this.redemptions += other.redemptions;
+  }
+
+  /**
+   * Encodes the analytics, with the lock held
+   *
+   * @return Encoded analytics
+   */
+  private byte[] encode() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(sinceMillis);
+      out.writeLong(taps);
+      out.writeLong(redemptions);
+
+      for (int i = 0; i < HOURS; i++) {
+        out.writeLong(hours[i]);
+        out.writeLong(hourTaps[i]);
+      }
+
+      out.writeShort(failures.size());
+      for (Map.Entry<String, Long> entry : failures.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeLong(entry.getValue());
+      }
+
+      uniqueRedemptionValues.write(out);
+      tapLatency.write(out);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+
+    return bytes.toByteArray();
+  }
+
+  private void write(byte[] encoded) throws IOException {
+    Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+
+    try (BufferedOutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary))) {
+      out.write(encoded);
+    }
+
+    Files.move(
+        temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Reads saved analytics into these empty ones
+   *
+   * @param path File holding the analytics
+   * @return Whether the file existed
+   */
+  private synchronized boolean readFrom(Path path) throws IOException {
+    if (!Files.exists(path)) {
+      return false;
+    }
+
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(path)))) {
+
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Not a tap analytics file: " + path);
+      }
+
+      this.sinceMillis = in.readLong();
+      this.taps = in.readLong();
+      this.redemptions = in.readLong();
+
+      for (int i = 0; i < HOURS; i++) {
+        hours[i] = in.readLong();
+        hourTaps[i] = in.readLong();
+      }
+
+      int reasons = in.readUnsignedShort();
+      for (int i = 0; i < reasons; i++) {
+        countFailure(in.readUTF(), in.readLong());
+      }
+
+      uniqueRedemptionValues.read(in);
+      tapLatency.read(in);
+    }
+
+    return true;
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Class tracks one tap against its time budget, stage by stage
+ *
+ * A person holds the mobile device to the reader for about half a second. Each stage of the flow
+ * gets a share of that budget, measured on the monotonic clock. The flow asks whether a stage
+ * still fits before running the parts it can do without: decryption is deferred until the mobile
+ * device has left and service updates are skipped. Past the hard limit the flow fails before the
+ * next stage, naming the stage that overran the most
+ */
+public final class TapDeadline {
+
+  /**
+   * Enum of the stages of a tap, with their default budgets
+   */
+  public enum Stage {
+    SELECT_OSE("select ose", 40),
+    SELECT_SMART_TAP("select smart tap 2", 30),
+    NEGOTIATE("negotiate smart tap secure sessions", 150),
+    GET_DATA("get smart tap data", 120),
+    DECRYPT("decrypt", 60),
+    PUSH_SERVICE("push smart tap data", 60);
+
+    final String label;
+    final long defaultBudgetMillis;
+
+    Stage(String label, long defaultBudgetMillis) {
+      this.label = label;
+      this.defaultBudgetMillis = defaultBudgetMillis;
+    }
+  }
+
+  private final long budgetNanos;
+  private final long hardLimitNanos;
+  private final Map<Stage, Long> stageBudgetNanos = new EnumMap<>(Stage.class);
+  private final Map<Stage, Long> stageNanos = new EnumMap<>(Stage.class);
+  private long startNanos;
+  private long stageStartNanos;
+
+  /**
+   * Constructor for the class
+   *
+   * @param budgetMillis Time the whole tap should take
+   * @param hardLimitMillis Time after which the tap fails instead of starting another stage
+   */
+  public TapDeadline(long budgetMillis, long hardLimitMillis) {
+    this.budgetNanos = budgetMillis * 1_000_000;
+    this.hardLimitNanos = hardLimitMillis * 1_000_000;
+
+    for (Stage stage : Stage.values()) {
+      stageBudgetNanos.put(stage, stage.defaultBudgetMillis * 1_000_000);
+    }
+  }
+
+  /**
+   * Creates a deadline that never runs out, for flows without a time budget
+   *
+   * @return New deadline
+   */
+  static TapDeadline unlimited() {
+    return new TapDeadline(Long.MAX_VALUE / 1_000_000, Long.MAX_VALUE / 1_000_000);
+  }
+
+  /**
+   * Sets the budget of one stage
+   *
+   * @param stage Stage to set the budget for
+   * @param budgetMillis Time the stage should take
+   * @return This deadline
+   */
+  public TapDeadline setStageBudget(Stage stage, long budgetMillis) {
+    stageBudgetNanos.put(stage, budgetMillis * 1_000_000);
+    return this;
+  }
+
+  /**
+   * Starts the clock, again for a tap that resumes after losing the field
+   */
+  void start() {
+    this.startNanos = System.nanoTime();
+    stageNanos.clear();
+  }
+
+  /**
+   * Starts a stage, unless the tap is past its hard limit
+   *
+   * @param stage Stage about to run
+   */
+  void begin(Stage stage) throws SmartTapException {
+    long now = System.nanoTime();
+
+    if (now - startNanos > hardLimitNanos) {
+      throw new SmartTapException(String.format(
+          "Tap deadline of %d ms passed before `%s`: %d ms elapsed%s",
+          hardLimitNanos / 1_000_000, stage.label, (now - startNanos) / 1_000_000, worstOverrun()));
+    }
+
+    this.stageStartNanos = now;
+  }
+
+  /**
+   * Ends a stage, recording how long it took
+   *
+   * @param stage Stage that ran
+   * @return Time the stage took in nanoseconds
+   */
+  long end(Stage stage) {
+    long nanos = System.nanoTime() - stageStartNanos;
+    stageNanos.merge(stage, nanos, Long::sum);
+    return nanos;
+  }
+
+  /**
+   * Whether a stage would still end within the tap budget if it takes its own budget
+   *
+   * @param stage Stage the flow could do without
+   * @return Whether to run it now
+   */
+  boolean fits(Stage stage) {
+    return elapsedNanos() + stageBudgetNanos.get(stage) <= budgetNanos;
+  }
+
+  long elapsedNanos() {
+    return System.nanoTime() - startNanos;
+  }
+
+  /**
+   * Whether this deadline has a budget at all
+   */
+  boolean isBounded() {
+    return budgetNanos < Long.MAX_VALUE / 2;
+  }
+
+  /**
+   * Summarizes the stages run against their budgets
+   *
+   * @return Summary line
+   */
+  String summary() {
+    StringBuilder summary = new StringBuilder(String.format("%d ms of %d ms",
+        elapsedNanos() / 1_000_000, budgetNanos / 1_000_000));
+
+    String separator = " (";
+    for (Map.Entry<Stage, Long> entry : stageNanos.entrySet()) {
+      summary.append(separator).append(String.format("%s %d/%d ms", entry.getKey().label,
+          entry.getValue() / 1_000_000, stageBudgetNanos.get(entry.getKey()) / 1_000_000));
+      separator = ", ";
+    }
+
+    return stageNanos.isEmpty() ? summary.toString() : summary.append(")").toString();
+  }
+
+  /**
+   * Describes the stage that went furthest over its budget
+   *
+   * @return Reason to append, empty if every stage kept to its budget
+   */
+  private String worstOverrun() {
+    Stage worst = null;
+    long worstOverrun = 0;
+
+    for (Map.Entry<Stage, Long> entry : stageNanos.entrySet()) {
+      long overrun = entry.getValue() - stageBudgetNanos.get(entry.getKey());
+      if (overrun > worstOverrun) {
+        worst = entry.getKey();
+        worstOverrun = overrun;
+      }
+    }
+
+    return worst == null ? "" : String.format(", `%s` took %d ms of its %d ms budget",
+        worst.label, stageNanos.get(worst) / 1_000_000, stageBudgetNanos.get(worst) / 1_000_000);
+  }
+}
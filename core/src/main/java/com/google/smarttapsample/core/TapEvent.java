@@ -0,0 +1,138 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+/**
+ * Class encapsulates one step of a tap, as published by {@link TapEventPublisher}
+ *
+ * Events of one tap share its id. A tap starts, completes its stages, and ends its run with
+ * {@link Type#FINISHED} or {@link Type#FAILED}. A run that lost the field and is resumed starts
+ * again under the same id. The redemption value comes with {@link Type#REDEEMED} once the pass is
+ * accepted, not for a pass already redeemed on another lane. That is before the end of the run when
+ * decrypted inline, after it when decryption is deferred, and a deferred decryption that fails ends
+ * in a second {@link Type#FAILED}
+ */
+public final class TapEvent {
+
+  /**
+   * Enum of the kinds of tap events
+   */
+  public enum Type {
+    // Run or resume started, the mobile device is in the field
+    STARTED,
+    // Stage of the flow done, with the time it took
+    STAGE_COMPLETED,
+    // Pass read, decrypted and accepted for redemption
+    REDEEMED,
+    // Run or resume done, the mobile device can leave
+    FINISHED,
+    // Run, resume or deferred decryption ended with an error
+    FAILED
+  }
+
+  private final Type type;
+  private final long tapId;
+  private final long nanos;
+  private final TapDeadline.Stage stage;
+  private final long stageNanos;
+  private final String redemptionValue;
+  private final Exception failure;
+
+  TapEvent(Type type, long tapId, TapDeadline.Stage stage, long stageNanos,
+      String redemptionValue, Exception failure) {
+
+    this.type = type;
+    this.tapId = tapId;
+    this.nanos = System.nanoTime();
+    this.stage = stage;
+    this.stageNanos = stageNanos;
+    this.redemptionValue = redemptionValue;
+    this.failure = failure;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * Gets the id of the tap, unique per publisher
+   *
+   * @return Tap id
+   */
+  public long getTapId() {
+    return tapId;
+  }
+
+  /**
+   * Gets when the event happened
+   *
+   * @return Time from `System.nanoTime()`
+   */
+  public long getNanos() {
+    return nanos;
+  }
+
+  /**
+   * Gets the stage completed
+   *
+   * @return Stage, null unless {@link Type#STAGE_COMPLETED}
+   */
+  public TapDeadline.Stage getStage() {
+    return stage;
+  }
+
+  /**
+   * Gets the time the completed stage took
+   *
+   * @return Time in nanoseconds, 0 unless {@link Type#STAGE_COMPLETED}
+   */
+  public long getStageNanos() {
+    return stageNanos;
+  }
+
+  /**
+   * Gets the redemption value read from the pass
+   *
+   * @return Redemption value, null unless {@link Type#REDEEMED}
+   */
+  public String getRedemptionValue() {
+    return redemptionValue;
+  }
+
+  /**
+   * Gets the error the tap ended with
+   *
+   * @return Error, null unless {@link Type#FAILED}
+   */
+  public Exception getFailure() {
+    return failure;
+  }
+
+  @Override
+  public String toString() {
+    switch (type) {
+      case STAGE_COMPLETED:
+        return String.format("Tap %d: `%s` completed in %.1f ms", tapId, stage.label,
+            stageNanos / 1e6);
+      case REDEEMED:
+        return "Tap " + tapId + ": redeemed " + redemptionValue;
+      case FAILED:
+        return "Tap " + tapId + ": failed, " + failure;
+      default:
+        return "Tap " + tapId + ": " + type.name().toLowerCase();
+    }
+  }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class publishes the events of the taps run by flows, e.g. to a point of sale
+ *
+ * Events are handed to every subscriber through a bounded buffer of its own and delivered on the
+ * executor as the subscriber requests them. The flow never waits: an event that finds a buffer full
+ * is dealt with by that subscriber's {@link OverflowPolicy}. With nobody subscribed, publishing
+ * returns before creating the event. One slow subscriber holds up the others only when they share
+ * a single-threaded executor.
+ *
+ * `java.util.concurrent.Flow` needs Android 11 (API level 30)
+ */
+public final class TapEventPublisher implements Flow.Publisher<TapEvent>, Closeable {
+
+  /**
+   * Enum of what happens to an event that finds a subscriber's buffer full
+   */
+  public enum OverflowPolicy {
+    // Oldest buffered event dropped, for displays that only need the latest
+    DROP_OLDEST,
+    // New event dropped, keeping the start of each burst
+    DROP_NEWEST,
+    // Subscription cancelled and the subscriber sent an error, for consumers that need every event
+    FAIL
+  }
+
+  private static final Subscription[] NONE = new Subscription[0];
+
+  private final Executor executor;
+  private final int bufferSize;
+  private final OverflowPolicy overflowPolicy;
+  private final AtomicLong nextTapId = new AtomicLong();
+  private final AtomicLong published = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private volatile Subscription[] subscriptions = NONE;
+  private boolean closed;
+
+  /**
+   * Constructor for the class
+   *
+   * @param executor Runs the deliveries, e.g. a cached thread pool
+   * @param bufferSize Events buffered per subscriber
+   * @param overflowPolicy What to do when a subscriber's buffer is full
+   */
+  public TapEventPublisher(Executor executor, int bufferSize, OverflowPolicy overflowPolicy) {
+    this.executor = executor;
+    this.bufferSize = bufferSize;
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super TapEvent> subscriber) {
+    subscribe(subscriber, bufferSize, overflowPolicy);
+  }
+
+  /**
+   * Subscribes with a buffer and overflow policy of its own
+   *
+   * @param subscriber Subscriber to send the events to
+   * @param bufferSize Events buffered for this subscriber
+   * @param overflowPolicy What to do when its buffer is full
+   */
+  public void subscribe(Flow.Subscriber<? super TapEvent> subscriber, int bufferSize,
+      OverflowPolicy overflowPolicy) {
+
+    if (bufferSize < 1) {
+      throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+    }
+
+    Subscription subscription = new Subscription(subscriber, bufferSize, overflowPolicy);
+    // Before anything can be delivered
+    subscriber.onSubscribe(subscription);
+
+    synchronized (this) {
+      if (!closed) {
+        Subscription[] current = subscriptions;
+        Subscription[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = subscription;
+        this.subscriptions = next;
+        return;
+      }
+    }
+
+    subscription.complete();
+  }
+
+  /**
+   * Gets a summary of the subscribers and the events, for diagnostics
+   *
+   * @return Summary line
+   */
+  public String stats() {
+    return "Tap events: " + subscriptions.length + " subscribers, "
+        + published.get() + " published, "
+        + dropped.get() + " dropped, "
+        + failed.get() + " subscribers failed on overflow";
+  }
+
+  /**
+   * Completes every subscriber once it has been sent what is buffered
+   */
+  @Override
+  public void close() {
+    Subscription[] current;
+
+    synchronized (this) {
+      this.closed = true;
+      current = subscriptions;
+      this.subscriptions = NONE;
+    }
+
+    for (Subscription subscription : current) {
+      subscription.complete();
+    }
+  }
+
+  /**
+   * Mints the id of a new tap
+   *
+   * @return Tap id
+   */
+  long nextTapId() {
+    return nextTapId.incrementAndGet();
+  }
+
+  void started(long tapId) {
+    Subscription[] current = subscriptions;
+    if (current.length != 0) {
+      publish(current, new TapEvent(TapEvent.Type.STARTED, tapId, null, 0, null, null));
+    }
+  }
+
+  void stageCompleted(long tapId, TapDeadline.Stage stage, long stageNanos) {
+    Subscription[] current = subscriptions;
+    if (current.length != 0) {
+      publish(current,
+          new TapEvent(TapEvent.Type.STAGE_COMPLETED, tapId, stage, stageNanos, null, null));
+    }
+  }
+
+  /**
+   * Publishes a pass accepted for redemption
+   *
+   * Flows publish the passes they decrypt inline. A pass decrypted after the NFC session is
+   * published by whoever accepts it, e.g. after checking with the redemption coordinator
+   *
+   * @param tapId Id of the tap, see {@link SecureGetFlow#getTapId()}
+   * @param redemptionValue Smart Tap redemption value from the pass
+   */
+  public void redeemed(long tapId, String redemptionValue) {
+    Subscription[] current = subscriptions;
+    if (current.length != 0) {
+      publish(current,
+          new TapEvent(TapEvent.Type.REDEEMED, tapId, null, 0, redemptionValue, null));
+    }
+  }
+
+  void finished(long tapId) {
+    Subscription[] current = subscriptions;
+    if (current.length != 0) {
+      publish(current, new TapEvent(TapEvent.Type.FINISHED, tapId, null, 0, null, null));
+    }
+  }
+
+  void failed(long tapId, Exception failure) {
+    Subscription[] current = subscriptions;
+    if (current.length != 0) {
+      publish(current, new TapEvent(TapEvent.Type.FAILED, tapId, null, 0, null, failure));
+    }
+  }
+
+  private void publish(Subscription[] current, TapEvent event) {
+    published.incrementAndGet();
+
+    for (Subscription subscription : current) {
+      subscription.offer(event);
+    }
+  }
+
+  private synchronized void remove(Subscription subscription) {
+    Subscription[] current = subscriptions;
+
+    for (int i = 0; i < current.length; i++) {
+      if (current[i] == subscription) {
+        Subscription[] next = new Subscription[current.length - 1];
+        System.arraycopy(current, 0, next, 0, i);
+        System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+        this.subscriptions = next;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Class encapsulates one subscriber's buffer and demand, drained on the executor
+   *
+   * Only one drain runs at a time: whoever takes the work count from zero schedules it, and it
+   * loops until every signal it missed meanwhile has been seen
+   */
+  private final class Subscription implements Flow.Subscription, Runnable {
+
+    private final Flow.Subscriber<? super TapEvent> subscriber;
+    private final OverflowPolicy overflowPolicy;
+    private final TapEvent[] buffer;
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicInteger work = new AtomicInteger();
+    private int head;
+    private int count;
+    private boolean overflowed;
+    private boolean completed;
+    private long invalidRequest;
+    private volatile boolean cancelled;
+
+    Subscription(Flow.Subscriber<? super TapEvent> subscriber, int bufferSize,
+        OverflowPolicy overflowPolicy) {
+
+      this.subscriber = subscriber;
+      this.overflowPolicy = overflowPolicy;
+      this.buffer = new TapEvent[bufferSize];
+    }
+
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        synchronized (this) {
+          this.invalidRequest = n;
+        }
+      } else {
+        requested.getAndAccumulate(n, (current, more) ->
+            current + more < 0 ? Long.MAX_VALUE : current + more);
+      }
+      schedule();
+    }
+
+    @Override
+    public void cancel() {
+      if (!cancelled) {
+        this.cancelled = true;
+        remove(this);
+
+        synchronized (this) {
+          Arrays.fill(buffer, null);
+          this.count = 0;
+        }
+      }
+    }
+
+    void offer(TapEvent event) {
+      synchronized (this) {
+        if (cancelled || completed || overflowed) {
+          return;
+        }
+
+        if (count == buffer.length) {
+          if (overflowPolicy == OverflowPolicy.FAIL) {
+            this.overflowed = true;
+          } else if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+            dropped.incrementAndGet();
+            return;
+          } else {
+            buffer[head] = null;
+            this.head = (head + 1) % buffer.length;
+            this.count--;
+            dropped.incrementAndGet();
+          }
+        }
+
+        if (!overflowed) {
+          buffer[(head + count) % buffer.length] = event;
+          this.count++;
+        }
+      }
+      schedule();
+    }
+
+    void complete() {
+      synchronized (this) {
+        this.completed = true;
+      }
+      schedule();
+    }
+
+    private void schedule() {
+      if (work.getAndIncrement() == 0) {
+        try {
+          executor.execute(this);
+        } catch (RejectedExecutionException e) {
+          // Executor shut down, nothing can be delivered any more
+          cancel();
+        }
+      }
+    }
+
+    @Override
+    public void run() {
+      int missed = 1;
+
+      do {
+        while (!cancelled) {
+          TapEvent event;
+          Throwable error = null;
+          boolean overflow = false;
+          boolean done = false;
+
+          synchronized (this) {
+            if (invalidRequest != 0) {
+              error = new IllegalArgumentException("Non-positive request: " + invalidRequest);
+            } else if (overflowed) {
+              overflow = true;
+              error = new IllegalStateException(
+                  "Tap events overflowed the buffer of " + buffer.length);
+            }
+
+            if (error != null || count == 0 || requested.get() == 0) {
+              event = null;
+              done = error == null && completed && count == 0;
+            } else {
+              event = buffer[head];
+              buffer[head] = null;
+              this.head = (head + 1) % buffer.length;
+              this.count--;
+            }
+          }
+
+          if (error != null || done) {
+            cancel();
+            if (overflow) {
+              failed.incrementAndGet();
+            }
+
+            if (error != null) {
+              subscriber.onError(error);
+            } else {
+              subscriber.onComplete();
+            }
+            return;
+          }
+
+          if (event == null) {
+            break;
+          }
+
+          if (requested.get() != Long.MAX_VALUE) {
+            requested.decrementAndGet();
+          }
+
+          try {
+            subscriber.onNext(event);
+          } catch (RuntimeException e) {
+            // A subscriber that throws is treated as cancelled
+            cancel();
+            return;
+          }
+        }
+
+        missed = work.addAndGet(-missed);
+      } while (missed != 0);
+    }
+  }
+}
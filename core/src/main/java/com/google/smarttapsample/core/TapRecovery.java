@@ -0,0 +1,175 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.io.IOException;
+import java.util.function.Function;
+
+/**
+ * Class resumes flows that lost the field when the mobile device comes back
+ *
+ * A mobile device drifting out of the field for a moment shows up as a transceive error, and then
+ * as a new tag shortly after. Instead of starting over, the flow that lost the field is kept and
+ * picked up again with {@link SecureGetFlow#resume} on the next tag, as long as it arrives within
+ * the resume window. A flow left waiting any longer is abandoned and its session wiped
+ *
+ * Used from the thread tags are discovered on
+ */
+public final class TapRecovery {
+
+  private final long resumeWindowNanos;
+  private final int maxResumes;
+  private SecureGetFlow pending;
+  private long lostAtNanos;
+  private int resumes;
+  private long completed;
+  private long recovered;
+  private long startedOver;
+  private long windowMissed;
+  private long failed;
+  private long fieldLosses;
+
+  /**
+   * Constructor for the class
+   *
+   * @param resumeWindowMillis How long a flow that lost the field waits for the mobile device
+   * @param maxResumes Field losses one flow may recover from
+   */
+  public TapRecovery(long resumeWindowMillis, int maxResumes) {
+    this.resumeWindowNanos = resumeWindowMillis * 1_000_000;
+    this.maxResumes = maxResumes;
+  }
+
+  /**
+   * Runs the flow for a new tag, resuming the pending one if there is one
+   *
+   * Errors are surfaced in the descriptive text. The flow is returned either way, it may hold a
+   * captured response to decrypt
+   *
+   * @param transport Link to the mobile device
+   * @param newFlow Creates a flow on a link, for a tap that has nothing to resume
+   * @param descriptiveText Smart Tap response data to be surfaced on the device
+   * @return The flow that ran
+   */
+  public synchronized SecureGetFlow perform(
+      ApduTransport transport,
+      Function<ApduTransport, SecureGetFlow> newFlow,
+      StringBuilder descriptiveText) {
+
+    SecureGetFlow flow = takePending();
+    boolean resuming = flow != null;
+    if (!resuming) {
+      flow = newFlow.apply(transport);
+      this.resumes = 0;
+    }
+
+    try {
+      boolean kept = false;
+      if (resuming) {
+        kept = flow.resume(transport, descriptiveText);
+      } else {
+        flow.run(descriptiveText);
+      }
+
+      completed++;
+      if (kept) {
+        recovered++;
+      } else if (resuming) {
+        // The mobile device came back without the session
+        startedOver++;
+      }
+    } catch (IOException e) {
+      fieldLosses++;
+      descriptiveText.append("\n\nError: ").append(e);
+
+      if (flow.canResume() && resumes < maxResumes) {
+        this.pending = flow;
+        this.lostAtNanos = System.nanoTime();
+        resumes++;
+
+        descriptiveText.append("\nSession kept, tap again to resume");
+      } else {
+        // Nothing worth keeping yet, or lost too often, the next tap starts over
+        flow.abandon();
+        startedOver++;
+      }
+    } catch (Exception e) {
+      // Something went wrong...
+      descriptiveText.append("\n\nError: ").append(e);
+      failed++;
+    }
+
+    return flow;
+  }
+
+  /**
+   * Wipes the flow waiting to resume, e.g. when the reader stops
+   */
+  public synchronized void clear() {
+    if (pending != null) {
+      pending.abandon();
+      this.pending = null;
+      failed++;
+    }
+  }
+
+  /**
+   * Takes the pending flow if its mobile device is still expected back
+   *
+   * @return Flow to resume, null for none
+   */
+  private SecureGetFlow takePending() {
+    SecureGetFlow flow = pending;
+    this.pending = null;
+
+    if (flow != null && System.nanoTime() - lostAtNanos > resumeWindowNanos) {
+      flow.abandon();
+      startedOver++;
+      windowMissed++;
+      return null;
+    }
+
+    return flow;
+  }
+
+  public synchronized long getCompletedCount() {
+    return completed;
+  }
+
+  public synchronized long getRecoveredCount() {
+    return recovered;
+  }
+
+  public synchronized long getStartedOverCount() {
+    return startedOver;
+  }
+
+  public synchronized long getFailedCount() {
+    return failed;
+  }
+
+  /**
+   * Summarizes the taps run, e.g. for the logs
+   *
+   * @return Summary line
+   */
+  public synchronized String stats() {
+    return String.format(
+        "Taps completed: %d, recovered after losing the field: %d, started over: %d, "
+            + "failed: %d (field losses: %d, resume window missed: %d)",
+        completed, recovered, startedOver, failed, fieldLosses, windowMissed);
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class drives many contactless readers from one host
+ *
+ * Each reader gets its own session loop, on a virtual thread where the runtime has them. Sessions
+ * share the key manager and a fixed number of crypto permits. Permits are handed out in arrival
+ * order, so a busy reader cannot starve the others, and a failing reader only affects its own loop
+ */
+public class TerminalEngine {
+
+  /**
+   * A contactless reader the engine can drive
+   */
+  public interface Reader {
+
+    /**
+     * Gets an identifier for this reader, used when reporting results
+     *
+     * @return Reader identifier
+     */
+    String getId();
+
+    /**
+     * Blocks until a mobile device enters the field
+     *
+     * @return Link to the mobile device, or null once the reader is closed
+     */
+    ApduTransport awaitTap() throws IOException, InterruptedException;
+
+    /**
+     * Ends the field session with a mobile device
+     *
+     * @param transport Link returned by {@link #awaitTap}
+     */
+    void release(ApduTransport transport) throws IOException;
+  }
+
+  /**
+   * Receives the outcome of every tap, called on the reader's session thread
+   */
+  public interface Listener {
+
+    /**
+     * Called when a pass was read and decrypted
+     *
+     * @param readerId Reader the tap happened on
+     * @param getDataResponse Parsed and decrypted `get smart tap data` response
+     * @param tapNanos Time from the device entering the field to the decrypted result
+     */
+    void onRedeemed(String readerId, GetDataResponse getDataResponse, long tapNanos);
+
+    /**
+     * Called when a tap did not produce a pass
+     *
+     * @param readerId Reader the tap happened on
+     * @param e The problem encountered
+     * @param tapNanos Time from the device entering the field to the failure
+     */
+    void onTapFailed(String readerId, Exception e, long tapNanos);
+  }
+
+  private final ExecutorService sessionExecutor;
+  private final TerminalKeyManager keyManager;
+  private final Semaphore cryptoPermits;
+  private final Listener listener;
+  private volatile boolean running = true;
+
+  /**
+   * Constructor for the class
+   *
+   * @param sessionExecutor Runs one long-lived task per reader, see {@link #newSessionExecutor}
+   * @param keyManager Holds the long-term key shared by every session
+   * @param cryptoPermits Number of sessions allowed to run cryptography at once
+   * @param listener Receives the outcome of every tap
+   */
+  public TerminalEngine(
+      ExecutorService sessionExecutor,
+      TerminalKeyManager keyManager,
+      int cryptoPermits,
+      Listener listener) {
+
+    this.sessionExecutor = sessionExecutor;
+    this.keyManager = keyManager;
+    this.cryptoPermits = new Semaphore(cryptoPermits, true);
+    this.listener = listener;
+  }
+
+  /**
+   * Creates an executor suited to reader sessions
+   *
+   * Sessions spend most of their time blocked on the reader, so virtual threads are used where the
+   * runtime has them (Java 21 and later). Otherwise each session gets a platform thread
+   *
+   * @return Executor for {@link #TerminalEngine}
+   */
+  public static ExecutorService newSessionExecutor() {
+    try {
+      return (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    } catch (ReflectiveOperationException e) {
+      AtomicInteger count = new AtomicInteger();
+
+      return Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "smart-tap-reader-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+  }
+
+  /**
+   * Starts a session loop for a reader
+   *
+   * @param reader The reader to drive until it closes or the engine shuts down
+   */
+  public void addReader(Reader reader) {
+    sessionExecutor.execute(() -> runReader(reader));
+  }
+
+  /**
+   * Stops every session loop
+   *
+   * @param timeout How long to wait for taps in progress
+   * @param unit Unit of the timeout
+   * @return Whether every session loop finished in time
+   */
+  public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+    this.running = false;
+
+    sessionExecutor.shutdownNow();
+    return sessionExecutor.awaitTermination(timeout, unit);
+  }
+
+  /**
+   * Runs taps on a reader until it closes or the engine shuts down
+   *
+   * @param reader The reader to drive
+   */
+  private void runReader(Reader reader) {
+    while (running) {
+      ApduTransport transport;
+
+      try {
+        transport = reader.awaitTap();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (IOException e) {
+        listener.onTapFailed(reader.getId(), e, 0);
+        return;
+      }
+
+      if (transport == null) {
+        // Reader closed
+        return;
+      }
+
+      if (!runTap(reader, transport)) {
+        return;
+      }
+
+      // Draw the next tap's random bytes while the reader is idle
+      SessionRandom.prefetch();
+    }
+  }
+
+  /**
+   * Runs the `get smart tap data` flow for one tap
+   *
+   * The field session ends as soon as the APDU exchange is done, decryption follows on this thread
+   *
+   * @param reader The reader the tap happened on
+   * @param transport Link to the mobile device
+   * @return Whether the session loop should continue
+   */
+  private boolean runTap(Reader reader, ApduTransport transport) {
+    long start = System.nanoTime();
+
+    SecureGetFlow secureGetFlow = new SecureGetFlow(transport, true, keyManager, cryptoPermits);
+    GetDataResponse getDataResponse;
+
+    try {
+      try {
+        secureGetFlow.run(new StringBuilder());
+      } finally {
+        reader.release(transport);
+      }
+
+      getDataResponse = secureGetFlow.decryptCapturedResponse();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (Exception e) {
+      listener.onTapFailed(reader.getId(), e, System.nanoTime() - start);
+      return true;
+    }
+
+    if (getDataResponse == null) {
+      listener.onTapFailed(
+          reader.getId(),
+          new SmartTapException("Smart Tap AID not detected!"),
+          System.nanoTime() - start);
+    } else {
+      listener.onRedeemed(reader.getId(), getDataResponse, System.nanoTime() - start);
+    }
+
+    return true;
+  }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.PrivateKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Class encapsulates one tap read back from a log written by {@link TranscriptRecorder}
+ */
+public final class Transcript {
+
+  final long startMillis;
+  final boolean failed;
+  final List<Exchange> exchanges;
+  private byte[] terminalEphemeralPrivateKey;
+  private byte[] terminalNonce;
+  private byte[] collectorId;
+  private byte[] terminalEphemeralPublicKeyCompressed;
+  private byte[] signedData;
+  private byte[] mobileDeviceNonce;
+
+  /**
+   * Constructor for the class
+   *
+   * @param input Entry, positioned after its length
+   */
+  private Transcript(DataInputStream input) throws IOException {
+    this.startMillis = input.readLong();
+    int flags = input.readUnsignedByte();
+    this.failed = (flags & TranscriptRecorder.FLAG_FAILED) != 0;
+
+    int count = input.readUnsignedShort();
+    List<Exchange> exchanges = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      exchanges.add(new Exchange(input));
+    }
+    this.exchanges = Collections.unmodifiableList(exchanges);
+
+    if ((flags & TranscriptRecorder.FLAG_SESSION_KEYS) != 0) {
+      this.terminalEphemeralPrivateKey = readField(input);
+      this.terminalNonce = readField(input);
+      this.collectorId = readField(input);
+      this.terminalEphemeralPublicKeyCompressed = readField(input);
+      this.signedData = readField(input);
+      this.mobileDeviceNonce = readField(input);
+    }
+  }
+
+  /**
+   * Reads every tap in a transcript log
+   *
+   * @param path Log file
+   * @return Taps in the order they were recorded
+   */
+  public static List<Transcript> readAll(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long end = findEnd(channel);
+      List<Transcript> transcripts = new ArrayList<>();
+
+      channel.position(Math.min(end, TranscriptRecorder.HEADER_LENGTH));
+      DataInputStream input = new DataInputStream(
+          new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+
+      long position = channel.position();
+      while (position < end) {
+        int length = input.readInt();
+        transcripts.add(new Transcript(input));
+        position += 4 + length;
+      }
+
+      return transcripts;
+    }
+  }
+
+  /**
+   * Finds the end of the complete entries in a transcript log
+   *
+   * @param channel Open log file
+   * @return Offset after the last complete entry, 0 for an empty file
+   */
+  static long findEnd(FileChannel channel) throws IOException {
+    long size = channel.size();
+    if (size == 0) {
+      return 0;
+    }
+
+    ByteBuffer header = ByteBuffer.allocate(TranscriptRecorder.HEADER_LENGTH);
+    if (channel.read(header, 0) != TranscriptRecorder.HEADER_LENGTH
+        || header.getInt(0) != TranscriptRecorder.MAGIC) {
+      throw new IOException("Not a transcript log");
+    }
+    if (header.getInt(4) != TranscriptRecorder.VERSION) {
+      throw new IOException("Unsupported transcript log version: " + header.getInt(4));
+    }
+
+    // Walk the lengths, a zero or one running past the file ends the log
+    ByteBuffer length = ByteBuffer.allocate(4);
+    long position = TranscriptRecorder.HEADER_LENGTH;
+    while (position + 4 <= size) {
+      length.clear();
+      channel.read(length, position);
+
+      int entryLength = length.getInt(0);
+      if (entryLength <= 0 || position + 4 + entryLength > size) {
+        break;
+      }
+      position += 4 + entryLength;
+    }
+
+    return position;
+  }
+
+  public long getStartMillis() {
+    return startMillis;
+  }
+
+  public boolean isFailed() {
+    return failed;
+  }
+
+  public List<Exchange> getExchanges() {
+    return exchanges;
+  }
+
+  public boolean hasSessionKeys() {
+    return terminalEphemeralPrivateKey != null;
+  }
+
+  /**
+   * Rebuilds the session material for decrypting this tap's `get smart tap data` response
+   *
+   * @param mobileDeviceEphemeralPublicKey From the replayed `negotiate smart tap secure sessions`
+   * response
+   * @param arena Arena to decrypt in
+   * @param serviceObjectDecoder Decodes the service objects in the decrypted response
+   * @return Session secrets
+   */
+  SessionSecrets sessionSecrets(
+      byte[] mobileDeviceEphemeralPublicKey,
+      SessionArena arena,
+      ServiceObjectDecoder serviceObjectDecoder) throws Exception {
+
+    if (!hasSessionKeys()) {
+      throw new SmartTapException("Transcript recorded without session keys");
+    }
+
+    PrivateKey privateKey = CryptoProviders.keyFactory()
+        .generatePrivate(new PKCS8EncodedKeySpec(terminalEphemeralPrivateKey));
+
+    return new SessionSecrets(
+        mobileDeviceEphemeralPublicKey,
+        privateKey,
+        terminalNonce,
+        collectorId,
+        terminalEphemeralPublicKeyCompressed,
+        signedData,
+        mobileDeviceNonce,
+        arena,
+        serviceObjectDecoder,
+        null);
+  }
+
+  private static byte[] readField(DataInputStream input) throws IOException {
+    byte[] field = new byte[input.readUnsignedShort()];
+    input.readFully(field);
+    return field;
+  }
+
+  /**
+   * Class encapsulates one command and response of a recorded tap
+   */
+  public static final class Exchange {
+
+    final long offsetNanos;
+    final long durationNanos;
+    final byte[] command;
+    final byte[] response;
+
+    private Exchange(DataInputStream input) throws IOException {
+      this.offsetNanos = input.readLong();
+      this.durationNanos = input.readLong();
+      this.command = new byte[input.readInt()];
+      input.readFully(command);
+
+      int responseLength = input.readInt();
+      if (responseLength == TranscriptRecorder.NO_RESPONSE) {
+        this.response = null;
+      } else {
+        this.response = new byte[responseLength];
+        input.readFully(response);
+      }
+    }
+
+    public long getOffsetNanos() {
+      return offsetNanos;
+    }
+
+    public long getDurationNanos() {
+      return durationNanos;
+    }
+
+    public byte[] getCommand() {
+      return command.clone();
+    }
+
+    /**
+     * @return Response, null if the exchange failed
+     */
+    public byte[] getResponse() {
+      return response == null ? null : response.clone();
+    }
+
+    /**
+     * @return Instruction byte of the command
+     */
+    public int getInstruction() {
+      return command.length > 1 ? command[1] & 0xFF : -1;
+    }
+  }
+}
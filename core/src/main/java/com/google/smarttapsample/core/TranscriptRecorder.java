@@ -0,0 +1,292 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Class records the APDUs of each tap to an append-only, memory-mapped transcript log
+ *
+ * Opt-in, for reproducing field slowdowns: see {@link Transcript} for reading the log back. A tap
+ * is buffered in memory while it runs and appended to the log in one copy when it ends, so the
+ * exchange with the mobile device only pays for copying the APDUs.
+ *
+ * The log holds the exchanged APDUs and their timings. Session keys are only recorded when asked
+ * for, and then only the terminal's ephemeral key material of each session, which together with
+ * the APDUs decrypts that session's pass data. The long-term key never appears in the log
+ *
+ * The file is mapped in regions and grown as taps are appended. An entry's length is written
+ * after its body, so a crash leaves at most a zero length where the next entry would have started
+ */
+public final class TranscriptRecorder implements AutoCloseable {
+
+  static final int MAGIC = 0x53545452; // `STTR`
+  static final int VERSION = 1;
+  static final int HEADER_LENGTH = 8;
+
+  // Entry flags
+  static final int FLAG_SESSION_KEYS = 0x01;
+  static final int FLAG_FAILED = 0x02;
+
+  // Response length of an exchange whose transceive threw
+  static final int NO_RESPONSE = -1;
+
+  private static final int REGION_LENGTH = 1 << 20;
+
+  private final FileChannel channel;
+  private final boolean recordSessionKeys;
+  private MappedByteBuffer region;
+  private long regionStart;
+  private long position;
+  private int taps;
+
+  /**
+   * Constructor for the class
+   *
+   * @param channel Open log file
+   * @param position End of the entries already in the log
+   * @param recordSessionKeys Whether to record what decrypting the pass data needs
+   */
+  private TranscriptRecorder(FileChannel channel, long position, boolean recordSessionKeys) {
+    this.channel = channel;
+    this.position = position;
+    this.recordSessionKeys = recordSessionKeys;
+  }
+
+  /**
+   * Opens a transcript log, appending to it if it exists
+   *
+   * @param path Log file
+   * @param recordSessionKeys Whether to record each session's terminal ephemeral private key, so
+   * replays can decrypt the `get smart tap data` responses. Anyone holding the log can then read
+   * the recorded passes
+   * @return Recorder
+   */
+  public static TranscriptRecorder open(Path path, boolean recordSessionKeys) throws IOException {
+    FileChannel channel = FileChannel.open(path,
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+    try {
+      long end = Transcript.findEnd(channel);
+      TranscriptRecorder recorder = new TranscriptRecorder(channel, end, recordSessionKeys);
+
+      if (end == 0) {
+        recorder.append(
+            ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).putInt(VERSION).array(), false);
+      }
+
+      return recorder;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Starts recording a tap
+   *
+   * @param transport Link to the mobile device
+   * @return Link that records the APDUs, ends with {@link Tap#end}
+   */
+  public Tap begin(ApduTransport transport) {
+    return new Tap(transport);
+  }
+
+  public synchronized int getTapCount() {
+    return taps;
+  }
+
+  /**
+   * Stops recording and cuts the log to the entries written
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    try {
+      if (region != null) {
+        region.force();
+        this.region = null;
+      }
+      channel.truncate(position);
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Appends an entry
+   *
+   * @param entry Entry bytes
+   * @param lengthPrefixed Whether to write the entry's length before it, false for the header
+   */
+  private synchronized void append(byte[] entry, boolean lengthPrefixed) throws IOException {
+    if (!channel.isOpen()) {
+      throw new IOException("Transcript log closed");
+    }
+
+    int prefix = lengthPrefixed ? 4 : 0;
+    ensureMapped(prefix + entry.length + 4);
+
+    // Body first, the length last commits the entry
+    int offset = (int) (position - regionStart);
+    region.position(offset + prefix);
+    region.put(entry);
+
+    // Ends the log here even over leftovers of an entry torn by a crash
+    region.putInt(0);
+
+    if (lengthPrefixed) {
+      region.putInt(offset, entry.length);
+      taps++;
+    }
+
+    position += prefix + entry.length;
+  }
+
+  /**
+   * Maps the region the next entry goes in, growing the file
+   *
+   * @param length Bytes needed from the current position, including a zero length after the entry
+   */
+  private void ensureMapped(int length) throws IOException {
+    if (region != null && position + length <= regionStart + region.capacity()) {
+      return;
+    }
+
+    if (region != null) {
+      region.force();
+    }
+
+    this.regionStart = position;
+    this.region = channel.map(
+        FileChannel.MapMode.READ_WRITE, regionStart, Math.max(REGION_LENGTH, length));
+  }
+
+  /**
+   * Class records one tap, standing in for the link to the mobile device
+   */
+  public final class Tap implements ApduTransport {
+
+    private ApduTransport transport;
+    private final long startMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private final ByteArrayOutputStream exchanges = new ByteArrayOutputStream(1024);
+    private final DataOutputStream output = new DataOutputStream(exchanges);
+    private int exchangeCount;
+    private byte[] sessionKeys;
+
+    Tap(ApduTransport transport) {
+      this.transport = transport;
+    }
+
+    @Override
+    public byte[] transceive(byte[] command) throws IOException {
+      long start = System.nanoTime();
+      byte[] response = null;
+
+      try {
+        response = transport.transceive(command);
+        return response;
+      } finally {
+        long end = System.nanoTime();
+
+        // Copied now, the session wipes both arrays when it ends
+        output.writeLong(start - startNanos);
+        output.writeLong(end - start);
+        output.writeInt(command.length);
+        output.write(command);
+        output.writeInt(response == null ? NO_RESPONSE : response.length);
+        if (response != null) {
+          output.write(response);
+        }
+        exchangeCount++;
+      }
+    }
+
+    /**
+     * Carries on recording over a new link, when a flow resumes after losing the field
+     *
+     * @param transport New link to the mobile device
+     */
+    void relink(ApduTransport transport) {
+      this.transport = transport;
+    }
+
+    /**
+     * Records what decrypting the `get smart tap data` response needs, if the recorder was opened
+     * to record session keys
+     *
+     * @param sessionSecrets Session material of this tap
+     */
+    void setSessionSecrets(SessionSecrets sessionSecrets) {
+      if (!recordSessionKeys) {
+        return;
+      }
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+      try (DataOutputStream secrets = new DataOutputStream(bytes)) {
+        writeField(secrets, sessionSecrets.terminalEphemeralPrivateKey.getEncoded());
+        writeField(secrets, sessionSecrets.terminalNonce);
+        writeField(secrets, sessionSecrets.collectorId);
+        writeField(secrets, sessionSecrets.terminalEphemeralPublicKeyCompressed);
+        writeField(secrets, sessionSecrets.signedData);
+        writeField(secrets, sessionSecrets.mobileDeviceNonce);
+      } catch (IOException e) {
+        // Not thrown by in-memory streams
+        throw new IllegalStateException(e);
+      }
+
+      this.sessionKeys = bytes.toByteArray();
+    }
+
+    /**
+     * Appends the tap to the log
+     *
+     * @param failed Whether the flow ended with an error
+     */
+    void end(boolean failed) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(exchanges.size() + 64);
+
+      try (DataOutputStream entry = new DataOutputStream(bytes)) {
+        entry.writeLong(startMillis);
+        entry.writeByte((sessionKeys != null ? FLAG_SESSION_KEYS : 0) | (failed ? FLAG_FAILED : 0));
+        entry.writeShort(exchangeCount);
+        exchanges.writeTo(entry);
+
+        if (sessionKeys != null) {
+          entry.write(sessionKeys);
+          Arrays.fill(sessionKeys, (byte) 0);
+        }
+      }
+
+      byte[] entry = bytes.toByteArray();
+      append(entry, true);
+      Arrays.fill(entry, (byte) 0);
+    }
+
+    private void writeField(DataOutputStream output, byte[] field) throws IOException {
+      output.writeShort(field.length);
+      output.write(field);
+    }
+  }
+}
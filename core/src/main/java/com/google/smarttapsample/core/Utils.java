@@ -13,14 +13,13 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package com.google.smarttapsample;
+package com.google.smarttapsample.core;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.SecureRandom;
 import java.security.interfaces.ECPublicKey;
 import java.security.spec.ECPoint;
 import java.security.spec.ECPublicKeySpec;
@@ -33,7 +32,6 @@ import java.util.HashMap;
 import java.util.Objects;
 import org.bouncycastle.jce.ECNamedCurveTable;
 import org.bouncycastle.jce.ECPointUtil;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.jce.spec.ECNamedCurveParameterSpec;
 import org.bouncycastle.jce.spec.ECNamedCurveSpec;
 import org.bouncycastle.util.encoders.Hex;
@@ -135,37 +133,32 @@ class Utils {
   }
 
   /**
-   * Generates a random byte array of specified length
+   * Generates an EC public key from a byte array
    *
-   * @param length int
-   * @return long
+   * @param pubKey Public key in byte-array form
+   * @return Public key object
    */
-  static byte[] getRandomByteArray(int length) {
-    SecureRandom random = new SecureRandom();
-    byte[] bytes = new byte[length];
+  static PublicKey getPublicKeyFromBytes(byte[] pubKey)
+      throws NoSuchAlgorithmException, InvalidKeySpecException {
 
-    random.nextBytes(bytes);
+    KeyFactory kf = CryptoProviders.keyFactory();
 
-    return bytes;
+    return kf.generatePublic(getPublicKeySpecFromBytes(pubKey));
   }
 
   /**
-   * Generates an EC public key from a byte array
+   * Generates an EC public key spec from a byte array
    *
    * @param pubKey Public key in byte-array form
-   * @return Public key object
+   * @return Public key spec
    */
-  static PublicKey getPublicKeyFromBytes(byte[] pubKey)
-      throws NoSuchAlgorithmException, InvalidKeySpecException {
-
+  static ECPublicKeySpec getPublicKeySpecFromBytes(byte[] pubKey) {
     ECNamedCurveParameterSpec spec = ECNamedCurveTable.getParameterSpec("secp256r1");
-    KeyFactory kf = KeyFactory.getInstance("EC", new BouncyCastleProvider());
     ECNamedCurveSpec params = new ECNamedCurveSpec("secp256r1", spec.getCurve(), spec.getG(),
         spec.getN());
     ECPoint point = ECPointUtil.decodePoint(params.getCurve(), pubKey);
-    ECPublicKeySpec pubKeySpec = new ECPublicKeySpec(point, params);
 
-    return kf.generatePublic(pubKeySpec);
+    return new ECPublicKeySpec(point, params);
   }
 
   /**
@@ -184,6 +177,50 @@ class Utils {
     return output.toByteArray();
   }
 
+  /**
+   * Compares two byte ranges in time that depends only on the length, not the contents
+   *
+   * @param a First array
+   * @param aOffset Offset of the range in the first array
+   * @param b Second array
+   * @param bOffset Offset of the range in the second array
+   * @param length Number of bytes to compare
+   * @return Whether the ranges are equal
+   */
+  static boolean constantTimeEquals(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+    int difference = 0;
+
+    for (int i = 0; i < length; i++) {
+      difference |= a[aOffset + i] ^ b[bOffset + i];
+    }
+
+    return difference == 0;
+  }
+
+  /**
+   * Hashes a key, FNV-1a 64 with a final mix so both halves are usable
+   *
+   * @param key Key in byte-array form
+   * @return Hash
+   */
+  static long hash(byte[] key) {
+    long hash = 0xcbf29ce484222325L;
+
+    for (byte b : key) {
+      hash ^= b & 0xFF;
+      hash *= 0x100000001b3L;
+    }
+
+    // MurmurHash3 finalizer
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+
+    return hash;
+  }
+
   /**
    * Gets the status from a Smart Tap response
    *
@@ -198,9 +235,10 @@ class Utils {
    * Gets the payload from a Smart Tap response
    *
    * @param response Smart Tap response to parse
+   * @param arena Arena of the session the response belongs to
    * @return Payload in byte-array form
    */
-  static byte[] extractPayload(byte[] response) {
-    return Arrays.copyOfRange(response, 0, response.length - 2);
+  static byte[] extractPayload(byte[] response, SessionArena arena) {
+    return arena.copyOfRange(response, 0, response.length - 2);
   }
 }
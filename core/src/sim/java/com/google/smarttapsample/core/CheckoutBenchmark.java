@@ -0,0 +1,106 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.security.SecureRandom;
+
+/**
+ * Measures the checkout time saved by {@link PaymentHandoff} against a separate payment tap
+ *
+ * Each customer pays with a pass and a card. The handoff checkout reads the pass and pays in one
+ * field session. The two-tap checkout reads the pass, then activates the field again and repeats
+ * `select ose` before paying. The device sleeps to stand in for APDU round trips and field
+ * activation. The time customers need to present the phone again is added as a fixed figure.
+ *
+ * Arguments: customers (20), simulated APDU round trip in ms (5), field activation and
+ * anticollision in ms (30), time to present the phone again in ms (1500)
+ */
+public class CheckoutBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int customers = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+    long apduLatencyMillis = args.length > 1 ? Long.parseLong(args[1]) : 5;
+    long activationMillis = args.length > 2 ? Long.parseLong(args[2]) : 30;
+    long representMillis = args.length > 3 ? Long.parseLong(args[3]) : 1500;
+
+    SecureRandom random = new SecureRandom();
+    TerminalKeyManager keyManager = TerminalKeyManager.getDefault();
+    PaymentHandoff paymentHandoff = new PaymentHandoff(new SimulatedPaymentKernel());
+
+    // Pass and payment from the same `select ose` response
+    AidRouter handoffRouter = AidRouter.withSmartTap()
+        .register(SimulatedSmartTapDevice.PAYMENT_AID, false, paymentHandoff);
+
+    // Pass first, payment on its own tap
+    AidRouter passRouter = AidRouter.withSmartTap();
+    AidRouter paymentRouter = new AidRouter()
+        .register(SimulatedSmartTapDevice.PAYMENT_AID, false, paymentHandoff);
+
+    LatencyRecorder handoff = new LatencyRecorder();
+    LatencyRecorder twoTaps = new LatencyRecorder();
+
+    // Warm up class loading and the JIT before measuring
+    for (int i = -3; i < customers; i++) {
+      long start = System.nanoTime();
+      tap(new SimulatedSmartTapDevice("c" + i, apduLatencyMillis, random), activationMillis,
+          keyManager, handoffRouter);
+      long handoffNanos = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      tap(new SimulatedSmartTapDevice("c" + i, apduLatencyMillis, random), activationMillis,
+          keyManager, passRouter);
+      tap(new SimulatedSmartTapDevice("c" + i, apduLatencyMillis, random), activationMillis,
+          keyManager, paymentRouter);
+      long twoTapNanos = System.nanoTime() - start + representMillis * 1_000_000L;
+
+      if (i >= 0) {
+        handoff.record(handoffNanos);
+        twoTaps.record(twoTapNanos);
+      }
+    }
+
+    System.out.printf("Customers: %d, APDU %d ms, activation %d ms, re-presenting %d ms%n",
+        customers, apduLatencyMillis, activationMillis, representMillis);
+    System.out.println("One tap with payment handoff: " + handoff.summary());
+    System.out.println("Pass tap plus payment tap:    " + twoTaps.summary());
+    System.out.printf("Saved per customer (p50): %.1f ms, of which %d ms re-presenting%n",
+        twoTaps.percentile(0.50) - handoff.percentile(0.50), representMillis);
+  }
+
+  /**
+   * Runs one field session against a simulated device
+   *
+   * @param device Simulated mobile device
+   * @param activationMillis Field activation and anticollision time
+   * @param keyManager Key manager to sign with
+   * @param router Routes the `select ose` directory entries
+   */
+  private static void tap(
+      SimulatedSmartTapDevice device,
+      long activationMillis,
+      TerminalKeyManager keyManager,
+      AidRouter router) throws Exception {
+
+    Thread.sleep(activationMillis);
+
+    StringBuilder descriptiveText = new StringBuilder();
+    new SecureGetFlow(device, false, keyManager, null, router).run(descriptiveText);
+
+    if (descriptiveText.indexOf("Approved") < 0 && descriptiveText.indexOf("contents") < 0) {
+      throw new SmartTapException("Checkout failed:\n" + descriptiveText);
+    }
+  }
+}
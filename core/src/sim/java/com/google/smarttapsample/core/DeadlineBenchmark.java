@@ -0,0 +1,129 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Measures how long the mobile device has to stay in the field with and without a tap deadline
+ *
+ * Most mobile devices answer quickly, some are slow and a few are so slow they would keep the
+ * person waiting for seconds. Every tap decrypts inline and pushes a redemption update back. Runs
+ * the taps twice: without a deadline, then with {@link TapDeadline}, which defers decryption and
+ * skips the push when they no longer fit and fails taps past the hard limit. A deferred tap has
+ * nothing to push from, so it does not push either.
+ *
+ * Arguments: taps (60), tap budget in ms (500), hard limit in ms (1500)
+ */
+public class DeadlineBenchmark {
+
+  // APDU latencies in ms and the share of mobile devices answering that fast
+  private static final long[] APDU_LATENCY_MILLIS = {5, 110, 130, 550};
+  private static final double[] APDU_LATENCY_SHARE = {0.6, 0.15, 0.15, 0.1};
+
+  private static final int WARM_UP_TAPS = 20;
+
+  public static void main(String[] args) throws Exception {
+    int taps = args.length > 0 ? Integer.parseInt(args[0]) : 60;
+    long budgetMillis = args.length > 1 ? Long.parseLong(args[1]) : 500;
+    long hardLimitMillis = args.length > 2 ? Long.parseLong(args[2]) : 1500;
+
+    // Keep class loading and JIT compilation out of the first measured taps
+    SecureRandom random = new SecureRandom();
+    for (int i = 0; i < WARM_UP_TAPS; i++) {
+      new SecureGetFlow(new SimulatedSmartTapDevice("00000000", 0, random), false)
+          .run(new StringBuilder());
+    }
+
+    run("No deadline", taps, 0, 0);
+    run(String.format("Deadline %d ms, hard limit %d ms", budgetMillis, hardLimitMillis),
+        taps, budgetMillis, hardLimitMillis);
+  }
+
+  /**
+   * Runs the taps, with a deadline unless the budget is 0
+   */
+  private static void run(String name, int taps, long budgetMillis, long hardLimitMillis)
+      throws Exception {
+
+    // Same mobile devices for both runs
+    Random mix = new Random(2018);
+    SecureRandom random = new SecureRandom();
+    LatencyRecorder inField = new LatencyRecorder();
+    int inline = 0;
+    int deferred = 0;
+    int pushed = 0;
+    int failed = 0;
+
+    // Redeem whatever was read
+    ServiceUpdater serviceUpdater = serviceObjects -> serviceObjects.isEmpty()
+        ? Collections.emptyList()
+        : Collections.singletonList(ServiceUpdate.redeemed(serviceObjects.get(0)));
+
+    for (int i = 0; i < taps; i++) {
+      SimulatedSmartTapDevice device =
+          new SimulatedSmartTapDevice(String.format("%08d", i), apduLatencyMillis(mix), random);
+
+      SecureGetFlow flow = new SecureGetFlow(device, false).setServiceUpdater(serviceUpdater);
+      if (budgetMillis > 0) {
+        flow.setDeadline(new TapDeadline(budgetMillis, hardLimitMillis));
+      }
+
+      StringBuilder descriptiveText = new StringBuilder();
+      long start = System.nanoTime();
+      try {
+        flow.run(descriptiveText);
+      } catch (SmartTapException e) {
+        failed++;
+        continue;
+      } finally {
+        inField.record(System.nanoTime() - start);
+      }
+
+      // The mobile device has left, catch up on what the deadline put off
+      if (flow.decryptCapturedResponse() != null) {
+        deferred++;
+      } else {
+        inline++;
+      }
+      if (device.pushCommands > 0) {
+        pushed++;
+      }
+    }
+
+    System.out.printf("%s: %d taps%n  Decrypted inline: %d, deferred: %d, pushed: %d, "
+            + "failed fast: %d%n  Time in field: %s%n",
+        name, taps, inline, deferred, pushed, failed, inField.summary());
+  }
+
+  /**
+   * Picks the APDU latency of the next mobile device
+   */
+  private static long apduLatencyMillis(Random mix) {
+    double pick = mix.nextDouble();
+
+    for (int i = 0; i < APDU_LATENCY_MILLIS.length - 1; i++) {
+      pick -= APDU_LATENCY_SHARE[i];
+      if (pick < 0) {
+        return APDU_LATENCY_MILLIS[i];
+      }
+    }
+
+    return APDU_LATENCY_MILLIS[APDU_LATENCY_MILLIS.length - 1];
+  }
+}
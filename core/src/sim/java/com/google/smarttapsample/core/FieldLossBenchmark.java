@@ -0,0 +1,131 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Random;
+
+/**
+ * Compares starting over with resuming when the mobile device briefly leaves the field
+ *
+ * Some taps lose the field at a random command: the response never arrives and the reader waits
+ * out its timeout, then the mobile device is back for another try. Some mobile devices drop the
+ * session while away. Runs the taps twice: with the fixed ISO-DEP default timeout and every lost
+ * tap started over, then with {@link AdaptiveTimeouts} and {@link TapRecovery}. The time to a
+ * read pass leaves out how long the mobile device was away.
+ *
+ * Arguments: taps (200), share of taps losing the field (0.2), share of those dropping the session
+ * (0.25), APDU latency in ms (3)
+ */
+public class FieldLossBenchmark {
+
+  private static final int[] LOST_INSTRUCTIONS = {0xA4, 0x53, 0x50};
+
+  public static void main(String[] args) throws Exception {
+    int taps = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    double lossRate = args.length > 1 ? Double.parseDouble(args[1]) : 0.2;
+    double dropRate = args.length > 2 ? Double.parseDouble(args[2]) : 0.25;
+    long apduLatencyMillis = args.length > 3 ? Long.parseLong(args[3]) : 3;
+
+    // Default ISO-DEP timeout either way, only the second run adapts and resumes
+    run("Fixed timeout, start over", taps, lossRate, dropRate, apduLatencyMillis,
+        new AdaptiveTimeouts(618, 618, 618), new TapRecovery(0, 0));
+    run("Adaptive timeout, resume", taps, lossRate, dropRate, apduLatencyMillis,
+        new AdaptiveTimeouts(618, 20, 5000), new TapRecovery(3000, 2));
+  }
+
+  /**
+   * Runs the taps with one timeout and recovery policy
+   */
+  private static void run(String name, int taps, double lossRate, double dropRate,
+      long apduLatencyMillis, AdaptiveTimeouts timeouts, TapRecovery recovery) throws Exception {
+
+    // Same losses for both policies
+    Random losses = new Random(2018);
+    SecureRandom random = new SecureRandom();
+    LatencyRecorder latencies = new LatencyRecorder();
+    int attempts = 0;
+
+    for (int i = 0; i < taps; i++) {
+      SimulatedSmartTapDevice device =
+          new SimulatedSmartTapDevice(String.format("%08d", i), apduLatencyMillis, random);
+      FlakyLink link = new FlakyLink(device, timeouts);
+
+      if (losses.nextDouble() < lossRate) {
+        link.loseFieldAt = LOST_INSTRUCTIONS[losses.nextInt(LOST_INSTRUCTIONS.length)];
+        link.dropSession = losses.nextDouble() < dropRate;
+      }
+
+      long start = System.nanoTime();
+      long completed = recovery.getCompletedCount();
+
+      // The mobile device keeps coming back until the pass is read
+      for (int attempt = 0; attempt < 5 && recovery.getCompletedCount() == completed; attempt++) {
+        recovery.perform(link, transport -> new SecureGetFlow(transport, false),
+            new StringBuilder());
+        attempts++;
+      }
+      latencies.record(System.nanoTime() - start);
+    }
+    recovery.clear();
+
+    System.out.printf("%s: %d taps in %d attempts%n  Time to read the pass: %s%n  %s%n  %s%n",
+        name, taps, attempts, latencies.summary(), recovery.stats(), timeouts.stats());
+  }
+
+  /**
+   * Class stands in for an ISO-DEP link the mobile device can briefly leave
+   */
+  private static final class FlakyLink implements ApduTransport {
+
+    final SimulatedSmartTapDevice device;
+    final AdaptiveTimeouts timeouts;
+    int loseFieldAt = -1;
+    boolean dropSession;
+
+    FlakyLink(SimulatedSmartTapDevice device, AdaptiveTimeouts timeouts) {
+      this.device = device;
+      this.timeouts = timeouts;
+    }
+
+    @Override
+    public byte[] transceive(byte[] command) throws IOException {
+      int timeoutMillis = timeouts.timeoutMillis(command);
+      long start = System.nanoTime();
+
+      if ((command[1] & 0xFF) == loseFieldAt) {
+        // Once per tap, the response is lost and the reader waits out the timeout
+        this.loseFieldAt = -1;
+        if (dropSession) {
+          device.dropSession();
+        }
+
+        try {
+          Thread.sleep(timeoutMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        timeouts.onTimeout(command);
+        throw new IOException("Tag was lost.");
+      }
+
+      byte[] response = device.transceive(command);
+      timeouts.onResponse(command, System.nanoTime() - start);
+      return response;
+    }
+  }
+}
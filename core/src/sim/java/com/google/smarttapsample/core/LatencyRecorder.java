@@ -0,0 +1,83 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.util.Arrays;
+
+/**
+ * Class collects latency samples and reports percentiles
+ */
+class LatencyRecorder {
+
+  private long[] samples = new long[1024];
+  private int count;
+
+  /**
+   * Records one sample
+   *
+   * @param nanos Latency in nanoseconds
+   */
+  synchronized void record(long nanos) {
+    if (count == samples.length) {
+      samples = Arrays.copyOf(samples, 2 * count);
+    }
+    samples[count++] = nanos;
+  }
+
+  synchronized int count() {
+    return count;
+  }
+
+  /**
+   * Formats the usual percentiles in milliseconds
+   *
+   * @return Summary line
+   */
+  synchronized String summary() {
+    if (count == 0) {
+      return "no samples";
+    }
+
+    long[] sorted = Arrays.copyOf(samples, count);
+    Arrays.sort(sorted);
+
+    return String.format(
+        "p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms",
+        percentile(sorted, 0.50),
+        percentile(sorted, 0.90),
+        percentile(sorted, 0.99),
+        percentile(sorted, 0.999),
+        sorted[sorted.length - 1] / 1e6);
+  }
+
+  /**
+   * Gets a single percentile
+   *
+   * @param quantile Quantile between 0 and 1, e.g. 0.5 for the median
+   * @return Latency in milliseconds
+   */
+  synchronized double percentile(double quantile) {
+    long[] sorted = Arrays.copyOf(samples, count);
+    Arrays.sort(sorted);
+
+    return percentile(sorted, quantile);
+  }
+
+  private static double percentile(long[] sorted, double quantile) {
+    int index = (int) Math.ceil(quantile * sorted.length) - 1;
+    return sorted[Math.max(0, index)] / 1e6;
+  }
+}
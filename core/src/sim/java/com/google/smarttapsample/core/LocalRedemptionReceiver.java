@@ -0,0 +1,84 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class stands in for the merchant endpoint of a {@link RedemptionOutbox}
+ *
+ * Stores events by idempotency key, counting the duplicates it drops. Optionally sleeps per batch
+ * to stand in for the network round trip, and fails a share of batches before storing them
+ */
+class LocalRedemptionReceiver implements RedemptionReceiver {
+
+  private final long latencyMillis;
+  private final double failureRate;
+  private final Random random = new Random(2018);
+
+  final Set<String> stored = ConcurrentHashMap.newKeySet();
+  final AtomicLong batches = new AtomicLong();
+  final AtomicLong failures = new AtomicLong();
+  final AtomicLong duplicates = new AtomicLong();
+  final LatencyRecorder eventLatencies = new LatencyRecorder();
+  volatile boolean down;
+
+  /**
+   * Constructor for the class
+   *
+   * @param latencyMillis Simulated round trip per batch
+   * @param failureRate Share of batches that fail, between 0 and 1
+   */
+  LocalRedemptionReceiver(long latencyMillis, double failureRate) {
+    this.latencyMillis = latencyMillis;
+    this.failureRate = failureRate;
+  }
+
+  @Override
+  public void receive(String batchId, byte[] body) throws IOException {
+    if (latencyMillis > 0) {
+      try {
+        Thread.sleep(latencyMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted");
+      }
+    }
+
+    if (down || random.nextDouble() < failureRate) {
+      failures.incrementAndGet();
+      throw new IOException("Simulated failure for batch " + batchId);
+    }
+
+    List<RedemptionEvent> events = RedemptionEvent.decodeBatch(body);
+    long now = System.currentTimeMillis();
+
+    for (RedemptionEvent event : events) {
+      if (stored.add(event.getIdempotencyKey())) {
+        eventLatencies.record((now - event.getTimestamp()) * 1_000_000);
+      } else {
+        duplicates.incrementAndGet();
+      }
+    }
+
+    batches.incrementAndGet();
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures {@link MemberStore} lookups against a large snapshot and the cost of a delta
+ *
+ * Writes a snapshot to a temporary directory, then looks up random members (and some
+ * non-members), applies a delta that changes, adds and removes members, and checks the results.
+ *
+ * Arguments: members (1000000), lookups (200000), delta size (10000)
+ */
+public class MemberStoreBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int members = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+    int deltaSize = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+
+    Random random = new Random(2018);
+    Path directory = Files.createTempDirectory("member-store");
+    Path path = directory.resolve("members.store");
+
+    try {
+      List<Member> snapshot = new ArrayList<>(members);
+      for (int i = 0; i < members; i++) {
+        snapshot.add(new Member(redemptionValue(i), i % 4, i * 10L, i & 0xFF));
+      }
+
+      long start = System.nanoTime();
+      MemberStore.writeSnapshot(path, 1, snapshot);
+      System.out.printf("Snapshot of %d members written in %.1f ms, %.1f MB%n",
+          members, (System.nanoTime() - start) / 1e6, Files.size(path) / 1e6);
+      snapshot = null;
+
+      System.gc();
+      long heapBefore = usedHeap();
+
+      start = System.nanoTime();
+      MemberStore store = MemberStore.open(path);
+      System.out.printf("Opened in %.2f ms, heap grew by %d KB%n",
+          (System.nanoTime() - start) / 1e6, (usedHeap() - heapBefore) / 1024);
+
+      // Warm up, then measure hits and misses
+      lookUp(store, random, members, lookups, new LatencyRecorder());
+      LatencyRecorder latencies = new LatencyRecorder();
+      int found = lookUp(store, random, members, lookups, latencies);
+
+      System.out.printf("Lookups: %d, found %d, p50 %.2f us, p99 %.2f us, p99.9 %.2f us%n",
+          lookups, found,
+          latencies.percentile(0.50) * 1e3,
+          latencies.percentile(0.99) * 1e3,
+          latencies.percentile(0.999) * 1e3);
+
+      // Change, add and remove members
+      MemberDelta delta = new MemberDelta(1, 2);
+      for (int i = 0; i < deltaSize; i++) {
+        int member = random.nextInt(members);
+        switch (i % 3) {
+          case 0:
+            delta.upsert(new Member(redemptionValue(member), 3, -1, 0));
+            break;
+          case 1:
+            delta.upsert(new Member(redemptionValue(members + i), 1, 0, 0));
+            break;
+          default:
+            delta.remove(redemptionValue(member));
+        }
+      }
+
+      start = System.nanoTime();
+      store.applyDelta(delta);
+      System.out.printf("Delta of %d changes applied in %.1f ms, generation %d, %d members%n",
+          deltaSize, (System.nanoTime() - start) / 1e6, store.getGeneration(),
+          store.getMemberCount());
+
+      // Every change must show
+      for (Map.Entry<String, Member> change : delta.changes.entrySet()) {
+        Member member = store.lookup(change.getKey());
+        boolean expected = change.getValue() != null;
+
+        if ((member != null) != expected
+            || expected && member.getBalance() != change.getValue().getBalance()) {
+          throw new IllegalStateException("Delta not applied for " + change.getKey());
+        }
+      }
+
+      // Untouched members must be copied as they were
+      for (int i = 0; i < 1000; i++) {
+        int member = random.nextInt(members);
+        Member profile = store.lookup(redemptionValue(member));
+
+        if (!delta.changes.containsKey(redemptionValue(member))
+            && (profile == null || profile.getBalance() != member * 10L
+            || profile.getTier() != member % 4 || profile.getFlags() != (member & 0xFF))) {
+          throw new IllegalStateException("Member changed: " + member);
+        }
+      }
+      System.out.println("Delta verified");
+    } finally {
+      Files.deleteIfExists(path);
+      Files.deleteIfExists(directory);
+    }
+  }
+
+  /**
+   * Looks up random keys, one in ten not a member
+   *
+   * @return Members found
+   */
+  private static int lookUp(
+      MemberStore store, Random random, int members, int lookups, LatencyRecorder latencies) {
+    int found = 0;
+
+    for (int i = 0; i < lookups; i++) {
+      String key = redemptionValue(
+          i % 10 == 0 ? members + random.nextInt(members) : random.nextInt(members));
+
+      long start = System.nanoTime();
+      Member member = store.lookup(key);
+      latencies.record(System.nanoTime() - start);
+
+      if (member != null) {
+        found++;
+      }
+    }
+
+    return found;
+  }
+
+  private static String redemptionValue(int member) {
+    return String.format("%010d", member);
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the passes redeemed twice across lanes, without and with the redemption coordinator,
+ * healthy, too slow for the timeout and down
+ *
+ * Lanes tap in rounds. Some passes are tapped again on another lane in the same or one of the next
+ * two rounds, like one customer with two phones, and some on the same lane a few rounds later.
+ * Reports the double redemptions against the exact count and the claim latency on the lanes.
+ *
+ * Arguments: lanes (6), rounds (400), timeout in ms (20)
+ */
+public class RedemptionCoordinatorBenchmark {
+
+  private static final long WINDOW_MILLIS = 60 * 1000;
+  private static final double CROSS_LANE_SHARE = 0.05;
+  private static final double SAME_LANE_SHARE = 0.02;
+
+  public static void main(String[] args) throws Exception {
+    int lanes = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 400;
+    long timeoutMillis = args.length > 2 ? Long.parseLong(args[2]) : 20;
+
+    Random random = new Random(2018);
+
+    run("No coordinator", schedule(random, "none", lanes, rounds), null, timeoutMillis);
+
+    int port;
+    try (RedemptionCoordinatorServer server = new RedemptionCoordinatorServer(0, 0)) {
+      port = server.getPort();
+
+      run("Warm-up", schedule(random, "warm-up", lanes, rounds), port, timeoutMillis);
+      run("Coordinator", schedule(random, "healthy", lanes, rounds), port, timeoutMillis);
+      System.out.println("  " + server.stats());
+
+      // Answers after the lanes gave up, every pass is redeemed anyway
+      server.setExtraLatencyMillis(timeoutMillis * 2);
+      run("Slow coordinator, fail open", schedule(random, "slow", lanes, rounds / 10), port,
+          timeoutMillis);
+    }
+
+    run("Coordinator down, fail open", schedule(random, "down", lanes, rounds), port,
+        timeoutMillis);
+  }
+
+  /**
+   * Picks the redemption value each lane reads in each round
+   *
+   * @return Values by round, then lane
+   */
+  private static String[][] schedule(Random random, String prefix, int lanes, int rounds) {
+    String[][] values = new String[rounds][lanes];
+    int next = 0;
+
+    for (int r = 0; r < rounds; r++) {
+      for (int l = 0; l < lanes; l++) {
+        values[r][l] = prefix + "-" + next++;
+      }
+    }
+
+    for (int r = 0; r < rounds; r++) {
+      for (int l = 0; l < lanes; l++) {
+        double draw = random.nextDouble();
+
+        if (draw < CROSS_LANE_SHARE) {
+          int round = r + random.nextInt(3);
+          int lane = (l + 1 + random.nextInt(lanes - 1)) % lanes;
+          if (round < rounds) {
+            values[round][lane] = values[r][l];
+          }
+        } else if (draw < CROSS_LANE_SHARE + SAME_LANE_SHARE) {
+          int round = r + 1 + random.nextInt(5);
+          if (round < rounds) {
+            values[round][l] = values[r][l];
+          }
+        }
+      }
+    }
+
+    return values;
+  }
+
+  /**
+   * Has every lane tap its values, round by round
+   *
+   * @param port Port of the coordinator, null to redeem every pass read
+   */
+  private static void run(String name, String[][] values, Integer port, long timeoutMillis)
+      throws Exception {
+
+    int lanes = values[0].length;
+    Map<String, AtomicInteger> redemptions = new ConcurrentHashMap<>();
+    LatencyRecorder latencies = new LatencyRecorder();
+    CyclicBarrier round = new CyclicBarrier(lanes);
+    List<RedemptionCoordinator> coordinators = new ArrayList<>();
+    List<Thread> threads = new ArrayList<>();
+
+    for (int l = 0; l < lanes; l++) {
+      RedemptionCoordinator coordinator = port == null ? null : new RedemptionCoordinator(
+          "localhost", port, "lane-" + l, WINDOW_MILLIS, timeoutMillis);
+      if (coordinator != null) {
+        coordinators.add(coordinator);
+      }
+
+      int lane = l;
+      Thread thread = new Thread(() -> {
+        try {
+          // Connected, or given up on, before the first tap
+          Thread.sleep(200);
+
+          for (String[] roundValues : values) {
+            round.await();
+            String value = roundValues[lane];
+
+            if (coordinator != null) {
+              long start = System.nanoTime();
+              RedemptionCoordinator.Claim claim = coordinator.claim(value);
+              latencies.record(System.nanoTime() - start);
+
+              if (claim.isDuplicate()) {
+                continue;
+              }
+              redemptions.computeIfAbsent(value, v -> new AtomicInteger()).incrementAndGet();
+              claim.commit();
+            } else {
+              redemptions.computeIfAbsent(value, v -> new AtomicInteger()).incrementAndGet();
+            }
+          }
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    if (name.equals("Warm-up")) {
+      coordinators.forEach(RedemptionCoordinator::close);
+      return;
+    }
+
+    int taps = values.length * lanes;
+    int doubles = 0;
+    for (AtomicInteger count : redemptions.values()) {
+      doubles += count.get() - 1;
+    }
+
+    System.out.printf("%s: %d taps, %d passes, %d redeemed twice or more%n", name, taps,
+        redemptions.size(), doubles);
+    if (port != null) {
+      System.out.println("  Claim: " + latencies.summary());
+      System.out.println("  " + coordinators.get(0).stats());
+    }
+    coordinators.forEach(RedemptionCoordinator::close);
+  }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stands in for the in-store redemption coordinator, listening on a TCP port
+ *
+ * Speaks the protocol described in {@link RedemptionCoordinator}, keeping the holds in memory. A
+ * commit from a lane that redeemed without a lease, while another lane holds the value, leaves the
+ * first hold in place. The extra latency is added to every claim answer. Closing drops the lanes
+ * connected, like a coordinator going down.
+ *
+ * Arguments when run on its own: port (7410), extra latency in ms (0)
+ */
+public class RedemptionCoordinatorServer implements Closeable {
+
+  private static final long SWEEP_INTERVAL_NANOS = 1_000_000_000L;
+
+  private final ServerSocket server;
+  private final ExecutorService connections = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "smart-tap-coordinator-server");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final Set<Socket> lanes = ConcurrentHashMap.newKeySet();
+  private final Map<String, Hold> holds = new HashMap<>();
+  private final AtomicLong claims = new AtomicLong();
+  private final AtomicLong refused = new AtomicLong();
+  private long nextSweepNanos;
+  private volatile long extraLatencyMillis;
+
+  public static void main(String[] args) throws Exception {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 7410;
+    long extraLatencyMillis = args.length > 1 ? Long.parseLong(args[1]) : 0;
+
+    try (RedemptionCoordinatorServer server =
+        new RedemptionCoordinatorServer(port, extraLatencyMillis)) {
+      System.out.println("Coordinating on port " + server.getPort() + ", enter to stop");
+      System.in.read();
+      System.out.println(server.stats());
+    }
+  }
+
+  /**
+   * Constructor for the class, starts accepting connections
+   *
+   * @param port Port to listen on, 0 for any free port
+   * @param extraLatencyMillis Latency added to every claim answer
+   */
+  RedemptionCoordinatorServer(int port, long extraLatencyMillis) throws IOException {
+    this.extraLatencyMillis = extraLatencyMillis;
+    this.server = new ServerSocket(port);
+
+    connections.execute(this::acceptLoop);
+  }
+
+  int getPort() {
+    return server.getLocalPort();
+  }
+
+  void setExtraLatencyMillis(long extraLatencyMillis) {
+    this.extraLatencyMillis = extraLatencyMillis;
+  }
+
+  String stats() {
+    synchronized (holds) {
+      return String.format("Coordinator: %d claims, %d refused, %d holds", claims.get(),
+          refused.get(), holds.size());
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    connections.shutdownNow();
+    server.close();
+    dropLanes();
+  }
+
+  /**
+   * Closes the connections of the lanes, which reconnect, like a network blip
+   */
+  void dropLanes() throws IOException {
+    for (Socket socket : lanes) {
+      socket.close();
+    }
+  }
+
+  private void acceptLoop() {
+    try {
+      while (true) {
+        Socket socket = server.accept();
+        lanes.add(socket);
+        connections.execute(() -> serve(socket));
+      }
+    } catch (IOException e) {
+      // Closed
+    }
+  }
+
+  /**
+   * Answers the claims of one lane until it disconnects
+   *
+   * @param socket Connection to the lane
+   */
+  private void serve(Socket socket) {
+    try (socket) {
+      socket.setTcpNoDelay(true);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(socket.getOutputStream(), 512));
+      String lane = in.readUTF();
+
+      while (true) {
+        int operation = in.readUnsignedByte();
+        int id = in.readInt();
+        String redemptionValue = in.readUTF();
+        long leaseMillis = in.readInt() & 0xFFFFFFFFL;
+        long windowMillis = in.readInt() & 0xFFFFFFFFL;
+        long now = System.nanoTime();
+
+        if (operation == RedemptionCoordinator.COMMIT) {
+          commit(lane, redemptionValue, windowMillis, now);
+        } else if (operation == RedemptionCoordinator.RELEASE) {
+          release(lane, redemptionValue);
+        } else if (operation == RedemptionCoordinator.CLAIM) {
+          Hold hold = claim(lane, redemptionValue, leaseMillis, now);
+
+          if (extraLatencyMillis > 0) {
+            Thread.sleep(extraLatencyMillis);
+          }
+
+          out.writeInt(id);
+          if (hold == null) {
+            out.writeByte(RedemptionCoordinator.ANSWER_GRANTED);
+            out.writeUTF("");
+            out.writeInt(0);
+          } else {
+            out.writeByte(hold.committed
+                ? RedemptionCoordinator.ANSWER_REDEEMED : RedemptionCoordinator.ANSWER_HELD);
+            out.writeUTF(hold.lane);
+            out.writeInt((int) Math.max(0, (hold.expiresNanos - now) / 1_000_000));
+          }
+          out.flush();
+        } else {
+          throw new IOException("Unknown operation: " + operation);
+        }
+      }
+    } catch (IOException | InterruptedException e) {
+      // Lane gone or server closed
+    } finally {
+      lanes.remove(socket);
+    }
+  }
+
+  /**
+   * Grants a lease unless another lane holds the value, or this lane committed it
+   *
+   * @return The hold refusing the claim, null if granted
+   */
+  private Hold claim(String lane, String redemptionValue, long leaseMillis, long now) {
+    claims.incrementAndGet();
+
+    synchronized (holds) {
+      sweep(now);
+
+      Hold hold = holds.get(redemptionValue);
+      if (hold != null && hold.expiresNanos - now > 0) {
+        // Same lane again before committing, e.g. a tap started over
+        if (hold.lane.equals(lane) && !hold.committed) {
+          hold.expiresNanos = now + leaseMillis * 1_000_000;
+          return null;
+        }
+
+        refused.incrementAndGet();
+        return hold;
+      }
+
+      holds.put(redemptionValue, new Hold(lane, false, now + leaseMillis * 1_000_000));
+      return null;
+    }
+  }
+
+  private void commit(String lane, String redemptionValue, long windowMillis, long now) {
+    synchronized (holds) {
+      Hold hold = holds.get(redemptionValue);
+      if (hold == null || hold.expiresNanos - now <= 0 || hold.lane.equals(lane)) {
+        holds.put(redemptionValue, new Hold(lane, true, now + windowMillis * 1_000_000));
+      }
+    }
+  }
+
+  private void release(String lane, String redemptionValue) {
+    synchronized (holds) {
+      Hold hold = holds.get(redemptionValue);
+      if (hold != null && hold.lane.equals(lane) && !hold.committed) {
+        holds.remove(redemptionValue);
+      }
+    }
+  }
+
+  /**
+   * Drops expired holds, at most once a second
+   */
+  private void sweep(long now) {
+    if (now - nextSweepNanos < 0) {
+      return;
+    }
+    this.nextSweepNanos = now + SWEEP_INTERVAL_NANOS;
+
+    holds.values().removeIf(hold -> hold.expiresNanos - now <= 0);
+  }
+
+  /**
+   * Class encapsulates a lane's lease on, or redemption of, a value
+   */
+  private static final class Hold {
+
+    final String lane;
+    final boolean committed;
+    long expiresNanos;
+
+    Hold(String lane, boolean committed, long expiresNanos) {
+      this.lane = lane;
+      this.committed = committed;
+      this.expiresNanos = expiresNanos;
+    }
+  }
+}
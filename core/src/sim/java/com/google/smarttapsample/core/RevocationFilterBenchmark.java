@@ -0,0 +1,163 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures {@link RevocationFilter} lookups, false positives and hot swaps
+ *
+ * Writes a denylist of every other redemption value to a temporary directory, looks up passes that
+ * are mostly not revoked, then swaps in a larger denylist while another thread keeps looking up.
+ *
+ * Arguments: revoked passes (1000000), lookups (1000000)
+ */
+public class RevocationFilterBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int revokedCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+
+    Random random = new Random(2018);
+    Path directory = Files.createTempDirectory("revocation-filter");
+    Path path = directory.resolve("revocations.filter");
+    Path downloaded = directory.resolve("revocations.filter.download");
+
+    try {
+      // Even redemption values are revoked
+      List<String> revoked = new ArrayList<>(revokedCount);
+      for (int i = 0; i < revokedCount; i++) {
+        revoked.add(redemptionValue(2 * i));
+      }
+
+      long start = System.nanoTime();
+      RevocationFilter.write(path, 1, revoked);
+      System.out.printf("Denylist of %d passes written in %.1f ms, %.1f MB%n",
+          revokedCount, (System.nanoTime() - start) / 1e6, Files.size(path) / 1e6);
+
+      start = System.nanoTime();
+      RevocationFilter filter = RevocationFilter.open(path);
+      System.out.printf("Opened in %.2f ms%n", (System.nanoTime() - start) / 1e6);
+
+      // Warm up, then measure, one pass in a hundred revoked
+      lookUp(filter, random, revokedCount, lookups, new LatencyRecorder());
+      LatencyRecorder latencies = new LatencyRecorder();
+      int found = lookUp(filter, random, revokedCount, lookups, latencies);
+
+      System.out.printf("Lookups: %d, revoked %d, p50 %.2f us, p99 %.2f us, p99.9 %.2f us%n",
+          lookups, found,
+          latencies.percentile(0.50) * 1e3,
+          latencies.percentile(0.99) * 1e3,
+          latencies.percentile(0.999) * 1e3);
+      System.out.println(filter.stats());
+
+      // No revoked pass may get through
+      for (int i = 0; i < 10_000; i++) {
+        int pass = random.nextInt(revokedCount);
+        if (!filter.isRevoked(redemptionValue(2 * pass))) {
+          throw new IllegalStateException("Revoked pass missed: " + pass);
+        }
+      }
+
+      // Swap in a denylist with more passes while taps go on
+      for (int i = 0; i < revokedCount / 10; i++) {
+        revoked.add(redemptionValue(2 * i + 1));
+      }
+      RevocationFilter.write(downloaded, 2, revoked);
+
+      AtomicBoolean swapping = new AtomicBoolean(true);
+      AtomicLong duringSwap = new AtomicLong();
+      Thread taps = new Thread(() -> {
+        Random tapRandom = new Random(4);
+        while (swapping.get()) {
+          int pass = tapRandom.nextInt(revokedCount);
+          if (!filter.isRevoked(redemptionValue(2 * pass))) {
+            throw new IllegalStateException("Revoked pass missed during swap: " + pass);
+          }
+          duringSwap.incrementAndGet();
+        }
+      });
+      taps.start();
+
+      // Let the taps get going first
+      while (duringSwap.get() < 1000 && taps.isAlive()) {
+        Thread.yield();
+      }
+
+      start = System.nanoTime();
+      filter.replace(downloaded);
+      long swapNanos = System.nanoTime() - start;
+
+      // And keep going on the new denylist
+      long afterSwap = duringSwap.get();
+      while (duringSwap.get() < afterSwap + 1000 && taps.isAlive()) {
+        Thread.yield();
+      }
+      swapping.set(false);
+      taps.join();
+
+      System.out.printf("Swapped to generation %d in %.2f ms, %d concurrent lookups%n",
+          filter.getGeneration(), swapNanos / 1e6, duringSwap.get());
+
+      for (int i = 0; i < revokedCount / 10; i++) {
+        if (!filter.isRevoked(redemptionValue(2 * i + 1))) {
+          throw new IllegalStateException("Newly revoked pass missed: " + i);
+        }
+      }
+      System.out.println("Swap verified");
+      System.out.println(filter.stats());
+    } finally {
+      Files.deleteIfExists(downloaded);
+      Files.deleteIfExists(path);
+      Files.deleteIfExists(directory);
+    }
+  }
+
+  /**
+   * Looks up random passes, one in a hundred revoked
+   *
+   * @return Revoked passes found
+   */
+  private static int lookUp(RevocationFilter filter, Random random, int revokedCount, int lookups,
+      LatencyRecorder latencies) {
+    int found = 0;
+
+    for (int i = 0; i < lookups; i++) {
+      int pass = random.nextInt(revokedCount);
+      String key = redemptionValue(i % 100 == 0 ? 2 * pass : 2 * pass + 1);
+
+      long start = System.nanoTime();
+      boolean revoked = filter.isRevoked(key);
+      latencies.record(System.nanoTime() - start);
+
+      if (revoked) {
+        found++;
+      }
+    }
+
+    return found;
+  }
+
+  private static String redemptionValue(int pass) {
+    return String.format("%010d", pass);
+  }
+}
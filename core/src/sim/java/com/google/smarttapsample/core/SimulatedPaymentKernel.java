@@ -0,0 +1,85 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * Class stands in for a contactless payment kernel in tests and benchmarks
+ *
+ * Runs the APDU shape of a minimal EMV transaction, `get processing options` followed by the
+ * `read record` commands listed in the AFL, and approves whenever a card number was read. There is
+ * no risk management, cryptogram or online authorization
+ */
+class SimulatedPaymentKernel implements PaymentKernel {
+
+  @Override
+  public String process(ApplicationEntry entry, byte[] selectResponse, ApduTransport transport)
+      throws Exception {
+
+    // Command: `get processing options` with an empty PDOL
+    byte[] response = transport.transceive(new byte[]{(byte) 0x80, (byte) 0xA8, (byte) 0x00,
+        (byte) 0x00, (byte) 0x02, (byte) 0x83, (byte) 0x00, (byte) 0x00});
+    checkStatus(response, "get processing options");
+
+    HashMap<String, ArrayList<byte[]>> template = Utils.parseTLV(
+        Utils.parseTLV(Arrays.copyOfRange(response, 0, response.length - 2)).get("77").get(0));
+    byte[] applicationFileLocator = template.get("94").get(0);
+
+    // Command: `read record` for every record in the AFL, 4 bytes per file
+    byte[] pan = null;
+    for (int i = 0; i + 3 < applicationFileLocator.length; i += 4) {
+      int sfi = (applicationFileLocator[i] & 0xFF) >> 3;
+
+      for (int record = applicationFileLocator[i + 1]; record <= applicationFileLocator[i + 2];
+          record++) {
+        response = transport.transceive(new byte[]{(byte) 0x00, (byte) 0xB2, (byte) record,
+            (byte) ((sfi << 3) | 0x04), (byte) 0x00});
+        checkStatus(response, "read record");
+
+        HashMap<String, ArrayList<byte[]>> recordTemplate = Utils.parseTLV(Utils.parseTLV(
+            Arrays.copyOfRange(response, 0, response.length - 2)).get("70").get(0));
+        if (recordTemplate.containsKey("5A")) {
+          pan = recordTemplate.get("5A").get(0);
+        }
+      }
+    }
+
+    if (pan == null) {
+      return "Declined (simulated kernel), no card number";
+    }
+
+    String digits = Hex.toHexString(pan);
+    return "Approved (simulated kernel), card ending " + digits.substring(digits.length() - 4);
+  }
+
+  /**
+   * Checks the status word of a payment response
+   *
+   * @param response Response APDU
+   * @param command Command name for the error message
+   */
+  private static void checkStatus(byte[] response, String command) throws SmartTapException {
+    String status = Utils.getStatus(response);
+
+    if (!status.equals("9000")) {
+      throw new SmartTapException("Payment `" + command + "` failed: " + status);
+    }
+  }
+}
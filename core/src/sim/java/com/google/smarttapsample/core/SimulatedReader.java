@@ -0,0 +1,67 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.security.SecureRandom;
+
+/**
+ * Class simulates a contactless reader that sees a fixed number of taps
+ */
+class SimulatedReader implements TerminalEngine.Reader {
+
+  private final String id;
+  private final int taps;
+  private final long gapMillis;
+  private final long apduLatencyMillis;
+  private final SecureRandom random = new SecureRandom();
+  private int tapsStarted;
+
+  /**
+   * Constructor for the class
+   *
+   * @param id Reader identifier
+   * @param taps Number of taps before the reader closes
+   * @param gapMillis Idle time before each tap
+   * @param apduLatencyMillis Simulated round trip per APDU
+   */
+  SimulatedReader(String id, int taps, long gapMillis, long apduLatencyMillis) {
+    this.id = id;
+    this.taps = taps;
+    this.gapMillis = gapMillis;
+    this.apduLatencyMillis = apduLatencyMillis;
+  }
+
+  @Override
+  public String getId() {
+    return id;
+  }
+
+  @Override
+  public ApduTransport awaitTap() throws InterruptedException {
+    if (tapsStarted == taps) {
+      return null;
+    }
+
+    Thread.sleep(gapMillis);
+    tapsStarted++;
+
+    return new SimulatedSmartTapDevice(id + "-" + tapsStarted, apduLatencyMillis, random);
+  }
+
+  @Override
+  public void release(ApduTransport transport) {
+  }
+}
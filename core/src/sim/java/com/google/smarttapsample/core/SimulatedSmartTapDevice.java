@@ -0,0 +1,403 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECPoint;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.bouncycastle.asn1.x9.ECNamedCurveTable;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.generators.HKDFBytesGenerator;
+import org.bouncycastle.crypto.params.HKDFParameters;
+
+/**
+ * Class simulates the mobile device side of Smart Tap for a single tap
+ *
+ * Answers `select ose`, `select smart tap 2`, `negotiate smart tap secure sessions` and `get smart
+ * tap data` with a loyalty pass holding the given redemption value, and keeps the service statuses
+ * pushed with `push smart tap data`. The terminal signature is not verified. The payment
+ * application listed in the directory answers its `select`, `get processing options` and `read
+ * record` with a fixed test card. Optionally sleeps per APDU to stand in for the RF round trip
+ */
+class SimulatedSmartTapDevice implements ApduTransport {
+
+  static final byte[] SMART_TAP_AID = new byte[]{(byte) 0xA0, (byte) 0x00, (byte) 0x00,
+      (byte) 0x04, (byte) 0x76, (byte) 0xD0, (byte) 0x00, (byte) 0x01, (byte) 0x11};
+
+  static final byte[] PAYMENT_AID = new byte[]{(byte) 0xA0, (byte) 0x00, (byte) 0x00,
+      (byte) 0x00, (byte) 0x04, (byte) 0x10, (byte) 0x10};
+
+  // Test card number (EMVCo test range)
+  static final byte[] PAYMENT_PAN = new byte[]{(byte) 0x54, (byte) 0x13, (byte) 0x33, (byte) 0x00,
+      (byte) 0x89, (byte) 0x01, (byte) 0x04, (byte) 0x34};
+
+  private static final byte[] STATUS_OK = new byte[]{(byte) 0x90, (byte) 0x00};
+  private static final byte[] STATUS_INS_NOT_SUPPORTED = new byte[]{(byte) 0x6D, (byte) 0x00};
+
+  private final String redemptionValue;
+  private final long apduLatencyMillis;
+  private final SecureRandom random;
+  private final byte[] mobileDeviceNonce = new byte[32];
+  private KeyPair ephemeralKeyPair;
+  private byte[] ephemeralPublicKeyCompressed;
+  private byte[] sessionId;
+  private byte[] terminalNonce;
+  private byte[] terminalEphemeralPublicKeyCompressed;
+  private byte[] signedData;
+  private byte[] collectorId;
+  private int sequenceNumber;
+
+  // Service status records pushed by the terminal, and the commands they came in
+  final List<NdefRecord> pushedStatuses = new ArrayList<>();
+  int pushCommands;
+
+  /**
+   * Constructor for the class
+   *
+   * @param redemptionValue The pass's `smartTapRedemptionValue`
+   * @param apduLatencyMillis Simulated round trip per APDU
+   * @param random Source of nonces, IVs and keys
+   */
+  SimulatedSmartTapDevice(String redemptionValue, long apduLatencyMillis, SecureRandom random) {
+    this.redemptionValue = redemptionValue;
+    this.apduLatencyMillis = apduLatencyMillis;
+    this.random = random;
+
+    random.nextBytes(mobileDeviceNonce);
+  }
+
+  /**
+   * Forgets the secure session, as a mobile device does once it gives up on the terminal
+   */
+  void dropSession() {
+    random.nextBytes(mobileDeviceNonce);
+    this.ephemeralKeyPair = null;
+  }
+
+  @Override
+  public byte[] transceive(byte[] command) throws IOException {
+    if (apduLatencyMillis > 0) {
+      try {
+        Thread.sleep(apduLatencyMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted during transceive");
+      }
+    }
+
+    try {
+      switch (command[1]) {
+        case (byte) 0xA4:
+          return select(Arrays.copyOfRange(command, 5, 5 + command[4]));
+        case (byte) 0xA8:
+          return getProcessingOptions();
+        case (byte) 0xB2:
+          return readRecord();
+        case (byte) 0x53:
+          return negotiate(command);
+        case (byte) 0x50:
+          return getData();
+        case (byte) 0x52:
+          return pushServiceData(command);
+        default:
+          return STATUS_INS_NOT_SUPPORTED.clone();
+      }
+    } catch (IOException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException("Simulated device failed: " + e, e);
+    }
+  }
+
+  /**
+   * Answers a `select` by AID or name
+   *
+   * @param name AID or DF name being selected
+   * @return Response APDU
+   */
+  private byte[] select(byte[] name) throws IOException {
+    if (Arrays.equals(name, SMART_TAP_AID)) {
+      return selectSmartTap();
+    }
+
+    if (Arrays.equals(name, PAYMENT_AID)) {
+      return selectPayment();
+    }
+
+    return selectOse();
+  }
+
+  /**
+   * Builds the `select ose` response with a Smart Tap and a payment directory entry
+   *
+   * @return Response APDU
+   */
+  private byte[] selectOse() throws IOException {
+    byte[] smartTapEntry = Utils.concatenateByteArrays(
+        tlv(0x4F, SMART_TAP_AID),
+        tlv(0x50, "Smart Tap".getBytes(StandardCharsets.US_ASCII)),
+        tlv(0x87, new byte[]{0x01}),
+        tlv(0x73, Utils.concatenateByteArrays(
+            tlv(0xDF6D, new byte[]{0x00, 0x00}),
+            tlv(0xDF4D, new byte[]{0x00, 0x01}),
+            tlv(0xDF62, new byte[]{0x01}))));
+
+    byte[] paymentEntry = Utils.concatenateByteArrays(
+        tlv(0x4F, PAYMENT_AID),
+        tlv(0x50, "Payment".getBytes(StandardCharsets.US_ASCII)),
+        tlv(0x87, new byte[]{0x02}));
+
+    byte[] fciTemplate = tlv(0x6F, Utils.concatenateByteArrays(
+        tlv(0x50, "AndroidPay".getBytes(StandardCharsets.US_ASCII)),
+        tlv(0xC0, new byte[]{0x00, 0x01}),
+        tlv(0xC1, new byte[]{(byte) 0xCC}), // Payment and Pass enabled and requested
+        tlv(0xC2, mobileDeviceNonce),
+        tlv(0xC3, new byte[33]),
+        tlv(0xA5, tlv(0xBF0C, Utils.concatenateByteArrays(
+            tlv(0x61, smartTapEntry),
+            tlv(0x61, paymentEntry))))));
+
+    return Utils.concatenateByteArrays(fciTemplate, STATUS_OK);
+  }
+
+  /**
+   * Builds the payment application `select` response (FCI with label and PDOL-free template)
+   *
+   * @return Response APDU
+   */
+  private byte[] selectPayment() throws IOException {
+    byte[] fciTemplate = tlv(0x6F, Utils.concatenateByteArrays(
+        tlv(0x84, PAYMENT_AID),
+        tlv(0xA5, tlv(0x50, "Payment".getBytes(StandardCharsets.US_ASCII)))));
+
+    return Utils.concatenateByteArrays(fciTemplate, STATUS_OK);
+  }
+
+  /**
+   * Builds the `get processing options` response: AIP and an AFL pointing at one record
+   *
+   * @return Response APDU
+   */
+  private byte[] getProcessingOptions() throws IOException {
+    return Utils.concatenateByteArrays(
+        tlv(0x77, Utils.concatenateByteArrays(
+            tlv(0x82, new byte[]{0x19, (byte) 0x80}),
+            tlv(0x94, new byte[]{0x08, 0x01, 0x01, 0x00}))),
+        STATUS_OK);
+  }
+
+  /**
+   * Builds the `read record` response holding the test card number and expiry
+   *
+   * @return Response APDU
+   */
+  private byte[] readRecord() throws IOException {
+    return Utils.concatenateByteArrays(
+        tlv(0x70, Utils.concatenateByteArrays(
+            tlv(0x5A, PAYMENT_PAN),
+            tlv(0x5F24, new byte[]{0x30, 0x12, 0x31}))),
+        STATUS_OK);
+  }
+
+  /**
+   * Builds the `select smart tap 2` response
+   *
+   * @return Response APDU
+   */
+  private byte[] selectSmartTap() throws IOException {
+    NdefMessage mobileDeviceNonceMessage = new NdefMessage(record("mdn", null,
+        Utils.concatenateByteArrays(new byte[]{0x04}, mobileDeviceNonce)));
+
+    return Utils.concatenateByteArrays(
+        new byte[]{0x00, 0x01, 0x00, 0x01}, // Minimum and maximum version
+        mobileDeviceNonceMessage.toByteArray(),
+        STATUS_OK);
+  }
+
+  /**
+   * Reads the terminal's session material and answers with this device's ephemeral key
+   *
+   * @param command `negotiate smart tap secure sessions` command APDU
+   * @return Response APDU
+   */
+  private byte[] negotiate(byte[] command) throws Exception {
+    NdefRecord negotiateRecord = new NdefMessage(command, 5, command.length - 6).getRecords()[0];
+    byte[] negotiatePayload = negotiateRecord.getPayload();
+    NdefRecord[] records = new NdefMessage(negotiatePayload, 2, negotiatePayload.length - 2)
+        .getRecords();
+
+    // Session record: session ID, sequence number, status
+    this.sessionId = Arrays.copyOf(records[0].getPayload(), 8);
+
+    // Cryptography params record: nonce, live auth byte, public key, key version, signature
+    byte[] cryptoParams = records[1].getPayload();
+    this.terminalNonce = Arrays.copyOfRange(cryptoParams, 0, 32);
+    this.terminalEphemeralPublicKeyCompressed = Arrays.copyOfRange(cryptoParams, 33, 66);
+
+    NdefRecord[] signatureAndCollector = new NdefMessage(
+        cryptoParams, 70, cryptoParams.length - 70).getRecords();
+    byte[] signature = signatureAndCollector[0].getPayload();
+    this.signedData = Arrays.copyOfRange(signature, 1, signature.length);
+    byte[] collector = signatureAndCollector[1].getPayload();
+    this.collectorId = Arrays.copyOfRange(collector, 1, collector.length);
+
+    // Generate this device's ephemeral key pair
+    KeyPairGenerator keyGen = KeyPairGenerator.getInstance("EC");
+    keyGen.initialize(new ECGenParameterSpec("secp256r1"), random);
+    this.ephemeralKeyPair = keyGen.generateKeyPair();
+
+    ECPoint w = ((ECPublicKey) ephemeralKeyPair.getPublic()).getW();
+    this.ephemeralPublicKeyCompressed = ECNamedCurveTable.getByName("secp256r1").getCurve()
+        .createPoint(new BigInteger(1, w.getAffineX().toByteArray()),
+            new BigInteger(1, w.getAffineY().toByteArray()))
+        .getEncoded(true);
+
+    NdefMessage negotiateResponse = new NdefMessage(
+        record("ses", null, session(2)),
+        record("dpk", null, ephemeralPublicKeyCompressed));
+
+    return Utils.concatenateByteArrays(
+        new NdefMessage(record("nrs", null, negotiateResponse.toByteArray())).toByteArray(),
+        STATUS_OK);
+  }
+
+  /**
+   * Encrypts a loyalty pass for the terminal
+   *
+   * @return Response APDU
+   */
+  private byte[] getData() throws Exception {
+    if (ephemeralKeyPair == null) {
+      return new byte[]{(byte) 0x69, (byte) 0x85}; // Conditions of use not satisfied
+    }
+
+    NdefMessage loyalty = new NdefMessage(
+        record("oid", null, new byte[]{0x01, 0x02, 0x03, 0x04}),
+        record("cus", "n", Utils.concatenateByteArrays(
+            new byte[]{0x02}, redemptionValue.getBytes(StandardCharsets.UTF_8))));
+    NdefMessage services = new NdefMessage(record("ly", null, loyalty.toByteArray()));
+    byte[] plaintext = new NdefMessage(record("asv", null, services.toByteArray())).toByteArray();
+
+    // Shared key, as derived by the terminal
+    KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH");
+    keyAgreement.init(ephemeralKeyPair.getPrivate());
+    keyAgreement.doPhase(Utils.getPublicKeyFromBytes(terminalEphemeralPublicKeyCompressed), true);
+
+    HKDFBytesGenerator hkdf = new HKDFBytesGenerator(new SHA256Digest());
+    hkdf.init(new HKDFParameters(
+        keyAgreement.generateSecret(),
+        ephemeralPublicKeyCompressed,
+        Utils.concatenateByteArrays(terminalNonce, mobileDeviceNonce, collectorId,
+            terminalEphemeralPublicKeyCompressed, signedData)));
+    byte[] sharedKey = new byte[48];
+    hkdf.generateBytes(sharedKey, 0, sharedKey.length);
+
+    byte[] iv = new byte[12];
+    random.nextBytes(iv);
+
+    Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(sharedKey, 0, 16, "AES"),
+        new IvParameterSpec(Utils.concatenateByteArrays(iv, new byte[4])));
+    byte[] ciphertext = cipher.doFinal(plaintext);
+
+    Mac hmac = Mac.getInstance("HmacSHA256");
+    hmac.init(new SecretKeySpec(sharedKey, 16, 32, "HmacSHA256"));
+    hmac.update(iv);
+    byte[] tag = hmac.doFinal(ciphertext);
+
+    this.sequenceNumber = 3;
+    NdefMessage serviceResponse = new NdefMessage(
+        record("ses", null, session(3)),
+        record("reb", null, Utils.concatenateByteArrays(new byte[]{0x00}, iv, ciphertext, tag)));
+
+    return Utils.concatenateByteArrays(
+        new NdefMessage(record("srs", null, serviceResponse.toByteArray())).toByteArray(),
+        STATUS_OK);
+  }
+
+  /**
+   * Accepts the service statuses the terminal pushes after reading the pass
+   *
+   * @param command `push smart tap data` command APDU
+   * @return Response APDU
+   */
+  private byte[] pushServiceData(byte[] command) throws Exception {
+    if (sequenceNumber == 0) {
+      return new byte[]{(byte) 0x69, (byte) 0x85}; // Conditions of use not satisfied
+    }
+
+    NdefRecord pushRecord = new NdefMessage(command, 5, command[4] & 0xFF).getRecords()[0];
+    byte[] pushPayload = pushRecord.getPayload();
+    NdefRecord[] records = new NdefMessage(pushPayload, 2, pushPayload.length - 2).getRecords();
+
+    // Session record first, with this session's ID and a later sequence number
+    byte[] session = records[0].getPayload();
+    if (!Arrays.equals(Arrays.copyOf(session, 8), sessionId)
+        || (session[8] & 0xFF) <= sequenceNumber) {
+      return new byte[]{(byte) 0x69, (byte) 0x84}; // Reference data not usable
+    }
+    this.sequenceNumber = session[8] & 0xFF;
+
+    pushedStatuses.addAll(Arrays.asList(records).subList(1, records.length));
+    pushCommands++;
+
+    NdefMessage pushResponse = new NdefMessage(record("ses", null, session(sequenceNumber)));
+
+    return Utils.concatenateByteArrays(
+        new NdefMessage(record("psr", null, pushResponse.toByteArray())).toByteArray(),
+        STATUS_OK);
+  }
+
+  private byte[] session(int sequenceNumber) throws IOException {
+    return Utils.concatenateByteArrays(sessionId, new byte[]{(byte) sequenceNumber, 0x01});
+  }
+
+  private static NdefRecord record(String type, String id, byte[] payload) {
+    return new NdefRecord(
+        NdefRecord.TNF_EXTERNAL_TYPE,
+        type.getBytes(StandardCharsets.US_ASCII),
+        id == null ? null : id.getBytes(StandardCharsets.US_ASCII),
+        payload);
+  }
+
+  /**
+   * Encodes a BER-TLV with a one or two byte tag
+   */
+  private static byte[] tlv(int tag, byte[] value) throws IOException {
+    byte[] tagBytes = tag > 0xFF
+        ? new byte[]{(byte) (tag >> 8), (byte) tag}
+        : new byte[]{(byte) tag};
+    byte[] lengthBytes = value.length < 0x80
+        ? new byte[]{(byte) value.length}
+        : new byte[]{(byte) 0x81, (byte) value.length};
+
+    return Utils.concatenateByteArrays(tagBytes, lengthBytes, value);
+  }
+}
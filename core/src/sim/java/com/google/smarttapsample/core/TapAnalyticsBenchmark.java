@@ -0,0 +1,120 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compares {@link TapAnalytics} with exact counts kept alongside
+ *
+ * Several terminals record synthetic taps: redemption values from a pool of members, most of them
+ * regulars, log-normal tap times and a few failures of each kind. Each terminal's analytics are
+ * saved and loaded back, then merged. Reports the unique count and percentile errors, the file
+ * size and the time per recorded tap.
+ *
+ * Arguments: terminals (4), taps per terminal (250000), members (40000)
+ */
+public class TapAnalyticsBenchmark {
+
+  private static final Exception[] FAILURES = {
+      new SmartTapException("Invalid status: 6a82"),
+      new SmartTapException("Invalid Status: 9500"),
+      new SmartTapException("Problem parsing `get smart tap data` response: Hash is incorrect!"),
+      new IOException("Tag was lost."),
+  };
+
+  public static void main(String[] args) throws Exception {
+    int terminals = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    int taps = args.length > 1 ? Integer.parseInt(args[1]) : 250_000;
+    int members = args.length > 2 ? Integer.parseInt(args[2]) : 40_000;
+
+    Random random = new Random(2018);
+    Path directory = Files.createTempDirectory("smart-tap-analytics");
+    Set<String> allValues = new HashSet<>();
+    long[] allNanos = new long[terminals * taps];
+    TapAnalytics merged = TapAnalytics.create();
+    long recordNanos = 0;
+
+    for (int t = 0; t < terminals; t++) {
+      Path path = directory.resolve("terminal-" + t + ".analytics");
+      Set<String> values = new HashSet<>();
+      long[] nanos = new long[taps];
+
+      // Generated up front, so only the recording is timed
+      String[] redemptionValues = new String[taps];
+      Exception[] failures = new Exception[taps];
+      for (int i = 0; i < taps; i++) {
+        // A fifth of the members make most of the taps
+        int member = random.nextInt(5) < 4
+            ? random.nextInt(members / 5) : random.nextInt(members);
+        redemptionValues[i] = String.format("%08d", member);
+        nanos[i] = (long) (Math.exp(5.3 + 0.45 * random.nextGaussian()) * 1_000_000);
+        failures[i] = random.nextInt(50) == 0 ? FAILURES[random.nextInt(FAILURES.length)] : null;
+      }
+
+      long start = System.nanoTime();
+      try (TapAnalytics analytics = TapAnalytics.open(path, 1000)) {
+        for (int i = 0; i < taps; i++) {
+          analytics.onTap(nanos[i], failures[i]);
+          if (failures[i] == null) {
+            analytics.onRedemption(redemptionValues[i]);
+          }
+        }
+      }
+      recordNanos += System.nanoTime() - start;
+
+      for (int i = 0; i < taps; i++) {
+        if (failures[i] == null) {
+          values.add(redemptionValues[i]);
+        }
+      }
+      allValues.addAll(values);
+      System.arraycopy(nanos, 0, allNanos, t * taps, taps);
+
+      TapAnalytics loaded = TapAnalytics.load(path);
+      System.out.printf("Terminal %d: %s%n  Unique error: %s, file: %d bytes%n", t, loaded.stats(),
+          error(loaded.getUniqueRedemptionValueEstimate(), values.size()), Files.size(path));
+
+      merged.merge(loaded);
+    }
+
+    Arrays.sort(allNanos);
+    System.out.printf("%nMerged: %s%n  Unique: %d estimated, %d exact, error %s%n",
+        merged.stats(), merged.getUniqueRedemptionValueEstimate(), allValues.size(),
+        error(merged.getUniqueRedemptionValueEstimate(), allValues.size()));
+
+    for (String label : new String[]{"50", "90", "99", "99.9"}) {
+      double percentile = Double.parseDouble(label);
+      double exact = allNanos[(int) Math.ceil(percentile / 100 * allNanos.length) - 1] / 1e6;
+      System.out.printf("  p%s: %.1f ms estimated, %.1f ms exact, error %s%n", label,
+          merged.getLatencyPercentileMillis(percentile), exact,
+          error(merged.getLatencyPercentileMillis(percentile), exact));
+    }
+
+    System.out.printf("  Recording: %.0f ns per tap, periodic saves included%n",
+        (double) recordNanos / ((long) terminals * taps));
+  }
+
+  private static String error(double estimate, double exact) {
+    return String.format("%+.2f%%", 100 * (estimate - exact) / exact);
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.lang.management.ManagementFactory;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that tap events never hold up the taps, whoever subscribes
+ *
+ * First publishes with nobody subscribed and reports the allocation and time per event. Then runs
+ * taps against simulated mobile devices without a publisher, with one nobody subscribes to, and
+ * with a subscriber keeping up next to one taking a few milliseconds per event, under each overflow
+ * policy. Reports the tap time and what each subscriber received.
+ *
+ * Arguments: taps (200), slow subscriber time per event in ms (5), buffer size (16)
+ */
+public class TapEventBenchmark {
+
+  private static final com.sun.management.ThreadMXBean THREADS =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  private static final int UNSUBSCRIBED_EVENTS = 1_000_000;
+
+  public static void main(String[] args) throws Exception {
+    int taps = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    long slowMillis = args.length > 1 ? Long.parseLong(args[1]) : 5;
+    int bufferSize = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+
+    ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, "smart-tap-events");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    // Nobody subscribed, warmed up before measuring
+    TapEventPublisher unsubscribed =
+        new TapEventPublisher(executor, bufferSize, TapEventPublisher.OverflowPolicy.DROP_OLDEST);
+    publishUnsubscribed(unsubscribed);
+    long threadId = Thread.currentThread().getId();
+    long allocatedBefore = THREADS.getThreadAllocatedBytes(threadId);
+    long start = System.nanoTime();
+    publishUnsubscribed(unsubscribed);
+    long nanos = System.nanoTime() - start;
+    long allocated = THREADS.getThreadAllocatedBytes(threadId) - allocatedBefore;
+    System.out.printf("Unsubscribed: %d events, %.1f ns and %.3f bytes allocated per event%n",
+        UNSUBSCRIBED_EVENTS, (double) nanos / UNSUBSCRIBED_EVENTS,
+        (double) allocated / UNSUBSCRIBED_EVENTS);
+
+    run("Warm-up", taps, null, 0, null, bufferSize);
+    run("No publisher", taps, null, 0, null, bufferSize);
+    run("Nobody subscribed", taps, unsubscribed, 0, null, bufferSize);
+
+    for (TapEventPublisher.OverflowPolicy overflowPolicy :
+        TapEventPublisher.OverflowPolicy.values()) {
+      TapEventPublisher publisher = new TapEventPublisher(executor, bufferSize, overflowPolicy);
+      run("Slow subscriber, " + overflowPolicy, taps, publisher, slowMillis, overflowPolicy,
+          bufferSize);
+      publisher.close();
+    }
+
+    executor.shutdownNow();
+  }
+
+  private static void publishUnsubscribed(TapEventPublisher publisher) {
+    for (int i = 0; i < UNSUBSCRIBED_EVENTS; i++) {
+      publisher.stageCompleted(publisher.nextTapId(), TapDeadline.Stage.GET_DATA, i);
+    }
+  }
+
+  /**
+   * Runs the taps, with a fast and a slow subscriber when an overflow policy is given
+   */
+  private static void run(String name, int taps, TapEventPublisher publisher, long slowMillis,
+      TapEventPublisher.OverflowPolicy overflowPolicy, int bufferSize) throws Exception {
+
+    SecureRandom random = new SecureRandom();
+    LatencyRecorder tapTime = new LatencyRecorder();
+    CountingSubscriber fast = new CountingSubscriber(0);
+    CountingSubscriber slow = new CountingSubscriber(slowMillis);
+
+    if (overflowPolicy != null) {
+      // Whatever the publisher's policy, the fast subscriber must not miss anything
+      publisher.subscribe(fast, taps * 16, TapEventPublisher.OverflowPolicy.FAIL);
+      publisher.subscribe(slow);
+    }
+
+    for (int i = 0; i < taps; i++) {
+      SecureGetFlow flow = new SecureGetFlow(
+          new SimulatedSmartTapDevice(String.format("%08d", i), 0, random), false)
+          .setTapEventPublisher(publisher);
+
+      long start = System.nanoTime();
+      flow.run(new StringBuilder());
+      tapTime.record(System.nanoTime() - start);
+    }
+
+    if (name.equals("Warm-up")) {
+      return;
+    }
+
+    System.out.printf("%s: %d taps%n  Tap: %s%n", name, taps, tapTime.summary());
+
+    if (overflowPolicy != null) {
+      // A moment for the fast subscriber to take the last events
+      Thread.sleep(100);
+      System.out.printf("  Fast subscriber: %d events%s%n  Slow subscriber: %d events%s, "
+              + "buffer %d%n  %s%n",
+          fast.received.get(), fast.error == null ? "" : ", " + fast.error,
+          slow.received.get(), slow.error == null ? "" : ", " + slow.error,
+          bufferSize, publisher.stats());
+    }
+  }
+
+  /**
+   * Class counts the events it receives, requesting one at a time and taking its time over each
+   */
+  private static final class CountingSubscriber implements Flow.Subscriber<TapEvent> {
+
+    final AtomicLong received = new AtomicLong();
+    final long millisPerEvent;
+    Flow.Subscription subscription;
+    volatile Throwable error;
+
+    CountingSubscriber(long millisPerEvent) {
+      this.millisPerEvent = millisPerEvent;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+      subscription.request(1);
+    }
+
+    @Override
+    public void onNext(TapEvent event) {
+      received.incrementAndGet();
+
+      if (millisPerEvent > 0) {
+        try {
+          Thread.sleep(millisPerEvent);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      subscription.request(1);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      this.error = throwable;
+    }
+
+    @Override
+    public void onComplete() {
+    }
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * Measures the allocation and CPU cost of each stage of a tap, see {@link TapStages}
+ *
+ * Each stage runs in batches on one thread. The bytes allocated and the CPU time are taken over a
+ * whole batch and divided by its size, as single runs take too few microseconds for the thread CPU
+ * clock. The budgets are checked by `TapBudgetTest`.
+ *
+ * Arguments: warm-up runs per stage (3000), measured runs per stage (2000)
+ */
+public class TapStageBenchmark {
+
+  private static final com.sun.management.ThreadMXBean THREADS =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  public static void main(String[] args) throws Exception {
+    int warmUp = args.length > 0 ? Integer.parseInt(args[0]) : 3000;
+    int measured = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+    if (!THREADS.isThreadAllocatedMemorySupported() || !THREADS.isCurrentThreadCpuTimeSupported()) {
+      System.out.println("Skipped: JVM does not report per-thread allocation and CPU time");
+      return;
+    }
+    THREADS.setThreadAllocatedMemoryEnabled(true);
+    THREADS.setThreadCpuTimeEnabled(true);
+
+    List<TapStages.Stage> stages = TapStages.record();
+
+    for (int i = 0; i < warmUp; i++) {
+      for (TapStages.Stage stage : stages) {
+        stage.run();
+      }
+    }
+
+    long threadId = Thread.currentThread().getId();
+    long tapBytes = 0;
+    long tapCpuNanos = 0;
+    for (TapStages.Stage stage : stages) {
+      long bytesBefore = THREADS.getThreadAllocatedBytes(threadId);
+      long cpuBefore = THREADS.getCurrentThreadCpuTime();
+
+      for (int i = 0; i < measured; i++) {
+        stage.run();
+      }
+
+      long cpuNanos = THREADS.getCurrentThreadCpuTime() - cpuBefore;
+      long bytes = THREADS.getThreadAllocatedBytes(threadId) - bytesBefore;
+
+      tapBytes += bytes / measured;
+      tapCpuNanos += cpuNanos / measured;
+
+      System.out.printf("%-24s %8d B (budget %8d)  %8.1f us CPU%n", stage.name,
+          bytes / measured, stage.allocatedBytesBudget, cpuNanos / 1e3 / measured);
+    }
+
+    System.out.printf("%-24s %8d B (budget %8d)  %8.1f us CPU (budget %.1f)%n", "Tap", tapBytes,
+        TapStages.TAP_ALLOCATED_BYTES_BUDGET, tapCpuNanos / 1e3,
+        TapStages.TAP_CPU_NANOS_BUDGET / 1e3);
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class holds the stages of one tap, replayed from a recorded tap for measuring their cost
+ *
+ * Records one tap against {@link SimulatedSmartTapDevice} as the fixture. Each stage then builds
+ * its command or parses and decrypts its recorded response in a fresh session, as often as needed.
+ * `Utils` is covered through the stages calling it.
+ *
+ * Allocation budgets are about twice the bytes measured on a desktop JVM, tight enough to catch a
+ * stage that starts copying or re-parsing. CPU time is budgeted per tap only, summed over all
+ * stages and averaged over a batch of taps: at microseconds per stage the time of a single stage is
+ * mostly timer and scheduler noise. Its budget is over four times the 4.4 ms measured on a desktop
+ * JVM, so a slow or busy machine passes and a tap that gets several times slower fails
+ */
+final class TapStages {
+
+  // Sum of the stage medians, about 140 kB measured, well below the sum of the stage budgets
+  static final long TAP_ALLOCATED_BYTES_BUDGET = 200_000;
+  // Mean CPU time of a whole tap over a batch
+  static final long TAP_CPU_NANOS_BUDGET = 20_000_000;
+
+  private TapStages() {
+  }
+
+  /**
+   * Records a tap and lists its stages in flow order
+   *
+   * @return Stages with their allocation budgets
+   */
+  static List<Stage> record() throws Exception {
+    Fixture fixture = Fixture.record();
+    AidRouter router = AidRouter.withSmartTap();
+    TerminalKeyManager keyManager = TerminalKeyManager.getDefault();
+    ServiceObjectDecoder decoder = ServiceObjectDecoder.withRedemptionValues();
+
+    List<Stage> stages = new ArrayList<>();
+    stages.add(new Stage("SelectOSEResponse", 40_000, arena ->
+        new SelectOSEResponse(fixture.selectOSEResponse, arena, router)));
+    stages.add(new Stage("SelectSmartTapResponse", 2_000, arena ->
+        new SelectSmartTapResponse(fixture.selectSmartTapResponse, arena)));
+    stages.add(new Stage("NegotiateCryptoCommand", 120_000, arena ->
+        new NegotiateCryptoCommand(fixture.mobileDeviceNonce, keyManager, arena)
+            .commandToByteArray()));
+    stages.add(new Stage("NegotiateCryptoResponse", 2_500, arena ->
+        new NegotiateCryptoResponse(fixture.negotiateCryptoResponse, arena)));
+    stages.add(new Stage("GetDataCommand", 2_500, arena ->
+        new GetDataCommand(fixture.sessionId, fixture.collectorIdRecord, 2, arena)
+            .commandToByteArray()));
+    stages.add(new Stage("GetDataResponse", 120_000, arena ->
+        new GetDataResponse(fixture.getDataResponse, fixture.sessionSecrets(arena, decoder))));
+    return stages;
+  }
+
+  /**
+   * Interface for the work of one stage
+   */
+  interface StageBody {
+
+    void run(SessionArena arena) throws Exception;
+  }
+
+  /**
+   * Class encapsulates one stage and its allocation budget
+   */
+  static final class Stage {
+
+    final String name;
+    final long allocatedBytesBudget;
+    final StageBody body;
+
+    /**
+     * Constructor for the class
+     *
+     * @param name Class the stage covers
+     * @param allocatedBytesBudget Median bytes the stage may allocate
+     * @param body Work of the stage
+     */
+    Stage(String name, long allocatedBytesBudget, StageBody body) {
+      this.name = name;
+      this.allocatedBytesBudget = allocatedBytesBudget;
+      this.body = body;
+    }
+
+    /**
+     * Runs the stage once in a fresh session
+     */
+    void run() throws Exception {
+      try (SessionArena arena = SessionArena.acquire()) {
+        body.run(arena);
+      }
+    }
+  }
+
+  /**
+   * Class holds one recorded tap and what the stages need from it
+   */
+  private static final class Fixture {
+
+    Transcript transcript;
+    SessionSecrets recordedSecrets;
+    byte[] selectOSEResponse;
+    byte[] selectSmartTapResponse;
+    byte[] negotiateCryptoResponse;
+    byte[] getDataResponse;
+    byte[] mobileDeviceNonce;
+    byte[] mobileDeviceEphemeralPublicKey;
+    byte[] sessionId;
+    NdefRecord collectorIdRecord;
+
+    /**
+     * Records a tap against a simulated mobile device, with session keys
+     *
+     * @return Fixture
+     */
+    static Fixture record() throws Exception {
+      Path path = Files.createTempFile("tap-budget", ".transcript");
+      Files.delete(path);
+
+      Fixture fixture = new Fixture();
+      try {
+        try (TranscriptRecorder recorder = TranscriptRecorder.open(path, true)) {
+          new SecureGetFlow(
+              new SimulatedSmartTapDevice("2018", 0, new SecureRandom()), false)
+              .setTranscriptRecorder(recorder)
+              .run(new StringBuilder());
+        }
+        fixture.transcript = Transcript.readAll(path).get(0);
+      } finally {
+        Files.deleteIfExists(path);
+      }
+
+      for (Transcript.Exchange exchange : fixture.transcript.exchanges) {
+        switch (exchange.getInstruction()) {
+          case 0xA4:
+            if (fixture.selectOSEResponse == null) {
+              fixture.selectOSEResponse = exchange.response;
+            } else {
+              fixture.selectSmartTapResponse = exchange.response;
+            }
+            break;
+          case 0x53:
+            fixture.negotiateCryptoResponse = exchange.response;
+            break;
+          case 0x50:
+            fixture.getDataResponse = exchange.response;
+            break;
+          default:
+        }
+      }
+
+      if (fixture.selectSmartTapResponse == null || fixture.getDataResponse == null) {
+        throw new IllegalStateException("Fixture tap is missing commands");
+      }
+
+      // Parsed once here for what the command stages take as input
+      try (SessionArena arena = SessionArena.acquire()) {
+        fixture.mobileDeviceNonce = new SelectSmartTapResponse(
+            fixture.selectSmartTapResponse, arena).mobileDeviceNonce.clone();
+        fixture.mobileDeviceEphemeralPublicKey = new NegotiateCryptoResponse(
+            fixture.negotiateCryptoResponse, arena).mobileDeviceEphemeralPublicKey.clone();
+
+        NegotiateCryptoCommand command = new NegotiateCryptoCommand(
+            fixture.mobileDeviceNonce, TerminalKeyManager.getDefault(), arena);
+        fixture.sessionId = command.sessionId.clone();
+        fixture.collectorIdRecord = command.collectorIdRecord;
+      }
+
+      // Decoding the recorded private key is not part of a tap
+      fixture.recordedSecrets = fixture.transcript.sessionSecrets(
+          fixture.mobileDeviceEphemeralPublicKey, null, null);
+
+      return fixture;
+    }
+
+    /**
+     * Creates the session material of the recorded tap for a new session
+     *
+     * @param arena Arena to decrypt in
+     * @param decoder Decodes the service objects in the decrypted response
+     * @return Session secrets
+     */
+    SessionSecrets sessionSecrets(SessionArena arena, ServiceObjectDecoder decoder) {
+      return new SessionSecrets(
+          recordedSecrets.mobileDeviceEphemeralPublicKey,
+          recordedSecrets.terminalEphemeralPrivateKey,
+          recordedSecrets.terminalNonce,
+          recordedSecrets.collectorId,
+          recordedSecrets.terminalEphemeralPublicKeyCompressed,
+          recordedSecrets.signedData,
+          recordedSecrets.mobileDeviceNonce,
+          arena,
+          decoder,
+          null);
+    }
+  }
+}
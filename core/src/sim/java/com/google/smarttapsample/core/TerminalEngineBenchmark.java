@@ -0,0 +1,83 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs {@link TerminalEngine} against simulated readers and reports throughput and tail latency
+ *
+ * Arguments: readers (300), taps per reader (20), idle gap before each tap in ms (10), simulated
+ * APDU round trip in ms (5), pre-signing (false). Device-side cryptography runs on the same host,
+ * so the figures are a lower bound for the terminal alone
+ */
+public class TerminalEngineBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int readers = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+    int tapsPerReader = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    long gapMillis = args.length > 2 ? Long.parseLong(args[2]) : 10;
+    long apduLatencyMillis = args.length > 3 ? Long.parseLong(args[3]) : 5;
+    boolean presigning = args.length > 4 && Boolean.parseBoolean(args[4]);
+
+    if (presigning) {
+      TerminalKeyManager.getDefault().enablePresigning(readers);
+    }
+
+    LatencyRecorder latencies = new LatencyRecorder();
+    AtomicInteger failures = new AtomicInteger();
+    CountDownLatch done = new CountDownLatch(readers * tapsPerReader);
+
+    TerminalEngine engine = new TerminalEngine(
+        TerminalEngine.newSessionExecutor(),
+        TerminalKeyManager.getDefault(),
+        Runtime.getRuntime().availableProcessors(),
+        new TerminalEngine.Listener() {
+          @Override
+          public void onRedeemed(String readerId, GetDataResponse getDataResponse, long tapNanos) {
+            latencies.record(tapNanos);
+            done.countDown();
+          }
+
+          @Override
+          public void onTapFailed(String readerId, Exception e, long tapNanos) {
+            failures.incrementAndGet();
+            done.countDown();
+          }
+        });
+
+    long start = System.nanoTime();
+    for (int i = 0; i < readers; i++) {
+      engine.addReader(new SimulatedReader("reader-" + i, tapsPerReader, gapMillis,
+          apduLatencyMillis));
+    }
+
+    done.await();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    engine.shutdown(10, TimeUnit.SECONDS);
+
+    System.out.printf("Readers: %d, taps: %d, failures: %d, %.1f s%n",
+        readers, latencies.count(), failures.get(), seconds);
+    System.out.printf("Throughput: %.1f taps/s%n", latencies.count() / seconds);
+    System.out.println("Tap latency: " + latencies.summary());
+
+    if (presigning) {
+      System.out.println(TerminalKeyManager.getDefault().getPresignaturePool().stats());
+    }
+  }
+}
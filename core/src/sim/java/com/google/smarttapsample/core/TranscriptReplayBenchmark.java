@@ -0,0 +1,205 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Replays recorded taps through the response parsers and decryption at full speed
+ *
+ * Without a transcript log, records taps against {@link SimulatedSmartTapDevice} first. Each
+ * response is parsed by the class the flow would have used for it, picked by the instruction byte
+ * of its command. `get smart tap data` responses are decrypted when the tap was recorded with its
+ * session keys.
+ *
+ * Arguments: simulated taps (2000), rounds (5), transcript log (none)
+ */
+public class TranscriptReplayBenchmark {
+
+  private static final int INS_SELECT = 0xA4;
+  private static final int INS_NEGOTIATE = 0x53;
+  private static final int INS_GET_DATA = 0x50;
+
+  public static void main(String[] args) throws Exception {
+    int tapCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    Path path = args.length > 2 ? Paths.get(args[2]) : null;
+
+    boolean simulated = path == null;
+    if (simulated) {
+      path = Files.createTempFile("smart-tap", ".transcript");
+      Files.delete(path);
+      record(path, tapCount);
+    }
+
+    try {
+      long start = System.nanoTime();
+      List<Transcript> transcripts = Transcript.readAll(path);
+      System.out.printf("Read %d taps in %.1f ms, %.1f KB%n",
+          transcripts.size(), (System.nanoTime() - start) / 1e6, Files.size(path) / 1e3);
+
+      printRecordedTimings(transcripts);
+
+      // First round warms up
+      for (int round = 0; round <= rounds; round++) {
+        LatencyRecorder latencies = new LatencyRecorder();
+        int exchanges = 0;
+        int decrypted = 0;
+
+        start = System.nanoTime();
+        for (Transcript transcript : transcripts) {
+          long tapStart = System.nanoTime();
+          decrypted += replay(transcript);
+          latencies.record(System.nanoTime() - tapStart);
+          exchanges += transcript.exchanges.size();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        if (round > 0) {
+          System.out.printf("Round %d: %d taps, %d APDUs, %d decrypted, %.0f taps/s, "
+                  + "%.0f APDUs/s%n  Per tap: %s%n",
+              round, transcripts.size(), exchanges, decrypted,
+              transcripts.size() / (elapsed / 1e9), exchanges / (elapsed / 1e9),
+              latencies.summary());
+        }
+      }
+    } finally {
+      if (simulated) {
+        Files.deleteIfExists(path);
+      }
+    }
+  }
+
+  /**
+   * Records taps against simulated devices, with session keys
+   *
+   * @param path Log file
+   * @param tapCount Taps to record
+   */
+  private static void record(Path path, int tapCount) throws Exception {
+    SecureRandom random = new SecureRandom();
+
+    long start = System.nanoTime();
+    try (TranscriptRecorder recorder = TranscriptRecorder.open(path, true)) {
+      for (int i = 0; i < tapCount; i++) {
+        SimulatedSmartTapDevice device = new SimulatedSmartTapDevice(
+            String.format("%08d", i), 0, random);
+
+        new SecureGetFlow(device, i % 2 == 0)
+            .setTranscriptRecorder(recorder)
+            .run(new StringBuilder());
+      }
+
+      System.out.printf("Recorded %d taps in %.1f ms%n",
+          recorder.getTapCount(), (System.nanoTime() - start) / 1e6);
+    }
+  }
+
+  /**
+   * Prints the recorded round trips per command, the timings the replay leaves out
+   *
+   * @param transcripts Recorded taps
+   */
+  private static void printRecordedTimings(List<Transcript> transcripts) {
+    LatencyRecorder taps = new LatencyRecorder();
+    LatencyRecorder exchanges = new LatencyRecorder();
+
+    for (Transcript transcript : transcripts) {
+      List<Transcript.Exchange> tap = transcript.exchanges;
+      if (tap.isEmpty()) {
+        continue;
+      }
+
+      Transcript.Exchange last = tap.get(tap.size() - 1);
+      taps.record(last.offsetNanos + last.durationNanos);
+      for (Transcript.Exchange exchange : tap) {
+        exchanges.record(exchange.durationNanos);
+      }
+    }
+
+    System.out.println("Recorded per tap: " + taps.summary());
+    System.out.println("Recorded per APDU: " + exchanges.summary());
+  }
+
+  /**
+   * Parses the responses of one tap
+   *
+   * @param transcript Recorded tap
+   * @return 1 if the `get smart tap data` response was decrypted, 0 otherwise
+   */
+  private static int replay(Transcript transcript) throws Exception {
+    int decrypted = 0;
+
+    try (SessionArena arena = SessionArena.acquire()) {
+      byte[] mobileDeviceEphemeralPublicKey = null;
+
+      for (Transcript.Exchange exchange : transcript.exchanges) {
+        byte[] response = exchange.response;
+        if (response == null) {
+          continue;
+        }
+
+        switch (exchange.getInstruction()) {
+          case INS_SELECT:
+            if (selects(exchange.command, SimulatedSmartTapDevice.SMART_TAP_AID)) {
+              new SelectSmartTapResponse(response, arena);
+            } else {
+              new SelectOSEResponse(response, arena, AidRouter.withSmartTap());
+            }
+            break;
+          case INS_NEGOTIATE:
+            mobileDeviceEphemeralPublicKey =
+                new NegotiateCryptoResponse(response, arena).mobileDeviceEphemeralPublicKey;
+            break;
+          case INS_GET_DATA:
+            if (transcript.hasSessionKeys() && mobileDeviceEphemeralPublicKey != null) {
+              GetDataResponse getDataResponse = new GetDataResponse(response,
+                  transcript.sessionSecrets(mobileDeviceEphemeralPublicKey, arena,
+                      ServiceObjectDecoder.withRedemptionValues()));
+
+              if (getDataResponse.decryptedSmartTapRedemptionValue == null) {
+                throw new IllegalStateException("No redemption value in replayed response");
+              }
+              decrypted++;
+            }
+            break;
+          default:
+            // Push service and other commands have nothing to decrypt
+        }
+      }
+    }
+
+    return decrypted;
+  }
+
+  /**
+   * Checks whether a `select` command is for an AID
+   *
+   * @param command Command APDU
+   * @param aid AID to check for
+   * @return Whether the command selects the AID
+   */
+  private static boolean selects(byte[] command, byte[] aid) {
+    return command.length >= 5 + aid.length
+        && (command[4] & 0xFF) == aid.length
+        && Arrays.equals(Arrays.copyOfRange(command, 5, 5 + aid.length), aid);
+  }
+}
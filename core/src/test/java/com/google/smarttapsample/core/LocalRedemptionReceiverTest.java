@@ -0,0 +1,97 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Test;
+
+/**
+ * Checks the stand-in merchant endpoint the outbox tests and benchmark deliver to
+ */
+public class LocalRedemptionReceiverTest {
+
+  @Test
+  public void storesEachIdempotencyKeyOnce() throws Exception {
+    LocalRedemptionReceiver receiver = new LocalRedemptionReceiver(0, 0);
+    RedemptionEvent first = new RedemptionEvent("key-1", "pass-1", System.currentTimeMillis());
+    RedemptionEvent second = new RedemptionEvent("key-2", "pass-1", System.currentTimeMillis());
+
+    receiver.receive("key-1+2", batch(first, second));
+    receiver.receive("key-1+2", batch(first, second));
+    receiver.receive("key-2+1", batch(second));
+
+    assertEquals(2, receiver.stored.size());
+    assertEquals(3, receiver.duplicates.get());
+    assertEquals(3, receiver.batches.get());
+  }
+
+  @Test
+  public void failsWithoutStoringWhileDown() throws Exception {
+    LocalRedemptionReceiver receiver = new LocalRedemptionReceiver(0, 0);
+    receiver.down = true;
+
+    try {
+      receiver.receive("key-1+1", batch(new RedemptionEvent("pass-1")));
+      fail("Batch accepted while down");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("key-1+1"));
+    }
+
+    assertEquals(0, receiver.stored.size());
+    assertEquals(1, receiver.failures.get());
+    assertEquals(0, receiver.batches.get());
+  }
+
+  @Test
+  public void failsTheGivenShareOfBatches() throws Exception {
+    LocalRedemptionReceiver receiver = new LocalRedemptionReceiver(0, 1);
+
+    for (int i = 0; i < 10; i++) {
+      try {
+        receiver.receive("batch-" + i, batch(new RedemptionEvent("pass-" + i)));
+        fail("Batch accepted with a failure rate of 1");
+      } catch (IOException e) {
+        // Expected
+      }
+    }
+
+    assertEquals(10, receiver.failures.get());
+    assertEquals(0, receiver.stored.size());
+  }
+
+  /**
+   * Encodes events the way {@link RedemptionOutbox} sends them
+   */
+  private static byte[] batch(RedemptionEvent... events) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    try (DataOutputStream output = new DataOutputStream(new GZIPOutputStream(bytes))) {
+      output.writeInt(events.length);
+      for (RedemptionEvent event : events) {
+        output.write(event.encode());
+      }
+    }
+
+    return bytes.toByteArray();
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks {@link RedemptionCoordinator} against {@link RedemptionCoordinatorServer}
+ */
+public class RedemptionCoordinatorTest {
+
+  private static final long WINDOW_MILLIS = 60 * 1000;
+  private static final long TIMEOUT_MILLIS = 500;
+  private static final long SHORT_LEASE_MILLIS = 200;
+
+  private final List<RedemptionCoordinator> coordinators = new ArrayList<>();
+  private RedemptionCoordinatorServer server;
+
+  @Before
+  public void startServer() throws IOException {
+    server = new RedemptionCoordinatorServer(0, 0);
+  }
+
+  @After
+  public void stop() throws IOException {
+    coordinators.forEach(RedemptionCoordinator::close);
+    server.close();
+  }
+
+  @Test
+  public void committedValueIsDuplicateOnAnotherLane() throws Exception {
+    RedemptionCoordinator laneA = connect("lane-a", 5000);
+    RedemptionCoordinator laneB = connect("lane-b", 5000);
+
+    RedemptionCoordinator.Claim first = laneA.claim("pass-1");
+    assertEquals(RedemptionCoordinator.Decision.GRANTED, first.getDecision());
+    first.commit();
+    roundTrip(laneA);
+
+    RedemptionCoordinator.Claim second = laneB.claim("pass-1");
+    assertEquals(RedemptionCoordinator.Decision.DUPLICATE, second.getDecision());
+    assertEquals("lane-a", second.getHolder());
+  }
+
+  @Test
+  public void leaseExpiresWhenTheLaneNeverCommits() throws Exception {
+    RedemptionCoordinator laneA = connect("lane-a", SHORT_LEASE_MILLIS);
+    RedemptionCoordinator laneB = connect("lane-b", SHORT_LEASE_MILLIS);
+
+    // Lane A dies mid-tap, holding the lease
+    assertEquals(RedemptionCoordinator.Decision.GRANTED, laneA.claim("pass-1").getDecision());
+
+    RedemptionCoordinator.Claim held = laneB.claim("pass-1");
+    assertEquals(RedemptionCoordinator.Decision.DUPLICATE, held.getDecision());
+    assertEquals("lane-a", held.getHolder());
+
+    Thread.sleep(SHORT_LEASE_MILLIS * 2);
+    assertEquals(RedemptionCoordinator.Decision.GRANTED, laneB.claim("pass-1").getDecision());
+  }
+
+  @Test
+  public void releasedValueIsGrantedAgain() throws Exception {
+    RedemptionCoordinator laneA = connect("lane-a", 5000);
+    RedemptionCoordinator laneB = connect("lane-b", 5000);
+
+    laneA.claim("pass-1").release();
+    roundTrip(laneA);
+
+    assertEquals(RedemptionCoordinator.Decision.GRANTED, laneB.claim("pass-1").getDecision());
+  }
+
+  @Test
+  public void slowCoordinatorFailsOpen() throws Exception {
+    RedemptionCoordinator lane = connect("lane-a", 5000);
+    server.setExtraLatencyMillis(TIMEOUT_MILLIS * 4);
+
+    long start = System.nanoTime();
+    RedemptionCoordinator.Claim claim = lane.claim("pass-1");
+    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    assertEquals(RedemptionCoordinator.Decision.UNAVAILABLE, claim.getDecision());
+    assertTrue("Waited " + millis + " ms", millis < TIMEOUT_MILLIS * 3);
+  }
+
+  @Test
+  public void failedOpenRedemptionIsStillCommitted() throws Exception {
+    RedemptionCoordinator laneA = connect("lane-a", 5000);
+    RedemptionCoordinator laneB = connect("lane-b", 5000);
+
+    server.setExtraLatencyMillis(TIMEOUT_MILLIS * 2);
+    RedemptionCoordinator.Claim claim = laneA.claim("pass-1");
+    assertEquals(RedemptionCoordinator.Decision.UNAVAILABLE, claim.getDecision());
+    claim.commit();
+    server.setExtraLatencyMillis(0);
+    roundTrip(laneA);
+
+    RedemptionCoordinator.Claim duplicate = laneB.claim("pass-1");
+    assertEquals(RedemptionCoordinator.Decision.DUPLICATE, duplicate.getDecision());
+    assertEquals("lane-a", duplicate.getHolder());
+  }
+
+  @Test
+  public void duplicatesAreCachedForTheWindow() throws Exception {
+    RedemptionCoordinator laneA = connect("lane-a", 5000);
+    RedemptionCoordinator laneB = connect("lane-b", 5000);
+
+    laneA.claim("pass-1").commit();
+    roundTrip(laneA);
+    assertTrue(laneB.claim("pass-1").isDuplicate());
+
+    // Answered without the coordinator, on the lane that redeemed and on the one told about it
+    server.close();
+
+    RedemptionCoordinator.Claim repeat = laneA.claim("pass-1");
+    assertEquals(RedemptionCoordinator.Decision.DUPLICATE, repeat.getDecision());
+    assertEquals("lane-a", repeat.getHolder());
+
+    RedemptionCoordinator.Claim cached = laneB.claim("pass-1");
+    assertEquals(RedemptionCoordinator.Decision.DUPLICATE, cached.getDecision());
+    assertEquals("lane-a", cached.getHolder());
+    assertTrue(laneB.stats(), laneB.stats().contains("(1 cached)"));
+
+    // Not cached, so the coordinator being down fails it open
+    assertEquals(RedemptionCoordinator.Decision.UNAVAILABLE, laneB.claim("pass-2").getDecision());
+  }
+
+  @Test
+  public void commitsAfterReconnecting() throws Exception {
+    RedemptionCoordinator laneA = connect("lane-a", 5000);
+    RedemptionCoordinator laneB = connect("lane-b", 5000);
+
+    server.dropLanes();
+    roundTrip(laneA);
+    roundTrip(laneB);
+    assertTrue(laneA.stats(), laneA.stats().contains(", 1 link failures"));
+
+    RedemptionCoordinator.Claim claim = laneA.claim("pass-1");
+    assertEquals(RedemptionCoordinator.Decision.GRANTED, claim.getDecision());
+    claim.commit();
+    roundTrip(laneA);
+
+    RedemptionCoordinator.Claim duplicate = laneB.claim("pass-1");
+    assertEquals(RedemptionCoordinator.Decision.DUPLICATE, duplicate.getDecision());
+    assertEquals("lane-a", duplicate.getHolder());
+  }
+
+  /**
+   * Creates a coordinator for a lane and waits for it to connect
+   */
+  private RedemptionCoordinator connect(String lane, long leaseMillis) throws Exception {
+    RedemptionCoordinator coordinator = new RedemptionCoordinator(
+        "localhost", server.getPort(), lane, WINDOW_MILLIS, TIMEOUT_MILLIS, leaseMillis);
+    coordinators.add(coordinator);
+
+    roundTrip(coordinator);
+    return coordinator;
+  }
+
+  /**
+   * Waits for a claim to be answered, after the requests the lane sent before it
+   *
+   * Commits and releases are not answered, a claim on the same connection shows they arrived
+   */
+  private static void roundTrip(RedemptionCoordinator coordinator) throws Exception {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+
+    while (true) {
+      RedemptionCoordinator.Claim claim = coordinator.claim("round-trip-" + System.nanoTime());
+      if (claim.getDecision() == RedemptionCoordinator.Decision.GRANTED) {
+        claim.release();
+        return;
+      }
+
+      assertTrue("No answer: " + coordinator.stats(), System.nanoTime() < deadline);
+      Thread.sleep(20);
+    }
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that {@link RedemptionOutbox} delivers every redemption through failures and restarts,
+ * against {@link LocalRedemptionReceiver}
+ */
+public class RedemptionOutboxTest {
+
+  private static final long DELIVERY_TIMEOUT_MILLIS = 10_000;
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private Path directory;
+  private LocalRedemptionReceiver receiver;
+
+  @Before
+  public void setUp() {
+    directory = folder.getRoot().toPath().resolve("outbox");
+    receiver = new LocalRedemptionReceiver(0, 0);
+  }
+
+  @Test
+  public void deliversEveryEventOnce() throws Exception {
+    try (RedemptionOutbox outbox = open(receiver)) {
+      enqueue(outbox, "tap", 25);
+
+      assertTrue(outbox.stats(), outbox.awaitDelivered(DELIVERY_TIMEOUT_MILLIS));
+    }
+
+    assertEquals(25, receiver.stored.size());
+    assertEquals(0, receiver.duplicates.get());
+  }
+
+  @Test
+  public void retriesAFailedBatchUnchanged() throws Exception {
+    FlakyReceiver flaky = new FlakyReceiver(receiver, 3, false);
+
+    try (RedemptionOutbox outbox = open(flaky)) {
+      enqueue(outbox, "first", 3);
+      assertTrue(flaky.firstAttempt.await(DELIVERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+      // Arrive while the first batch is retried, and must not join it
+      enqueue(outbox, "later", 20);
+
+      assertTrue(outbox.stats(), outbox.awaitDelivered(DELIVERY_TIMEOUT_MILLIS));
+      assertTrue(outbox.stats(), outbox.stats().contains("retries: 3"));
+    }
+
+    List<String> batchIds = flaky.batchIds;
+    int firstBatchEvents =
+        Integer.parseInt(batchIds.get(0).substring(batchIds.get(0).lastIndexOf('+') + 1));
+    assertTrue(batchIds.get(0), firstBatchEvents <= 3);
+    for (int i = 1; i <= 3; i++) {
+      assertEquals(batchIds.get(0), batchIds.get(i));
+    }
+    assertEquals(23, receiver.stored.size());
+  }
+
+  @Test
+  public void lostAcknowledgementIsDroppedByIdempotencyKey() throws Exception {
+    // Stores the first batch, then fails as if the acknowledgement was lost
+    FlakyReceiver flaky = new FlakyReceiver(receiver, 1, true);
+
+    try (RedemptionOutbox outbox = open(flaky)) {
+      enqueue(outbox, "tap", 5);
+
+      assertTrue(outbox.stats(), outbox.awaitDelivered(DELIVERY_TIMEOUT_MILLIS));
+    }
+
+    assertEquals(5, receiver.stored.size());
+    assertTrue(receiver.duplicates.get() > 0);
+    assertEquals(flaky.batchIds.get(0), flaky.batchIds.get(1));
+  }
+
+  @Test
+  public void redeliversAfterARestart() throws Exception {
+    receiver.down = true;
+
+    RedemptionOutbox outbox = open(receiver);
+    enqueue(outbox, "outage", 20);
+    waitFor(() -> receiver.failures.get() > 0);
+    outbox.close();
+
+    receiver.down = false;
+    try (RedemptionOutbox reopened = open(receiver)) {
+      assertTrue(reopened.stats(), reopened.awaitDelivered(DELIVERY_TIMEOUT_MILLIS));
+      assertEquals(20, reopened.getDeliveredCount());
+    }
+
+    assertEquals(20, receiver.stored.size());
+  }
+
+  @Test
+  public void restartSendsOnlyUnacknowledgedEvents() throws Exception {
+    try (RedemptionOutbox outbox = open(receiver)) {
+      enqueue(outbox, "delivered", 20);
+      assertTrue(outbox.stats(), outbox.awaitDelivered(DELIVERY_TIMEOUT_MILLIS));
+    }
+    long batches = receiver.batches.get();
+
+    // The journal was cut once everything was acknowledged, starting a new generation
+    receiver.down = true;
+    RedemptionOutbox outbox = open(receiver);
+    enqueue(outbox, "queued", 7);
+    waitFor(() -> receiver.failures.get() > 0);
+    outbox.close();
+
+    receiver.down = false;
+    try (RedemptionOutbox reopened = open(receiver)) {
+      assertTrue(reopened.stats(), reopened.awaitDelivered(DELIVERY_TIMEOUT_MILLIS));
+      assertEquals(7, reopened.getDeliveredCount());
+    }
+
+    assertEquals(27, receiver.stored.size());
+    assertEquals(0, receiver.duplicates.get());
+    assertTrue(receiver.batches.get() > batches);
+  }
+
+  @Test
+  public void tornJournalTailIsCutOff() throws Exception {
+    // Journaled only, nothing delivered without a receiver
+    try (RedemptionOutbox outbox = open(null)) {
+      enqueue(outbox, "journaled", 5);
+    }
+
+    Files.write(directory.resolve("outbox.journal"), new byte[]{0, 0, 0, 40, 1, 2, 3},
+        StandardOpenOption.APPEND);
+
+    try (RedemptionOutbox reopened = open(receiver)) {
+      enqueue(reopened, "after", 2);
+      assertTrue(reopened.stats(), reopened.awaitDelivered(DELIVERY_TIMEOUT_MILLIS));
+    }
+
+    assertEquals(7, receiver.stored.size());
+  }
+
+  private RedemptionOutbox open(RedemptionReceiver receiver) throws IOException {
+    return RedemptionOutbox.open(directory)
+        .setBatchLimits(10, 64 * 1024, 0)
+        .setRetryBackoff(1, 10)
+        .setReceiver(receiver);
+  }
+
+  private static void enqueue(RedemptionOutbox outbox, String prefix, int count) {
+    for (int i = 0; i < count; i++) {
+      outbox.enqueue(new RedemptionEvent(prefix + "-" + i));
+    }
+  }
+
+  private static void waitFor(Condition condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DELIVERY_TIMEOUT_MILLIS);
+
+    while (!condition.holds()) {
+      assertTrue("Timed out", System.nanoTime() < deadline);
+      Thread.sleep(5);
+    }
+  }
+
+  private interface Condition {
+    boolean holds();
+  }
+
+  /**
+   * Class fails the first batches it is sent, recording the batch id of every attempt
+   */
+  private static final class FlakyReceiver implements RedemptionReceiver {
+
+    final List<String> batchIds = new ArrayList<>();
+    final CountDownLatch firstAttempt = new CountDownLatch(1);
+    private final RedemptionReceiver delegate;
+    private final AtomicInteger failuresLeft;
+    private final boolean storeBeforeFailing;
+
+    /**
+     * Constructor for the class
+     *
+     * @param delegate Receiver storing the batches
+     * @param failures Attempts to fail
+     * @param storeBeforeFailing Whether a failed batch is stored anyway, a lost acknowledgement
+     */
+    FlakyReceiver(RedemptionReceiver delegate, int failures, boolean storeBeforeFailing) {
+      this.delegate = delegate;
+      this.failuresLeft = new AtomicInteger(failures);
+      this.storeBeforeFailing = storeBeforeFailing;
+    }
+
+    @Override
+    public void receive(String batchId, byte[] body) throws IOException {
+      synchronized (batchIds) {
+        batchIds.add(batchId);
+      }
+      firstAttempt.countDown();
+
+      if (failuresLeft.getAndDecrement() > 0) {
+        if (storeBeforeFailing) {
+          delegate.receive(batchId, body);
+        }
+        throw new IOException("Simulated failure for batch " + batchId);
+      }
+
+      delegate.receive(batchId, body);
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.smarttapsample.core;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Checks the bytes each stage of a tap allocates, and the bytes and CPU time of a whole tap,
+ * against their budgets, see {@link TapStages}
+ *
+ * Allocation is counted exactly per thread, so unlike CPU time it does not depend on the machine
+ * or on what else runs on it. The median of many runs leaves out the odd run that grows a cache.
+ * CPU time is taken over batches of whole taps, as the benchmark does, and the median batch is
+ * checked against a budget with a wide margin for slow or busy machines
+ */
+public class TapBudgetTest {
+
+  private static final com.sun.management.ThreadMXBean THREADS =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  private static final int WARM_UP_RUNS = 1000;
+  private static final int MEASURED_RUNS = 201;
+  private static final int CPU_BATCHES = 5;
+  private static final int TAPS_PER_BATCH = 100;
+
+  @Test
+  public void stagesAllocateWithinBudget() throws Exception {
+    assumeTrue(THREADS.isThreadAllocatedMemorySupported());
+    THREADS.setThreadAllocatedMemoryEnabled(true);
+
+    List<TapStages.Stage> stages = TapStages.record();
+    runTaps(stages, WARM_UP_RUNS);
+
+    long threadId = Thread.currentThread().getId();
+    StringBuilder exceeded = new StringBuilder();
+    long tapBytes = 0;
+
+    for (TapStages.Stage stage : stages) {
+      long[] bytes = new long[MEASURED_RUNS];
+      for (int i = 0; i < MEASURED_RUNS; i++) {
+        long before = THREADS.getThreadAllocatedBytes(threadId);
+        stage.run();
+        bytes[i] = THREADS.getThreadAllocatedBytes(threadId) - before;
+      }
+
+      Arrays.sort(bytes);
+      long median = bytes[MEASURED_RUNS / 2];
+      tapBytes += median;
+      if (median > stage.allocatedBytesBudget) {
+        exceeded.append(String.format("%n  %s: %d B (budget %d)", stage.name, median,
+            stage.allocatedBytesBudget));
+      }
+    }
+
+    assertTrue("Stages over their allocation budget:" + exceeded, exceeded.length() == 0);
+    assertTrue(String.format("Tap allocates %d B (budget %d)", tapBytes,
+        TapStages.TAP_ALLOCATED_BYTES_BUDGET), tapBytes <= TapStages.TAP_ALLOCATED_BYTES_BUDGET);
+  }
+
+  @Test
+  public void tapComputesWithinBudget() throws Exception {
+    assumeTrue(THREADS.isCurrentThreadCpuTimeSupported());
+    THREADS.setThreadCpuTimeEnabled(true);
+
+    List<TapStages.Stage> stages = TapStages.record();
+    runTaps(stages, WARM_UP_RUNS);
+
+    long[] nanosPerTap = new long[CPU_BATCHES];
+    for (int i = 0; i < CPU_BATCHES; i++) {
+      long before = THREADS.getCurrentThreadCpuTime();
+      runTaps(stages, TAPS_PER_BATCH);
+      nanosPerTap[i] = (THREADS.getCurrentThreadCpuTime() - before) / TAPS_PER_BATCH;
+    }
+
+    Arrays.sort(nanosPerTap);
+    long median = nanosPerTap[CPU_BATCHES / 2];
+    assertTrue(String.format("Tap takes %.2f ms CPU (budget %.2f), batches %s", median / 1e6,
+        TapStages.TAP_CPU_NANOS_BUDGET / 1e6, Arrays.toString(nanosPerTap)),
+        median <= TapStages.TAP_CPU_NANOS_BUDGET);
+  }
+
+  /**
+   * Runs all stages in flow order, a tap at a time
+   */
+  private static void runTaps(List<TapStages.Stage> stages, int taps) throws Exception {
+    for (int i = 0; i < taps; i++) {
+      for (TapStages.Stage stage : stages) {
+        stage.run();
+      }
+    }
+  }
+}